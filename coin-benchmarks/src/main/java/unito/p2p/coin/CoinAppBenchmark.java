@@ -0,0 +1,160 @@
+package unito.p2p.coin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.p2p.commonapi.Id;
+import rice.pastry.PastryNode;
+import rice.pastry.direct.DirectPastryNodeFactory;
+import rice.pastry.direct.EuclideanNetwork;
+import rice.pastry.standard.RandomNodeIdFactory;
+
+import unito.p2p.coin.benchmarks.Fixtures;
+import unito.p2p.coin.messaging.CoinMessage;
+import unito.p2p.coin.transport.NodeHandleTable;
+
+/**
+ * @(#) CoinAppBenchmark.java Runs the work a node does for every request:
+ * finding the root of an account, reading and changing the ledger, the
+ * pending table, the majority decision and writing a response frame.
+ *
+ * The application runs on a node of the direct simulator which never
+ * joins a ring, with the ledger in memory. It lives in the package of
+ * CoinApp to reach the methods the message handlers call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CoinAppBenchmark {
+
+  /**
+   * the number of accounts in the ledger
+   */
+  public static final int ACCOUNTS = 1024;
+
+  /**
+   * the balance of every account, far more than removeMoney() takes out in
+   * a run
+   */
+  public static final int BALANCE = 1 << 30;
+
+  private Environment env;
+
+  private CoinApp app;
+
+  private Id[] accounts;
+
+  /**
+   * the next account used, so that every benchmark goes round all of them
+   */
+  private int next;
+
+  private Integer[] votes;
+
+  private Continuation command;
+
+  private CoinMessage response;
+
+  /**
+   * the node handles of a socket on which the response was sent before
+   */
+  private NodeHandleTable handles;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    env = Environment.directEnvironment();
+    DirectPastryNodeFactory factory = new DirectPastryNodeFactory(new RandomNodeIdFactory(env), new EuclideanNetwork(env), env);
+    PastryNode node = factory.newNode(null);
+    app = new CoinApp(node, "benchmark");
+
+    accounts = Fixtures.ids(ACCOUNTS, Fixtures.SEED);
+    for (int i = 0; i < accounts.length; i++) {
+      app.addMoney(accounts[i], BALANCE);
+    }
+
+    // three replicas which agree, as they do unless one is being repaired
+    votes = new Integer[] {new Integer(BALANCE), new Integer(BALANCE), new Integer(BALANCE)};
+    command = new Continuation() {
+      public void receiveResult(Object result) {
+      }
+
+      public void receiveException(Exception e) {
+      }
+    };
+
+    response = Fixtures.message("BalanceRequestMessage");
+    handles = new NodeHandleTable();
+    app.release(app.encode(response, handles));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    app.destroy();
+    env.destroy();
+  }
+
+  private Id nextAccount() {
+    next = (next + 1) & (ACCOUNTS - 1);
+    return accounts[next];
+  }
+
+  @Benchmark
+  public Id getAccountRoot() {
+    return app.getAccountRoot(nextAccount());
+  }
+
+  @Benchmark
+  public int getBalance() {
+    return app.getBalance(nextAccount());
+  }
+
+  @Benchmark
+  public int addMoney() {
+    return app.addMoney(nextAccount(), 1);
+  }
+
+  @Benchmark
+  public int removeMoney() {
+    return app.removeMoney(nextAccount(), 1);
+  }
+
+  @Benchmark
+  public Integer majorityDecision() {
+    return app.majorityDecision(votes);
+  }
+
+  @Benchmark
+  public Continuation pending() {
+    Id account = nextAccount();
+    app.insertPending(next, account, command);
+    return app.removePending(next);
+  }
+
+  @Benchmark
+  public int encode() throws IOException {
+    ByteBuffer frame = app.encode(response, handles);
+    int size = frame.remaining();
+    app.release(frame);
+    return size;
+  }
+
+}
@@ -0,0 +1,156 @@
+package unito.p2p.coin.benchmarks;
+
+import java.util.Random;
+
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.IdRange;
+import rice.p2p.commonapi.NodeHandle;
+
+import unito.p2p.coin.messaging.*;
+import unito.p2p.coin.replication.ReplicaBatcher;
+import unito.p2p.coin.testing.TestNodes;
+
+/**
+ * @(#) Fixtures.java The ids, node handles and messages the benchmarks work
+ * on, always the same ones so that runs can be compared.
+ *
+ * The ids, handles and endpoint are the ones of the unit tests, from
+ * TestNodes.
+ */
+public class Fixtures {
+
+  /**
+   * the seed of every random choice
+   */
+  public static final long SEED = 42;
+
+  /**
+   * the names of the message classes, as accepted by message()
+   */
+  public static final String[] MESSAGES = {
+    "CoinMessageLostMessage", "CashFlowMessage", "CashFlowConfirmMessage", "CashFlowUpdateMessage",
+    "CashFlowUpdateReplicationMessage", "WithDrawalMessage", "BalanceRequestMessage",
+    "BalanceRequestPropagatedMessage", "RemoveMoneyMessage", "AddMoneyMessage", "FundingMessage",
+    "StateTransferRequestMessage", "StreamChunkMessage", "MerkleSyncMessage", "ReplicaBatchMessage"};
+
+  /**
+   * Return count ids chosen at random from a fixed seed
+   *
+   * @param count the number of ids
+   * @param seed the seed
+   */
+  public static Id[] ids(int count, long seed) {
+    return TestNodes.ids(count, seed);
+  }
+
+  /**
+   * Return the handle of a node
+   *
+   * @param id the id of the node
+   * @param port the port of the node, also used for its epoch
+   */
+  public static NodeHandle handle(Id id, int port) {
+    return TestNodes.handle(id, port);
+  }
+
+  /**
+   * Return an endpoint reading the ids, ranges and handles written by the
+   * fixtures, and the messages with a CoinMessageDeserializer
+   */
+  public static Endpoint endpoint() {
+    return TestNodes.endpoint();
+  }
+
+  /**
+   * Return a message of a class, with the fields a node would fill in
+   *
+   * @param name the name of the class, one of MESSAGES
+   */
+  public static CoinMessage message(String name) {
+    Id[] ids = ids(8, SEED);
+    NodeHandle sender = handle(ids[0], 9001);
+    NodeHandle receiver = handle(ids[1], 9002);
+    NodeHandle root = handle(ids[2], 9003);
+    IdRange range = new rice.pastry.IdRange((rice.pastry.Id) ids[3], (rice.pastry.Id) ids[4]);
+
+    CashFlowMessage cfm = new CashFlowMessage(1, sender, receiver, 100);
+    CashFlowUpdateMessage cfum = new CashFlowUpdateMessage(2, cfm, sender, ids[1]);
+    BalanceRequestMessage brm = new BalanceRequestMessage(3, sender, ids[5], receiver);
+    FundingMessage fm = new FundingMessage(4, sender, ids[5], 100);
+    WithDrawalMessage wdm = new WithDrawalMessage(5, sender, ids[5], 100);
+
+    if (name.equals("CoinMessageLostMessage")) {
+      return new CoinMessageLostMessage(6, sender, ids[5], cfm, receiver);
+    }
+    if (name.equals("CashFlowMessage")) {
+      return cfm;
+    }
+    if (name.equals("CashFlowConfirmMessage")) {
+      return new CashFlowConfirmMessage(7, cfm);
+    }
+    if (name.equals("CashFlowUpdateMessage")) {
+      return cfum;
+    }
+    if (name.equals("CashFlowUpdateReplicationMessage")) {
+      return new CashFlowUpdateReplicationMessage(8, cfum, root);
+    }
+    if (name.equals("WithDrawalMessage")) {
+      wdm.setResponse(Boolean.TRUE);
+      return wdm;
+    }
+    if (name.equals("BalanceRequestMessage")) {
+      brm.setResponse(new Integer(1000));
+      return brm;
+    }
+    if (name.equals("BalanceRequestPropagatedMessage")) {
+      BalanceRequestPropagatedMessage brpm = new BalanceRequestPropagatedMessage(9, brm, root);
+      brpm.setResponse(1000);
+      return brpm;
+    }
+    if (name.equals("RemoveMoneyMessage")) {
+      RemoveMoneyMessage rmm = new RemoveMoneyMessage(10, root, sender.getId(), wdm, 100, sender.getId());
+      rmm.setResponse(Boolean.TRUE);
+      return rmm;
+    }
+    if (name.equals("AddMoneyMessage")) {
+      AddMoneyMessage amm = new AddMoneyMessage(11, root, sender.getId(), fm, 100, sender.getId());
+      amm.setResponse(Boolean.TRUE);
+      return amm;
+    }
+    if (name.equals("FundingMessage")) {
+      fm.setResponse(Boolean.TRUE);
+      return fm;
+    }
+    if (name.equals("StateTransferRequestMessage")) {
+      return new StateTransferRequestMessage(12, sender, receiver, range);
+    }
+    if (name.equals("StreamChunkMessage")) {
+      byte[] data = new byte[4096];
+      new Random(SEED).nextBytes(data);
+      return new StreamChunkMessage(13, 13, sender, receiver, StreamChunkMessage.ACCOUNTS, 0, data, false);
+    }
+    if (name.equals("MerkleSyncMessage")) {
+      int[] buckets = new int[64];
+      long[] hashes = new long[64];
+      Random random = new Random(SEED);
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = i;
+        hashes[i] = random.nextLong();
+      }
+      return new MerkleSyncMessage(14, sender, receiver, range, MerkleSyncMessage.COMPARE, 4, buckets, hashes, null);
+    }
+    if (name.equals("ReplicaBatchMessage")) {
+      Id[] updated = ids(ReplicaBatcher.DEFAULT_MAX_SIZE, SEED);
+      int[] deltas = new int[updated.length];
+      long[] origins = new long[updated.length];
+      for (int i = 0; i < updated.length; i++) {
+        deltas[i] = (i & 1) == 0 ? 100 : -100;
+        origins[i] = cfm.getDigest() + i;
+      }
+      return new ReplicaBatchMessage(15, root, receiver, updated, deltas, origins);
+    }
+    throw new IllegalArgumentException("Unknown message " + name);
+  }
+
+}
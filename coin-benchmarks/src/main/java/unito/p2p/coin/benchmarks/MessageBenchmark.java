@@ -0,0 +1,98 @@
+package unito.p2p.coin.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.rawserialization.MessageDeserializer;
+
+import unito.p2p.coin.messaging.CoinMessage;
+import unito.p2p.coin.transport.BufferPool;
+import unito.p2p.coin.transport.ByteBufferInputBuffer;
+import unito.p2p.coin.transport.ByteBufferOutputBuffer;
+import unito.p2p.coin.transport.FrameReader;
+
+/**
+ * @(#) MessageBenchmark.java Writes and reads every message class, as the
+ * socket transport does.
+ *
+ * The messages are written into pooled buffers with the node handles in
+ * full, as on the first use of a socket, and read back through the
+ * CoinMessageDeserializer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MessageBenchmark {
+
+  /**
+   * the message class
+   */
+  @Param({"CoinMessageLostMessage", "CashFlowMessage", "CashFlowConfirmMessage", "CashFlowUpdateMessage",
+    "CashFlowUpdateReplicationMessage", "WithDrawalMessage", "BalanceRequestMessage",
+    "BalanceRequestPropagatedMessage", "RemoveMoneyMessage", "AddMoneyMessage", "FundingMessage",
+    "StateTransferRequestMessage", "StreamChunkMessage", "MerkleSyncMessage", "ReplicaBatchMessage"})
+  public String message;
+
+  private CoinMessage m;
+
+  private BufferPool pool;
+
+  private MessageDeserializer deserializer;
+
+  /**
+   * the message as written by serialize(), without the frame header
+   */
+  private ByteBuffer body;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    m = Fixtures.message(message);
+    pool = new BufferPool();
+    Endpoint endpoint = Fixtures.endpoint();
+    deserializer = endpoint.getDeserializer();
+
+    ByteBufferOutputBuffer buf = new ByteBufferOutputBuffer(pool);
+    m.serialize(buf);
+    ByteBuffer frame = buf.toFrame();
+    frame.position(frame.position() + FrameReader.HEADER_SIZE);
+    body = ByteBuffer.allocate(frame.remaining());
+    body.put(frame);
+    body.flip();
+    pool.release(frame);
+  }
+
+  @Benchmark
+  public int serialize() throws IOException {
+    ByteBufferOutputBuffer buf = new ByteBufferOutputBuffer(pool);
+    m.serialize(buf);
+    int written = buf.getWritten();
+    buf.release();
+    return written;
+  }
+
+  @Benchmark
+  public Message deserialize() throws IOException {
+    body.position(0);
+    return deserializer.deserialize(new ByteBufferInputBuffer(body), m.getType(), 0, null);
+  }
+
+}
@@ -1,15 +1,14 @@
 
 package unito.p2p.coin;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Hashtable;
-import java.util.WeakHashMap;
 import java.util.HashMap;
-import java.util.Set;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 
 
@@ -19,10 +18,13 @@ import rice.Continuation.SimpleContinuation;
 import rice.Continuation.StandardContinuation;
 import rice.environment.Environment;
 import rice.environment.logging.Logger;
+import rice.environment.params.Parameters;
 import rice.p2p.commonapi.Application;
+import rice.p2p.commonapi.Cancellable;
 import rice.p2p.commonapi.CancellableTask;
 import rice.p2p.commonapi.Endpoint;
 import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.IdRange;
 import rice.p2p.commonapi.Message;
 import rice.p2p.commonapi.Node;
 import rice.p2p.commonapi.NodeHandle;
@@ -30,14 +32,36 @@ import rice.p2p.commonapi.NodeHandleSet;
 import rice.p2p.commonapi.RouteMessage;
 import rice.p2p.commonapi.appsocket.AppSocket;
 import rice.p2p.commonapi.appsocket.AppSocketReceiver;
-import rice.p2p.util.MathUtils;
-import rice.p2p.util.rawserialization.SimpleInputBuffer;
-import rice.p2p.util.rawserialization.SimpleOutputBuffer;
-import rice.pastry.messaging.JavaSerializedDeserializer;
+import rice.p2p.commonapi.exception.RangeCannotBeDeterminedException;
+import rice.selector.TimerTask;
 
 import rice.Continuation;
 
+import unito.p2p.coin.ledger.Checkpointer;
+import unito.p2p.coin.ledger.HashLedger;
+import unito.p2p.coin.ledger.Ledger;
+import unito.p2p.coin.ledger.MappedStorage;
+import unito.p2p.coin.ledger.MerkleLedger;
+import unito.p2p.coin.ledger.MerkleTree;
+import unito.p2p.coin.ledger.TieredLedger;
+import unito.p2p.coin.ledger.WriteAheadLog;
 import unito.p2p.coin.messaging.*;
+import unito.p2p.coin.replication.AntiEntropy;
+import unito.p2p.coin.replication.Quorum;
+import unito.p2p.coin.replication.ReplicaBatcher;
+import unito.p2p.coin.replication.StateTransfer;
+import unito.p2p.coin.transport.BufferPool;
+import unito.p2p.coin.transport.ByteBufferInputBuffer;
+import unito.p2p.coin.transport.ByteBufferOutputBuffer;
+import unito.p2p.coin.transport.ConnectionPool;
+import unito.p2p.coin.transport.FrameEncoder;
+import unito.p2p.coin.transport.FrameHandler;
+import unito.p2p.coin.transport.FrameReader;
+import unito.p2p.coin.transport.FrameReceiver;
+import unito.p2p.coin.transport.NodeHandleTable;
+import unito.p2p.coin.transport.RoundTripEstimator;
+import unito.p2p.coin.transport.StreamSource;
+import unito.p2p.coin.transport.TransportSelector;
 
 /**
  * Implementation of the Coin Interface 
@@ -47,7 +71,8 @@ import unito.p2p.coin.messaging.*;
 public class CoinApp implements Coin, Application {
   
   /**
-   * the number of milliseconds to wait before declaring a message lost
+   * the number of milliseconds to wait before declaring a message lost,
+   * when the round trip to the destination is not known
    */
   public final int MESSAGE_TIMEOUT;
   
@@ -71,6 +96,57 @@ public class CoinApp implements Coin, Application {
    */
   private Hashtable<Integer, CancellableTask> timers;
   
+  /**
+   * the destination of every outstanding message, guarded by outstanding
+   */
+  private HashMap<Integer, Id> pendingDestinations;
+  
+  /**
+   * the number of outstanding messages to every destination, guarded by
+   * outstanding
+   */
+  private HashMap<Id, Integer> pendingWindows;
+  
+  /**
+   * the default maximum number of outstanding messages
+   */
+  public static final int DEFAULT_MAX_PENDING = 10000;
+  
+  /**
+   * the default maximum number of outstanding messages to the same destination
+   */
+  public static final int DEFAULT_PEER_WINDOW = 256;
+  
+  /**
+   * the maximum number of outstanding messages
+   */
+  private int maxPending;
+  
+  /**
+   * the maximum number of outstanding messages to the same destination
+   */
+  private int peerWindow;
+  
+  /**
+   * the number of requests refused because of too many outstanding messages
+   */
+  private long overloads;
+  
+  /**
+   * the number of responses delivered from their frame without building them
+   */
+  private long viewedResponses;
+  
+  /**
+   * the requests to replicas released and hedged by the quorums
+   */
+  private Quorum.Counters quorums;
+  
+  /**
+   * the number of responses which came after their request stopped waiting
+   */
+  private long lateResponses;
+  
   /**
    * The application environment
    */
@@ -82,15 +158,125 @@ public class CoinApp implements Coin, Application {
   protected Logger logger;
   
   /**
-   * AppSocket -> ByteBuffer[] Used for receiving the objects.
+   * lends the buffers the messages are sent and received in
    */
-  WeakHashMap pendingSocketTransactions = new WeakHashMap();
+  private BufferPool bufferPool;
   
   
   /**
    * Holds the accounts informations
    */
-  private Hashtable<Id, CoinAccount> accounts;
+  private Ledger ledger;
+  
+  /**
+   * Logs the balance changes applied to the ledger, null if the ledger
+   * is not persistent
+   */
+  private WriteAheadLog log;
+  
+  /**
+   * Checkpoints the ledger so that the log can be truncated, null if the
+   * ledger is not persistent
+   */
+  private Checkpointer checkpointer;
+  
+  /**
+   * the default number of milliseconds between two flushes of a memory-mapped ledger
+   */
+  public static final long DEFAULT_LEDGER_FLUSH_INTERVAL = 5000;
+  
+  /**
+   * the default number of milliseconds between two checkpoints of a persistent ledger
+   */
+  public static final long DEFAULT_LEDGER_CHECKPOINT_INTERVAL = 60000;
+  
+  /**
+   * the default number of accounts sent in a state transfer chunk
+   */
+  public static final int DEFAULT_TRANSFER_CHUNK_SIZE = 512;
+  
+  /**
+   * the default number of accounts per second sent by a state transfer
+   */
+  public static final int DEFAULT_TRANSFER_RATE = 10000;
+  
+  /**
+   * the number of accounts sent in a state transfer chunk
+   */
+  private int transferChunkSize;
+  
+  /**
+   * milliseconds between the acknowledgement of a chunk of a state
+   * transfer and the next chunk
+   */
+  private long transferDelay;
+  
+  /**
+   * the number of times a chunk of a stream is sent again before the
+   * stream is abandoned
+   */
+  public static final int STREAM_RETRIES = 3;
+  
+  /**
+   * the number of streams being received whose next chunk is remembered
+   */
+  public static final int STREAMS_TRACKED = 64;
+  
+  /**
+   * the next chunk expected on every stream being received, by sender and
+   * stream id; the entries of the oldest streams are dropped
+   */
+  private LinkedHashMap<String, Integer> incomingStreams;
+  
+  /**
+   * the default number of milliseconds between two anti-entropy rounds
+   */
+  public static final long DEFAULT_ANTI_ENTROPY_INTERVAL = 60000;
+  
+  /**
+   * compares the ledger with the other replicas and repairs divergences
+   */
+  private AntiEntropy antiEntropy;
+  
+  /**
+   * groups the balance changes sent to the same replica, null if every
+   * change is sent in its own message
+   */
+  private ReplicaBatcher batcher;
+  
+  /**
+   * keeps the sockets to the other nodes open across messages
+   */
+  private ConnectionPool connections;
+  
+  /**
+   * milliseconds after which an accepted socket with nothing to read is closed
+   */
+  private int socketReadTimeout;
+  
+  /**
+   * chooses between overlay routing and sockets for the requests sent to
+   * the replicas
+   */
+  private TransportSelector transportSelector;
+  
+  /**
+   * estimates the round trip to the nodes the requests are sent to, which
+   * sets their timeouts and when balance requests are hedged
+   */
+  private RoundTripEstimator roundTrips;
+  
+  /**
+   * the maximum length of a message sent or received on a socket, larger
+   * payloads are sent as streams
+   */
+  private int maxFrameSize;
+  
+  /**
+   * the range of account roots this node is replica for, as of the last
+   * leafset change
+   */
+  private IdRange responsibleRange;
   
   /**
    * the replication Factor for Coin
@@ -123,17 +309,165 @@ public class CoinApp implements Coin, Application {
     
     this.outstanding = new Hashtable<Integer, Continuation>();
     this.timers = new Hashtable<Integer, CancellableTask>();
+    this.pendingDestinations = new HashMap<Integer, Id>();
+    this.pendingWindows = new HashMap<Id, Integer>();
+    this.quorums = new Quorum.Counters();
+    this.incomingStreams = new LinkedHashMap<String, Integer>() {
+      protected boolean removeEldestEntry(Entry<String, Integer> eldest) {
+        return size() > STREAMS_TRACKED;
+      }
+    };
     
-    this.accounts = new Hashtable<Id, CoinAccount>();
+    openLedger();
+    
+    Parameters params = environment.getParameters();
+    maxPending = DEFAULT_MAX_PENDING;
+    if (params.contains("coin_max_pending")) {
+      maxPending = params.getInt("coin_max_pending");
+    }
+    peerWindow = DEFAULT_PEER_WINDOW;
+    if (params.contains("coin_peer_window")) {
+      peerWindow = params.getInt("coin_peer_window");
+    }
+    
+    transferChunkSize = DEFAULT_TRANSFER_CHUNK_SIZE;
+    if (params.contains("coin_transfer_chunk_size")) {
+      transferChunkSize = params.getInt("coin_transfer_chunk_size");
+    }
+    int transferRate = DEFAULT_TRANSFER_RATE;
+    if (params.contains("coin_transfer_rate")) {
+      transferRate = params.getInt("coin_transfer_rate");
+    }
+    maxFrameSize = FrameReader.DEFAULT_MAX_FRAME_SIZE;
+    if (params.contains("coin_max_frame_size")) {
+      maxFrameSize = params.getInt("coin_max_frame_size");
+    }
+    // leave room in every chunk for the rest of the message
+    transferChunkSize = Math.min(transferChunkSize, maxFrameSize / 2 / HashLedger.ACCOUNT_SIZE);
+    transferDelay = Math.max(1, transferChunkSize * 1000L / transferRate);
+    
+    // keep a Merkle tree of the ledger, compared with the other replicas
+    int leafBits = MerkleTree.DEFAULT_LEAF_BITS;
+    if (params.contains("coin_merkle_leaf_bits")) {
+      leafBits = params.getInt("coin_merkle_leaf_bits");
+    }
+    long antiEntropyInterval = DEFAULT_ANTI_ENTROPY_INTERVAL;
+    if (params.contains("coin_anti_entropy_interval")) {
+      antiEntropyInterval = params.getLong("coin_anti_entropy_interval");
+    }
+    MerkleLedger merkleLedger = new MerkleLedger(ledger, leafBits);
+    ledger = merkleLedger;
+    antiEntropy = new AntiEntropy(endpoint, merkleLedger, log, replicationFactor, logger);
+    if (antiEntropyInterval > 0) {
+      antiEntropy.start(antiEntropyInterval);
+    }
+    
+    // send the balance changes to every replica in batches, unless a batch holds a single change
+    int batchSize = ReplicaBatcher.DEFAULT_MAX_SIZE;
+    if (params.contains("coin_replica_batch_size")) {
+      batchSize = params.getInt("coin_replica_batch_size");
+    }
+    long batchDelay = ReplicaBatcher.DEFAULT_MAX_DELAY;
+    if (params.contains("coin_replica_batch_delay")) {
+      batchDelay = params.getLong("coin_replica_batch_delay");
+    }
+    if (batchSize > 1) {
+      // a batch must fit in a frame
+      batchSize = Math.min(batchSize, maxFrameSize / 2 / ReplicaBatchMessage.MAX_CHANGE_SIZE);
+      batcher = new ReplicaBatcher(environment, new ReplicaBatcher.Sender() {
+        public Cancellable send(NodeHandle replica, Id[] updated, int[] deltas, long[] origins, Continuation command) {
+          return sendDirect(replica, new ReplicaBatchMessage(getUID(), getLocalNodeHandle(), replica, updated, deltas, origins), command);
+        }
+      }, batchSize, batchDelay);
+    }
+    
+    // send and receive the messages in recycled buffers, direct unless configured otherwise
+    int pooledBuffers = BufferPool.DEFAULT_BUFFERS_PER_CLASS;
+    if (params.contains("coin_buffer_pool_size")) {
+      pooledBuffers = params.getInt("coin_buffer_pool_size");
+    }
+    boolean directBuffers = !params.contains("coin_buffer_pool_direct") || params.getBoolean("coin_buffer_pool_direct");
+    bufferPool = new BufferPool(BufferPool.DEFAULT_MAX_BUFFER_SIZE, pooledBuffers, directBuffers);
+    
+    // keep the sockets to the other nodes open, the accepting side waits
+    // longer than the idle timeout so that the sending side closes them
+    long idleTimeout = ConnectionPool.DEFAULT_IDLE_TIMEOUT;
+    if (params.contains("coin_connection_idle_timeout")) {
+      idleTimeout = params.getLong("coin_connection_idle_timeout");
+    }
+    int maxQueued = ConnectionPool.DEFAULT_MAX_QUEUED;
+    if (params.contains("coin_send_queue_size")) {
+      maxQueued = params.getInt("coin_send_queue_size");
+    }
+    int maxConnections = ConnectionPool.DEFAULT_MAX_CONNECTIONS;
+    if (params.contains("coin_connections_per_peer")) {
+      maxConnections = params.getInt("coin_connections_per_peer");
+    }
+    long checkInterval = ConnectionPool.DEFAULT_CHECK_INTERVAL;
+    if (params.contains("coin_connection_check_interval")) {
+      checkInterval = params.getLong("coin_connection_check_interval");
+    }
+    long flushDelay = ConnectionPool.DEFAULT_FLUSH_DELAY;
+    if (params.contains("coin_flush_delay")) {
+      flushDelay = params.getLong("coin_flush_delay");
+    }
+    connections = new ConnectionPool(endpoint, bufferPool, idleTimeout, maxConnections, maxQueued, checkInterval, flushDelay, logger);
+    socketReadTimeout = (int) Math.min(Integer.MAX_VALUE, 2 * idleTimeout + checkInterval);
+    
+    // learn which path is faster to every replica
+    int minSamples = TransportSelector.DEFAULT_MIN_SAMPLES;
+    if (params.contains("coin_transport_min_samples")) {
+      minSamples = params.getInt("coin_transport_min_samples");
+    }
+    double exploreRate = TransportSelector.DEFAULT_EXPLORE_RATE;
+    if (params.contains("coin_transport_explore_rate")) {
+      exploreRate = params.getDouble("coin_transport_explore_rate");
+    }
+    transportSelector = new TransportSelector(environment.getRandomSource(), minSamples, exploreRate);
+    
+    // wait for every node about as long as it takes to answer
+    long minTimeout = RoundTripEstimator.DEFAULT_MIN_TIMEOUT;
+    if (params.contains("coin_min_timeout")) {
+      minTimeout = params.getLong("coin_min_timeout");
+    }
+    double hedgePercentile = RoundTripEstimator.DEFAULT_HEDGE_PERCENTILE;
+    if (params.contains("coin_hedge_percentile")) {
+      hedgePercentile = params.getDouble("coin_hedge_percentile");
+    }
+    roundTrips = new RoundTripEstimator(MESSAGE_TIMEOUT, minTimeout, hedgePercentile);
     
     this.id = Integer.MIN_VALUE;
     
-    // TODO: do not use java serialization :-)
-    // this can make coin implementable using programming languages others than Java
-    ((JavaSerializedDeserializer) endpoint.getDeserializer()).setAlwaysUseJavaSerialization(true);
+    // every message has its own raw serialization
+    endpoint.setDeserializer(new CoinMessageDeserializer(endpoint));
     
     
-    // prepare to accept sockets
+    // every message received is deserialized where it was read, or only
+    // looked at when that is enough
+    final MessageView view = new MessageView();
+    final FrameHandler handler = new FrameHandler() {
+
+          public void receiveFrame(ByteBuffer frame, AppSocket socket, NodeHandleTable handles) throws IOException {
+            if (logger.level <= Logger.FINER) {
+              logger.log("Found object of size " + frame.remaining() + " from " + socket);
+            }
+
+            // most responses only complete the request waiting for them
+            if (deliverResponse(view.wrap(frame))) {
+              return;
+            }
+
+            // deserialize the object, a failure closes the socket
+            ByteBufferInputBuffer buf = new ByteBufferInputBuffer(frame, handles);
+            short type = buf.readShort();
+            CoinMessage result = (CoinMessage) endpoint.getDeserializer().deserialize(buf, type, (byte) 0, null);
+
+            // deliver to the application
+            deliver(null, result);
+          }
+        };
+
+    // prepare to accept sockets, each one getting its own receiver
     this.endpoint.accept(
         new AppSocketReceiver() {
 
@@ -141,101 +475,19 @@ public class CoinApp implements Coin, Application {
             if (logger.level <= Logger.FINE) {
               logger.log("Received Socket from " + socket);
             }
-            socket.register(true, false, 10000, this);
+            new FrameReceiver(socket, bufferPool, handler, socketReadTimeout, maxFrameSize, logger).start();
             endpoint.accept(this);
           }
 
           public void receiveSelectResult(AppSocket socket, boolean canRead,
                 boolean canWrite) {
-            if (logger.level <= Logger.FINER) {
-              logger.log("Reading from " + socket);
-            }
-            try {
-              ByteBuffer[] bb = (ByteBuffer[]) pendingSocketTransactions.get(socket);
-              if (bb == null) {
-                // this is a new message
-
-                // read the size
-                bb = new ByteBuffer[1];
-                bb[0] = ByteBuffer.allocate(4);
-                if (socket.read(bb, 0, 1) == -1) {
-                  close(socket);
-                  return;
-                }
-
-                // TODO: need to handle the condition where we don't read the whole size...
-                byte[] sizeArr = bb[0].array();
-                int size = MathUtils.byteArrayToInt(sizeArr);
-
-                if (logger.level <= Logger.FINER) {
-                  logger.log("Found object of size " + size + " from " + socket);
-                }
-
-                // allocate a buffer to store the object, save it in the pst
-                bb[0] = ByteBuffer.allocate(size);
-                pendingSocketTransactions.put(socket, bb);
-              }
-
-              // now we have a bb
-
-              // read some bytes
-              if (socket.read(bb, 0, 1) == -1) {
-                close(socket);
-              }
-
-              // deserialize or reregister
-              if (bb[0].remaining() == 0) {
-                // make sure to clear things up so we can keep receiving
-                pendingSocketTransactions.remove(socket);
-
-                if (logger.level <= Logger.FINEST) {
-                  logger.log("bb[0].limit() " + bb[0].limit() + " bb[0].remaining() " + bb[0].remaining() + " from " + socket);
-                }
-
-                // deserialize the object
-                SimpleInputBuffer sib = new SimpleInputBuffer(bb[0].array());
-
-                short type = sib.readShort();
-                
-                //System.out.println(endpoint.getDeserializer());
-
-                // get the message
-                CoinMessage result = (CoinMessage) endpoint.getDeserializer().deserialize(sib, type, (byte) 0, null);
-                
-                // System.out.println("Received from socket " + result);
-                
-                // deliver to the application
-                deliver(null, result);
-
-              }
-
-              // there will be more data on the socket if we haven't received everything yet
-              // need to register either way to be able to read from the sockets when they are closed remotely, could alternatively close early
-              // cause we are currently only sending 1 message per socket, but it's better to just keep reading in case we one day reuse sockets
-              socket.register(true, false, 10000, this);
-
-              // recursive call to handle next object
-              // cant do this becasue calling read when not ready throws an exception
-              // receiveSelectResult(socket, canRead, canWrite);
-            } catch (IOException ioe) {
-              receiveException(socket, ioe);
-            }
+            // accepted sockets are read by their FrameReceiver
           }
 
           public void receiveException(AppSocket socket, Exception e) {
             if (logger.level <= Logger.WARNING) {
-              logger.logException("Error receiving message", e);
+              logger.logException("Error accepting a socket", e);
             }
-            close(socket);
-          }
-
-          public void close(AppSocket socket) {
-            if (socket == null) {
-              return;
-            }
-            //System.out.println("Closing "+socket);
-            pendingSocketTransactions.remove(socket);
-            socket.close();
           }
 
         });
@@ -247,96 +499,221 @@ public class CoinApp implements Coin, Application {
   
   
   /**
-   * Send a message using a socket
+   * Open the ledger holding the accounts this node is replica for.
+   * If the coin_ledger_directory parameter is set, the ledger is persistent:
+   * its files go under a directory named after the node Id, so that a node
+   * restarted with the same Id gets its accounts back. Every balance change
+   * goes through a write ahead log, and the ledger is checkpointed
+   * periodically so that a restart only replays the end of the log.
+   * The coin_ledger_storage parameter chooses whether the accounts are kept
+   * in memory-mapped files (mapped, the default) or on the heap with
+   * incremental snapshots (heap). With mapped storage, setting
+   * coin_ledger_cache_size keeps only that many recently used accounts on
+   * the heap, in front of the mapped files; 0 or less disables the cache.
+   */
+  protected void openLedger() {
+    Parameters params = environment.getParameters();
+    if (!params.contains("coin_ledger_directory")) {
+      ledger = new HashLedger();
+      return;
+    }
+    
+    File directory = new File(params.getString("coin_ledger_directory"), endpoint.getId().toStringFull());
+    long flushInterval = DEFAULT_LEDGER_FLUSH_INTERVAL;
+    if (params.contains("coin_ledger_flush_interval")) {
+      flushInterval = params.getLong("coin_ledger_flush_interval");
+    }
+    long checkpointInterval = DEFAULT_LEDGER_CHECKPOINT_INTERVAL;
+    if (params.contains("coin_ledger_checkpoint_interval")) {
+      checkpointInterval = params.getLong("coin_ledger_checkpoint_interval");
+    }
+    boolean mapped = !params.contains("coin_ledger_storage") || params.getString("coin_ledger_storage").equals("mapped");
+    
+    try {
+      HashLedger hashLedger;
+      if (mapped) {
+        MappedStorage storage = new MappedStorage(directory, HashLedger.DEFAULT_SEGMENTS, flushInterval);
+        hashLedger = new HashLedger(storage, HashLedger.DEFAULT_SEGMENTS, HashLedger.DEFAULT_SEGMENT_CAPACITY);
+      } else {
+        hashLedger = new HashLedger();
+      }
+      
+      ledger = hashLedger;
+      int cacheSize = 0;
+      if (mapped && params.contains("coin_ledger_cache_size")) {
+        cacheSize = params.getInt("coin_ledger_cache_size");
+      }
+      if (cacheSize > 0) {
+        ledger = new TieredLedger(hashLedger, cacheSize, Math.min(TieredLedger.DEFAULT_STRIPES, Integer.highestOneBit(cacheSize)));
+      }
+      
+      log = new WriteAheadLog(new File(directory, "log"), WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+      checkpointer = new Checkpointer(ledger, log, directory, mapped);
+      int replayed = checkpointer.recover();
+      checkpointer.start(checkpointInterval);
+      logger.log("opened ledger in " + directory + " holding " + ledger.size() + " accounts, " + replayed + " log records replayed");
+    } catch (IOException ioe) {
+      if (logger.level <= Logger.SEVERE) {
+        logger.logException("Cannot open ledger in " + directory, ioe);
+      }
+      throw new RuntimeException("Cannot open ledger in " + directory, ioe);
+    }
+  }
+  
+  
+  /**
+   * Release the resources held by this application, writing the ledger
+   * back to stable storage.
+   */
+  public void destroy() {
+    antiEntropy.stop();
+    if (batcher != null) {
+      batcher.stop(new CoinException("Application destroyed"));
+    }
+    connections.close();
+    if (logger.level <= Logger.INFO) {
+      logger.log("opened " + connections.getOpened() + " sockets, reused them for " + connections.getReused() + " messages, "
+          + connections.getFailed() + " failed");
+      logger.log("average messages per socket write " + connections.getAverageFramesPerWrite() + ", " + overloads + " requests refused for overload");
+      logger.log("responses delivered without being deserialized " + viewedResponses);
+      logger.log("requests to replicas released once their quorum was decided " + quorums.getReleased() + ", late responses ignored " + lateResponses);
+      logger.log("node handles sent as a reference " + connections.getHandleReferences() + " times");
+      logger.log(transportSelector.getReport());
+      logger.log(roundTrips.getReport() + ", " + quorums.getHedged() + " balance requests hedged");
+      if (batcher != null) {
+        logger.log("replica batches sent " + batcher.getSent() + ", average changes per batch " + batcher.getAverageSize());
+      }
+      logger.log("message buffers recycled " + bufferPool.getHits() + " times, allocated " + bufferPool.getMisses() + " times");
+    }
+    try {
+      if (checkpointer != null) {
+        // a last checkpoint makes the next start faster
+        checkpointer.stop();
+        checkpointer.checkpoint();
+      }
+      if (log != null) {
+        log.close();
+      }
+      if (ledger instanceof TieredLedger && logger.level <= Logger.INFO) {
+        TieredLedger tiered = (TieredLedger) ledger;
+        logger.log("ledger cache hit rate " + tiered.getHitRate() + ", " + tiered.getFaults() + " faults, average fault latency "
+            + tiered.getAverageFaultLatency() + " us, max " + tiered.getMaxFaultLatency() + " us");
+      }
+      ledger.close();
+    } catch (IOException ioe) {
+      if (logger.level <= Logger.WARNING) {
+        logger.logException("Error closing the ledger", ioe);
+      }
+    }
+  }
+  
+  
+  
+  /**
+   * Send a message using a socket. Responses are written at once, requests
+   * wait for other messages to the same node to be written with them.
+   *
+   * @param handle the NodeHandle which will receive the socket
+   * @param m the message to be sent
+   * @param c the continuation which will receive the result
+   */
+  private void sendViaSocket(NodeHandle handle, CoinMessage m, Continuation c) {
+    sendViaSocket(handle, m, c, m.isResponse());
+  }
+  
+  /**
+   * Send a message using a socket. The message is serialized when it is
+   * queued on a socket, on the selector thread, so it must not change
+   * afterwards.
    *
    * @param handle the NodeHandle which will receive the socket
    * @param m the message to be sent
    * @param c the continuation which will receive the result
+   * @param urgent whether to write the message at once instead of waiting
+   * for other messages to the same node
    */
-  private void sendViaSocket(final NodeHandle handle, final CoinMessage m, final Continuation c) {
+  private void sendViaSocket(final NodeHandle handle, final CoinMessage m, Continuation c, boolean urgent) {
+    Continuation onError = null;
     if (c != null) {
-      CancellableTask timer = endpoint.scheduleMessage(new CoinMessageLostMessage(m.getUID(), getLocalNodeHandle(), null, m, handle), MESSAGE_TIMEOUT);
-      insertPending(m.getUID(), timer, c);
+      if (!insertPending(m.getUID(), handle.getId(), c)) {
+        c.receiveException(overloaded(handle.getId()));
+        return;
+      }
+      CancellableTask timer = endpoint.scheduleMessage(new CoinMessageLostMessage(m.getUID(), getLocalNodeHandle(), null, m, handle), roundTrips.getTimeout(handle.getId()));
+      timers.put(new Integer(m.getUID()), timer);
+      
+      // a message which cannot be written fails at once instead of timing out
+      onError = new Continuation() {
+        public void receiveResult(Object result) {
+        }
+        
+        public void receiveException(Exception e) {
+          Continuation pending = removePending(m.getUID());
+          if (pending != null) {
+            pending.receiveException(e);
+          }
+        }
+      };
     }
     
-    //logger.log("sending message " + m.getUID() + " " + m);
-
-    // create a bb[] to be written
-    SimpleOutputBuffer sob = new SimpleOutputBuffer();
+    // the message is written once queued on a socket, its node handles
+    // referring to the ones already sent on it
+    FrameEncoder encoder = new FrameEncoder() {
+      public ByteBuffer encode(NodeHandleTable handles) throws IOException {
+        ByteBuffer frame = CoinApp.this.encode(m, handles);
+        if (logger.level <= Logger.FINER) {
+          logger.log("Sending size of " + (frame.remaining() - FrameReader.HEADER_SIZE) + " to " + handle + " to send " + m);
+        }
+        return frame;
+      }
+    };
+    connections.send(handle, encoder, onError, urgent);
+  }
+  
+  
+  /**
+   * Write a message in a frame to be sent on a socket
+   *
+   * @param m the message
+   * @param handles the node handles already sent on the socket
+   * @return the frame, to be released to the buffer pool once written
+   * @exception IOException if the message cannot be serialized or is
+   * larger than the maximum frame size
+   */
+  ByteBuffer encode(CoinMessage m, NodeHandleTable handles) throws IOException {
+    // write the frame straight into a pooled buffer, the length is filled in at the end
+    ByteBufferOutputBuffer buf = new ByteBufferOutputBuffer(bufferPool);
+    buf.setHandles(handles);
+    int size = handles.getSize();
     try {
-      sob.writeInt(0);
-      // place holder for size...
-      sob.writeShort(m.getType());
-      m.serialize(sob);
+      buf.writeShort(m.getType());
+      m.serialize(buf);
     } catch (IOException ioe) {
-      if (c != null) {
-        c.receiveException(ioe);
-      }
+      buf.release();
+      throw ioe;
     }
 
-    // add the size back to the beginning...
-    int size = sob.getWritten() - 4;
-    // remove the size of the size :)
-    if (logger.level <= Logger.FINER) {
-      logger.log("Sending size of " + size + " to " + handle + " to send " + m);
+    if (buf.getWritten() > maxFrameSize) {
+      // the receiver would close the socket
+      buf.release();
+      throw new IOException("Message " + m + " of " + buf.getWritten() + " bytes exceeds the maximum of " + maxFrameSize);
     }
-    byte[] bytes = sob.getBytes();
-    MathUtils.intToByteArray(size, bytes, 0);
-
-    // prepare the bytes for writing
-    final ByteBuffer[] bb = new ByteBuffer[1];
-    bb[0] = ByteBuffer.wrap(bytes, 0, sob.getWritten());
-    // the whole thing
-
-    if (logger.level <= Logger.FINE) {
-      logger.log("Opening socket to " + handle + " to send " + m);
+    ByteBuffer frame = buf.toFrame();
+    if (handles.getSize() > size) {
+      // the receiver has to read it to learn the new handles
+      MessageView.markHandles(frame);
     }
-    endpoint.connect(handle,
-          new AppSocketReceiver() {
-
-            public void receiveSocket(AppSocket socket) {
-              if (logger.level <= Logger.FINER) {
-                logger.log("Opened socket to " + handle + ":" + socket + " to send " + m);
-              }
-              socket.register(false, true, 10000, this);
-            }
-
-            public void receiveSelectResult(AppSocket socket, boolean canRead,
-                  boolean canWrite) {
-              if (logger.level <= Logger.FINEST) {
-                logger.log("Writing to " + handle + ":" + socket + " to send " + m);
-              }
-
-              try {
-//          ByteBuffer[] outs = new ByteBuffer[1];
-//          ByteBuffer out = ByteBuffer.wrap(endpoint.getLocalNodeHandle().getId().toByteArray());
-//          outs[0] = out;
-//          socket.write(outs, 0, 1);
-
-                socket.write(bb, 0, 1);
-              } catch (IOException ioe) {
-                if (c != null) {
-                  c.receiveException(ioe);
-                } else if (logger.level <= Logger.WARNING) {
-                  logger.logException("Error sending " + m, ioe);
-                }
-                return;
-                // don't continue to try to send
-              }
-              if (bb[0].remaining() > 0) {
-                socket.register(false, true, 10000, this);
-              } else {
-                socket.close();
-              }
-            }
-
-            public void receiveException(AppSocket socket, Exception e) {
-              if (c != null) {
-                c.receiveException(e);
-              }
-            }
-          },
-          10000);
+    return frame;
+  }
+  
+  
+  /**
+   * Give back a frame returned by encode() which is not going to be sent
+   *
+   * @param frame the frame
+   */
+  void release(ByteBuffer frame) {
+    bufferPool.release(frame);
   }
 
   
@@ -382,12 +759,64 @@ public class CoinApp implements Coin, Application {
     
     //logger.log("sending message " + message.getUID() + " " + message);
     
-    CancellableTask timer = endpoint.scheduleMessage(new CoinMessageLostMessage(message.getUID(), getLocalNodeHandle(), id, message, hint), MESSAGE_TIMEOUT);
-    insertPending(message.getUID(), timer, command);
+    Id destination = hint != null ? hint.getId() : id;
+    if (!insertPending(message.getUID(), destination, command)) {
+      command.receiveException(overloaded(destination));
+      return;
+    }
+    CancellableTask timer = endpoint.scheduleMessage(new CoinMessageLostMessage(message.getUID(), getLocalNodeHandle(), id, message, hint), roundTrips.getTimeout(destination));
+    timers.put(new Integer(message.getUID()), timer);
     endpoint.route(id, message, hint);
   }
   
   
+  /**
+   * Sends a request directly to a node, through the overlay or on a socket,
+   * whichever the transport selector finds faster for that node, and
+   * records how long the response took on the path taken and for the
+   * timeouts of the next requests to the node.
+   *
+   * @param handle The node handle to send directly to
+   * @param message The message to send.
+   * @param command The command to run once a result is received
+   * @return stops waiting for the response, which is ignored if it comes
+   */
+  private Cancellable sendDirect(final NodeHandle handle, CoinMessage message, final Continuation command) {
+    final int path = transportSelector.choose(handle.getId());
+    final long start = environment.getTimeSource().currentTimeMillis();
+    Continuation measured = new Continuation() {
+      public void receiveResult(Object result) {
+        long roundTrip = environment.getTimeSource().currentTimeMillis() - start;
+        transportSelector.record(handle.getId(), path, roundTrip, true);
+        roundTrips.record(handle.getId(), roundTrip);
+        command.receiveResult(result);
+      }
+      
+      public void receiveException(Exception e) {
+        // a refused request says nothing about the path
+        if (!(e instanceof CoinOverloadedException)) {
+          transportSelector.record(handle.getId(), path, environment.getTimeSource().currentTimeMillis() - start, false);
+        }
+        command.receiveException(e);
+      }
+    };
+    
+    if (path == TransportSelector.SOCKET) {
+      sendViaSocket(handle, message, measured);
+    } else {
+      sendRequest(handle, message, measured);
+    }
+    
+    final int uid = message.getUID();
+    return new Cancellable() {
+      public boolean cancel() {
+        // takes the timer and the window slot too
+        return removePending(uid) != null;
+      }
+    };
+  }
+  
+  
   /**
    * Handles the response message from a request.
    *
@@ -398,24 +827,69 @@ public class CoinApp implements Coin, Application {
       logger.log("handling reponse message " + message + " from the request");
     }
     Continuation command = removePending(message.getUID());
-
-    command.receiveResult("Response Result!");
+    if (command != null) {
+      command.receiveResult("Response Result!");
+    } else {
+      lateResponse(message.getUID(), message.getType());
+    }
   }
   
   
   /**
-   * Loads the provided continuation into the pending table
+   * Note a response whose request no longer waits for it: it came after the
+   * quorum of its request was decided, or after the request timed out
+   *
+   * @param uid the uid of the response
+   * @param type the type of the response
+   */
+  private void lateResponse(int uid, short type) {
+    lateResponses++;
+    if (logger.level <= Logger.FINE) {
+      logger.log("Received response " + uid + " of type " + type + " without associated continuation");
+    }
+  }
+  
+  
+  /**
+   * Loads the provided continuation into the pending table, unless too many
+   * messages are outstanding overall or to the destination. The timer of
+   * the message goes in the timers table once the message is loaded.
    *
    * @param uid The id of the message
+   * @param destination the Id the message is sent to
    * @param command The continuation to run
-   * @param timer DESCRIBE THE PARAMETER
+   * @return whether the continuation was loaded
    */
-  private void insertPending(int uid, CancellableTask timer, Continuation command) {
+  boolean insertPending(int uid, Id destination, Continuation command) {
     if (logger.level <= Logger.FINER) {
       logger.log("Loading continuation " + uid + " into pending table");
     }
-    timers.put(new Integer(uid), timer);
-    outstanding.put(new Integer(uid), command);
+    synchronized (outstanding) {
+      Integer window = pendingWindows.get(destination);
+      int count = window == null ? 0 : window.intValue();
+      if (outstanding.size() >= maxPending || count >= peerWindow) {
+        overloads++;
+        return false;
+      }
+      
+      pendingWindows.put(destination, new Integer(count + 1));
+      pendingDestinations.put(new Integer(uid), destination);
+      outstanding.put(new Integer(uid), command);
+      return true;
+    }
+  }
+  
+  
+  /**
+   * Return the exception refusing a message because too many are outstanding
+   *
+   * @param destination the Id the message was to be sent to
+   */
+  private CoinOverloadedException overloaded(Id destination) {
+    if (logger.level <= Logger.FINE) {
+      logger.log("Refusing a message to " + destination + ": too many outstanding messages");
+    }
+    return new CoinOverloadedException("Overloaded: too many outstanding messages to " + destination + " or overall (limits " + peerWindow + " and " + maxPending + ")");
   }
   
   
@@ -427,7 +901,7 @@ public class CoinApp implements Coin, Application {
    * @param uid The id of the message
    * @return The continuation to run
    */
-  private Continuation removePending(int uid) {
+  Continuation removePending(int uid) {
     if (logger.level <= Logger.FINER) {
       logger.log("Removing and returning continuation " + uid + " from pending table");
     }
@@ -437,7 +911,26 @@ public class CoinApp implements Coin, Application {
       timer.cancel();
     }
 
-    return outstanding.remove(new Integer(uid));
+    synchronized (outstanding) {
+      Id destination = pendingDestinations.remove(new Integer(uid));
+      if (destination != null) {
+        int count = pendingWindows.get(destination).intValue() - 1;
+        if (count == 0) {
+          pendingWindows.remove(destination);
+        } else {
+          pendingWindows.put(destination, new Integer(count));
+        }
+      }
+      return outstanding.remove(new Integer(uid));
+    }
+  }
+  
+  
+  /**
+   * @return the number of requests refused because of too many outstanding messages
+   */
+  public long getOverloads() {
+    return overloads;
   }
   
   
@@ -519,6 +1012,49 @@ public class CoinApp implements Coin, Application {
   }
   
   
+  /**
+   * Complete the request waiting for a response received on a socket
+   * straight from its frame, when the response carries nothing else than
+   * its result: the message and its node handles are not built.
+   *
+   * @param view the header of the message received
+   * @return whether the response was delivered, otherwise the message must
+   * be deserialized and delivered
+   */
+  private boolean deliverResponse(MessageView view) {
+    if (!view.isResponse() || view.addsHandles()) {
+      return false;
+    }
+    switch (view.getType()) {
+    case BalanceRequestMessage.TYPE:
+    case FundingMessage.TYPE:
+    case WithDrawalMessage.TYPE:
+    case AddMoneyMessage.TYPE:
+    case RemoveMoneyMessage.TYPE:
+    case StreamChunkMessage.TYPE:
+      break;
+    default:
+      return false;
+    }
+    
+    viewedResponses++;
+    Object result = view.getResult();
+    if (logger.level <= Logger.FINE) {
+      logger.log("Received response " + view.getUID() + " of type " + view.getType() + ": " + result);
+    }
+    Continuation command = removePending(view.getUID());
+    if (command == null) {
+      lateResponse(view.getUID(), view.getType());
+    } else if (result == null && view.getType() == BalanceRequestMessage.TYPE) {
+      // no balance reached the quorum of the replicas
+      command.receiveException(new CoinException("The replicas disagree on the balance asked by " + view.getUID()));
+    } else {
+      command.receiveResult(result);
+    }
+    return true;
+  }
+  
+  
   /**
    * Called when we receive a message.
    */
@@ -530,7 +1066,8 @@ public class CoinApp implements Coin, Application {
       logger.log("Received message " + message + " with destination " + id);
     }
     
-    if(msg instanceof CashFlowMessage) {
+    switch (msg.getType()) {
+    case CashFlowMessage.TYPE: {
       final CashFlowMessage cfm = (CashFlowMessage) message;
       
       logger.log("received a " + cfm);
@@ -567,8 +1104,9 @@ public class CoinApp implements Coin, Application {
         // send CashFlowUpdateMessage to the account holders for the CashFlow dest
         sendCashFlowUpdate(cfm.getSource(), cfm, null);
       }
+      break;
     }
-    else if(msg instanceof CashFlowUpdateMessage) {
+    case CashFlowUpdateMessage.TYPE: {
       final CashFlowUpdateMessage cfum = (CashFlowUpdateMessage) msg;
       
       if(cfum.isResponse()) {
@@ -600,10 +1138,10 @@ public class CoinApp implements Coin, Application {
             
             // we received the cash flow confirm. now send this back to the involved nodes
             CashFlowConfirmMessage cfcm = new CashFlowConfirmMessage(cfum.getUID(), cfum.getCashFlowMessage());
-            // send to the money receiver
-            sendViaSocket(cfcm.getCashFlowMessage().getSource(), cfcm, null);
+            // send to the money receiver, the confirmations complete the cash flow
+            sendViaSocket(cfcm.getCashFlowMessage().getSource(), cfcm, null, true);
             // send to the money sender
-            sendViaSocket(cfcm.getCashFlowMessage().getDirectDest(), cfcm, null);
+            sendViaSocket(cfcm.getCashFlowMessage().getDirectDest(), cfcm, null, true);
             
             // send a response to the cash flow update
             cfum.setResponse();
@@ -622,39 +1160,59 @@ public class CoinApp implements Coin, Application {
                 CashFlowUpdateReplicationMessage propagated = new CashFlowUpdateReplicationMessage(getUID(), cfum, getLocalNodeHandle());
                 return propagated;
               }
-            },command, false);
+            }, cfum.getUpdated(), cfum.getDelta(), cfum.getCashFlowMessage().getDigest(), command);
 
       }
+      break;
     }
-    else if(msg instanceof CashFlowUpdateReplicationMessage) {
+    case CashFlowUpdateReplicationMessage.TYPE: {
       CashFlowUpdateReplicationMessage cfurm = (CashFlowUpdateReplicationMessage) msg;
       
       if(cfurm.isResponse()) {
         logger.log("ricevuta conferma di aggiornamento conto ");
         
         Continuation command = removePending(cfurm.getUID());
-        command.receiveResult(new Boolean(true));
+        if(command != null)
+          command.receiveResult(new Boolean(cfurm.isAccepted()));
+        else
+          lateResponse(cfurm.getUID(), cfurm.getType());
       }
       else {
         logger.log("ricevuta richiesta di aggiornamento conto propagata ");
         
+        final CashFlowUpdateReplicationMessage response = cfurm;
         cfurm.setResponse();
         
         // now update the account
-        Id updated = cfurm.getCashFlowUpdateMessage().getUpdated();
-        Id moneyDest = cfurm.getCashFlowMessage().getDirectDest().getId();
-        if(updated.compareTo(moneyDest) == 0) { // need to add money to updated account
-          addMoney(updated, cfurm.getCashFlowMessage().getAmount());
+        Id updated = cfurm.getUpdated();
+        int balance;
+        if(cfurm.getDelta() >= 0) { // need to add money to updated account
+          balance = addMoney(updated, cfurm.getDelta());
         }
         else {
-          removeMoney(updated, cfurm.getCashFlowMessage().getAmount());
-          // TODO: handle case when we remove more money that available on account
+          balance = removeMoney(updated, -cfurm.getDelta());
+          if(balance == Ledger.INSUFFICIENT_FUNDS) {
+            logger.log("rejecting cash flow update: " + updated + " does not hold " + (-cfurm.getDelta()));
+            response.setRejected();
+            endpoint.route(null, response, response.getAccountRoot());
+            return;
+          }
         }
         
-        endpoint.route(null, cfurm, cfurm.getAccountRoot());
+        // acknowledge once the update is durable
+        logBalance(getAccountRoot(updated), balance, new Continuation() {
+          public void receiveResult(Object result) {
+            endpoint.route(null, response, response.getAccountRoot());
+          }
+
+          public void receiveException(Exception e) {
+            logger.log("cannot log cash flow update, not acknowledging: " + e);
+          }
+        });
       }
+      break;
     }
-    else if(msg instanceof CashFlowConfirmMessage) {
+    case CashFlowConfirmMessage.TYPE: {
       CashFlowConfirmMessage cfcm = (CashFlowConfirmMessage) msg;
       
       CashFlowMessage cfm = cfcm.getCashFlowMessage();
@@ -664,16 +1222,19 @@ public class CoinApp implements Coin, Application {
         command.receiveResult(new Boolean(true));
       else
         logger.log("CashFlow Successful");
+      break;
     }
-    else if(msg instanceof BalanceRequestMessage) {
+    case BalanceRequestMessage.TYPE: {
       final BalanceRequestMessage brm = (BalanceRequestMessage) msg;
 
       if(brm.isResponse()) {
         Continuation command = removePending(brm.getUID());
-        if(command != null)
-          command.receiveResult(brm.getResponse());
-        else
+        if(command == null)
           logger.log("BalanceRequest Successful");
+        else if(brm.getResponse() == null)
+          command.receiveException(new CoinException("The replicas of " + brm.getQueried() + " disagree on its balance"));
+        else
+          command.receiveResult(brm.getResponse());
       }
       else {
         logger.log("Received " + brm + " for " + id + "\nPropagating request to the leafset");
@@ -692,7 +1253,7 @@ public class CoinApp implements Coin, Application {
             }
             logger.log(logged);
             
-            // return a value by majority!
+            // return the value of the quorum, none if the replicas disagree
             Integer value = majorityDecision(arr);
             
             // successful received balancerequest responses. now send them to the requester!
@@ -715,10 +1276,11 @@ public class CoinApp implements Coin, Application {
                 BalanceRequestPropagatedMessage propagated = new BalanceRequestPropagatedMessage(getUID(), brm, getLocalNodeHandle());
                 return propagated;
               }
-            },command, false);
+            },command);
       }
+      break;
     }
-    else if(msg instanceof BalanceRequestPropagatedMessage) {
+    case BalanceRequestPropagatedMessage.TYPE: {
       final BalanceRequestPropagatedMessage brpm = (BalanceRequestPropagatedMessage) msg;
       
       BalanceRequestMessage brm = brpm.getBalanceRequestMessage();
@@ -728,7 +1290,10 @@ public class CoinApp implements Coin, Application {
         
         Continuation command = removePending(brpm.getUID());
         logger.log("value: " + brpm.getValue());
-        command.receiveResult(new Integer(brpm.getValue()));
+        if(command != null)
+          command.receiveResult(new Integer(brpm.getValue()));
+        else
+          lateResponse(brpm.getUID(), brpm.getType());
       }
       else {
         logger.log("ricevuta richiesta di balance request propagation");
@@ -740,8 +1305,9 @@ public class CoinApp implements Coin, Application {
         
         endpoint.route(null, brpm, brpm.getAccountRoot());
       }
+      break;
     }
-    else if(msg instanceof FundingMessage) {
+    case FundingMessage.TYPE: {
       final FundingMessage fm = (FundingMessage) msg;
       
       
@@ -749,7 +1315,10 @@ public class CoinApp implements Coin, Application {
         logger.log("received funding message response " + fm);
         
         Continuation command = removePending(fm.getUID());
-        command.receiveResult(fm.getResponse());
+        if(command != null)
+          command.receiveResult(fm.getResponse());
+        else
+          lateResponse(fm.getUID(), fm.getType());
       }
       else {
         logger.log("received funding message " + fm + ". propagating to the leafset.");
@@ -758,7 +1327,7 @@ public class CoinApp implements Coin, Application {
         final Continuation command = new Continuation() {
           public void receiveResult(Object o) {
             
-            Boolean [] arr = (Boolean []) o;
+            Boolean [] arr = ((MoneyChangeResult) o).applied;
             
             logger.log("propagate Funding Message result: " + arr.length + " propagations successful");
             
@@ -768,9 +1337,6 @@ public class CoinApp implements Coin, Application {
             }
             logger.log(logged);
             
-            // return a value by majority!
-            //Integer value = majorityDecision(arr);
-            
             // successful received balancerequest responses. now send them to the requester!
             fm.setResponse(new Boolean(true));
             sendViaSocket(fm.getSource(), fm, null);
@@ -790,10 +1356,11 @@ public class CoinApp implements Coin, Application {
                  AddMoneyMessage propagated = new AddMoneyMessage(getUID(), getLocalNodeHandle(), fm.getSource().getId(), fm, fm.getAmount(), fm.getSource().getId());
                 return propagated;
               }
-            },command, false);
+            }, fm.getSource().getId(), fm.getAmount(), fm.getDigest(), command);
       }
+      break;
     }
-    else if(msg instanceof WithDrawalMessage) {
+    case WithDrawalMessage.TYPE: {
       final WithDrawalMessage wd = (WithDrawalMessage) msg;
       
       
@@ -801,7 +1368,10 @@ public class CoinApp implements Coin, Application {
         logger.log("received funding message response " + wd);
         
         Continuation command = removePending(wd.getUID());
-        command.receiveResult(wd.getResponse());
+        if(command != null)
+          command.receiveResult(wd.getResponse());
+        else
+          lateResponse(wd.getUID(), wd.getType());
       }
       else {
         logger.log("received funding message " + wd + ". propagating to the leafset.");
@@ -810,7 +1380,8 @@ public class CoinApp implements Coin, Application {
         final Continuation command = new Continuation() {
           public void receiveResult(Object o) {
             
-            Boolean [] arr = (Boolean []) o;
+            MoneyChangeResult answers = (MoneyChangeResult) o;
+            Boolean [] arr = answers.applied;
             
             logger.log("propagate Funding Message result: " + arr.length + " propagations successful");
             
@@ -820,8 +1391,23 @@ public class CoinApp implements Coin, Application {
             }
             logger.log(logged);
                         
-            // successful received balancerequest responses. now send them to the requester!
-            wd.setResponse(new Boolean(true));
+            // decide by the majority of the replicas which answered, those
+            // which failed left a null; a tie rejects the withdrawal
+            int applied = 0;
+            int rejected = 0;
+            for(int i=0; i<arr.length; i++) {
+              if(Boolean.TRUE.equals(arr[i])) {
+                applied++;
+              } else if(Boolean.FALSE.equals(arr[i])) {
+                rejected++;
+              }
+            }
+            boolean accepted = applied > rejected;
+            if(!accepted && applied > 0) {
+              // the replicas which applied the debit give the money back
+              giveBack(wd, answers);
+            }
+            wd.setResponse(new Boolean(accepted));
             sendViaSocket(wd.getSource(), wd, null);
           }
 
@@ -839,63 +1425,213 @@ public class CoinApp implements Coin, Application {
                  RemoveMoneyMessage propagated = new RemoveMoneyMessage(getUID(), getLocalNodeHandle(), wd.getSource().getId(), wd, wd.getAmount(), wd.getSource().getId());
                 return propagated;
               }
-            },command, false);
+            }, wd.getSource().getId(), -wd.getAmount(), wd.getDigest(), command);
       }
+      break;
     }
-    else if(msg instanceof AddMoneyMessage) {
+    case AddMoneyMessage.TYPE: {
       final AddMoneyMessage amm = (AddMoneyMessage) msg;
       if(amm.isResponse()) {
         Continuation command = removePending(amm.getUID());
         logger.log("value: " + amm.getResponse());
-        command.receiveResult(amm.getResponse());
+        if(command != null)
+          command.receiveResult(amm.getResponse());
+        else
+          lateResponse(amm.getUID(), amm.getType());
+      }
+      else {
+        logger.log("received add money message request" + amm);
+        
+        logger.log("updating " + amm.getDestination() + " account: adding " + amm.getAmount());
+
+        // adding the money
+        int balance = addMoney(amm.getUpdated(), amm.getAmount());
+        
+        // sending the response back once the change is durable
+        logBalance(getAccountRoot(amm.getUpdated()), balance, new Continuation() {
+          public void receiveResult(Object result) {
+            amm.setResponse(new Boolean(true));
+            sendViaSocket(amm.getSource(), amm, null);
+          }
+
+          public void receiveException(Exception e) {
+            logger.log("cannot log add money, not acknowledging: " + e);
+          }
+        });
+      }
+      break;
+    }
+    case RemoveMoneyMessage.TYPE: {
+      final RemoveMoneyMessage rmm = (RemoveMoneyMessage) msg;
+      
+      
+      if(rmm.isResponse()) {
+        logger.log("received remove money message " + rmm);
+        
+        Continuation command = removePending(rmm.getUID());
+        logger.log("value: " + rmm.getResponse());
+        if(command != null)
+          command.receiveResult(rmm.getResponse());
+        else
+          lateResponse(rmm.getUID(), rmm.getType());
+      }
+      else {
+        logger.log("received remove money message request" + rmm);
+        
+        logger.log("updating " + rmm.getDestination() + " account: adding " + rmm.getAmount());
+        int balance = removeMoney(rmm.getUpdated(), rmm.getAmount());
+        if(balance == Ledger.INSUFFICIENT_FUNDS) {
+          // nothing changed, nothing to log
+          logger.log("rejecting remove money: " + rmm.getUpdated() + " does not hold " + rmm.getAmount());
+          rmm.setResponse(new Boolean(false));
+          sendViaSocket(rmm.getSource(), rmm, null);
+          return;
+        }
+        
+        // sending the response back once the change is durable
+        logBalance(getAccountRoot(rmm.getUpdated()), balance, new Continuation() {
+          public void receiveResult(Object result) {
+            rmm.setResponse(new Boolean(true));
+            sendViaSocket(rmm.getSource(), rmm, null);
+          }
+
+          public void receiveException(Exception e) {
+            logger.log("cannot log remove money, not acknowledging: " + e);
+          }
+        });
+      }
+      break;
+    }
+    case ReplicaBatchMessage.TYPE: {
+      final ReplicaBatchMessage rbm = (ReplicaBatchMessage) msg;
+      
+      if(rbm.isResponse()) {
+        Continuation command = removePending(rbm.getUID());
+        if(command != null)
+          command.receiveResult(rbm.getAccepted());
+        else
+          lateResponse(rbm.getUID(), rbm.getType());
       }
       else {
-        logger.log("received add money message request" + amm);
+        if (logger.level <= Logger.FINE) {
+          logger.log("applying " + rbm);
+        }
         
-        logger.log("updating " + amm.getDestination() + " account: adding " + amm.getAmount());
-
-        // adding the money
-        addMoney(amm.getUpdated(), amm.getAmount());
+        // apply the changes in order; a change which cannot be applied is
+        // rejected, so that the others are still logged and acknowledged
+        final boolean[] accepted = new boolean[rbm.size()];
+        int[] balances = new int[rbm.size()];
+        int changed = 0;
+        for (int i = 0; i < rbm.size(); i++) {
+          balances[i] = applyChange(rbm.getUpdated(i), rbm.getDelta(i));
+          accepted[i] = balances[i] != Ledger.INSUFFICIENT_FUNDS;
+          if (accepted[i]) {
+            changed++;
+          }
+        }
+        if (changed == 0) {
+          // nothing changed, nothing to log
+          rbm.setResponse(accepted);
+          sendViaSocket(rbm.getAccountRoot(), rbm, null);
+          break;
+        }
         
-        // sending the response back
-        amm.setResponse(new Boolean(true));
-        sendViaSocket(amm.getSource(), amm, null);
+        // answer the whole batch once every change is logged; a change which
+        // could not be made durable is answered as rejected
+        final int[] remaining = new int[] {changed};
+        for (int i = 0; i < rbm.size(); i++) {
+          if (accepted[i]) {
+            final int index = i;
+            logBalance(getAccountRoot(rbm.getUpdated(i)), balances[i], new Continuation() {
+              public void receiveResult(Object result) {
+                logged();
+              }
+
+              public void receiveException(Exception e) {
+                logger.log("cannot log change " + index + " of replica batch, rejecting it: " + e);
+                accepted[index] = false;
+                logged();
+              }
+              
+              private void logged() {
+                remaining[0]--;
+                if (remaining[0] == 0) {
+                  rbm.setResponse(accepted);
+                  sendViaSocket(rbm.getAccountRoot(), rbm, null);
+                }
+              }
+            });
+          }
+        }
       }
+      break;
     }
-    else if(msg instanceof RemoveMoneyMessage) {
-      final RemoveMoneyMessage rmm = (RemoveMoneyMessage) msg;
-      
+    case StateTransferRequestMessage.TYPE: {
+      StateTransferRequestMessage strm = (StateTransferRequestMessage) msg;
       
-      if(rmm.isResponse()) {
-        logger.log("received remove money message " + rmm);
-        
-        Continuation command = removePending(rmm.getUID());
-        logger.log("value: " + rmm.getResponse());
-        command.receiveResult(rmm.getResponse());
+      logger.log("received state transfer request " + strm);
+      sendStream(strm.getSource(), StreamChunkMessage.ACCOUNTS, new StateTransfer(ledger, strm.getRange(), transferChunkSize), transferDelay);
+      break;
+    }
+    case StreamChunkMessage.TYPE: {
+      StreamChunkMessage scm = (StreamChunkMessage) msg;
+      if (scm.isResponse()) {
+        Continuation command = removePending(scm.getUID());
+        if (command != null)
+          command.receiveResult(scm.getResponse());
+        else
+          lateResponse(scm.getUID(), scm.getType());
+        break;
       }
-      else {
-        logger.log("received remove money message request" + rmm);
-        
-        logger.log("updating " + rmm.getDestination() + " account: adding " + rmm.getAmount());
-        removeMoney(rmm.getUpdated(), rmm.getAmount());
-        
-        // sending the response back
-        rmm.setResponse(new Boolean(true));
-        sendViaSocket(rmm.getSource(), rmm, null);
+      
+      String stream = scm.getSource().getId().toStringFull() + "/" + scm.getStream();
+      Integer expected = incomingStreams.get(stream);
+      int next = expected == null ? 0 : expected.intValue();
+      if (scm.getSequence() < next) {
+        // sent again because the acknowledgement was lost, already taken
+        scm.setResponse(Boolean.TRUE);
+      } else if (scm.getSequence() > next) {
+        // a chunk is missing: the sender stops and the range is asked again
+        if (logger.level <= Logger.WARNING) {
+          logger.log("missing chunks " + next + " to " + (scm.getSequence() - 1) + " of " + scm);
+        }
+        incomingStreams.remove(stream);
+        scm.setResponse(Boolean.FALSE);
+        if (scm.getKind() == StreamChunkMessage.ACCOUNTS) {
+          requestRange(scm.getSource());
+        }
+      } else {
+        if (scm.getKind() == StreamChunkMessage.ACCOUNTS) {
+          installAccounts(scm);
+        } else if (logger.level <= Logger.WARNING) {
+          logger.log("Received a chunk of a stream of unknown kind " + scm.getKind() + ": " + scm);
+        }
+        // kept after the last chunk too, to recognize it if sent again
+        incomingStreams.put(stream, new Integer(next + 1));
+        scm.setResponse(Boolean.TRUE);
       }
+      sendViaSocket(scm.getSource(), scm, null);
+      break;
     }
-    else if(msg instanceof CoinMessageLostMessage) {
+    case MerkleSyncMessage.TYPE: {
+      antiEntropy.deliver((MerkleSyncMessage) msg);
+      break;
+    }
+    case CoinMessageLostMessage.TYPE: {
       Continuation cont = removePending(msg.getUID());
       
       if(cont != null)
         cont.receiveException(new CoinException("Message " + msg.getUID() + " lost!"));
       else
         logger.log("Received a " + msg + " id " + msg.getUID() + " without associated Continuation");
+      break;
     }
-    else {
+    default: {
       if (logger.level <= Logger.SEVERE) {
         logger.log("ERROR - Received message " + msg + "of unknown type.");
       }
+      break;
+    }
     }
     
   }
@@ -903,37 +1639,45 @@ public class CoinApp implements Coin, Application {
   
   
   /**
-   * Internal method which propage the BalanceRequest to accountRoot leafset
+   * Internal method which propage a balance change to accountRoot leafset,
+   * in the batch of every replica unless batching is disabled
    *
    * @param id DESCRIBE THE PARAMETER
-   * @param builder The object which builds the messages
-   * @param command The command to call once done
-   * @param useSocket DESCRIBE THE PARAMETER
+   * @param builder The object which builds the messages sent one by one
+   * @param updated the account changed
+   * @param delta the money added to the account, negative if removed
+   * @param origin the digest of the message which started the change
+   * @param command The command to call once done, with the answers of the
+   * replicas (MoneyChangeResult)
    */
-  private void propagateMoneyChange(final Id id, final MessageBuilder builder, Continuation command, final boolean useSocket) {
+  private void propagateMoneyChange(final Id id, final MessageBuilder builder, final Id updated, final int delta, final long origin, Continuation command) {
     // first, we get all of the replicas for this id
     getHandles(id, replicationFactor + 1,
           new StandardContinuation(command) {
             public void receiveResult(Object o) {
-              NodeHandleSet replicas = (NodeHandleSet) o;
+              final NodeHandleSet replicas = (NodeHandleSet) o;
               if (logger.level <= Logger.FINER) {
                 logger.log("Received replicas " + replicas + " for id " + id);
               }
 
               // then we send inserts to each replica and wait for at least
               // threshold * num to return successfully
+              final Quorum quorum = new Quorum(environment, parent, replicas.size(), quorums);
               MultiContinuation multi =
-                new MultiContinuation(parent, replicas.size()) {
+                new MultiContinuation(quorum, replicas.size()) {
                   public boolean isDone() throws Exception {
                     int numSuccess = 0;
                     for (int i = 0; i < haveResult.length; i++) {
-                      if ((haveResult[i])) { //&& (Boolean.TRUE.equals(result[i]))) {
+                      // a replica which failed did not answer whether it
+                      // applied the change
+                      if ((haveResult[i]) && (result[i] instanceof Boolean)) {
                         numSuccess++;
-                        //System.out.println(result[i]);
                       }
                     }
 
-                    if (numSuccess >= (SUCCESSFUL_BALANCE_THRESHOLD * haveResult.length)) {
+                    // once the replicas disagree, wait for all of them:
+                    // those which applied a rejected change must be told
+                    if (numSuccess >= (SUCCESSFUL_BALANCE_THRESHOLD * haveResult.length) && (!disagree() || super.isDone())) {
                       return true;
                     }
 
@@ -951,24 +1695,34 @@ public class CoinApp implements Coin, Application {
                     return false;
                   }
 
+                  private boolean disagree() {
+                    boolean applied = false;
+                    boolean rejected = false;
+                    for (int i = 0; i < result.length; i++) {
+                      applied |= Boolean.TRUE.equals(result[i]);
+                      rejected |= Boolean.FALSE.equals(result[i]);
+                    }
+                    return applied && rejected;
+                  }
+
                   public Object getResult() {
                     Boolean[] values = new Boolean[result.length];
                     for (int i = 0; i < values.length; i++) {
-                      values[i] = (Boolean) result[i];
+                      // a replica which failed counts as not having applied the change
+                      values[i] = result[i] instanceof Boolean ? (Boolean) result[i] : null;
                     }
 
-                    return values;
+                    return new MoneyChangeResult(replicas, values);
                   }
                 };
 
               for (int i = 0; i < replicas.size(); i++) {
                 NodeHandle handle = replicas.getHandle(i);
-                CoinMessage m = builder.buildMessage();
                 Continuation c = new NamedContinuation("InsertMessage to " + replicas.getHandle(i) + " for " + id, multi.getSubContinuation(i));
-                if (useSocket) {
-                  sendViaSocket(handle, m, c);
+                if (batcher != null) {
+                  quorum.sent(i, batcher.add(handle, updated, delta, origin, c));
                 } else {
-                  sendRequest(handle, m, c);
+                  quorum.sent(i, sendDirect(handle, builder.buildMessage(), c));
                 }
               }
             }
@@ -977,42 +1731,86 @@ public class CoinApp implements Coin, Application {
   
   
   
+  /**
+   * Give back the money of a rejected withdrawal to the replicas which
+   * applied the debit. The replicas which did not answer are left to
+   * anti-entropy.
+   *
+   * @param wd the withdrawal rejected
+   * @param answers the answers of the replicas to the debit
+   */
+  private void giveBack(final WithDrawalMessage wd, MoneyChangeResult answers) {
+    final Id updated = wd.getSource().getId();
+    for (int i = 0; i < answers.applied.length; i++) {
+      if (!Boolean.TRUE.equals(answers.applied[i])) {
+        continue;
+      }
+
+      final NodeHandle handle = answers.replicas.getHandle(i);
+      Continuation c = new Continuation() {
+        public void receiveResult(Object result) {
+          if (logger.level <= Logger.FINE) {
+            logger.log("gave back " + wd.getAmount() + " to " + updated + " on " + handle);
+          }
+        }
+
+        public void receiveException(Exception e) {
+          if (logger.level <= Logger.WARNING) {
+            logger.log("cannot give back " + wd.getAmount() + " to " + updated + " on " + handle + ", left to anti-entropy: " + e);
+          }
+        }
+      };
+      if (batcher != null) {
+        batcher.add(handle, updated, wd.getAmount(), wd.getDigest(), c);
+      } else {
+        sendDirect(handle, new AddMoneyMessage(getUID(), getLocalNodeHandle(), updated, wd, wd.getAmount(), updated), c);
+      }
+    }
+  }
+  
+  
+  
   /**
    * Internal method which propage the BalanceRequest to accountRoot leafset
    *
    * @param id DESCRIBE THE PARAMETER
    * @param builder The object which builds the messages
    * @param command The command to call once done
-   * @param useSocket DESCRIBE THE PARAMETER
    */
-  private void propagateBalanceRequest(final Id id, final MessageBuilder builder, Continuation command, final boolean useSocket) {
+  private void propagateBalanceRequest(final Id id, final MessageBuilder builder, Continuation command) {
     // first, we get all of the replicas for this id
     getHandles(id, replicationFactor + 1,
           new StandardContinuation(command) {
             public void receiveResult(Object o) {
-              NodeHandleSet replicas = (NodeHandleSet) o;
+              final NodeHandleSet replicas = (NodeHandleSet) o;
               if (logger.level <= Logger.FINER) {
                 logger.log("Received replicas " + replicas + " for id " + id);
               }
 
               // then we send inserts to each replica and wait for at least
               // threshold * num to return successfully
-              MultiContinuation multi =
-                new MultiContinuation(parent, replicas.size()) {
+              final Quorum quorum = new Quorum(environment, parent, replicas.size(), quorums);
+              final MultiContinuation multi =
+                new MultiContinuation(quorum, replicas.size()) {
                   public boolean isDone() throws Exception {
                     int numSuccess = 0;
                     for (int i = 0; i < haveResult.length; i++) {
-                      if ((haveResult[i])) { //&& (Boolean.TRUE.equals(result[i]))) {
+                      // a replica which failed did not tell a balance
+                      if ((haveResult[i]) && (result[i] instanceof Integer)) {
                         numSuccess++;
-                        //System.out.println(result[i]);
                       }
                     }
 
-                    if (numSuccess >= (SUCCESSFUL_BALANCE_THRESHOLD * haveResult.length)) {
+                    // wait for further replicas while the balances told
+                    // disagree, then let the read fail
+                    if (quorumValue(result) != null) {
                       return true;
                     }
 
                     if (super.isDone()) {
+                      if (numSuccess >= (SUCCESSFUL_BALANCE_THRESHOLD * haveResult.length)) {
+                        return true;
+                      }
                       for (int i = 0; i < result.length; i++) {
                         if (result[i] instanceof Exception) {
                           if (logger.level <= Logger.WARNING) {
@@ -1029,23 +1827,30 @@ public class CoinApp implements Coin, Application {
                   public Object getResult() {
                     Integer[] values = new Integer[result.length];
                     for (int i = 0; i < values.length; i++) {
-                      values[i] = (Integer) result[i];
+                      values[i] = result[i] instanceof Integer ? (Integer) result[i] : null;
                     }
 
                     return values;
                   }
                 };
 
-              for (int i = 0; i < replicas.size(); i++) {
-                NodeHandle handle = replicas.getHandle(i);
-                CoinMessage m = builder.buildMessage();
-                Continuation c = new NamedContinuation("InsertMessage to " + replicas.getHandle(i) + " for " + id, multi.getSubContinuation(i));
-                if (useSocket) {
-                  sendViaSocket(handle, m, c);
-                } else {
-                  sendRequest(handle, m, c);
-                }
+              // ask as many replicas as the quorum needs, then a further one
+              // whenever one fails or none answered for the hedge delay since
+              // the last answer; all of them at once until the round trips
+              // are known
+              long hedgeDelay = roundTrips.getHedgeDelay();
+              int first = replicas.size();
+              if (hedgeDelay >= 0) {
+                first = (int) Math.ceil(SUCCESSFUL_BALANCE_THRESHOLD * replicas.size());
               }
+              quorum.ask(new Quorum.Request() {
+                public Cancellable send(int i) {
+                  NodeHandle handle = replicas.getHandle(i);
+                  CoinMessage m = builder.buildMessage();
+                  Continuation c = new NamedContinuation("InsertMessage to " + handle + " for " + id, quorum.watch(multi.getSubContinuation(i)));
+                  return sendDirect(handle, m, c);
+                }
+              }, first, hedgeDelay);
             }
           });
   }
@@ -1053,14 +1858,17 @@ public class CoinApp implements Coin, Application {
   
   
   /**
-   * Internal method which propage the CashFlowUpdate to accountRoot leafset
+   * Internal method which propage the CashFlowUpdate to accountRoot leafset,
+   * in the batch of every replica unless batching is disabled
    *
    * @param id DESCRIBE THE PARAMETER
-   * @param builder The object which builds the messages
+   * @param builder The object which builds the messages sent one by one
+   * @param updated the account changed
+   * @param delta the money added to the account, negative if removed
+   * @param origin the digest of the CashFlowMessage which started the change
    * @param command The command to call once done
-   * @param useSocket DESCRIBE THE PARAMETER
    */
-  private void propagateCashFlowUpdate(final Id id, final MessageBuilder builder, Continuation command, final boolean useSocket) {
+  private void propagateCashFlowUpdate(final Id id, final MessageBuilder builder, final Id updated, final int delta, final long origin, Continuation command) {
     // first, we get all of the replicas for this id
     getHandles(id, replicationFactor + 1,
           new StandardContinuation(command) {
@@ -1072,8 +1880,9 @@ public class CoinApp implements Coin, Application {
 
               // then we send inserts to each replica and wait for at least
               // threshold * num to return successfully
+              final Quorum quorum = new Quorum(environment, parent, replicas.size(), quorums);
               MultiContinuation multi =
-                new MultiContinuation(parent, replicas.size()) {
+                new MultiContinuation(quorum, replicas.size()) {
                   public boolean isDone() throws Exception {
                     int numSuccess = 0;
                     for (int i = 0; i < haveResult.length; i++) {
@@ -1112,12 +1921,11 @@ public class CoinApp implements Coin, Application {
 
               for (int i = 0; i < replicas.size(); i++) {
                 NodeHandle handle = replicas.getHandle(i);
-                CoinMessage m = builder.buildMessage();
                 Continuation c = new NamedContinuation("InsertMessage to " + replicas.getHandle(i) + " for " + id, multi.getSubContinuation(i));
-                if (useSocket) {
-                  sendViaSocket(handle, m, c);
+                if (batcher != null) {
+                  quorum.sent(i, batcher.add(handle, updated, delta, origin, c));
                 } else {
-                  sendRequest(handle, m, c);
+                  quorum.sent(i, sendDirect(handle, builder.buildMessage(), c));
                 }
               }
             }
@@ -1168,9 +1976,21 @@ public class CoinApp implements Coin, Application {
    * @return the id of the account holders root
    */
   public Id getAccountRoot(NodeHandle nh) {
+    return getAccountRoot(nh.getId());
+  }
+  
+  /**
+   * Get the Id of the account holder for the given account. The ledger
+   * keys accounts by this Id, so that the accounts a replica holds form
+   * ranges of the Id space.
+   * 
+   * @param account the Id of the account owner
+   * @return the id of the account holders root
+   */
+  public Id getAccountRoot(Id account) {
     
-    // get the byte rappresentation of nh's Id
-    byte[] nhIdBytes = nh.getId().toByteArray();
+    // get the byte rappresentation of the account Id
+    byte[] nhIdBytes = account.toByteArray();
 
     MessageDigest md = null;
     try {
@@ -1228,48 +2048,77 @@ public class CoinApp implements Coin, Application {
   }
   
   /**
-   * Return the most frequent value available in arr
+   * Return the balance told by at least the quorum of the replicas
    * 
-   * @param arr an array containing Integers
-   * @return an Integer which is the most frequent value in arr
-   */
-  private Integer majorityDecision(Object [] arr) {
-    Integer [] values = (Integer []) arr;
-    Integer decision = new Integer(-2);
-    
-    HashMap map = new HashMap();
-    for(int i=0; i<values.length; i++) {
-      if(values[i] != null) {
-        Integer counter = (Integer) map.get(values[i]);
-        if(counter == null) {
-          map.put(new Integer(values[i]), new Integer(1));
-        }
-        else {
-          map.put(new Integer(values[i]), new Integer( counter.intValue() + 1));
-        }
+   * @param arr the balance told by every replica, null if it did not answer
+   * @return the balance told by at least SUCCESSFUL_BALANCE_THRESHOLD of the
+   * replicas, null if no balance reaches it
+   */
+  Integer majorityDecision(Object [] arr) {
+    Integer decision = quorumValue(arr);
+    if (decision == null && logger.level <= Logger.WARNING) {
+      // anti-entropy will repair the replicas, but make the divergence visible
+      String values = "";
+      for (int i = 0; i < arr.length; i++) {
+        values += " " + arr[i];
       }
+      logger.log("replicas disagree on a balance:" + values);
     }
-      
-    
-    
-    if(map.size()==1) {
-      return new Integer(values[0]);
-    }
-    else {
-      Set coll = map.entrySet();
-      
-      /*Iterator iter = coll.iterator();
-      Integer greatest = new Integer(-1);
-      decision = null;
-      while(iter.hasNext()) {
-        Map.Entry entry = (Map.Entry) iter.next();
-        Integer value = (Integer) entry.getValue();
-        if(value.compareTo(greatest) > 0) {
-          decision = entry.getKey();
+    return decision;
+  }
+  
+  /**
+   * Return the Integer found at least SUCCESSFUL_BALANCE_THRESHOLD times
+   * the length of the array, null if there is none
+   */
+  private Integer quorumValue(Object [] values) {
+    int threshold = (int) Math.ceil(SUCCESSFUL_BALANCE_THRESHOLD * values.length);
+    HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] instanceof Integer) {
+        Integer count = counts.get(values[i]);
+        count = new Integer(count == null ? 1 : count.intValue() + 1);
+        if (count.intValue() >= threshold) {
+          return (Integer) values[i];
         }
-      }*/
-      return decision;
+        counts.put((Integer) values[i], count);
+      }
+    }
+    return null;
+  }
+  
+  
+  /**
+   * Make a balance change durable, then run command on the selector
+   * thread. Replicas must not acknowledge a change before this.
+   *
+   * @param id the root of the account which changed
+   * @param balance the balance after the change
+   * @param command the continuation to call once the change is durable
+   */
+  private void logBalance(Id id, int balance, final Continuation command) {
+    if (log == null) {
+      command.receiveResult(null);
+      return;
     }
+    
+    log.append(id, balance, new Continuation() {
+      public void receiveResult(final Object result) {
+        environment.getSelectorManager().invoke(new Runnable() {
+          public void run() {
+            command.receiveResult(result);
+          }
+        });
+      }
+
+      public void receiveException(final Exception e) {
+        environment.getSelectorManager().invoke(new Runnable() {
+          public void run() {
+            command.receiveException(e);
+          }
+        });
+      }
+    });
   }
   
   
@@ -1278,18 +2127,11 @@ public class CoinApp implements Coin, Application {
    * @param id
    * @return
    */
-  private int getBalance(Id id) {
-    logger.log("getting account balance for id " + id);
-    if(accounts.containsKey(id)) { // account information are stored: return them
-      CoinAccount account = accounts.get(id);
-      return account.getValue();
-    }
-    else { // account information are not stored: create a new account
-      logger.log("account balance for id " + id + " not available: generating new account");
-      CoinAccount account = new CoinAccount(0);
-      accounts.put(id, account);
-      return 0;
+  int getBalance(Id id) {
+    if (logger.level <= Logger.FINER) {
+      logger.log("getting account balance for id " + id);
     }
+    return ledger.getBalance(getAccountRoot(id));
   }
   
   /**
@@ -1297,36 +2139,101 @@ public class CoinApp implements Coin, Application {
    * @param id 
    * @return
    */
-  private int addMoney(Id id, int value) {
-    logger.log("adding " + value + " to account id " + id);
-    if(accounts.containsKey(id)) { // account information are stored: return them
-      CoinAccount account = accounts.get(id);
-      return account.add(value);
-    }
-    else { // account information are not stored: create a new account
-      logger.log("account balance for id " + id + " not available: generating new account");
-      CoinAccount account = new CoinAccount(value);
-      accounts.put(id, account);
-      return value;
+  int addMoney(Id id, int value) {
+    if (logger.level <= Logger.FINER) {
+      logger.log("adding " + value + " to account id " + id);
     }
+    return ledger.add(getAccountRoot(id), value);
   }
   
   
   /**
-   * Remove value to the balance associated to id
+   * Remove value to the balance associated to id, if the account holds it
    * @param id 
-   * @return
+   * @return the new balance, or Ledger.INSUFFICIENT_FUNDS
    */
-  private int removeMoney(Id id, int value) {
-    logger.log("remove " + value + " to account id " + id);
-    if(accounts.containsKey(id)) { // account information are stored: return them
-      CoinAccount account = accounts.get(id);
-      return account.remove(value);
+  int removeMoney(Id id, int value) {
+    if (logger.level <= Logger.FINER) {
+      logger.log("remove " + value + " to account id " + id);
     }
-    else { // account information are not stored: throws exception
-      throw new IllegalArgumentException("Cannot remove money from an account I do not have in memory!");
-      
+    return ledger.remove(getAccountRoot(id), value);
+  }
+  
+  
+  /**
+   * Apply a change of a replica batch. A change which cannot be applied is
+   * rejected instead of failing the rest of the batch.
+   *
+   * @param updated the account to update
+   * @param delta the money to add to the account, negative to remove it
+   * @return the new balance, or Ledger.INSUFFICIENT_FUNDS if the change was rejected
+   */
+  private int applyChange(Id updated, int delta) {
+    try {
+      if (delta >= 0) {
+        return addMoney(updated, delta);
+      }
+      return removeMoney(updated, -delta);
+    } catch (RuntimeException e) {
+      if (logger.level <= Logger.WARNING) {
+        logger.logException("rejecting change of " + delta + " to " + updated + ": ", e);
+      }
+      return Ledger.INSUFFICIENT_FUNDS;
+    }
+  }
+  
+  
+  /**
+   * Install the accounts received in a state transfer chunk. Accounts
+   * already stored are left alone: they have been updated by the live
+   * traffic since the sender read them.
+   *
+   * @param stm the chunk
+   */
+  private void installAccounts(StreamChunkMessage stm) {
+    ByteBuffer accounts = ByteBuffer.wrap(stm.getData());
+    byte[] key = new byte[HashLedger.KEY_LENGTH];
+    int installed = 0;
+    while (accounts.remaining() >= HashLedger.ACCOUNT_SIZE) {
+      accounts.get(key);
+      int balance = accounts.getInt();
+      Id root = HashLedger.toId(key);
+      if (ledger.putIfAbsent(root, balance)) {
+        installed++;
+        logBalance(root, balance, new Continuation() {
+          public void receiveResult(Object result) {
+          }
+
+          public void receiveException(Exception e) {
+            logger.log("cannot log transferred account: " + e);
+          }
+        });
+      }
     }
+    
+    if (logger.level <= Logger.FINE || (stm.isLast() && logger.level <= Logger.INFO)) {
+      logger.log("installed " + installed + " accounts from " + stm);
+    }
+  }
+  
+  
+  /**
+   * Return the measurements of the paths to the replicas
+   *
+   * @return the transport selector
+   */
+  public TransportSelector getTransportSelector() {
+    return transportSelector;
+  }
+  
+  
+  /**
+   * Return the ledger holding the accounts this node is replica for
+   *
+   * @return the ledger
+   */
+  public Ledger getLedger() {
+    return ledger;
   }
   
 
@@ -1337,10 +2244,226 @@ public class CoinApp implements Coin, Application {
   public void update(NodeHandle handle, boolean joined) {
     if(joined) {
       logger.log(handle + " joined the neightbourhood set");
+      pushRange(handle);
     }
     else {
       logger.log(handle + " left the neightbourhood set");
     }
+    
+    // a departure can make us replica for new ranges: fetch their accounts
+    IdRange previous = responsibleRange;
+    try {
+      responsibleRange = endpoint.range(getLocalNodeHandle(), replicationFactor, endpoint.getId(), true);
+    } catch (RangeCannotBeDeterminedException rcbde) {
+      if (logger.level <= Logger.WARNING) {
+        logger.log("cannot determine the range of this replica: " + rcbde);
+      }
+      return;
+    }
+    if (joined || previous == null || responsibleRange == null) {
+      return;
+    }
+    
+    IdRange gained = responsibleRange.diffRange(previous);
+    if (gained == null || gained.isEmpty()) {
+      return;
+    }
+    NodeHandleSet holders = endpoint.replicaSet(gained.getCCWId(), replicationFactor + 1);
+    for (int i = 0; i < holders.size(); i++) {
+      NodeHandle holder = holders.getHandle(i);
+      if (!holder.getId().equals(endpoint.getId())) {
+        logger.log("requesting range " + gained + " from " + holder);
+        endpoint.route(null, new StateTransferRequestMessage(getUID(), getLocalNodeHandle(), holder, gained), holder);
+        return;
+      }
+    }
+  }
+  
+  /**
+   * Ask a node to stream again the accounts of the range of this replica,
+   * after a stream from it missed chunks. The accounts already installed
+   * are left alone.
+   *
+   * @param holder the node which sent the stream
+   */
+  private void requestRange(NodeHandle holder) {
+    IdRange range;
+    try {
+      range = endpoint.range(getLocalNodeHandle(), replicationFactor, endpoint.getId(), true);
+    } catch (RangeCannotBeDeterminedException rcbde) {
+      if (logger.level <= Logger.WARNING) {
+        logger.log("cannot determine the range of this replica: " + rcbde);
+      }
+      return;
+    }
+    if (range != null && !range.isEmpty()) {
+      logger.log("requesting range " + range + " again from " + holder);
+      endpoint.route(null, new StateTransferRequestMessage(getUID(), getLocalNodeHandle(), holder, range), holder);
+    }
+  }
+  
+  /**
+   * Stream to a node which joined the leafset the accounts it became
+   * replica for. Only the two nodes nearest to it do so, the others
+   * would send the same accounts again.
+   *
+   * @param handle the node which joined
+   */
+  private void pushRange(NodeHandle handle) {
+    if (!endpoint.replicaSet(handle.getId(), 3).memberHandle(endpoint.getId())) {
+      return;
+    }
+    
+    IdRange range;
+    try {
+      range = endpoint.range(handle, replicationFactor, handle.getId(), true);
+    } catch (RangeCannotBeDeterminedException rcbde) {
+      if (logger.level <= Logger.WARNING) {
+        logger.log("cannot determine the range of " + handle + ": " + rcbde);
+      }
+      return;
+    }
+    
+    if (range != null && !range.isEmpty()) {
+      if (logger.level <= Logger.INFO) {
+        logger.log("starting transfer of range " + range + " to " + handle);
+      }
+      sendStream(handle, StreamChunkMessage.ACCOUNTS, new StateTransfer(ledger, range, transferChunkSize), transferDelay);
+    }
+  }
+  
+  /**
+   * Send a payload as a stream of chunks. Only the chunk being sent is
+   * held, and the chunk after it is read in advance to flag the last one.
+   *
+   * @param target the node receiving the stream
+   * @param kind what the stream carries, one of the StreamChunkMessage kinds
+   * @param source produces the chunks
+   * @param delay milliseconds between the acknowledgement of a chunk and
+   * the next chunk
+   */
+  private void sendStream(NodeHandle target, int kind, StreamSource source, long delay) {
+    new OutgoingStream(target, kind, source, delay).sendNext();
+  }
+  
+  /**
+   * A stream being sent. Every chunk is a request, and the next one is sent
+   * delay milliseconds after it is acknowledged: a stream never has more
+   * than one chunk in the send queue of the receiver, and the receiver
+   * never sees a chunk before the previous one. A chunk which fails, for
+   * instance refused by the limits of outstanding requests, is sent again
+   * up to STREAM_RETRIES times, then the stream is abandoned.
+   */
+  private class OutgoingStream implements Continuation {
+    
+    private NodeHandle target;
+    
+    private int kind;
+    
+    private StreamSource source;
+    
+    private long delay;
+    
+    /**
+     * the id shared by the chunks of the stream
+     */
+    private int stream;
+    
+    /**
+     * the position of the chunk being sent
+     */
+    private int sequence;
+    
+    /**
+     * the chunk being sent
+     */
+    private byte[] chunk;
+    
+    /**
+     * the chunk after it, null if it is the last one
+     */
+    private byte[] next;
+    
+    /**
+     * the number of times the chunk being sent was sent again
+     */
+    private int retries;
+    
+    OutgoingStream(NodeHandle target, int kind, StreamSource source, long delay) {
+      this.target = target;
+      this.kind = kind;
+      this.source = source;
+      this.delay = delay;
+      this.stream = getUID();
+      this.next = source.nextChunk();
+    }
+    
+    /**
+     * Send the next chunk, an empty one if the payload is empty
+     */
+    void sendNext() {
+      chunk = next == null ? new byte[0] : next;
+      next = next == null ? null : source.nextChunk();
+      retries = 0;
+      send();
+    }
+    
+    private void send() {
+      sendViaSocket(target, new StreamChunkMessage(getUID(), stream, getLocalNodeHandle(), target, kind, sequence, chunk, next == null), this);
+    }
+    
+    /**
+     * Run a task on the selector thread after delay milliseconds
+     */
+    private void later(final Runnable task) {
+      environment.getSelectorManager().getTimer().schedule(new TimerTask() {
+        public void run() {
+          task.run();
+        }
+      }, delay);
+    }
+    
+    public void receiveResult(Object result) {
+      if (!Boolean.TRUE.equals(result)) {
+        // the receiver missed a chunk and asks for its range again
+        if (logger.level <= Logger.WARNING) {
+          logger.log("stream " + stream + " to " + target + " refused at chunk " + sequence + ", stopping");
+        }
+        return;
+      }
+      
+      sequence++;
+      if (next == null) {
+        if (logger.level <= Logger.INFO) {
+          logger.log("stream " + stream + " to " + target + " done: " + sequence + " chunks");
+        }
+        return;
+      }
+      later(new Runnable() {
+        public void run() {
+          sendNext();
+        }
+      });
+    }
+    
+    public void receiveException(Exception e) {
+      if (retries >= STREAM_RETRIES) {
+        if (logger.level <= Logger.WARNING) {
+          logger.log("stream " + stream + " to " + target + " abandoned at chunk " + sequence + ": " + e);
+        }
+        return;
+      }
+      
+      retries++;
+      if (logger.level <= Logger.FINE) {
+        logger.log("sending chunk " + sequence + " of stream " + stream + " to " + target + " again: " + e);
+      }
+      later(new Runnable() {
+        public void run() {
+          send();
+        }
+      });
+    }
   }
   
   /**
@@ -1368,6 +2491,28 @@ public class CoinApp implements Coin, Application {
   
   
   
+  /**
+   * The answers of the replicas of an account to a money change
+   */
+  private static class MoneyChangeResult {
+    
+    /**
+     * the replicas asked
+     */
+    final NodeHandleSet replicas;
+    
+    /**
+     * whether each replica applied the change, null if it did not answer
+     */
+    final Boolean[] applied;
+    
+    MoneyChangeResult(NodeHandleSet replicas, Boolean[] applied) {
+      this.replicas = replicas;
+      this.applied = applied;
+    }
+  }
+  
+  
   /**
    * Class which builds a message
    *
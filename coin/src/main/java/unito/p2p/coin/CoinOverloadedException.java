@@ -0,0 +1,20 @@
+package unito.p2p.coin;
+
+/**
+ * @(#) CoinOverloadedException.java Thrown to a request which is refused
+ * because too many requests are already waiting for a response, overall or
+ * from the same destination. The request was not sent and can be retried
+ * later.
+ */
+public class CoinOverloadedException extends CoinException {
+
+  /**
+   * Constructor.
+   *
+   * @param msg The string representing the error.
+   */
+  public CoinOverloadedException(String msg) {
+    super(msg);
+  }
+
+}
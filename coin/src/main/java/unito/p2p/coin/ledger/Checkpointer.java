@@ -0,0 +1,426 @@
+package unito.p2p.coin.ledger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+
+/**
+ * @(#) Checkpointer.java Takes periodic checkpoints of a HashLedger, so that
+ * the write ahead log can be truncated and a restart only replays the records
+ * following the last checkpoint.
+ *
+ * When the ledger is kept on the heap, a checkpoint writes an incremental
+ * snapshot holding only the accounts changed since the previous one. Once the
+ * increments together grow larger than the last full snapshot, the next
+ * checkpoint writes a full snapshot which replaces the whole chain, so a
+ * restart never reads more than about twice the ledger. When the ledger is
+ * kept in persistent storage, a checkpoint flushes the storage instead.
+ *
+ * Only HashLedgers can be checkpointed with snapshots. Any ledger kept in
+ * persistent storage, such as a TieredLedger, can be checkpointed by flushing.
+ *
+ * Checkpoints run on a background thread. Only one ledger segment at a time
+ * is locked, while its changed accounts are copied, so the node keeps
+ * applying balance changes during a checkpoint.
+ */
+public class Checkpointer {
+
+  /**
+   * identifies a snapshot file
+   */
+  static final int MAGIC = 0x534e4150;
+
+  /**
+   * the size of the snapshot header: magic, lsn, full flag
+   */
+  static final int HEADER_SIZE = 13;
+
+  /**
+   * the ledger to checkpoint
+   */
+  private Ledger ledger;
+
+  /**
+   * the log to truncate
+   */
+  private WriteAheadLog log;
+
+  /**
+   * the directory holding snapshots and checkpoint marker
+   */
+  private File directory;
+
+  /**
+   * whether the ledger storage survives restarts by itself
+   */
+  private boolean persistent;
+
+  /**
+   * the sequence number of the last record covered by a checkpoint
+   */
+  private long lastLsn;
+
+  /**
+   * the size of the last full snapshot
+   */
+  private long fullSize;
+
+  /**
+   * the total size of the increments following it
+   */
+  private long incrementsSize;
+
+  /**
+   * whether the next snapshot must be a full one
+   */
+  private boolean needFull;
+
+  /**
+   * the error of the last failed checkpoint, if any
+   */
+  private IOException lastFailure;
+
+  /**
+   * runs the periodic checkpoints
+   */
+  private Timer timer;
+
+  /**
+   * Create a checkpointer
+   *
+   * @param ledger the ledger to checkpoint
+   * @param log the log holding the changes applied to the ledger
+   * @param directory the directory holding the snapshots
+   * @param persistent whether the ledger storage survives restarts by itself
+   * @throws IOException if the directory cannot be created
+   * @throws IllegalArgumentException if the ledger is not persistent and is not a HashLedger
+   */
+  public Checkpointer(Ledger ledger, WriteAheadLog log, File directory, boolean persistent) throws IOException {
+    if (!persistent && !(ledger instanceof HashLedger)) {
+      throw new IllegalArgumentException("Only a HashLedger can be checkpointed with snapshots");
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create checkpoint directory " + directory);
+    }
+
+    this.ledger = ledger;
+    this.log = log;
+    this.directory = directory;
+    this.persistent = persistent;
+    this.needFull = true;
+  }
+
+  /**
+   * Restore the ledger from the last checkpoint and the records logged
+   * after it. This must be called before the ledger is used.
+   *
+   * @return the number of log records replayed
+   * @throws IOException if the checkpoint or the log cannot be read
+   */
+  public synchronized int recover() throws IOException {
+    if (persistent) {
+      lastLsn = readMarker();
+    } else {
+      lastLsn = loadSnapshots();
+      ((HashLedger) ledger).clearDirty();
+    }
+
+    return log.replay(ledger, lastLsn);
+  }
+
+  /**
+   * Take a checkpoint and truncate the log
+   *
+   * @throws IOException if the checkpoint cannot be written
+   */
+  public synchronized void checkpoint() throws IOException {
+    long lsn = log.getLastLsn();
+    if (lsn == lastLsn) {
+      return;
+    }
+
+    if (persistent) {
+      ledger.flush();
+      writeMarker(lsn);
+    } else {
+      writeSnapshot(lsn, needFull || incrementsSize > fullSize);
+    }
+
+    lastLsn = lsn;
+    log.truncate(lsn);
+  }
+
+  /**
+   * Start taking checkpoints periodically
+   *
+   * @param interval milliseconds between two checkpoints
+   */
+  public synchronized void start(long interval) {
+    timer = new Timer("Checkpointer " + directory, true);
+    timer.schedule(new TimerTask() {
+      public void run() {
+        try {
+          checkpoint();
+          lastFailure = null;
+        } catch (IOException ioe) {
+          lastFailure = ioe;
+        }
+      }
+    }, interval, interval);
+  }
+
+  /**
+   * Stop taking checkpoints
+   */
+  public synchronized void stop() {
+    if (timer != null) {
+      timer.cancel();
+      timer = null;
+    }
+  }
+
+  /**
+   * @return the error of the last periodic checkpoint, null if it succeeded
+   */
+  public IOException getLastFailure() {
+    return lastFailure;
+  }
+
+  /**
+   * @return the sequence number of the last record covered by a checkpoint
+   */
+  public synchronized long getLastLsn() {
+    return lastLsn;
+  }
+
+  /**
+   * Write a snapshot of the ledger, segment by segment
+   *
+   * @param lsn the sequence number of the last record logged
+   * @param full whether to write every account or only the changed ones
+   */
+  private void writeSnapshot(long lsn, boolean full) throws IOException {
+    HashLedger hashLedger = (HashLedger) ledger;
+    File tmp = new File(directory, "snapshot.tmp");
+    FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel();
+    try {
+      channel.truncate(0);
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC);
+      header.putLong(lsn);
+      header.put((byte) (full ? 1 : 0));
+      header.flip();
+      write(channel, header);
+
+      // if anything fails from now on, the changed accounts copied so far
+      // are lost for increments: the next snapshot must be a full one
+      needFull = true;
+
+      CRC32 crc = new CRC32();
+      int count = 0;
+      for (int i = 0; i < hashLedger.getSegmentCount(); i++) {
+        ByteBuffer accounts = hashLedger.exportSegment(i, !full);
+        count += accounts.remaining() / HashLedger.ACCOUNT_SIZE;
+        crc.update(accounts.array(), 0, accounts.limit());
+        write(channel, accounts);
+      }
+
+      ByteBuffer trailer = ByteBuffer.allocate(8);
+      trailer.putInt(count);
+      trailer.putInt((int) crc.getValue());
+      trailer.flip();
+      write(channel, trailer);
+
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+
+    // the snapshot must be on disk before the log is truncated
+    File snapshot = snapshotFile(lsn, full);
+    DurableFiles.install(tmp, snapshot);
+    needFull = false;
+
+    if (full) {
+      deleteSnapshotsBefore(lsn);
+      fullSize = snapshot.length();
+      incrementsSize = 0;
+    } else {
+      incrementsSize += snapshot.length();
+    }
+  }
+
+  /**
+   * Load the last full snapshot and the increments following it
+   *
+   * @return the sequence number of the last record covered by the snapshots
+   */
+  private long loadSnapshots() throws IOException {
+    long[] fulls = listSnapshots(true);
+    if (fulls.length == 0) {
+      return 0;
+    }
+
+    long lsn = fulls[fulls.length - 1];
+    deleteSnapshotsBefore(lsn);
+    loadSnapshot(snapshotFile(lsn, true));
+    fullSize = snapshotFile(lsn, true).length();
+    incrementsSize = 0;
+
+    long[] increments = listSnapshots(false);
+    for (int i = 0; i < increments.length; i++) {
+      if (increments[i] > lsn) {
+        File file = snapshotFile(increments[i], false);
+        loadSnapshot(file);
+        incrementsSize += file.length();
+        lsn = increments[i];
+      }
+    }
+
+    needFull = false;
+    return lsn;
+  }
+
+  /**
+   * Apply the accounts of a snapshot to the ledger
+   */
+  private void loadSnapshot(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(file + " is not a ledger snapshot");
+      }
+      in.readLong();
+      in.readByte();
+
+      long accounts = (file.length() - HEADER_SIZE - 8) / HashLedger.ACCOUNT_SIZE;
+      byte[] account = new byte[HashLedger.ACCOUNT_SIZE];
+      byte[] key = new byte[HashLedger.KEY_LENGTH];
+      CRC32 crc = new CRC32();
+      for (long i = 0; i < accounts; i++) {
+        in.readFully(account);
+        crc.update(account);
+        System.arraycopy(account, 0, key, 0, key.length);
+        ((HashLedger) ledger).setBalance(key, ByteBuffer.wrap(account).getInt(HashLedger.KEY_LENGTH));
+      }
+
+      if (in.readInt() != accounts || in.readInt() != (int) crc.getValue()) {
+        throw new IOException("Snapshot " + file + " is corrupted");
+      }
+    } catch (EOFException eofe) {
+      throw new IOException("Snapshot " + file + " is truncated");
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Return the sequence numbers of the full or incremental snapshots, in order
+   */
+  private long[] listSnapshots(boolean full) {
+    String suffix = full ? ".full" : ".incr";
+    String[] names = directory.list();
+    long[] lsns = new long[names.length];
+    int found = 0;
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].startsWith("snapshot-") && names[i].endsWith(suffix)) {
+        lsns[found++] = Long.parseLong(names[i].substring(9, names[i].length() - suffix.length()));
+      }
+    }
+
+    long[] result = new long[found];
+    System.arraycopy(lsns, 0, result, 0, found);
+    Arrays.sort(result);
+    return result;
+  }
+
+  /**
+   * Delete the snapshots made useless by the full snapshot taken at lsn
+   */
+  private void deleteSnapshotsBefore(long lsn) {
+    long[] fulls = listSnapshots(true);
+    for (int i = 0; i < fulls.length; i++) {
+      if (fulls[i] < lsn) {
+        snapshotFile(fulls[i], true).delete();
+      }
+    }
+
+    long[] increments = listSnapshots(false);
+    for (int i = 0; i < increments.length; i++) {
+      if (increments[i] <= lsn) {
+        snapshotFile(increments[i], false).delete();
+      }
+    }
+  }
+
+  /**
+   * Return the sequence number recorded by the last checkpoint of a
+   * persistent ledger, 0 if there is none
+   */
+  private long readMarker() throws IOException {
+    File marker = new File(directory, "checkpoint");
+    if (!marker.exists()) {
+      return 0;
+    }
+
+    DataInputStream in = new DataInputStream(new FileInputStream(marker));
+    try {
+      return in.readLong();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Record that the persistent ledger holds every change up to lsn
+   */
+  private void writeMarker(long lsn) throws IOException {
+    File tmp = new File(directory, "checkpoint.tmp");
+    FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel();
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate(8);
+      buffer.putLong(lsn);
+      buffer.flip();
+      channel.truncate(0);
+      write(channel, buffer);
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+
+    // never delete the marker first: a crash would leave none
+    DurableFiles.install(tmp, new File(directory, "checkpoint"));
+  }
+
+  /**
+   * Return the file of a snapshot
+   */
+  private File snapshotFile(long lsn, boolean full) {
+    String name = Long.toString(lsn);
+    while (name.length() < 19) {
+      name = "0" + name;
+    }
+    return new File(directory, "snapshot-" + name + (full ? ".full" : ".incr"));
+  }
+
+  /**
+   * Write the whole buffer
+   */
+  private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+}
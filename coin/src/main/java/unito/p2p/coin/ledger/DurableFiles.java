@@ -0,0 +1,54 @@
+package unito.p2p.coin.ledger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @(#) DurableFiles.java Installs the files of the ledger so that a crash
+ * leaves either the old file or the new one, never neither.
+ */
+final class DurableFiles {
+
+  private DurableFiles() {
+  }
+
+  /**
+   * Replace file with tmp in one atomic rename, then force the directory
+   * entry to disk. tmp must already be forced.
+   *
+   * @param tmp the new content, in the same directory as file
+   * @param file the file to replace, which may not exist yet
+   * @throws IOException if the rename fails or the platform cannot rename atomically
+   */
+  static void install(File tmp, File file) throws IOException {
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    syncDirectory(file.getAbsoluteFile().getParentFile());
+  }
+
+  /**
+   * Force the entries of a directory to disk, so that files created,
+   * renamed or deleted in it stay so after a crash
+   *
+   * @param directory the directory
+   * @throws IOException if forcing fails
+   */
+  static void syncDirectory(File directory) throws IOException {
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+    } catch (IOException ioe) {
+      // some platforms cannot open a directory, and make renames durable on their own
+      return;
+    }
+    try {
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+  }
+
+}
@@ -0,0 +1,796 @@
+package unito.p2p.coin.ledger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import rice.p2p.commonapi.Id;
+
+/**
+ * @(#) HashLedger.java Ledger which stores account keys and balances in flat
+ * buffers instead of keeping an Id, a CoinAccount and a hash entry per
+ * account.
+ *
+ * The ledger is split in segments, each one being an open addressing table
+ * with linear probing guarded by its own monitor, so that operations on
+ * different accounts do not serialize on a single lock. Every operation on
+ * an account, including the overdraft check of remove(), is a single short
+ * critical section on the monitor of its segment. Every slot holds the
+ * 160 bit account Id, the balance and a flags word.
+ *
+ * Account Ids are uniformly distributed, so both the segment and the home
+ * slot of an account are taken straight from the leading bits of its Id
+ * without any further hashing. Keys hold the Id most significant byte first,
+ * so segments and home slots follow the order of the Id ring: a range of Ids
+ * maps to a run of segments and to a run of slots inside each of them, and
+ * scan() copies a range of accounts without visiting the whole ledger.
+ *
+ * The segment tables are provided by a LedgerStorage. Every table starts with
+ * a small header recording the number of accounts it holds, so a table kept
+ * in a file can be reopened without scanning it.
+ */
+public class HashLedger implements Ledger {
+
+  /**
+   * identifies a segment table
+   */
+  static final int MAGIC = 0x434f494e;
+
+  /**
+   * the version of the table layout
+   */
+  static final int VERSION = 2;
+
+  /**
+   * the size of the table header: magic, version, segment bits, size
+   */
+  static final int HEADER_SIZE = 16;
+
+  /**
+   * the offset of the number of accounts inside the header
+   */
+  static final int SIZE_OFFSET = 12;
+
+  /**
+   * the length in bytes of the account Ids
+   */
+  public static final int KEY_LENGTH = rice.pastry.Id.IdBitLength / 8;
+
+  /**
+   * the offset of the balance inside a slot
+   */
+  static final int BALANCE_OFFSET = KEY_LENGTH;
+
+  /**
+   * the offset of the flags word inside a slot
+   */
+  static final int FLAGS_OFFSET = BALANCE_OFFSET + 4;
+
+  /**
+   * the size in bytes of every slot
+   */
+  public static final int SLOT_SIZE = FLAGS_OFFSET + 4;
+
+  /**
+   * flag marking the slots which hold an account
+   */
+  static final int FLAG_USED = 1;
+
+  /**
+   * flag marking the accounts changed since the last checkpoint
+   */
+  static final int FLAG_DIRTY = 2;
+
+  /**
+   * the size of an exported account: key and balance
+   */
+  public static final int ACCOUNT_SIZE = KEY_LENGTH + 4;
+
+  /**
+   * the default number of segments
+   */
+  public static final int DEFAULT_SEGMENTS = 64;
+
+  /**
+   * the default initial number of slots of every segment
+   */
+  public static final int DEFAULT_SEGMENT_CAPACITY = 1024;
+
+  /**
+   * the maximum fraction of used slots before a segment grows
+   */
+  static final float LOAD_FACTOR = 0.75f;
+
+  /**
+   * the segments of this ledger
+   */
+  private Segment[] segments;
+
+  /**
+   * log2 of the number of segments
+   */
+  private int segmentBits;
+
+  /**
+   * provides the segment tables
+   */
+  private LedgerStorage storage;
+
+  /**
+   * Create a ledger on the heap with the default number of segments
+   */
+  public HashLedger() {
+    this(DEFAULT_SEGMENTS, DEFAULT_SEGMENT_CAPACITY);
+  }
+
+  /**
+   * Create a ledger on the heap
+   *
+   * @param segments the number of segments, must be a power of two
+   * @param segmentCapacity the initial slots of every segment, must be a power of two
+   */
+  public HashLedger(int segments, int segmentCapacity) {
+    try {
+      init(new HeapStorage(), segments, segmentCapacity);
+    } catch (IOException ioe) {
+      // the heap storage never fails
+      throw new IllegalStateException(ioe);
+    }
+  }
+
+  /**
+   * Create a ledger over the given storage, reopening the segments it
+   * already holds.
+   *
+   * @param storage the storage providing the segment tables
+   * @param segments the number of segments, must be a power of two
+   * @param segmentCapacity the initial slots of every segment, must be a power of two
+   * @throws IOException if the stored segments cannot be opened
+   */
+  public HashLedger(LedgerStorage storage, int segments, int segmentCapacity) throws IOException {
+    init(storage, segments, segmentCapacity);
+  }
+
+  private void init(LedgerStorage storage, int segments, int segmentCapacity) throws IOException {
+    if (Integer.bitCount(segments) != 1 || Integer.bitCount(segmentCapacity) != 1 || segmentCapacity < 2) {
+      throw new IllegalArgumentException("Segments and segment capacity must be powers of two");
+    }
+
+    this.storage = storage;
+    this.segmentBits = Integer.numberOfTrailingZeros(segments);
+    this.segments = new Segment[segments];
+    for (int i = 0; i < segments; i++) {
+      ByteBuffer table = storage.load(i);
+      if (table == null) {
+        table = storage.allocate(i, HEADER_SIZE + segmentCapacity * SLOT_SIZE);
+        writeHeader(table, segmentBits, 0);
+        storage.commit(i, table);
+      }
+      this.segments[i] = new Segment(i, segmentBits, table, storage);
+    }
+  }
+
+  public int getBalance(Id id) {
+    byte[] key = toKey(id);
+    long prefix = prefix(key);
+    return segmentFor(prefix).getBalance(key, prefix);
+  }
+
+  public int add(Id id, int value) {
+    byte[] key = toKey(id);
+    long prefix = prefix(key);
+    return segmentFor(prefix).add(key, prefix, value);
+  }
+
+  public int remove(Id id, int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Cannot remove a negative amount " + value);
+    }
+    byte[] key = toKey(id);
+    long prefix = prefix(key);
+    return segmentFor(prefix).remove(key, prefix, value);
+  }
+
+  public void setBalance(Id id, int balance) {
+    byte[] key = toKey(id);
+    long prefix = prefix(key);
+    segmentFor(prefix).set(key, prefix, balance);
+  }
+
+  public boolean putIfAbsent(Id id, int balance) {
+    byte[] key = toKey(id);
+    long prefix = prefix(key);
+    return segmentFor(prefix).putIfAbsent(key, prefix, balance);
+  }
+
+  public ByteBuffer scan(byte[] from, byte[] to, int max) {
+    ByteBuffer accounts = ByteBuffer.allocate(max * ACCOUNT_SIZE);
+    if (from == null || to == null || compareKeys(from, to) < 0) {
+      int first = from == null ? 0 : segmentIndex(prefix(from));
+      int last = to == null ? segments.length - 1 : segmentIndex(prefix(to));
+      for (int i = first; i <= last && accounts.hasRemaining(); i++) {
+        segments[i].scan(from, to, accounts);
+      }
+    }
+
+    accounts.flip();
+    return accounts;
+  }
+
+  /**
+   * Return the balance of the account with the given key
+   *
+   * @param key the KEY_LENGTH bytes of the account Id
+   * @return the balance, 0 if the account is not stored
+   */
+  int getBalance(byte[] key) {
+    long prefix = prefix(key);
+    return segmentFor(prefix).getBalance(key, prefix);
+  }
+
+  /**
+   * Create the account with the given key if it is not stored yet
+   *
+   * @param key the KEY_LENGTH bytes of the account Id
+   * @param balance the balance of the new account
+   * @return whether the account has been created
+   */
+  boolean putIfAbsent(byte[] key, int balance) {
+    long prefix = prefix(key);
+    return segmentFor(prefix).putIfAbsent(key, prefix, balance);
+  }
+
+  /**
+   * @param key the KEY_LENGTH bytes of the account Id
+   * @return whether the account with the given key is stored
+   */
+  boolean contains(byte[] key) {
+    long prefix = prefix(key);
+    return segmentFor(prefix).contains(key, prefix);
+  }
+
+  /**
+   * Set the balance of the account with the given key
+   *
+   * @param key the KEY_LENGTH bytes of the account Id
+   * @param balance the new balance
+   */
+  void setBalance(byte[] key, int balance) {
+    long prefix = prefix(key);
+    segmentFor(prefix).set(key, prefix, balance);
+  }
+
+  /**
+   * @return the number of segments of this ledger
+   */
+  public int getSegmentCount() {
+    return segments.length;
+  }
+
+  /**
+   * Copy the accounts of a segment, ACCOUNT_SIZE bytes each. The segment
+   * is locked only while copying, so the ledger keeps serving the other
+   * segments.
+   *
+   * @param segment the segment index
+   * @param dirtyOnly whether to copy only the accounts changed since the last call
+   * @return the accounts, ready to be read
+   */
+  public ByteBuffer exportSegment(int segment, boolean dirtyOnly) {
+    return segments[segment].export(dirtyOnly);
+  }
+
+  /**
+   * Forget which accounts changed, used once the ledger has been restored
+   * from a checkpoint
+   */
+  public void clearDirty() {
+    for (int i = 0; i < segments.length; i++) {
+      segments[i].clearDirty();
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < segments.length; i++) {
+      size += segments[i].size();
+    }
+    return size;
+  }
+
+  public void flush() throws IOException {
+    storage.flush();
+  }
+
+  public void close() throws IOException {
+    storage.close();
+  }
+
+  public double getBytesPerAccount() {
+    long bytes = 0;
+    int size = 0;
+    for (int i = 0; i < segments.length; i++) {
+      bytes += segments[i].footprint();
+      size += segments[i].size();
+    }
+
+    if (size == 0) {
+      return SLOT_SIZE / LOAD_FACTOR;
+    }
+    return (double) bytes / size;
+  }
+
+  /**
+   * Return the segment responsible for the key with the given prefix
+   */
+  private Segment segmentFor(long prefix) {
+    return segments[segmentIndex(prefix)];
+  }
+
+  /**
+   * Return the index of the segment responsible for the key with the given prefix
+   */
+  private int segmentIndex(long prefix) {
+    if (segmentBits == 0) {
+      return 0;
+    }
+    return (int) (prefix >>> (64 - segmentBits));
+  }
+
+  /**
+   * Return the key of an account Id: its bytes, most significant first
+   *
+   * @param id the account Id
+   * @return the KEY_LENGTH bytes of the key
+   */
+  public static byte[] toKey(Id id) {
+    // Ids serialize their least significant byte first
+    byte[] bytes = id.toByteArray();
+    if (bytes.length != KEY_LENGTH) {
+      throw new IllegalArgumentException("Unsupported Id length " + bytes.length + " for " + id);
+    }
+
+    byte[] key = new byte[KEY_LENGTH];
+    for (int i = 0; i < KEY_LENGTH; i++) {
+      key[i] = bytes[KEY_LENGTH - 1 - i];
+    }
+    return key;
+  }
+
+  /**
+   * Return the account Id of a key
+   *
+   * @param key the KEY_LENGTH bytes of the key
+   * @return the account Id
+   */
+  public static Id toId(byte[] key) {
+    byte[] bytes = new byte[KEY_LENGTH];
+    for (int i = 0; i < KEY_LENGTH; i++) {
+      bytes[i] = key[KEY_LENGTH - 1 - i];
+    }
+    return rice.pastry.Id.build(bytes);
+  }
+
+  /**
+   * Return the key following the given one, null if it is the last key
+   *
+   * @param key the KEY_LENGTH bytes of a key
+   * @return the next key
+   */
+  public static byte[] successor(byte[] key) {
+    byte[] next = (byte[]) key.clone();
+    for (int i = KEY_LENGTH - 1; i >= 0; i--) {
+      next[i]++;
+      if (next[i] != 0) {
+        return next;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Compare two keys in Id ring order. Only the first KEY_LENGTH bytes of
+   * the arrays are compared.
+   *
+   * @return a negative number, zero or a positive number as a is less than, equal to or greater than b
+   */
+  public static int compareKeys(byte[] a, byte[] b) {
+    for (int i = 0; i < KEY_LENGTH; i++) {
+      int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Orders exported accounts by key
+   */
+  static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+    public int compare(byte[] a, byte[] b) {
+      return compareKeys(a, b);
+    }
+  };
+
+  /**
+   * Initialize the header of an empty table
+   */
+  static void writeHeader(ByteBuffer table, int segmentBits, int size) {
+    table.putInt(0, MAGIC);
+    table.putInt(4, VERSION);
+    table.putInt(8, segmentBits);
+    table.putInt(SIZE_OFFSET, size);
+  }
+
+  /**
+   * Return the first 8 bytes of a key as a big endian long
+   */
+  static long prefix(byte[] key) {
+    long prefix = 0;
+    for (int i = 0; i < 8; i++) {
+      prefix = (prefix << 8) | (key[i] & 0xFF);
+    }
+    return prefix;
+  }
+
+
+  /**
+   * An open addressing table holding a share of the accounts
+   */
+  static class Segment {
+
+    /**
+     * the index of this segment
+     */
+    private int index;
+
+    /**
+     * the header followed by the slots, SLOT_SIZE bytes each
+     */
+    private ByteBuffer table;
+
+    /**
+     * the number of slots, always a power of two
+     */
+    private int capacity;
+
+    /**
+     * log2 of capacity
+     */
+    private int capacityBits;
+
+    /**
+     * the number of used slots
+     */
+    private int size;
+
+    /**
+     * the leading key bits already used to choose the segment
+     */
+    private int segmentBits;
+
+    /**
+     * provides the tables when the segment grows
+     */
+    private LedgerStorage storage;
+
+    Segment(int index, int segmentBits, ByteBuffer table, LedgerStorage storage) throws IOException {
+      int slots = (table.capacity() - HEADER_SIZE) / SLOT_SIZE;
+      if (table.getInt(0) != MAGIC || table.getInt(4) != VERSION) {
+        throw new IOException("Segment " + index + " is not a ledger table");
+      }
+      if (table.getInt(8) != segmentBits || Integer.bitCount(slots) != 1) {
+        throw new IOException("Segment " + index + " does not match the ledger layout");
+      }
+
+      this.index = index;
+      this.segmentBits = segmentBits;
+      this.storage = storage;
+      this.table = table;
+      this.capacity = slots;
+      this.capacityBits = Integer.numberOfTrailingZeros(slots);
+      this.size = table.getInt(SIZE_OFFSET);
+    }
+
+    synchronized int getBalance(byte[] key, long prefix) {
+      int slot = find(key, prefix);
+      if (slot < 0) {
+        return 0;
+      }
+      return table.getInt(offset(slot) + BALANCE_OFFSET);
+    }
+
+    synchronized boolean putIfAbsent(byte[] key, long prefix, int balance) {
+      int slot = find(key, prefix);
+      if (slot >= 0) {
+        return false;
+      }
+      insert(-slot - 1, key, balance);
+      return true;
+    }
+
+    synchronized boolean contains(byte[] key, long prefix) {
+      return find(key, prefix) >= 0;
+    }
+
+    synchronized int add(byte[] key, long prefix, int value) {
+      int slot = find(key, prefix);
+      if (slot < 0) {
+        insert(-slot - 1, key, value);
+        return value;
+      }
+
+      int offset = offset(slot) + BALANCE_OFFSET;
+      int balance = table.getInt(offset) + value;
+      table.putInt(offset, balance);
+      markDirty(slot);
+      return balance;
+    }
+
+    synchronized int remove(byte[] key, long prefix, int value) {
+      int slot = find(key, prefix);
+      if (slot < 0) {
+        // an account not stored holds 0, as getBalance() tells
+        return value == 0 ? 0 : INSUFFICIENT_FUNDS;
+      }
+
+      int offset = offset(slot) + BALANCE_OFFSET;
+      int balance = table.getInt(offset);
+      if (balance < value) {
+        return INSUFFICIENT_FUNDS;
+      }
+
+      balance -= value;
+      table.putInt(offset, balance);
+      markDirty(slot);
+      return balance;
+    }
+
+    synchronized void set(byte[] key, long prefix, int balance) {
+      int slot = find(key, prefix);
+      if (slot < 0) {
+        insert(-slot - 1, key, balance);
+      } else {
+        table.putInt(offset(slot) + BALANCE_OFFSET, balance);
+        markDirty(slot);
+      }
+    }
+
+    synchronized ByteBuffer export(boolean dirtyOnly) {
+      int count = 0;
+      for (int slot = 0; slot < capacity; slot++) {
+        int flags = table.getInt(offset(slot) + FLAGS_OFFSET);
+        if ((flags & FLAG_USED) != 0 && (!dirtyOnly || (flags & FLAG_DIRTY) != 0)) {
+          count++;
+        }
+      }
+
+      ByteBuffer accounts = ByteBuffer.allocate(count * ACCOUNT_SIZE);
+      for (int slot = 0; slot < capacity && accounts.hasRemaining(); slot++) {
+        int base = offset(slot);
+        int flags = table.getInt(base + FLAGS_OFFSET);
+        if ((flags & FLAG_USED) == 0 || (dirtyOnly && (flags & FLAG_DIRTY) == 0)) {
+          continue;
+        }
+
+        for (int i = 0; i < ACCOUNT_SIZE; i++) {
+          accounts.put(table.get(base + i));
+        }
+        table.putInt(base + FLAGS_OFFSET, flags & ~FLAG_DIRTY);
+      }
+
+      accounts.flip();
+      return accounts;
+    }
+
+    /**
+     * Append to out, in key order, the accounts of this segment whose key
+     * is in [from, to), as many as fit.
+     *
+     * The home slot grows with the key, so accounts sit in key order but
+     * for the displacements caused by linear probing, which never cross a
+     * free slot. The scan starts at the home slot of from and stops at the
+     * first free slot past the home of to, or past enough accounts. Only
+     * the accounts found so far are sorted.
+     */
+    synchronized void scan(byte[] from, byte[] to, ByteBuffer out) {
+      int limit = out.remaining() / ACCOUNT_SIZE;
+      int start = from != null && owns(prefix(from)) ? home(prefix(from)) : 0;
+      int end = to != null && owns(prefix(to)) ? home(prefix(to)) : capacity - 1;
+
+      ArrayList<byte[]> found = new ArrayList<byte[]>();
+      int slot = start;
+      for (; slot < capacity; slot++) {
+        int base = offset(slot);
+        if ((table.getInt(base + FLAGS_OFFSET) & FLAG_USED) == 0) {
+          // every account past a free slot sorts after the ones found so far
+          if (slot > end || found.size() >= limit) {
+            break;
+          }
+          continue;
+        }
+
+        // accounts which wrapped around from the end are visited last
+        if (home(table.getLong(base)) <= slot) {
+          collect(base, from, to, found);
+        }
+      }
+
+      if (slot == capacity) {
+        for (slot = 0; slot < capacity; slot++) {
+          int base = offset(slot);
+          if ((table.getInt(base + FLAGS_OFFSET) & FLAG_USED) == 0) {
+            break;
+          }
+          if (home(table.getLong(base)) > slot) {
+            collect(base, from, to, found);
+          }
+        }
+      }
+
+      Collections.sort(found, KEY_ORDER);
+      for (int i = 0; i < found.size() && i < limit; i++) {
+        out.put(found.get(i));
+      }
+    }
+
+    /**
+     * Copy the account stored at base if its key is in [from, to)
+     */
+    private void collect(int base, byte[] from, byte[] to, ArrayList<byte[]> found) {
+      byte[] account = new byte[ACCOUNT_SIZE];
+      for (int i = 0; i < ACCOUNT_SIZE; i++) {
+        account[i] = table.get(base + i);
+      }
+      if ((from == null || compareKeys(account, from) >= 0) && (to == null || compareKeys(account, to) < 0)) {
+        found.add(account);
+      }
+    }
+
+    /**
+     * Whether the key with the given prefix belongs to this segment
+     */
+    private boolean owns(long prefix) {
+      return segmentBits == 0 || (int) (prefix >>> (64 - segmentBits)) == index;
+    }
+
+    synchronized void clearDirty() {
+      for (int slot = 0; slot < capacity; slot++) {
+        int base = offset(slot) + FLAGS_OFFSET;
+        table.putInt(base, table.getInt(base) & ~FLAG_DIRTY);
+      }
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized long footprint() {
+      return table.capacity();
+    }
+
+    /**
+     * Remember that an account changed since the last checkpoint
+     */
+    private void markDirty(int slot) {
+      int base = offset(slot) + FLAGS_OFFSET;
+      table.putInt(base, table.getInt(base) | FLAG_DIRTY);
+    }
+
+    /**
+     * Return the position of a slot inside the table
+     */
+    private int offset(int slot) {
+      return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Return the home slot of the key with the given prefix
+     */
+    private int home(long prefix) {
+      return (int) ((prefix << segmentBits) >>> (64 - capacityBits));
+    }
+
+    /**
+     * Look up a key
+     *
+     * @return the slot holding the key, or (-(free slot) - 1) if the key is not stored
+     */
+    private int find(byte[] key, long prefix) {
+      int mask = capacity - 1;
+      int slot = home(prefix);
+
+      while (true) {
+        int base = offset(slot);
+        if ((table.getInt(base + FLAGS_OFFSET) & FLAG_USED) == 0) {
+          return -slot - 1;
+        }
+        if (matches(base, key, prefix)) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    /**
+     * Compare the key stored at base with the given one
+     */
+    private boolean matches(int base, byte[] key, long prefix) {
+      if (table.getLong(base) != prefix) {
+        return false;
+      }
+      for (int i = 8; i < KEY_LENGTH; i++) {
+        if (table.get(base + i) != key[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Store a new account in a free slot
+     */
+    private void insert(int slot, byte[] key, int balance) {
+      int base = offset(slot);
+      for (int i = 0; i < KEY_LENGTH; i++) {
+        table.put(base + i, key[i]);
+      }
+      table.putInt(base + BALANCE_OFFSET, balance);
+      table.putInt(base + FLAGS_OFFSET, FLAG_USED | FLAG_DIRTY);
+      size++;
+      table.putInt(SIZE_OFFSET, size);
+
+      if (size > capacity * LOAD_FACTOR) {
+        grow();
+      }
+    }
+
+    /**
+     * Double the number of slots and move every account to its new home
+     */
+    private void grow() {
+      ByteBuffer old = table;
+      int oldCapacity = capacity;
+
+      ByteBuffer grown;
+      try {
+        grown = storage.allocate(index, HEADER_SIZE + oldCapacity * 2 * SLOT_SIZE);
+      } catch (IOException ioe) {
+        throw new IllegalStateException("Cannot grow ledger segment " + index, ioe);
+      }
+
+      capacity = oldCapacity * 2;
+      capacityBits++;
+      table = grown;
+      writeHeader(table, segmentBits, size);
+
+      int mask = capacity - 1;
+      for (int i = 0; i < oldCapacity; i++) {
+        int from = HEADER_SIZE + i * SLOT_SIZE;
+        if ((old.getInt(from + FLAGS_OFFSET) & FLAG_USED) == 0) {
+          continue;
+        }
+
+        int slot = home(old.getLong(from));
+        while ((table.getInt(offset(slot) + FLAGS_OFFSET) & FLAG_USED) != 0) {
+          slot = (slot + 1) & mask;
+        }
+
+        int to = offset(slot);
+        for (int j = 0; j < SLOT_SIZE; j += 4) {
+          table.putInt(to + j, old.getInt(from + j));
+        }
+      }
+
+      try {
+        storage.commit(index, table);
+      } catch (IOException ioe) {
+        throw new IllegalStateException("Cannot grow ledger segment " + index, ioe);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,28 @@
+package unito.p2p.coin.ledger;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @(#) HeapStorage.java Keeps the ledger tables in heap byte arrays. Nothing
+ * survives a restart.
+ */
+public class HeapStorage implements LedgerStorage {
+
+  public ByteBuffer load(int segment) {
+    return null;
+  }
+
+  public ByteBuffer allocate(int segment, int size) {
+    return ByteBuffer.allocate(size);
+  }
+
+  public void commit(int segment, ByteBuffer table) {
+  }
+
+  public void flush() {
+  }
+
+  public void close() {
+  }
+
+}
@@ -0,0 +1,112 @@
+package unito.p2p.coin.ledger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import rice.p2p.commonapi.Id;
+
+/**
+ * @(#) Ledger.java The store holding the balances of the accounts a Coin
+ * replica is responsible for.
+ */
+public interface Ledger {
+
+  /**
+   * returned by remove() when the account does not hold enough money
+   */
+  public static final int INSUFFICIENT_FUNDS = -1;
+
+  /**
+   * Return the balance associated to the given account. Accounts which
+   * are not stored have a balance of 0.
+   *
+   * @param id the account Id
+   * @return the balance of the account
+   */
+  public int getBalance(Id id);
+
+  /**
+   * Add value to the balance associated to id, creating the account
+   * if it is not stored yet.
+   *
+   * @param id the account Id
+   * @param value the amount of money to add
+   * @return the new balance
+   */
+  public int add(Id id, int value);
+
+  /**
+   * Remove value from the balance associated to id, only if the account
+   * holds at least value. The check and the update are atomic, so
+   * concurrent removals can never overdraw an account.
+   *
+   * @param id the account Id
+   * @param value the amount of money to remove, not negative
+   * @return the new balance, or INSUFFICIENT_FUNDS if the account holds less
+   * than value, which is the case of any positive value for an account not
+   * stored
+   * @throws IllegalArgumentException if value is negative
+   */
+  public int remove(Id id, int value);
+
+  /**
+   * Set the balance associated to id, creating the account if it is not
+   * stored yet. This is used to restore accounts from a log or a snapshot.
+   *
+   * @param id the account Id
+   * @param balance the new balance
+   */
+  public void setBalance(Id id, int balance);
+
+  /**
+   * Create an account with the given balance, only if it is not stored
+   * yet. This is used to install accounts received from other replicas
+   * without overwriting the ones changed meanwhile.
+   *
+   * @param id the account Id
+   * @param balance the balance of the new account
+   * @return whether the account has been created
+   */
+  public boolean putIfAbsent(Id id, int balance);
+
+  /**
+   * Copy, in Id order, up to max accounts whose key lies in [from, to).
+   * Keys are built by HashLedger.toKey(), so that their order is the order
+   * of the Id ring.
+   *
+   * @param from the first key of the range, null for the start of the Id space
+   * @param to the key following the range, null for the end of the Id space
+   * @param max the maximum number of accounts to copy
+   * @return the accounts, ACCOUNT_SIZE bytes each: the key followed by the balance
+   */
+  public ByteBuffer scan(byte[] from, byte[] to, int max);
+
+  /**
+   * @return the number of accounts stored
+   */
+  public int size();
+
+  /**
+   * Return the memory used by the ledger divided by the number of accounts
+   * stored. This is useful to size the heap of replica nodes.
+   *
+   * @return the number of bytes used per account
+   */
+  public double getBytesPerAccount();
+
+  /**
+   * Write back to stable storage the changes made so far. Ledgers kept
+   * only in memory do nothing.
+   *
+   * @throws IOException if writing fails
+   */
+  public void flush() throws IOException;
+
+  /**
+   * Flush and release the ledger
+   *
+   * @throws IOException if writing fails
+   */
+  public void close() throws IOException;
+
+}
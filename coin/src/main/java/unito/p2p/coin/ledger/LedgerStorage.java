@@ -0,0 +1,56 @@
+package unito.p2p.coin.ledger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * @(#) LedgerStorage.java Provides the memory holding the segment tables of
+ * a HashLedger.
+ */
+public interface LedgerStorage {
+
+  /**
+   * Return the table of the given segment as left by a previous run
+   *
+   * @param segment the segment index
+   * @return the table, or null if the segment was never stored
+   * @throws IOException if the table cannot be read
+   */
+  public ByteBuffer load(int segment) throws IOException;
+
+  /**
+   * Allocate a new zero filled table for the given segment. The table is
+   * not in use until it is passed to commit().
+   *
+   * @param segment the segment index
+   * @param size the size in bytes of the table
+   * @return the table
+   * @throws IOException if the table cannot be allocated
+   */
+  public ByteBuffer allocate(int segment, int size) throws IOException;
+
+  /**
+   * Make a table returned by allocate() the current table of the segment,
+   * replacing the previous one.
+   *
+   * @param segment the segment index
+   * @param table the new table
+   * @throws IOException if the table cannot be installed
+   */
+  public void commit(int segment, ByteBuffer table) throws IOException;
+
+  /**
+   * Write back to stable storage all the changes made to the tables
+   *
+   * @throws IOException if writing fails
+   */
+  public void flush() throws IOException;
+
+  /**
+   * Flush and release the storage
+   *
+   * @throws IOException if writing fails
+   */
+  public void close() throws IOException;
+
+}
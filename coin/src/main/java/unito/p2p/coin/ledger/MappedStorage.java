@@ -0,0 +1,151 @@
+package unito.p2p.coin.ledger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * @(#) MappedStorage.java Keeps every ledger segment in a memory-mapped file,
+ * so that a restarted replica reopens its accounts by mapping the files
+ * again instead of rebuilding them.
+ *
+ * Updates only touch the mapped memory. The operating system writes dirty
+ * pages back on its own, so changes survive a crash of the process; they
+ * are forced to disk every flushInterval milliseconds and on close, which
+ * bounds what is lost if the whole machine goes down.
+ */
+public class MappedStorage implements LedgerStorage {
+
+  /**
+   * the directory holding the segment files
+   */
+  private File directory;
+
+  /**
+   * the current table of every segment
+   */
+  private MappedByteBuffer[] tables;
+
+  /**
+   * forces the tables to disk periodically
+   */
+  private Timer flusher;
+
+  /**
+   * Create a storage in the given directory
+   *
+   * @param directory the directory holding the segment files, created if missing
+   * @param segments the number of segments of the ledger
+   * @param flushInterval milliseconds between two flushes, 0 to flush only on close
+   * @throws IOException if the directory cannot be created
+   */
+  public MappedStorage(File directory, int segments, long flushInterval) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create ledger directory " + directory);
+    }
+
+    this.directory = directory;
+    this.tables = new MappedByteBuffer[segments];
+
+    if (flushInterval > 0) {
+      flusher = new Timer("Ledger flusher " + directory, true);
+      flusher.schedule(new TimerTask() {
+        public void run() {
+          try {
+            flush();
+          } catch (IOException ioe) {
+            // the next run will try again
+          }
+        }
+      }, flushInterval, flushInterval);
+    }
+  }
+
+  public ByteBuffer load(int segment) throws IOException {
+    File file = segmentFile(segment, false);
+    if (!file.exists()) {
+      return null;
+    }
+
+    MappedByteBuffer table = map(file, file.length());
+    synchronized (this) {
+      tables[segment] = table;
+    }
+    return table;
+  }
+
+  public ByteBuffer allocate(int segment, int size) throws IOException {
+    File file = segmentFile(segment, true);
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Cannot delete stale segment file " + file);
+    }
+    return map(file, size);
+  }
+
+  public void commit(int segment, ByteBuffer table) throws IOException {
+    MappedByteBuffer mapped = (MappedByteBuffer) table;
+
+    // the new table must be on disk before it replaces the old one
+    mapped.force();
+
+    // a single rename, so that a crash leaves the old table or the new one
+    DurableFiles.install(segmentFile(segment, true), segmentFile(segment, false));
+
+    synchronized (this) {
+      tables[segment] = mapped;
+    }
+  }
+
+  public void flush() throws IOException {
+    MappedByteBuffer[] current;
+    synchronized (this) {
+      current = (MappedByteBuffer[]) tables.clone();
+    }
+
+    for (int i = 0; i < current.length; i++) {
+      if (current[i] != null) {
+        current[i].force();
+      }
+    }
+  }
+
+  public void close() throws IOException {
+    if (flusher != null) {
+      flusher.cancel();
+    }
+    flush();
+  }
+
+  /**
+   * Return the file of a segment
+   *
+   * @param segment the segment index
+   * @param temporary whether to return the file used while a new table is built
+   */
+  private File segmentFile(int segment, boolean temporary) {
+    String name = "segment-" + segment + (temporary ? ".tmp" : ".ledger");
+    return new File(directory, name);
+  }
+
+  /**
+   * Map a whole file, extending it to size bytes
+   */
+  private static MappedByteBuffer map(File file, long size) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      if (raf.length() != size) {
+        raf.setLength(size);
+      }
+      // the mapping stays valid after the channel is closed
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } finally {
+      raf.close();
+    }
+  }
+
+}
@@ -0,0 +1,228 @@
+package unito.p2p.coin.ledger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import rice.p2p.commonapi.Id;
+
+/**
+ * @(#) MerkleLedger.java Ledger which keeps a MerkleTree up to date with
+ * the accounts of the ledger it wraps.
+ *
+ * The tree is built by scanning the wrapped ledger once, so this must wrap
+ * it after it has been recovered, and every later change must go through
+ * this ledger. Changes to an account and to the tree are made under a lock
+ * chosen by the leading bits of the key, so that the tree sees the changes
+ * to an account in the order they are applied while different accounts are
+ * still updated in parallel.
+ *
+ * The scan runs in the background, so that a node with many accounts does
+ * not wait for it to start: the accounts are scanned by their first key
+ * byte, each one under the lock of its accounts, and the changes to the
+ * accounts not scanned yet are left out of the tree. The tree is only
+ * complete once isReady().
+ */
+public class MerkleLedger implements Ledger {
+
+  /**
+   * the number of locks
+   */
+  static final int LOCKS = 64;
+
+  /**
+   * the number of accounts read at once while building the tree
+   */
+  static final int SCAN_CHUNK = 4096;
+
+  /**
+   * the number of values of the first key byte, scanned one at a time
+   */
+  static final int PREFIXES = 256;
+
+  /**
+   * the ledger holding the accounts
+   */
+  private Ledger ledger;
+
+  /**
+   * the hashes of the accounts
+   */
+  private MerkleTree tree;
+
+  /**
+   * serialize the changes to the accounts sharing their leading bits
+   */
+  private Object[] locks;
+
+  /**
+   * whether the accounts with every first key byte were scanned, read and
+   * written under the lock of the accounts
+   */
+  private boolean[] built;
+
+  /**
+   * whether the tree holds every account
+   */
+  private volatile boolean ready;
+
+  /**
+   * stops the scan
+   */
+  private volatile boolean closed;
+
+  /**
+   * Wrap a ledger, building the tree of the accounts it holds in the
+   * background
+   *
+   * @param ledger the ledger holding the accounts
+   * @param leafBits the number of key bits choosing the leaf buckets of the tree
+   */
+  public MerkleLedger(Ledger ledger, int leafBits) {
+    this.ledger = ledger;
+    this.tree = new MerkleTree(leafBits);
+    this.locks = new Object[LOCKS];
+    for (int i = 0; i < LOCKS; i++) {
+      locks[i] = new Object();
+    }
+    this.built = new boolean[PREFIXES];
+
+    Thread builder = new Thread(new Runnable() {
+      public void run() {
+        build();
+      }
+    }, "Merkle tree build");
+    builder.setDaemon(true);
+    builder.start();
+  }
+
+  /**
+   * @return the tree of the accounts of this ledger
+   */
+  public MerkleTree getTree() {
+    return tree;
+  }
+
+  /**
+   * @return whether the tree holds every account of the ledger
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Add the accounts to the tree by their first key byte, each one under
+   * the lock of its accounts so that no change is missed or counted twice
+   */
+  private void build() {
+    byte[] key = new byte[HashLedger.KEY_LENGTH];
+    for (int prefix = 0; prefix < PREFIXES && !closed; prefix++) {
+      byte[] from = new byte[HashLedger.KEY_LENGTH];
+      from[0] = (byte) prefix;
+      byte[] to = null;
+      if (prefix + 1 < PREFIXES) {
+        to = new byte[HashLedger.KEY_LENGTH];
+        to[0] = (byte) (prefix + 1);
+      }
+
+      synchronized (locks[prefix % LOCKS]) {
+        while (true) {
+          ByteBuffer accounts = ledger.scan(from, to, SCAN_CHUNK);
+          int count = accounts.remaining() / HashLedger.ACCOUNT_SIZE;
+          for (int i = 0; i < count; i++) {
+            accounts.get(key);
+            tree.toggle(key, accounts.getInt());
+          }
+
+          if (count < SCAN_CHUNK || (from = HashLedger.successor(key)) == null) {
+            break;
+          }
+        }
+        built[prefix] = true;
+      }
+    }
+    ready = !closed;
+  }
+
+  public int getBalance(Id id) {
+    return ledger.getBalance(id);
+  }
+
+  public int add(Id id, int value) {
+    byte[] key = HashLedger.toKey(id);
+    synchronized (lockFor(key)) {
+      int balance = ledger.add(id, value);
+      if (built[key[0] & 0xFF]) {
+        tree.toggle(key, balance - value);
+        tree.toggle(key, balance);
+      }
+      return balance;
+    }
+  }
+
+  public int remove(Id id, int value) {
+    byte[] key = HashLedger.toKey(id);
+    synchronized (lockFor(key)) {
+      int balance = ledger.remove(id, value);
+      if (balance != INSUFFICIENT_FUNDS && built[key[0] & 0xFF]) {
+        tree.toggle(key, balance + value);
+        tree.toggle(key, balance);
+      }
+      return balance;
+    }
+  }
+
+  public void setBalance(Id id, int balance) {
+    byte[] key = HashLedger.toKey(id);
+    synchronized (lockFor(key)) {
+      if (!built[key[0] & 0xFF]) {
+        ledger.setBalance(id, balance);
+        return;
+      }
+      tree.toggle(key, ledger.getBalance(id));
+      ledger.setBalance(id, balance);
+      tree.toggle(key, balance);
+    }
+  }
+
+  public boolean putIfAbsent(Id id, int balance) {
+    byte[] key = HashLedger.toKey(id);
+    synchronized (lockFor(key)) {
+      if (!ledger.putIfAbsent(id, balance)) {
+        return false;
+      }
+      if (built[key[0] & 0xFF]) {
+        tree.toggle(key, balance);
+      }
+      return true;
+    }
+  }
+
+  public ByteBuffer scan(byte[] from, byte[] to, int max) {
+    return ledger.scan(from, to, max);
+  }
+
+  public int size() {
+    return ledger.size();
+  }
+
+  public double getBytesPerAccount() {
+    return ledger.getBytesPerAccount();
+  }
+
+  public void flush() throws IOException {
+    ledger.flush();
+  }
+
+  public void close() throws IOException {
+    closed = true;
+    ledger.close();
+  }
+
+  /**
+   * Return the lock serializing the changes to an account
+   */
+  private Object lockFor(byte[] key) {
+    return locks[(key[0] & 0xFF) % LOCKS];
+  }
+
+}
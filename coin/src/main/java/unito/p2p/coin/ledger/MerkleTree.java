@@ -0,0 +1,167 @@
+package unito.p2p.coin.ledger;
+
+/**
+ * @(#) MerkleTree.java Hash tree summarizing the accounts of a ledger, used
+ * to find which accounts two replicas disagree on without exchanging them.
+ *
+ * The key space is split in 2^leafBits buckets by the leading bits of the
+ * keys. The hash of a bucket is the XOR of the hashes of its accounts, and
+ * the hash of an inner node at level l (covering the keys sharing their
+ * first l bits) is the XOR of the buckets below it. Since XOR is its own
+ * inverse, a balance change updates the tree incrementally by XORing the
+ * hash of the old and of the new balance along the path from the leaf to
+ * the root, without rehashing anything.
+ *
+ * Accounts with a balance of 0 hash to 0, so they are indistinguishable from
+ * accounts which are not stored, as they are for getBalance().
+ */
+public class MerkleTree {
+
+  /**
+   * the default number of key bits choosing the leaf bucket
+   */
+  public static final int DEFAULT_LEAF_BITS = 12;
+
+  /**
+   * the hashes of every level, levels[l] having 2^l nodes
+   */
+  private long[][] levels;
+
+  /**
+   * the number of key bits choosing the leaf bucket
+   */
+  private int leafBits;
+
+  /**
+   * Create an empty tree
+   *
+   * @param leafBits the number of key bits choosing the leaf bucket, at most 30
+   */
+  public MerkleTree(int leafBits) {
+    if (leafBits < 0 || leafBits > 30) {
+      throw new IllegalArgumentException("Unsupported number of leaf bits " + leafBits);
+    }
+
+    this.leafBits = leafBits;
+    this.levels = new long[leafBits + 1][];
+    for (int l = 0; l <= leafBits; l++) {
+      levels[l] = new long[1 << l];
+    }
+  }
+
+  /**
+   * Account for an account balance entering or leaving the tree: calling
+   * this with the old and with the new balance records a change.
+   *
+   * @param key the KEY_LENGTH bytes of the account key
+   * @param balance the balance entering or leaving
+   */
+  public synchronized void toggle(byte[] key, int balance) {
+    long hash = hash(key, balance);
+    if (hash == 0) {
+      return;
+    }
+
+    long prefix = HashLedger.prefix(key);
+    for (int l = 0; l <= leafBits; l++) {
+      levels[l][bucket(prefix, l)] ^= hash;
+    }
+  }
+
+  /**
+   * Return the hash of a node
+   *
+   * @param level the level of the node, 0 being the root
+   * @param bucket the index of the node in its level
+   * @return the hash of the accounts below the node
+   */
+  public synchronized long getHash(int level, int bucket) {
+    return levels[level][bucket];
+  }
+
+  /**
+   * @return the number of key bits choosing the leaf bucket
+   */
+  public int getLeafBits() {
+    return leafBits;
+  }
+
+  /**
+   * Return the node of a level covering a key
+   *
+   * @param key the KEY_LENGTH bytes of the key
+   * @param level the level
+   * @return the index of the node in its level
+   */
+  public static int bucket(byte[] key, int level) {
+    return bucket(HashLedger.prefix(key), level);
+  }
+
+  /**
+   * Return the first key covered by a node
+   *
+   * @param level the level of the node
+   * @param bucket the index of the node in its level
+   * @return the key, null if the node index is past the end of the level
+   */
+  public static byte[] firstKey(int level, int bucket) {
+    if (bucket >= (1 << level)) {
+      return null;
+    }
+
+    long prefix = level == 0 ? 0 : ((long) bucket) << (64 - level);
+    byte[] key = new byte[HashLedger.KEY_LENGTH];
+    for (int i = 0; i < 8; i++) {
+      key[i] = (byte) (prefix >>> (56 - i * 8));
+    }
+    return key;
+  }
+
+  private static int bucket(long prefix, int level) {
+    if (level == 0) {
+      return 0;
+    }
+    return (int) (prefix >>> (64 - level));
+  }
+
+  /**
+   * Return the hash of an account, 0 for a zero balance: the hash of a node
+   * is the XOR of the hashes of the accounts below it
+   *
+   * @param key the KEY_LENGTH bytes of the account key
+   * @param balance the balance of the account
+   * @return the hash
+   */
+  public static long hash(byte[] key, int balance) {
+    if (balance == 0) {
+      return 0;
+    }
+
+    long h = 0x9E3779B97F4A7C15L;
+    h = mix(h ^ HashLedger.prefix(key));
+    long second = 0;
+    for (int i = 8; i < 16; i++) {
+      second = (second << 8) | (key[i] & 0xFF);
+    }
+    h = mix(h ^ second);
+    long last = 0;
+    for (int i = 16; i < HashLedger.KEY_LENGTH; i++) {
+      last = (last << 8) | (key[i] & 0xFF);
+    }
+    h = mix(h ^ ((last << 32) | (balance & 0xFFFFFFFFL)));
+    return h == 0 ? 1 : h;
+  }
+
+  /**
+   * The finalizer of MurmurHash3, spreading every input bit on the output
+   */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+}
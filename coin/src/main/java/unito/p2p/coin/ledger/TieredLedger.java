@@ -0,0 +1,473 @@
+package unito.p2p.coin.ledger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import rice.p2p.commonapi.Id;
+
+/**
+ * @(#) TieredLedger.java Ledger which keeps the recently used accounts in a
+ * bounded heap cache in front of a HashLedger kept on disk.
+ *
+ * Most of the accounts a replica holds are idle, so the cache only needs to
+ * hold the working set: the heap used by the ledger is fixed by the cache
+ * capacity, whatever the number of accounts. The cache is write-back: the
+ * cold ledger holds every account, and the balances changed in the cache are
+ * written to it when they are evicted or when the ledger is flushed.
+ *
+ * The cache is split in stripes, chosen by the leading bits of the account
+ * Id like the segments of a HashLedger, each one evicting with the CLOCK
+ * algorithm under its own monitor.
+ */
+public class TieredLedger implements Ledger {
+
+  /**
+   * the default number of cache stripes
+   */
+  public static final int DEFAULT_STRIPES = 64;
+
+  /**
+   * an estimate of the heap used by a cached account: key array, balance,
+   * flags and index entry
+   */
+  static final int CACHED_ACCOUNT_SIZE = 112;
+
+  /**
+   * the ledger holding every account
+   */
+  private HashLedger cold;
+
+  /**
+   * the stripes of the cache
+   */
+  private Stripe[] stripes;
+
+  /**
+   * log2 of the number of stripes
+   */
+  private int stripeBits;
+
+  /**
+   * Create a ledger caching the given one
+   *
+   * @param cold the ledger holding every account, usually kept on disk
+   * @param capacity the maximum number of accounts kept on the heap
+   * @param stripes the number of cache stripes, must be a power of two
+   */
+  public TieredLedger(HashLedger cold, int capacity, int stripes) {
+    if (Integer.bitCount(stripes) != 1 || capacity < stripes) {
+      throw new IllegalArgumentException("Stripes must be a power of two not greater than the capacity");
+    }
+
+    this.cold = cold;
+    this.stripeBits = Integer.numberOfTrailingZeros(stripes);
+    this.stripes = new Stripe[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.stripes[i] = new Stripe(cold, capacity / stripes);
+    }
+  }
+
+  public int getBalance(Id id) {
+    byte[] key = HashLedger.toKey(id);
+    return stripeFor(key).getBalance(key);
+  }
+
+  public int add(Id id, int value) {
+    byte[] key = HashLedger.toKey(id);
+    return stripeFor(key).add(key, value);
+  }
+
+  public int remove(Id id, int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Cannot remove a negative amount " + value);
+    }
+    byte[] key = HashLedger.toKey(id);
+    return stripeFor(key).remove(key, value);
+  }
+
+  public void setBalance(Id id, int balance) {
+    byte[] key = HashLedger.toKey(id);
+    stripeFor(key).set(key, balance);
+  }
+
+  public boolean putIfAbsent(Id id, int balance) {
+    byte[] key = HashLedger.toKey(id);
+    return stripeFor(key).putIfAbsent(key, balance);
+  }
+
+  /**
+   * Scan the cold ledger, which holds every account, taking the balances
+   * of the cached accounts from the cache: nothing is written back, so
+   * scanning a range costs as much as the accounts in it
+   */
+  public ByteBuffer scan(byte[] from, byte[] to, int max) {
+    ByteBuffer accounts = cold.scan(from, to, max);
+    byte[] key = new byte[HashLedger.KEY_LENGTH];
+    for (int offset = 0; offset < accounts.limit(); offset += HashLedger.ACCOUNT_SIZE) {
+      System.arraycopy(accounts.array(), offset, key, 0, key.length);
+      int balance = accounts.getInt(offset + HashLedger.KEY_LENGTH);
+      accounts.putInt(offset + HashLedger.KEY_LENGTH, stripeFor(key).peek(key, balance));
+    }
+    return accounts;
+  }
+
+  public int size() {
+    // new accounts are created in the cold ledger too
+    return cold.size();
+  }
+
+  public double getBytesPerAccount() {
+    int size = cold.size();
+    long cached = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      cached += stripes[i].capacity();
+    }
+
+    if (size == 0) {
+      return cold.getBytesPerAccount() + CACHED_ACCOUNT_SIZE;
+    }
+    return cold.getBytesPerAccount() + (double) cached * CACHED_ACCOUNT_SIZE / size;
+  }
+
+  /**
+   * Write the changed balances back to the cold ledger, then flush it
+   */
+  public void flush() throws IOException {
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i].writeBack();
+    }
+    cold.flush();
+  }
+
+  public void close() throws IOException {
+    flush();
+    cold.close();
+  }
+
+  /**
+   * @return the fraction of the lookups served by the cache
+   */
+  public double getHitRate() {
+    long hits = 0;
+    long lookups = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      synchronized (stripes[i]) {
+        hits += stripes[i].hits;
+        lookups += stripes[i].hits + stripes[i].faults;
+      }
+    }
+
+    if (lookups == 0) {
+      return 0;
+    }
+    return (double) hits / lookups;
+  }
+
+  /**
+   * @return the number of lookups which had to read the cold ledger
+   */
+  public long getFaults() {
+    long faults = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      synchronized (stripes[i]) {
+        faults += stripes[i].faults;
+      }
+    }
+    return faults;
+  }
+
+  /**
+   * @return the average time spent reading the cold ledger on a fault, in microseconds
+   */
+  public double getAverageFaultLatency() {
+    long faults = 0;
+    long time = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      synchronized (stripes[i]) {
+        faults += stripes[i].faults;
+        time += stripes[i].faultTime;
+      }
+    }
+
+    if (faults == 0) {
+      return 0;
+    }
+    return time / 1000.0 / faults;
+  }
+
+  /**
+   * @return the longest time spent reading the cold ledger on a fault, in microseconds
+   */
+  public double getMaxFaultLatency() {
+    long max = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      synchronized (stripes[i]) {
+        max = Math.max(max, stripes[i].maxFaultTime);
+      }
+    }
+    return max / 1000.0;
+  }
+
+  /**
+   * @return the number of accounts evicted from the cache
+   */
+  public long getEvictions() {
+    long evictions = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      synchronized (stripes[i]) {
+        evictions += stripes[i].evictions;
+      }
+    }
+    return evictions;
+  }
+
+  /**
+   * Return the stripe responsible for a key
+   */
+  private Stripe stripeFor(byte[] key) {
+    if (stripeBits == 0) {
+      return stripes[0];
+    }
+    return stripes[(int) (HashLedger.prefix(key) >>> (64 - stripeBits))];
+  }
+
+
+  /**
+   * Wraps a key so that it can be used in a HashMap
+   */
+  static class AccountKey {
+
+    private byte[] key;
+
+    private int hash;
+
+    AccountKey(byte[] key) {
+      this.key = key;
+      // the key bytes are uniformly distributed, skip the ones choosing the stripe
+      this.hash = (key[8] << 24) | ((key[9] & 0xFF) << 16) | ((key[10] & 0xFF) << 8) | (key[11] & 0xFF);
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      return (o instanceof AccountKey) && Arrays.equals(key, ((AccountKey) o).key);
+    }
+  }
+
+
+  /**
+   * A share of the cache, evicting with the CLOCK algorithm
+   */
+  static class Stripe {
+
+    /**
+     * the ledger holding every account
+     */
+    private HashLedger cold;
+
+    /**
+     * the keys of the cached accounts, null for free entries
+     */
+    private byte[][] keys;
+
+    /**
+     * the balances of the cached accounts
+     */
+    private int[] balances;
+
+    /**
+     * whether the entry has been used since the clock hand last passed
+     */
+    private boolean[] referenced;
+
+    /**
+     * whether the balance changed since it was read from the cold ledger
+     */
+    private boolean[] dirty;
+
+    /**
+     * maps the cached keys to their entry
+     */
+    private HashMap<AccountKey, Integer> index;
+
+    /**
+     * the next entry considered for eviction
+     */
+    private int hand;
+
+    /**
+     * the number of entries in use
+     */
+    private int used;
+
+    long hits;
+
+    long faults;
+
+    long faultTime;
+
+    long maxFaultTime;
+
+    long evictions;
+
+    Stripe(HashLedger cold, int capacity) {
+      this.cold = cold;
+      this.keys = new byte[capacity][];
+      this.balances = new int[capacity];
+      this.referenced = new boolean[capacity];
+      this.dirty = new boolean[capacity];
+      this.index = new HashMap<AccountKey, Integer>(capacity * 2);
+    }
+
+    synchronized int getBalance(byte[] key) {
+      int entry = lookup(key, false);
+      if (entry < 0) {
+        return 0;
+      }
+      return balances[entry];
+    }
+
+    synchronized int add(byte[] key, int value) {
+      int entry = lookup(key, true);
+      balances[entry] += value;
+      dirty[entry] = true;
+      return balances[entry];
+    }
+
+    synchronized int remove(byte[] key, int value) {
+      int entry = lookup(key, false);
+      if (entry < 0) {
+        // an account not stored holds 0, as getBalance() tells
+        return value == 0 ? 0 : INSUFFICIENT_FUNDS;
+      }
+      if (balances[entry] < value) {
+        return INSUFFICIENT_FUNDS;
+      }
+
+      balances[entry] -= value;
+      dirty[entry] = true;
+      return balances[entry];
+    }
+
+    synchronized void set(byte[] key, int balance) {
+      int entry = lookup(key, true);
+      balances[entry] = balance;
+      dirty[entry] = true;
+    }
+
+    synchronized boolean putIfAbsent(byte[] key, int balance) {
+      if (index.containsKey(new AccountKey(key))) {
+        return false;
+      }
+      // cached accounts are in the cold ledger too
+      return cold.putIfAbsent(key, balance);
+    }
+
+    /**
+     * Return the balance of a key if it is cached, without counting the
+     * lookup or marking the entry referenced
+     *
+     * @param key the key
+     * @param stored the balance to return if the key is not cached
+     * @return the cached balance, or stored
+     */
+    synchronized int peek(byte[] key, int stored) {
+      Integer cached = index.get(new AccountKey(key));
+      return cached == null ? stored : balances[cached.intValue()];
+    }
+
+    synchronized void writeBack() {
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != null && dirty[i]) {
+          cold.setBalance(keys[i], balances[i]);
+          dirty[i] = false;
+        }
+      }
+    }
+
+    synchronized int capacity() {
+      return keys.length;
+    }
+
+    /**
+     * Return the cache entry of a key, loading the account from the cold
+     * ledger if needed
+     *
+     * @param create whether to create the account if it is not stored
+     * @return the entry, or -1 if the account is not stored and create is false
+     */
+    private int lookup(byte[] key, boolean create) {
+      AccountKey wrapped = new AccountKey(key);
+      Integer cached = index.get(wrapped);
+      if (cached != null) {
+        hits++;
+        referenced[cached.intValue()] = true;
+        return cached.intValue();
+      }
+
+      long start = System.nanoTime();
+      faults++;
+      boolean stored = cold.contains(key);
+      if (!stored && !create) {
+        record(start);
+        return -1;
+      }
+
+      int balance = 0;
+      if (stored) {
+        balance = cold.getBalance(key);
+      } else {
+        // create it in the cold ledger too, so that it holds every account
+        cold.setBalance(key, 0);
+      }
+      record(start);
+
+      int entry = allocate();
+      keys[entry] = key;
+      balances[entry] = balance;
+      referenced[entry] = true;
+      dirty[entry] = false;
+      index.put(wrapped, new Integer(entry));
+      return entry;
+    }
+
+    /**
+     * Account for the time spent on a fault
+     */
+    private void record(long start) {
+      long time = System.nanoTime() - start;
+      faultTime += time;
+      maxFaultTime = Math.max(maxFaultTime, time);
+    }
+
+    /**
+     * Return a free entry, evicting an account if the stripe is full
+     */
+    private int allocate() {
+      if (used < keys.length) {
+        return used++;
+      }
+
+      // give a second chance to the entries used since the last pass
+      while (referenced[hand]) {
+        referenced[hand] = false;
+        hand = (hand + 1) % keys.length;
+      }
+
+      int victim = hand;
+      hand = (hand + 1) % keys.length;
+      if (dirty[victim]) {
+        cold.setBalance(keys[victim], balances[victim]);
+      }
+      index.remove(new AccountKey(keys[victim]));
+      keys[victim] = null;
+      evictions++;
+      return victim;
+    }
+  }
+
+}
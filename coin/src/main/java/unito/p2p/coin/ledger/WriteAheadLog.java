@@ -0,0 +1,442 @@
+package unito.p2p.coin.ledger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import rice.Continuation;
+import rice.p2p.commonapi.Id;
+
+/**
+ * @(#) WriteAheadLog.java Append-only log of the balance changes applied to a
+ * ledger.
+ *
+ * Every record holds the balance an account reached after a change, not the
+ * change itself, so replaying a record which is already reflected in the
+ * ledger is harmless. Records for the same account must be appended in the
+ * order the changes were applied.
+ *
+ * Appending only copies the record in memory. A committer thread writes all
+ * the records appended since its last pass with a single write and a single
+ * fsync (group commit), then tells every appender that its record is durable.
+ *
+ * The log is split in segment files named after the sequence number of their
+ * first record. Once a checkpoint covers every record of a segment, the
+ * segment is deleted by truncate().
+ */
+public class WriteAheadLog {
+
+  /**
+   * the size of a record: lsn, key, balance, checksum
+   */
+  public static final int RECORD_SIZE = 8 + HashLedger.KEY_LENGTH + 4 + 4;
+
+  /**
+   * the default size after which a new segment is started
+   */
+  public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * the directory holding the segments
+   */
+  private File directory;
+
+  /**
+   * the size after which a new segment is started
+   */
+  private long segmentSize;
+
+  /**
+   * the sequence number of the first record of every segment, in order
+   */
+  private ArrayList<Long> segments;
+
+  /**
+   * the channel used to write the last segment
+   */
+  private FileChannel channel;
+
+  /**
+   * the sequence number of the next record
+   */
+  private long nextLsn;
+
+  /**
+   * the records appended but not yet written
+   */
+  private ByteBuffer pending;
+
+  /**
+   * the continuations waiting for the pending records
+   */
+  private ArrayList<Continuation> waiting;
+
+  /**
+   * the sequence numbers of the pending records
+   */
+  private ArrayList<Long> waitingLsns;
+
+  /**
+   * the buffer being written by the committer, swapped with pending
+   */
+  private ByteBuffer writing;
+
+  /**
+   * the error which made the log unusable, if any
+   */
+  private IOException failure;
+
+  /**
+   * whether close() has been called
+   */
+  private boolean closed;
+
+  /**
+   * writes and syncs the pending records
+   */
+  private Thread committer;
+
+  /**
+   * the number of fsyncs performed
+   */
+  private long commits;
+
+  /**
+   * the number of records made durable
+   */
+  private long committed;
+
+  /**
+   * Open a log, creating the directory if needed. A record left incomplete
+   * by a crash is discarded.
+   *
+   * @param directory the directory holding the segments
+   * @param segmentSize the size after which a new segment is started
+   * @throws IOException if the log cannot be opened
+   */
+  public WriteAheadLog(File directory, long segmentSize) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create log directory " + directory);
+    }
+
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.pending = ByteBuffer.allocateDirect(RECORD_SIZE * 256);
+    this.writing = ByteBuffer.allocateDirect(RECORD_SIZE * 256);
+    this.waiting = new ArrayList<Continuation>();
+    this.waitingLsns = new ArrayList<Long>();
+
+    this.segments = new ArrayList<Long>();
+    String[] names = directory.list();
+    long[] starts = new long[names.length];
+    int found = 0;
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].startsWith("log-") && names[i].endsWith(".log")) {
+        starts[found++] = Long.parseLong(names[i].substring(4, names[i].length() - 4));
+      }
+    }
+    Arrays.sort(starts, 0, found);
+    for (int i = 0; i < found; i++) {
+      segments.add(new Long(starts[i]));
+    }
+    if (segments.isEmpty()) {
+      segments.add(new Long(1));
+    }
+
+    // find the end of the valid records of the last segment
+    long start = segments.get(segments.size() - 1).longValue();
+    this.channel = new RandomAccessFile(segmentFile(start), "rw").getChannel();
+    long end = 0;
+    this.nextLsn = start;
+    ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    while (readRecord(channel, end, record)) {
+      nextLsn = record.getLong(0) + 1;
+      end += RECORD_SIZE;
+    }
+    channel.truncate(end);
+    channel.position(end);
+
+    this.committer = new Thread(new Runnable() {
+      public void run() {
+        commitLoop();
+      }
+    }, "Write ahead log " + directory);
+    this.committer.setDaemon(true);
+    this.committer.start();
+  }
+
+  /**
+   * Append the new balance of an account. The command receives the sequence
+   * number of the record (a Long) once the record is on disk, or the
+   * IOException which prevented writing it.
+   *
+   * @param id the account Id
+   * @param balance the balance of the account after the change
+   * @param command the continuation to call once the record is durable
+   * @return the sequence number of the record
+   */
+  public long append(Id id, int balance, Continuation command) {
+    byte[] key = HashLedger.toKey(id);
+
+    synchronized (this) {
+      if (failure != null || closed) {
+        command.receiveException(failure != null ? failure : new IOException("Log " + directory + " is closed"));
+        return -1;
+      }
+
+      long lsn = nextLsn++;
+      if (pending.remaining() < RECORD_SIZE) {
+        pending = grow(pending);
+      }
+
+      CRC32 crc = new CRC32();
+      int start = pending.position();
+      pending.putLong(lsn);
+      pending.put(key);
+      pending.putInt(balance);
+      for (int i = start; i < pending.position(); i++) {
+        crc.update(pending.get(i));
+      }
+      pending.putInt((int) crc.getValue());
+
+      waiting.add(command);
+      waitingLsns.add(new Long(lsn));
+      notifyAll();
+      return lsn;
+    }
+  }
+
+  /**
+   * Apply to the ledger, in order, every record following the given
+   * sequence number. This must be called before appending new records.
+   *
+   * @param ledger the ledger to restore
+   * @param fromLsn the sequence number of the last record already in the ledger
+   * @return the number of records applied
+   * @throws IOException if the log cannot be read
+   */
+  public int replay(Ledger ledger, long fromLsn) throws IOException {
+    ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    byte[] key = new byte[HashLedger.KEY_LENGTH];
+
+    ArrayList<Long> starts;
+    synchronized (this) {
+      starts = new ArrayList<Long>(segments);
+    }
+
+    int applied = 0;
+    for (int i = 0; i < starts.size(); i++) {
+      // skip the segments which end before fromLsn
+      if (i + 1 < starts.size() && starts.get(i + 1).longValue() <= fromLsn + 1) {
+        continue;
+      }
+
+      FileChannel segment = new RandomAccessFile(segmentFile(starts.get(i).longValue()), "r").getChannel();
+      try {
+        for (long position = 0; readRecord(segment, position, record); position += RECORD_SIZE) {
+          if (record.getLong(0) <= fromLsn) {
+            continue;
+          }
+          record.position(8);
+          record.get(key);
+          ledger.setBalance(HashLedger.toId(key), record.getInt());
+          applied++;
+        }
+      } finally {
+        segment.close();
+      }
+    }
+    return applied;
+  }
+
+  /**
+   * Delete the segments holding only records up to the given sequence
+   * number. The segment being written is never deleted.
+   *
+   * @param lsn the sequence number of the last record covered by a checkpoint
+   * @return the number of segments deleted
+   */
+  public synchronized int truncate(long lsn) {
+    int deleted = 0;
+    while (segments.size() > 1 && segments.get(1).longValue() <= lsn + 1) {
+      File file = segmentFile(segments.get(0).longValue());
+      if (!file.delete()) {
+        break;
+      }
+      segments.remove(0);
+      deleted++;
+    }
+    return deleted;
+  }
+
+  /**
+   * @return the number of segments on disk
+   */
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * @return the sequence number of the last record appended
+   */
+  public synchronized long getLastLsn() {
+    return nextLsn - 1;
+  }
+
+  /**
+   * @return the average number of records written by one fsync
+   */
+  public synchronized double getAverageCommitSize() {
+    if (commits == 0) {
+      return 0;
+    }
+    return (double) committed / commits;
+  }
+
+  /**
+   * Write the pending records and stop the committer
+   *
+   * @throws IOException if the file cannot be closed
+   */
+  public void close() throws IOException {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+
+    try {
+      committer.join();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+    channel.close();
+  }
+
+  /**
+   * Body of the committer thread
+   */
+  private void commitLoop() {
+    while (true) {
+      ArrayList<Continuation> batch;
+      ArrayList<Long> lsns;
+
+      synchronized (this) {
+        while (waiting.isEmpty() && !closed) {
+          try {
+            wait();
+          } catch (InterruptedException ie) {
+            // keep serving appenders until closed
+          }
+        }
+        if (waiting.isEmpty()) {
+          return;
+        }
+
+        // swap buffers, appenders keep filling the other one while we write
+        ByteBuffer full = pending;
+        pending = writing;
+        pending.clear();
+        writing = full;
+
+        batch = waiting;
+        lsns = waitingLsns;
+        waiting = new ArrayList<Continuation>();
+        waitingLsns = new ArrayList<Long>();
+      }
+
+      IOException error = null;
+      try {
+        if (channel.position() >= segmentSize) {
+          startSegment(lsns.get(0).longValue());
+        }
+
+        writing.flip();
+        while (writing.hasRemaining()) {
+          channel.write(writing);
+        }
+        channel.force(false);
+      } catch (IOException ioe) {
+        error = ioe;
+      }
+
+      synchronized (this) {
+        writing.clear();
+        if (error != null) {
+          failure = error;
+        } else {
+          commits++;
+          committed += batch.size();
+        }
+      }
+
+      for (int i = 0; i < batch.size(); i++) {
+        Continuation c = batch.get(i);
+        if (error == null) {
+          c.receiveResult(lsns.get(i));
+        } else {
+          c.receiveException(error);
+        }
+      }
+    }
+  }
+
+  /**
+   * Close the segment being written and start a new one
+   *
+   * @param lsn the sequence number of the first record of the new segment
+   */
+  private void startSegment(long lsn) throws IOException {
+    FileChannel next = new RandomAccessFile(segmentFile(lsn), "rw").getChannel();
+    channel.close();
+    channel = next;
+
+    synchronized (this) {
+      segments.add(new Long(lsn));
+    }
+  }
+
+  /**
+   * Return the file of the segment starting at the given sequence number
+   */
+  private File segmentFile(long lsn) {
+    String name = Long.toString(lsn);
+    while (name.length() < 19) {
+      name = "0" + name;
+    }
+    return new File(directory, "log-" + name + ".log");
+  }
+
+  /**
+   * Read and check the record at the given position
+   *
+   * @return false if there is no complete, valid record there
+   */
+  private static boolean readRecord(FileChannel channel, long position, ByteBuffer record) throws IOException {
+    record.clear();
+    while (record.hasRemaining()) {
+      if (channel.read(record, position + record.position()) < 0) {
+        return false;
+      }
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 0, RECORD_SIZE - 4);
+    return record.getInt(RECORD_SIZE - 4) == (int) crc.getValue();
+  }
+
+  /**
+   * Return a buffer twice as large holding the content of the given one
+   */
+  private static ByteBuffer grow(ByteBuffer buffer) {
+    ByteBuffer grown = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+    buffer.flip();
+    grown.put(buffer);
+    return grown;
+  }
+
+}
@@ -7,8 +7,9 @@ import rice.p2p.commonapi.Message;
 import rice.Continuation;
 import rice.p2p.commonapi.NodeHandle;
 import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
 import rice.p2p.commonapi.rawserialization.OutputBuffer;
-import rice.p2p.util.rawserialization.JavaSerializer;
 import unito.p2p.coin.security.Signable;
 
 
@@ -21,7 +22,6 @@ public class BalanceRequestMessage extends CoinMessage {
   private rice.p2p.commonapi.NodeHandle requester;
   private rice.p2p.commonapi.NodeHandle queried;
   
-  private Object result;
   
   public static final short TYPE = 7;
   
@@ -35,6 +35,19 @@ public class BalanceRequestMessage extends CoinMessage {
     this.requester = requester;
   };
   
+  /**
+   * Read a BalanceRequestMessage written by serialize()
+   *
+   * @param buf the buffer holding the message
+   * @param endpoint reads the ids and the node handles
+   */
+  public BalanceRequestMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);
+    
+    this.requester = readHandle(buf, endpoint);
+    this.queried = readHandle(buf, endpoint);
+  }
+  
   /**
    * Raw Serialization **************************************
    *
@@ -76,8 +89,9 @@ public class BalanceRequestMessage extends CoinMessage {
    * @exception IOException DESCRIBE THE EXCEPTION
    */
   public void serialize(OutputBuffer buf) throws IOException {
-    // use the java serializer for semplicity
-    JavaSerializer.serialize(this, buf);
+    super.serialize(buf);
+    writeHandle(buf, requester);
+    writeHandle(buf, queried);
   }
   
   /**
@@ -7,8 +7,9 @@ import rice.p2p.commonapi.Message;
 import rice.Continuation;
 import rice.p2p.commonapi.NodeHandle;
 import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
 import rice.p2p.commonapi.rawserialization.OutputBuffer;
-import rice.p2p.util.rawserialization.JavaSerializer;
 import unito.p2p.coin.security.Signable;
 
 
@@ -24,7 +25,7 @@ public class BalanceRequestPropagatedMessage extends CoinMessage {
   
   private NodeHandle accountRoot;
   
-  public static final short TYPE = 7;
+  public static final short TYPE = 8;
   
   public static final long serialVersionUID = CoinMessage.SERIAL_BASE + (long) TYPE;
   
@@ -36,6 +37,20 @@ public class BalanceRequestPropagatedMessage extends CoinMessage {
     this.accountRoot = accountRoot;
   };
   
+  /**
+   * Read a BalanceRequestPropagatedMessage written by serialize()
+   *
+   * @param buf the buffer holding the message
+   * @param endpoint reads the ids and the node handles
+   */
+  public BalanceRequestPropagatedMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);
+    
+    this.brm = new BalanceRequestMessage(buf, endpoint);
+    this.value = buf.readInt();
+    this.accountRoot = readHandle(buf, endpoint);
+  }
+  
   /**
    * Set the message to be a response containing a value.
    * This is called by accountholders when they reply to a BalanceRequest
@@ -78,8 +93,10 @@ public class BalanceRequestPropagatedMessage extends CoinMessage {
    * @exception IOException DESCRIBE THE EXCEPTION
    */
   public void serialize(OutputBuffer buf) throws IOException {
-    // use the java serializer for semplicity
-    JavaSerializer.serialize(this, buf);
+    super.serialize(buf);
+    brm.serialize(buf);
+    buf.writeInt(value);
+    writeHandle(buf, accountRoot);
   }
   
   /**
@@ -6,8 +6,9 @@ import java.io.IOException;
 
 import rice.p2p.commonapi.NodeHandle;
 import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
 import rice.p2p.commonapi.rawserialization.OutputBuffer;
-import rice.p2p.util.rawserialization.JavaSerializer;
 
 
 
@@ -19,7 +20,7 @@ public class CashFlowConfirmMessage extends CoinMessage {
 
   private CashFlowMessage cfm;
   
-  public static final short TYPE = 4;
+  public static final short TYPE = 3;
   
   public static final long serialVersionUID = CoinMessage.SERIAL_BASE + (long) TYPE;
   
@@ -47,6 +48,19 @@ public class CashFlowConfirmMessage extends CoinMessage {
     this.replication = false;
   }
   
+  /**
+   * Read a CashFlowConfirmMessage written by serialize()
+   *
+   * @param buf the buffer holding the message
+   * @param endpoint reads the ids and the node handles
+   */
+  public CashFlowConfirmMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);
+    
+    this.cfm = new CashFlowMessage(buf, endpoint);
+    this.replication = buf.readBoolean();
+  }
+  
   /**
    * Set the CashFlowUpdateMessage as a replication request.
    * The application call this method when using the message
@@ -88,8 +102,9 @@ public class CashFlowConfirmMessage extends CoinMessage {
    * @exception IOException DESCRIBE THE EXCEPTION
    */
   public void serialize(OutputBuffer buf) throws IOException {
-    // use the java serializer for semplicity
-    JavaSerializer.serialize(this, buf);
+    super.serialize(buf);
+    cfm.serialize(buf);
+    buf.writeBoolean(replication);
   }
 
 
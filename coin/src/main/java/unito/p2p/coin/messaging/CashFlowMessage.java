@@ -33,8 +33,9 @@ import java.io.IOException;
 
 import rice.p2p.commonapi.NodeHandle;
 import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
 import rice.p2p.commonapi.rawserialization.OutputBuffer;
-import rice.p2p.util.rawserialization.JavaSerializer;
 
 
 
@@ -56,6 +57,18 @@ public class CashFlowMessage extends CoinMessage {
     this.amount = amount;
   };
   
+  /**
+   * Read a CashFlowMessage written by serialize()
+   *
+   * @param buf the buffer holding the message
+   * @param endpoint reads the ids and the node handles
+   */
+  public CashFlowMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);
+    
+    this.amount = buf.readInt();
+  }
+  
   /**
    * Raw Serialization **************************************
    *
@@ -108,7 +121,8 @@ public class CashFlowMessage extends CoinMessage {
    * @exception IOException DESCRIBE THE EXCEPTION
    */
   public void serialize(OutputBuffer buf) throws IOException {   
-    JavaSerializer.serialize(this, buf);
+    super.serialize(buf);
+    buf.writeInt(amount);
   }
 
 
@@ -6,8 +6,9 @@ import java.io.IOException;
 
 import rice.p2p.commonapi.NodeHandle;
 import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
 import rice.p2p.commonapi.rawserialization.OutputBuffer;
-import rice.p2p.util.rawserialization.JavaSerializer;
 
 
 
@@ -56,6 +57,21 @@ public class CashFlowUpdateMessage extends CoinMessage {
     this.updated = updated;
   }
   
+  /**
+   * Read a CashFlowUpdateMessage written by serialize()
+   *
+   * @param buf the buffer holding the message
+   * @param endpoint reads the ids and the node handles
+   */
+  public CashFlowUpdateMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);
+    
+    this.cfm = new CashFlowMessage(buf, endpoint);
+    this.updated = readId(buf, endpoint);
+    this.sender = readHandle(buf, endpoint);
+    this.replication = buf.readBoolean();
+  }
+  
   
   /**
    * get the NodeHandle which sent this CashFlowUpdateMessage
@@ -71,6 +87,14 @@ public class CashFlowUpdateMessage extends CoinMessage {
     return updated;
   }
   
+  /**
+   * Return the change of the balance of the updated account: the receiver
+   * of the money gains it, the sender loses it
+   */
+  public int getDelta() {
+    return updated.equals(cfm.getDirectDest().getId()) ? cfm.getAmount() : -cfm.getAmount();
+  }
+  
   
   /**
    * Set the CashFlowUpdateMessage as a replication request.
@@ -113,8 +137,11 @@ public class CashFlowUpdateMessage extends CoinMessage {
    * @exception IOException DESCRIBE THE EXCEPTION
    */
   public void serialize(OutputBuffer buf) throws IOException {
-    // use the java serializer for semplicity
-    JavaSerializer.serialize(this, buf);
+    super.serialize(buf);
+    cfm.serialize(buf);
+    writeId(buf, updated);
+    writeHandle(buf, sender);
+    buf.writeBoolean(replication);
   }
 
 
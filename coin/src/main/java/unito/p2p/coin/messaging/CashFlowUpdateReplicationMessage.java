@@ -6,28 +6,46 @@ import java.io.IOException;
 
 import rice.p2p.commonapi.NodeHandle;
 import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
 import rice.p2p.commonapi.rawserialization.OutputBuffer;
-import rice.p2p.util.rawserialization.JavaSerializer;
 
 
 
 /**
- * Class CashFlowUpdateReplicationMessage
+ * Class CashFlowUpdateReplicationMessage.
+ * Sent by the account root to the replicas of an account to apply one side
+ * of a cash flow. It carries only what a replica needs: the account, the
+ * signed change of its balance and the digest of the CashFlowMessage which
+ * started the transaction; the source is the account root, which receives
+ * the response.
  */
 public class CashFlowUpdateReplicationMessage extends CoinMessage {
 
 
-  private CashFlowMessage cfm;
+  /**
+   * the account to update
+   */
+  private Id updated;
   
-  private CashFlowUpdateMessage cfum;
+  /**
+   * the money to add to the account, negative to remove it
+   */
+  private int delta;
   
-  private NodeHandle accountRoot;
+  /**
+   * the digest of the CashFlowMessage which started the transaction
+   */
+  private long origin;
   
-  public static final short TYPE = 4;
+  public static final short TYPE = 5;
   
   public static final long serialVersionUID = CoinMessage.SERIAL_BASE + (long) TYPE;
   
-  private boolean replication;
+  /**
+   * whether the replica applied the update, meaningful in responses
+   */
+  private boolean accepted = true;
   
   /**
    * Raw Serialization **************************************
@@ -42,55 +60,76 @@ public class CashFlowUpdateReplicationMessage extends CoinMessage {
    * Create a CashFlowUpdateReplicationMessage
    * 
    * @param id unique identifier
-   * @param cfm the CashFlowMessage which generated this CashFlowUpdate
+   * @param cfum the CashFlowUpdateMessage received by the account root
    * @param the accountRoot which generated the CashFlowUpdateReplicationMessage
    */
   public CashFlowUpdateReplicationMessage(int id, CashFlowUpdateMessage cfum, NodeHandle accountRoot) { 
-    super(id, cfum.getCashFlowMessage().getSource(), cfum.getCashFlowMessage().directDest.getId());
+    super(id, accountRoot, cfum.getUpdated());
+    
+    this.updated = cfum.getUpdated();
+    this.delta = cfum.getDelta();
+    this.origin = cfum.getCashFlowMessage().getDigest();
+  }
+  
+  /**
+   * Read a CashFlowUpdateReplicationMessage written by serialize()
+   *
+   * @param buf the buffer holding the message
+   * @param endpoint reads the ids and the node handles
+   */
+  public CashFlowUpdateReplicationMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);
     
-    this.accountRoot = accountRoot;
-    this.cfm = cfum.getCashFlowMessage();
-    this.cfum = cfum;
-    this.replication = false;
+    this.updated = dest;
+    this.delta = buf.readInt();
+    this.origin = buf.readLong();
+    this.accepted = buf.readBoolean();
   }
   
+  /**
+   * Return the account root which sent the update, and waits for the
+   * response
+   */
   public NodeHandle getAccountRoot() {
-    return accountRoot;
+    return getSource();
   }
   
   /**
-   * Set the CashFlowUpdateMessage as a replication request.
-   * The application call this method when using the message
-   * to propagate the CashFlow to the account holders leafset
+   * Return the account Id which is being updated
    */
-  public void setReplication() {
-    this.replication = true;
+  public Id getUpdated() {
+    return updated;
   }
   
   /**
-   * Used to understad if this CashFlowUpdateMessage has been sent
-   * as a replication request
-   * 
-   * @return a boolean representing replication state
+   * Return the money to add to the account, negative to remove it
    */
-  public boolean isReplication() {
-    return replication;
+  public int getDelta() {
+    return delta;
   }
   
   /**
-   * Return the CashFlowMessage which generated this CashFlowUpdate
-   * @return the CashFlowMessage
+   * Return the digest of the CashFlowMessage which started the transaction
    */
-  public CashFlowMessage getCashFlowMessage() {
-    return cfm;
+  public long getOrigin() {
+    return origin;
   }
   
   /**
-   * Return the CashFlowUpdateMessage which generated this CashFlowUpdate
-   * @return the CashFlowUpdateMessage
+   * Called by a replica which could not apply the update because the
+   * account does not hold enough money
+   */
+  public void setRejected() {
+    this.accepted = false;
+  }
+  
+  /**
+   * Used by the account root to know if the replica applied the update
+   * 
+   * @return false if the replica rejected the update
    */
-  public CashFlowUpdateMessage getCashFlowUpdateMessage() {
-    return cfum;
+  public boolean isAccepted() {
+    return accepted;
   }
   
   
@@ -98,7 +137,7 @@ public class CashFlowUpdateReplicationMessage extends CoinMessage {
    * Standard toString method
    */
   public String toString() {
-    return "[CashFlowUpdateReplicationMessage from " + super.getSource() + " to " + getDirectDest() + " of " + cfm + "]";
+    return "[CashFlowUpdateReplicationMessage from " + super.getSource() + " of " + delta + " to " + updated + " for " + Long.toHexString(origin) + "]";
   }
   
   /**
@@ -108,8 +147,11 @@ public class CashFlowUpdateReplicationMessage extends CoinMessage {
    * @exception IOException DESCRIBE THE EXCEPTION
    */
   public void serialize(OutputBuffer buf) throws IOException {
-    // use the java serializer for semplicity
-    JavaSerializer.serialize(this, buf);
+    // the account is the destination of the header
+    super.serialize(buf);
+    buf.writeInt(delta);
+    buf.writeLong(origin);
+    buf.writeBoolean(accepted);
   }
 
 
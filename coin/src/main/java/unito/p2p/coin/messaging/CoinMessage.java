@@ -1,13 +1,18 @@
 package unito.p2p.coin.messaging;
 import java.io.IOException;
 
+import rice.p2p.commonapi.Endpoint;
 import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
 import rice.p2p.commonapi.rawserialization.OutputBuffer;
 import rice.p2p.commonapi.rawserialization.RawMessage;
 import rice.Continuation;
 import rice.p2p.commonapi.NodeHandle;
 import rice.p2p.commonapi.Id;
 import unito.p2p.coin.security.Signable;
+import unito.p2p.coin.transport.ByteBufferInputBuffer;
+import unito.p2p.coin.transport.ByteBufferOutputBuffer;
+import unito.p2p.coin.transport.NodeHandleTable;
 
 
 
@@ -23,8 +28,42 @@ abstract public class CoinMessage implements RawMessage, Signable  {
   protected String mac;
   protected boolean response;
   
+  /**
+   * the result carried by a response, a Boolean or an Integer, may be null
+   */
+  protected Object result;
+  
   public static final long SERIAL_BASE = 35160;
   
+  /**
+   * the flags telling which fields of the header are written
+   */
+  static final int RESPONSE = 1;
+  static final int SOURCE = 2;
+  static final int DIRECT_DEST = 4;
+  static final int DEST = 8;
+  static final int MAC = 16;
+  static final int RESULT = 32;
+  
+  /**
+   * set on a message which added node handles to the table of the socket
+   * it was sent on, so that it must be read in full
+   */
+  static final int HANDLES = 64;
+  
+  /**
+   * the tags of the results carried by the responses
+   */
+  static final byte NO_RESULT = 0;
+  static final byte BOOLEAN_RESULT = 1;
+  static final byte INTEGER_RESULT = 2;
+  
+  /**
+   * the parameters of the FNV-1a hash of the digests
+   */
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  
   /**
    * Create a messege to be sent to the root node of the given id
    * @param source
@@ -48,6 +87,32 @@ abstract public class CoinMessage implements RawMessage, Signable  {
     this.dest = directDest.getId();
   };
   
+  /**
+   * Read the header of a message written by serialize()
+   * @param buf the buffer holding the message
+   * @param endpoint reads the ids and the node handles
+   */
+  protected CoinMessage (InputBuffer buf, Endpoint endpoint) throws IOException {
+    byte flags = buf.readByte();
+    this.id = buf.readInt();
+    this.response = (flags & RESPONSE) != 0;
+    if ((flags & RESULT) != 0) {
+      this.result = readResult(buf);
+    }
+    if ((flags & SOURCE) != 0) {
+      this.source = getHandle(buf, endpoint);
+    }
+    if ((flags & DIRECT_DEST) != 0) {
+      this.directDest = getHandle(buf, endpoint);
+      this.dest = directDest.getId();
+    } else if ((flags & DEST) != 0) {
+      this.dest = endpoint.readId(buf, buf.readShort());
+    }
+    if ((flags & MAC) != 0) {
+      this.mac = buf.readUTF();
+    }
+  }
+  
 
   /**
    * Set the value of id
@@ -172,6 +237,43 @@ abstract public class CoinMessage implements RawMessage, Signable  {
   }
 
 
+  /**
+   * Return a digest of the transaction started by this message, computed
+   * from its type, its uid, its source and its destination: the messages
+   * propagated to the replicas carry it in place of the message itself
+   *
+   * @return a 64 bit FNV-1a hash
+   */
+  public long getDigest() {
+    long hash = FNV_OFFSET;
+    hash = mix(hash, getType());
+    hash = mix(hash, id);
+    if (source != null) {
+      byte[] bytes = source.getId().toByteArray();
+      for (int i = 0; i < bytes.length; i++) {
+        hash = (hash ^ (bytes[i] & 0xff)) * FNV_PRIME;
+      }
+    }
+    if (dest != null) {
+      byte[] bytes = dest.toByteArray();
+      for (int i = 0; i < bytes.length; i++) {
+        hash = (hash ^ (bytes[i] & 0xff)) * FNV_PRIME;
+      }
+    }
+    return hash;
+  }
+  
+  /**
+   * Add the four bytes of a value to a FNV-1a hash
+   */
+  private static long mix(long hash, int value) {
+    for (int shift = 24; shift >= 0; shift -= 8) {
+      hash ^= (value >>> shift) & 0xff;
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+  
   /**
    * @return       String
    */
@@ -180,10 +282,153 @@ abstract public class CoinMessage implements RawMessage, Signable  {
     return "";
   }
   
+  /**
+   * Write the header of the message: the flags telling which fields are
+   * present, the uid, the result of a response, then the other fields; the
+   * destination id is left out when it is the one of the direct
+   * destination. Subclasses write their fields after this.
+   *
+   * @param buf DESCRIBE THE PARAMETER
+   * @exception IOException DESCRIBE THE EXCEPTION
+   */
   public void serialize(OutputBuffer buf) throws IOException {
-    //rice.p2p.util.rawserialization.JavaSerializer.serialize(this, buf);
-    throw new IllegalStateException();
+    int flags = 0;
+    if (response) flags |= RESPONSE;
+    if (source != null) flags |= SOURCE;
+    if (directDest != null) flags |= DIRECT_DEST;
+    else if (dest != null) flags |= DEST;
+    if (mac != null) flags |= MAC;
+    if (result != null) flags |= RESULT;
+    
+    buf.writeByte((byte) flags);
+    buf.writeInt(id);
+    if (result != null) {
+      // right after the uid, where a MessageView finds it
+      writeResult(buf, result);
+    }
+    if (source != null) {
+      putHandle(buf, source);
+    }
+    if (directDest != null) {
+      putHandle(buf, directDest);
+    } else if (dest != null) {
+      buf.writeShort(dest.getType());
+      dest.serialize(buf);
+    }
+    if (mac != null) {
+      buf.writeUTF(mac);
+    }
   } 
+  
+  /**
+   * Write a node handle which may be null
+   */
+  protected static void writeHandle(OutputBuffer buf, NodeHandle handle) throws IOException {
+    buf.writeBoolean(handle != null);
+    if (handle != null) {
+      putHandle(buf, handle);
+    }
+  }
+  
+  /**
+   * Read a node handle written by writeHandle()
+   */
+  protected static NodeHandle readHandle(InputBuffer buf, Endpoint endpoint) throws IOException {
+    return buf.readBoolean() ? getHandle(buf, endpoint) : null;
+  }
+  
+  /**
+   * Write a node handle, as a reference to the handles sent before on the
+   * same socket when the buffer has them
+   */
+  private static void putHandle(OutputBuffer buf, NodeHandle handle) throws IOException {
+    NodeHandleTable handles = buf instanceof ByteBufferOutputBuffer ? ((ByteBufferOutputBuffer) buf).getHandles() : null;
+    if (handles != null) {
+      handles.write(buf, handle);
+    } else {
+      handle.serialize(buf);
+    }
+  }
+  
+  /**
+   * Read a node handle written by putHandle()
+   */
+  private static NodeHandle getHandle(InputBuffer buf, Endpoint endpoint) throws IOException {
+    NodeHandleTable handles = buf instanceof ByteBufferInputBuffer ? ((ByteBufferInputBuffer) buf).getHandles() : null;
+    if (handles != null) {
+      return handles.read(buf, endpoint);
+    }
+    return endpoint.readNodeHandle(buf);
+  }
+  
+  /**
+   * Write an id which may be null
+   */
+  protected static void writeId(OutputBuffer buf, Id id) throws IOException {
+    buf.writeBoolean(id != null);
+    if (id != null) {
+      buf.writeShort(id.getType());
+      id.serialize(buf);
+    }
+  }
+  
+  /**
+   * Read an id written by writeId()
+   */
+  protected static Id readId(InputBuffer buf, Endpoint endpoint) throws IOException {
+    return buf.readBoolean() ? endpoint.readId(buf, buf.readShort()) : null;
+  }
+  
+  /**
+   * Write a message carried by this one, preceded by its type
+   */
+  protected static void writeMessage(OutputBuffer buf, CoinMessage message) throws IOException {
+    buf.writeShort(message.getType());
+    message.serialize(buf);
+  }
+  
+  /**
+   * Read a message written by writeMessage(), with the deserializer of the
+   * endpoint
+   */
+  protected static CoinMessage readMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    short type = buf.readShort();
+    return (CoinMessage) endpoint.getDeserializer().deserialize(buf, type, DEFAULT_PRIORITY, null);
+  }
+  
+  /**
+   * Write the result of a response: nothing, a Boolean or an Integer
+   */
+  protected static void writeResult(OutputBuffer buf, Object result) throws IOException {
+    if (result == null) {
+      buf.writeByte(NO_RESULT);
+    } else if (result instanceof Boolean) {
+      buf.writeByte(BOOLEAN_RESULT);
+      buf.writeBoolean(((Boolean) result).booleanValue());
+    } else if (result instanceof Integer) {
+      buf.writeByte(INTEGER_RESULT);
+      buf.writeInt(((Integer) result).intValue());
+    } else {
+      throw new IOException("Cannot serialize a result of class " + result.getClass().getName());
+    }
+  }
+  
+  /**
+   * Read a result written by writeResult()
+   */
+  protected static Object readResult(InputBuffer buf) throws IOException {
+    byte tag = buf.readByte();
+    switch (tag) {
+      case NO_RESULT:
+        return null;
+      case BOOLEAN_RESULT:
+        return new Boolean(buf.readBoolean());
+      case INTEGER_RESULT:
+        return new Integer(buf.readInt());
+      default:
+        throw new IOException("Unknown result tag " + tag);
+    }
+  }
 
 
 }
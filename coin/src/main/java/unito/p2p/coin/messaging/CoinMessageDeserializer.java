@@ -0,0 +1,158 @@
+package unito.p2p.coin.messaging;
+
+import java.io.IOException;
+
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.MessageDeserializer;
+
+/**
+ * @(#) CoinMessageDeserializer.java Rebuilds the messages of the coin
+ * application from their raw serialization.
+ *
+ * Every message writes its own fields in serialize() and has a constructor
+ * reading them back, the type written before the message choosing the
+ * class. The types are registered here, every one with the reader of its
+ * class, in a table indexed by type: a type registered twice fails when
+ * the class is loaded, and a message is read with a single lookup. The
+ * endpoint is needed to read the ids and the node handles.
+ */
+public class CoinMessageDeserializer implements MessageDeserializer {
+
+  /**
+   * the largest type of a message
+   */
+  public static final short MAX_TYPE = 63;
+
+  /**
+   * the registry of the message types: the reader of every type, by type
+   */
+  private static final Reader[] READERS = new Reader[MAX_TYPE + 1];
+
+  static {
+    register(CoinMessageLostMessage.TYPE, new Reader() {
+      public CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException {
+        return new CoinMessageLostMessage(buf, endpoint);
+      }
+    });
+    register(CashFlowMessage.TYPE, new Reader() {
+      public CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException {
+        return new CashFlowMessage(buf, endpoint);
+      }
+    });
+    register(CashFlowConfirmMessage.TYPE, new Reader() {
+      public CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException {
+        return new CashFlowConfirmMessage(buf, endpoint);
+      }
+    });
+    register(CashFlowUpdateMessage.TYPE, new Reader() {
+      public CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException {
+        return new CashFlowUpdateMessage(buf, endpoint);
+      }
+    });
+    register(CashFlowUpdateReplicationMessage.TYPE, new Reader() {
+      public CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException {
+        return new CashFlowUpdateReplicationMessage(buf, endpoint);
+      }
+    });
+    register(WithDrawalMessage.TYPE, new Reader() {
+      public CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException {
+        return new WithDrawalMessage(buf, endpoint);
+      }
+    });
+    register(BalanceRequestMessage.TYPE, new Reader() {
+      public CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException {
+        return new BalanceRequestMessage(buf, endpoint);
+      }
+    });
+    register(BalanceRequestPropagatedMessage.TYPE, new Reader() {
+      public CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException {
+        return new BalanceRequestPropagatedMessage(buf, endpoint);
+      }
+    });
+    register(RemoveMoneyMessage.TYPE, new Reader() {
+      public CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException {
+        return new RemoveMoneyMessage(buf, endpoint);
+      }
+    });
+    register(AddMoneyMessage.TYPE, new Reader() {
+      public CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException {
+        return new AddMoneyMessage(buf, endpoint);
+      }
+    });
+    register(FundingMessage.TYPE, new Reader() {
+      public CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException {
+        return new FundingMessage(buf, endpoint);
+      }
+    });
+    register(StateTransferRequestMessage.TYPE, new Reader() {
+      public CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException {
+        return new StateTransferRequestMessage(buf, endpoint);
+      }
+    });
+    register(StreamChunkMessage.TYPE, new Reader() {
+      public CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException {
+        return new StreamChunkMessage(buf, endpoint);
+      }
+    });
+    register(MerkleSyncMessage.TYPE, new Reader() {
+      public CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException {
+        return new MerkleSyncMessage(buf, endpoint);
+      }
+    });
+    register(ReplicaBatchMessage.TYPE, new Reader() {
+      public CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException {
+        return new ReplicaBatchMessage(buf, endpoint);
+      }
+    });
+  }
+
+  /**
+   * reads the ids and the node handles
+   */
+  private Endpoint endpoint;
+
+  /**
+   * Create a deserializer
+   *
+   * @param endpoint the endpoint of the application
+   */
+  public CoinMessageDeserializer(Endpoint endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  public Message deserialize(InputBuffer buf, short type, int priority, NodeHandle sender) throws IOException {
+    Reader reader = type >= 0 && type < READERS.length ? READERS[type] : null;
+    if (reader == null) {
+      throw new IOException("Unknown message type " + type);
+    }
+    return reader.read(buf, endpoint);
+  }
+
+  /**
+   * Add the reader of a type to the registry
+   *
+   * @param type the type of the messages
+   * @param reader reads the messages of the type
+   * @exception IllegalStateException if the type has a reader already
+   */
+  private static void register(short type, Reader reader) {
+    if (type < 0 || type >= READERS.length) {
+      throw new IllegalStateException("Message type " + type + " out of the registry, the largest is " + (READERS.length - 1));
+    }
+    if (READERS[type] != null) {
+      throw new IllegalStateException("Message type " + type + " is registered twice");
+    }
+    READERS[type] = reader;
+  }
+
+  /**
+   * Builds a message from its raw serialization
+   */
+  private interface Reader {
+    CoinMessage read(InputBuffer buf, Endpoint endpoint) throws IOException;
+  }
+
+}
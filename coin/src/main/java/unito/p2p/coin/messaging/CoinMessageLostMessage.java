@@ -6,8 +6,9 @@ import rice.*;
 import rice.environment.Environment;
 import rice.environment.logging.Logger;
 import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
 import rice.p2p.commonapi.rawserialization.OutputBuffer;
-import rice.p2p.util.rawserialization.JavaSerializer;
 import unito.p2p.coin.*;
 
 
@@ -55,6 +56,20 @@ public class CoinMessageLostMessage extends CoinMessage {
     this.id = id;
   }
   
+  /**
+   * Read a CoinMessageLostMessage written by serialize()
+   *
+   * @param buf the buffer holding the message
+   * @param endpoint reads the ids and the node handles
+   */
+  public CoinMessageLostMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);
+    
+    this.id = readId(buf, endpoint);
+    this.hint = readHandle(buf, endpoint);
+    this.message = readMessage(buf, endpoint);
+  }
+  
   /**
    * Raw Serialization **************************************
    *
@@ -89,8 +104,10 @@ public class CoinMessageLostMessage extends CoinMessage {
    * @exception IOException DESCRIBE THE EXCEPTION
    */
   public void serialize(OutputBuffer buf) throws IOException {
-    // use the java serializer for semplicity
-    JavaSerializer.serialize(this, buf);
+    super.serialize(buf);
+    writeId(buf, id);
+    writeHandle(buf, hint);
+    writeMessage(buf, (CoinMessage) message);
   }
 
   /**
@@ -7,8 +7,9 @@ import rice.p2p.commonapi.Message;
 import rice.Continuation;
 import rice.p2p.commonapi.NodeHandle;
 import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
 import rice.p2p.commonapi.rawserialization.OutputBuffer;
-import rice.p2p.util.rawserialization.JavaSerializer;
 import unito.p2p.coin.security.Signable;
 
 
@@ -25,7 +26,6 @@ public class FundingMessage extends CoinMessage {
    */
   private int amount;
   
-  private Object result;
   
   public static final short TYPE = 13;
   
@@ -41,6 +41,18 @@ public class FundingMessage extends CoinMessage {
     this.amount = amount;
   };
   
+  /**
+   * Read a FundingMessage written by serialize()
+   *
+   * @param buf the buffer holding the message
+   * @param endpoint reads the ids and the node handles
+   */
+  public FundingMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);
+    
+    this.amount = buf.readInt();
+  }
+  
   /**
    * Raw Serialization **************************************
    *
@@ -70,8 +82,8 @@ public class FundingMessage extends CoinMessage {
    * @exception IOException DESCRIBE THE EXCEPTION
    */
   public void serialize(OutputBuffer buf) throws IOException {
-    // use the java serializer for semplicity
-    JavaSerializer.serialize(this, buf);
+    super.serialize(buf);
+    buf.writeInt(amount);
   }
   
   /**
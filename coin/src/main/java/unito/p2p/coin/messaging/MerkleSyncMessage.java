@@ -0,0 +1,212 @@
+package unito.p2p.coin.messaging;
+
+import java.io.IOException;
+
+import rice.p2p.commonapi.IdRange;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+
+
+/**
+ * Class MerkleSyncMessage.
+ * Exchanged by two replicas comparing the Merkle trees of their ledgers
+ * over a range of account roots. The initiator sends the hashes of some
+ * nodes of a tree level (COMPARE), the peer answers with the nodes which
+ * differ (DIFFERENCES), and the exchange descends level by level. At the
+ * leaf level the peer also sends its accounts in the differing buckets, the
+ * initiator asks the other replicas for theirs (COLLECT, answered by
+ * ACCOUNTS), and sends every replica the majority balances it does not hold
+ * (REPAIR).
+ */
+public class MerkleSyncMessage extends CoinMessage {
+
+  /**
+   * the initiator sends the hashes of some tree nodes
+   */
+  public static final int COMPARE = 0;
+
+  /**
+   * the peer answers with the tree nodes whose hash differs
+   */
+  public static final int DIFFERENCES = 1;
+
+  /**
+   * the initiator sends the accounts a replica must adopt
+   */
+  public static final int REPAIR = 2;
+
+  /**
+   * the initiator asks a further replica for its accounts in some leaves
+   */
+  public static final int COLLECT = 3;
+
+  /**
+   * a further replica answers with its accounts in the leaves asked
+   */
+  public static final int ACCOUNTS = 4;
+
+  /**
+   * the range of account roots compared
+   */
+  private IdRange range;
+
+  /**
+   * COMPARE, DIFFERENCES, REPAIR, COLLECT or ACCOUNTS
+   */
+  private int phase;
+
+  /**
+   * the tree level of the buckets
+   */
+  private int level;
+
+  /**
+   * the indexes of the tree nodes in their level
+   */
+  private int[] buckets;
+
+  /**
+   * the hashes of the tree nodes, for COMPARE
+   */
+  private long[] hashes;
+
+  /**
+   * the accounts in the differing leaf buckets, Ledger.scan() format, for
+   * DIFFERENCES, REPAIR and ACCOUNTS
+   */
+  private byte[] accounts;
+
+  public static final short TYPE = 16;
+
+  public static final long serialVersionUID = CoinMessage.SERIAL_BASE + (long) TYPE;
+
+
+  /**
+   * Create a MerkleSyncMessage
+   *
+   * @param id the unique identifier of the exchange
+   * @param source the sending node
+   * @param dest the receiving node
+   * @param range the range of account roots compared
+   * @param phase COMPARE, DIFFERENCES, REPAIR, COLLECT or ACCOUNTS
+   * @param level the tree level of the buckets
+   * @param buckets the indexes of the tree nodes in their level
+   * @param hashes the hashes of the tree nodes, null unless comparing
+   * @param accounts the accounts of the differing leaves, null if none
+   */
+  public MerkleSyncMessage(int id, NodeHandle source, NodeHandle dest, IdRange range, int phase, int level, int[] buckets, long[] hashes, byte[] accounts) {
+    super(id, source, dest);
+
+    this.range = range;
+    this.phase = phase;
+    this.level = level;
+    this.buckets = buckets;
+    this.hashes = hashes;
+    this.accounts = accounts;
+  }
+  
+  /**
+   * Read a MerkleSyncMessage written by serialize()
+   *
+   * @param buf the buffer holding the message
+   * @param endpoint reads the ids and the node handles
+   */
+  public MerkleSyncMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);
+    
+    this.range = endpoint.readIdRange(buf);
+    this.phase = buf.readByte();
+    this.level = buf.readByte();
+    this.buckets = new int[buf.readInt()];
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = buf.readInt();
+    }
+    int length = buf.readInt();
+    if (length >= 0) {
+      this.hashes = new long[length];
+      for (int i = 0; i < length; i++) {
+        hashes[i] = buf.readLong();
+      }
+    }
+    length = buf.readInt();
+    if (length >= 0) {
+      this.accounts = new byte[length];
+      buf.read(accounts, 0, length);
+    }
+  }
+
+  /**
+   * Raw Serialization **************************************
+   *
+   * @return The Type value
+   */
+  public short getType() {
+    return TYPE;
+  }
+
+  public IdRange getRange() {
+    return range;
+  }
+
+  public int getPhase() {
+    return phase;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  public int[] getBuckets() {
+    return buckets;
+  }
+
+  public long[] getHashes() {
+    return hashes;
+  }
+
+  public byte[] getAccounts() {
+    return accounts;
+  }
+
+  /**
+   * Serialize the given message
+   *
+   * @param buf DESCRIBE THE PARAMETER
+   * @exception IOException DESCRIBE THE EXCEPTION
+   */
+  public void serialize(OutputBuffer buf) throws IOException {
+    super.serialize(buf);
+    range.serialize(buf);
+    buf.writeByte((byte) phase);
+    buf.writeByte((byte) level);
+    buf.writeInt(buckets.length);
+    for (int i = 0; i < buckets.length; i++) {
+      buf.writeInt(buckets[i]);
+    }
+    // the hashes are left out of the differences, the accounts of the comparisons
+    if (hashes == null) {
+      buf.writeInt(-1);
+    } else {
+      buf.writeInt(hashes.length);
+      for (int i = 0; i < hashes.length; i++) {
+        buf.writeLong(hashes[i]);
+      }
+    }
+    if (accounts == null) {
+      buf.writeInt(-1);
+    } else {
+      buf.writeInt(accounts.length);
+      buf.write(accounts, 0, accounts.length);
+    }
+  }
+
+  /**
+   * Standard toString method
+   */
+  public String toString() {
+    return "[MerkleSyncMessage from " + getSource() + " phase " + phase + " level " + level + " " + buckets.length + " buckets]";
+  }
+
+}
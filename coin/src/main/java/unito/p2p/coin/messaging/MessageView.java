@@ -0,0 +1,117 @@
+package unito.p2p.coin.messaging;
+
+import java.nio.ByteBuffer;
+
+import unito.p2p.coin.transport.FrameReader;
+
+/**
+ * @(#) MessageView.java Reads the header of a message where it was
+ * received, without building the message.
+ *
+ * A frame received on a socket holds the type of the message and then the
+ * message as written by serialize(), which starts with the flags, the uid
+ * and, for a response, its result. These are at fixed offsets, so a view
+ * reads them straight from the frame when asked: a response which is only
+ * handed to the continuation waiting for it needs neither the node handles
+ * nor the fields of its class. The same view is wrapped around every frame
+ * in turn, and is only valid until the frame is released.
+ *
+ * A message which added node handles to the table of its socket must be
+ * read in full anyway, or the following ones could not be read: the sender
+ * marks it with markHandles().
+ */
+public class MessageView {
+
+  /**
+   * where the parts of the header are, from the start of the frame body
+   */
+  static final int TYPE_OFFSET = 0;
+  static final int FLAGS_OFFSET = 2;
+  static final int UID_OFFSET = 3;
+  static final int RESULT_OFFSET = 7;
+
+  /**
+   * the frame viewed
+   */
+  private ByteBuffer frame;
+
+  /**
+   * where the body of the frame starts
+   */
+  private int base;
+
+  /**
+   * View a frame, until the next call
+   *
+   * @param frame the body of the frame, from position to limit, which is not
+   * moved
+   * @return this view
+   */
+  public MessageView wrap(ByteBuffer frame) {
+    this.frame = frame;
+    this.base = frame.position();
+    return this;
+  }
+
+  /**
+   * @return the type of the message
+   */
+  public short getType() {
+    return frame.getShort(base + TYPE_OFFSET);
+  }
+
+  /**
+   * @return the uid of the message
+   */
+  public int getUID() {
+    return frame.getInt(base + UID_OFFSET);
+  }
+
+  /**
+   * @return whether the message is a response
+   */
+  public boolean isResponse() {
+    return (getFlags() & CoinMessage.RESPONSE) != 0;
+  }
+
+  /**
+   * @return whether the message added node handles to the table of its
+   * socket, and must be read in full
+   */
+  public boolean addsHandles() {
+    return (getFlags() & CoinMessage.HANDLES) != 0;
+  }
+
+  /**
+   * @return the result of a response, a Boolean or an Integer, null if none
+   */
+  public Object getResult() {
+    if ((getFlags() & CoinMessage.RESULT) == 0) {
+      return null;
+    }
+    switch (frame.get(base + RESULT_OFFSET)) {
+      case CoinMessage.BOOLEAN_RESULT:
+        return new Boolean(frame.get(base + RESULT_OFFSET + 1) != 0);
+      case CoinMessage.INTEGER_RESULT:
+        return new Integer(frame.getInt(base + RESULT_OFFSET + 1));
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Mark a frame whose message added node handles to the table of its
+   * socket
+   *
+   * @param frame the frame, as returned by ByteBufferOutputBuffer.toFrame()
+   */
+  public static void markHandles(ByteBuffer frame) {
+    int flags = frame.position() + FrameReader.HEADER_SIZE + FLAGS_OFFSET;
+    frame.put(flags, (byte) (frame.get(flags) | CoinMessage.HANDLES));
+  }
+
+  private int getFlags() {
+    return frame.get(base + FLAGS_OFFSET);
+  }
+
+}
@@ -7,8 +7,9 @@ import rice.p2p.commonapi.Message;
 import rice.Continuation;
 import rice.p2p.commonapi.NodeHandle;
 import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
 import rice.p2p.commonapi.rawserialization.OutputBuffer;
-import rice.p2p.util.rawserialization.JavaSerializer;
 import unito.p2p.coin.security.Signable;
 
 
@@ -22,11 +23,11 @@ public class RemoveMoneyMessage extends CoinMessage {
 
 
   /**
-   * contains the message which generated the money adding.
+   * the digest of the message which generated the money adding.
    * this is useful for nodes which will receive the AddMoneyMessage
    * being able to verify that the add money is correct
    */
-  private CoinMessage cm;
+  private long origin;
   
   /**
    * contains the amount of money to add to the account
@@ -35,9 +36,8 @@ public class RemoveMoneyMessage extends CoinMessage {
   
   private Id updated;
   
-  private Object result;
   
-  public static final short TYPE = 12;
+  public static final short TYPE = 11;
   
   public static final long serialVersionUID = CoinMessage.SERIAL_BASE + (long) TYPE;
   
@@ -49,10 +49,24 @@ public class RemoveMoneyMessage extends CoinMessage {
     super(id, source, dest);
     
     this.updated = updated;
-    this.cm = cm;
+    this.origin = cm.getDigest();
     this.amount = amount;
   };
   
+  /**
+   * Read a RemoveMoneyMessage written by serialize()
+   *
+   * @param buf the buffer holding the message
+   * @param endpoint reads the ids and the node handles
+   */
+  public RemoveMoneyMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);
+    
+    this.origin = buf.readLong();
+    this.amount = buf.readInt();
+    this.updated = buf.readBoolean() ? dest : readId(buf, endpoint);
+  }
+  
   /**
    * Raw Serialization **************************************
    *
@@ -75,8 +89,11 @@ public class RemoveMoneyMessage extends CoinMessage {
     return result;
   }
 
-  public CoinMessage getCoinMessage() {
-    return cm;
+  /**
+   * Return the digest of the message which generated the change
+   */
+  public long getOrigin() {
+    return origin;
   }
   
   public int getAmount() {
@@ -90,8 +107,15 @@ public class RemoveMoneyMessage extends CoinMessage {
    * @exception IOException DESCRIBE THE EXCEPTION
    */
   public void serialize(OutputBuffer buf) throws IOException {
-    // use the java serializer for semplicity
-    JavaSerializer.serialize(this, buf);
+    super.serialize(buf);
+    buf.writeLong(origin);
+    buf.writeInt(amount);
+    // the account is usually the destination, written once
+    boolean same = updated != null && updated.equals(dest);
+    buf.writeBoolean(same);
+    if (!same) {
+      writeId(buf, updated);
+    }
   }
   
   /**
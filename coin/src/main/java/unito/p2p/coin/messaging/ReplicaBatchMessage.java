@@ -0,0 +1,195 @@
+package unito.p2p.coin.messaging;
+
+import java.io.IOException;
+
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+
+
+/**
+ * Class ReplicaBatchMessage.
+ * Sent by an account root to one replica with several balance changes at
+ * once, in place of an AddMoneyMessage, RemoveMoneyMessage or
+ * CashFlowUpdateReplicationMessage each. Every change is an account, the
+ * signed change of its balance and the digest of the message which started
+ * the transaction. The replica applies them in order and answers once,
+ * telling which ones it applied; the response leaves the changes out.
+ */
+public class ReplicaBatchMessage extends CoinMessage {
+
+  /**
+   * the most bytes a change takes in a message: the type and the bytes of
+   * the account id, the change and the digest
+   */
+  public static final int MAX_CHANGE_SIZE = 64;
+
+  /**
+   * the accounts to update
+   */
+  private Id[] updated;
+
+  /**
+   * the money to add to every account, negative to remove it
+   */
+  private int[] deltas;
+
+  /**
+   * the digest of the message which started every change
+   */
+  private long[] origins;
+
+  /**
+   * which changes the replica applied, meaningful in responses
+   */
+  private boolean[] accepted;
+
+  public static final short TYPE = 17;
+
+  public static final long serialVersionUID = CoinMessage.SERIAL_BASE + (long) TYPE;
+
+
+  /**
+   * Create a ReplicaBatchMessage
+   *
+   * @param id unique identifier
+   * @param accountRoot the account root, which receives the response
+   * @param replica the replica applying the changes
+   * @param updated the accounts to update
+   * @param deltas the money to add to every account, negative to remove it
+   * @param origins the digest of the message which started every change
+   */
+  public ReplicaBatchMessage(int id, NodeHandle accountRoot, NodeHandle replica, Id[] updated, int[] deltas, long[] origins) {
+    super(id, accountRoot, replica);
+
+    this.updated = updated;
+    this.deltas = deltas;
+    this.origins = origins;
+  }
+
+  /**
+   * Read a ReplicaBatchMessage written by serialize()
+   *
+   * @param buf the buffer holding the message
+   * @param endpoint reads the ids and the node handles
+   */
+  public ReplicaBatchMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);
+
+    int count = buf.readShort();
+    if (isResponse()) {
+      this.accepted = new boolean[count];
+      for (int i = 0; i < count; i++) {
+        accepted[i] = buf.readBoolean();
+      }
+    } else {
+      this.updated = new Id[count];
+      this.deltas = new int[count];
+      this.origins = new long[count];
+      for (int i = 0; i < count; i++) {
+        updated[i] = endpoint.readId(buf, buf.readShort());
+        deltas[i] = buf.readInt();
+        origins[i] = buf.readLong();
+      }
+    }
+  }
+
+  /**
+   * Raw Serialization **************************************
+   *
+   * @return The Type value
+   */
+  public short getType() {
+    return TYPE;
+  }
+
+  /**
+   * Return the account root which sent the changes, and waits for the
+   * response
+   */
+  public NodeHandle getAccountRoot() {
+    return getSource();
+  }
+
+  /**
+   * Return the number of changes
+   */
+  public int size() {
+    return isResponse() ? accepted.length : updated.length;
+  }
+
+  /**
+   * Return the account the i-th change updates
+   */
+  public Id getUpdated(int i) {
+    return updated[i];
+  }
+
+  /**
+   * Return the money the i-th change adds, negative if it removes it
+   */
+  public int getDelta(int i) {
+    return deltas[i];
+  }
+
+  /**
+   * Return the digest of the message which started the i-th change
+   */
+  public long getOrigin(int i) {
+    return origins[i];
+  }
+
+  /**
+   * Called by the replica once it applied the changes
+   *
+   * @param accepted which changes it applied, false where the account did
+   * not hold enough money
+   */
+  public void setResponse(boolean[] accepted) {
+    setResponse();
+    this.accepted = accepted;
+  }
+
+  /**
+   * Used by the account root to know which changes the replica applied
+   *
+   * @return false for every change the replica rejected
+   */
+  public boolean[] getAccepted() {
+    return accepted;
+  }
+
+  /**
+   * Standard toString method
+   */
+  public String toString() {
+    return "[ReplicaBatchMessage from " + getSource() + " of " + size() + " changes" + (isResponse() ? ", response" : "") + "]";
+  }
+
+  /**
+   * Serialize the given message
+   *
+   * @param buf DESCRIBE THE PARAMETER
+   * @exception IOException DESCRIBE THE EXCEPTION
+   */
+  public void serialize(OutputBuffer buf) throws IOException {
+    super.serialize(buf);
+    buf.writeShort((short) size());
+    if (isResponse()) {
+      // the account root still holds the changes
+      for (int i = 0; i < accepted.length; i++) {
+        buf.writeBoolean(accepted[i]);
+      }
+    } else {
+      for (int i = 0; i < updated.length; i++) {
+        buf.writeShort(updated[i].getType());
+        updated[i].serialize(buf);
+        buf.writeInt(deltas[i]);
+        buf.writeLong(origins[i]);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,87 @@
+package unito.p2p.coin.messaging;
+
+import java.io.IOException;
+
+import rice.p2p.commonapi.IdRange;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+
+
+/**
+ * Class StateTransferRequestMessage.
+ * Sent by a replica which became responsible for a range of account
+ * roots to a node holding them, which answers by streaming the accounts
+ * of the range in a stream of StreamChunkMessages.
+ */
+public class StateTransferRequestMessage extends CoinMessage {
+
+  /**
+   * the range of account roots requested
+   */
+  private IdRange range;
+
+  public static final short TYPE = 14;
+
+  public static final long serialVersionUID = CoinMessage.SERIAL_BASE + (long) TYPE;
+
+
+  /**
+   * Create a StateTransferRequestMessage
+   *
+   * @param id unique identifier
+   * @param source the node requesting the accounts
+   * @param dest the node which will stream the accounts
+   * @param range the range of account roots requested
+   */
+  public StateTransferRequestMessage(int id, NodeHandle source, NodeHandle dest, IdRange range) {
+    super(id, source, dest);
+
+    this.range = range;
+  }
+  
+  /**
+   * Read a StateTransferRequestMessage written by serialize()
+   *
+   * @param buf the buffer holding the message
+   * @param endpoint reads the ids and the node handles
+   */
+  public StateTransferRequestMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);
+    
+    this.range = endpoint.readIdRange(buf);
+  }
+
+  /**
+   * Raw Serialization **************************************
+   *
+   * @return The Type value
+   */
+  public short getType() {
+    return TYPE;
+  }
+
+  public IdRange getRange() {
+    return range;
+  }
+
+  /**
+   * Serialize the given message
+   *
+   * @param buf DESCRIBE THE PARAMETER
+   * @exception IOException DESCRIBE THE EXCEPTION
+   */
+  public void serialize(OutputBuffer buf) throws IOException {
+    super.serialize(buf);
+    range.serialize(buf);
+  }
+
+  /**
+   * Standard toString method
+   */
+  public String toString() {
+    return "[StateTransferRequestMessage from " + getSource() + " range " + range + "]";
+  }
+
+}
@@ -0,0 +1,168 @@
+package unito.p2p.coin.messaging;
+
+import java.io.IOException;
+
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+
+
+/**
+ * Class StreamChunkMessage.
+ * Carries a chunk of a payload too large to be sent in a single message.
+ * A stream is made of several chunks sharing the same stream id, sent in
+ * order, the last one being flagged; the receiver handles every chunk as
+ * it arrives, according to the kind of the stream, so that neither side
+ * ever holds the whole payload.
+ *
+ * Every chunk is a request with its own uid: the receiver answers whether
+ * it took the chunk, and the sender sends the next one only then. The
+ * response carries no data.
+ */
+public class StreamChunkMessage extends CoinMessage {
+
+  /**
+   * a stream of accounts, in Ledger.scan() format: the key of every account
+   * followed by its balance
+   */
+  public static final int ACCOUNTS = 0;
+
+  /**
+   * the stream this chunk belongs to
+   */
+  private int stream;
+
+  /**
+   * what the stream carries
+   */
+  private int kind;
+
+  /**
+   * the position of this chunk in the stream
+   */
+  private int sequence;
+
+  /**
+   * the bytes of the chunk
+   */
+  private byte[] data;
+
+  /**
+   * whether this is the last chunk of the stream
+   */
+  private boolean last;
+
+  public static final short TYPE = 15;
+
+  public static final long serialVersionUID = CoinMessage.SERIAL_BASE + (long) TYPE;
+
+
+  /**
+   * Create a StreamChunkMessage
+   *
+   * @param id the unique identifier of the chunk
+   * @param stream the identifier of the stream, the same for all its chunks
+   * @param source the node sending the stream
+   * @param dest the node receiving the stream
+   * @param kind what the stream carries
+   * @param sequence the position of this chunk in the stream
+   * @param data the bytes of this chunk
+   * @param last whether this is the last chunk
+   */
+  public StreamChunkMessage(int id, int stream, NodeHandle source, NodeHandle dest, int kind, int sequence, byte[] data, boolean last) {
+    super(id, source, dest);
+
+    this.stream = stream;
+    this.kind = kind;
+    this.sequence = sequence;
+    this.data = data;
+    this.last = last;
+  }
+  
+  /**
+   * Read a StreamChunkMessage written by serialize()
+   *
+   * @param buf the buffer holding the message
+   * @param endpoint reads the ids and the node handles
+   */
+  public StreamChunkMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);
+    
+    this.stream = buf.readInt();
+    this.kind = buf.readByte();
+    this.sequence = buf.readInt();
+    this.last = buf.readBoolean();
+    this.data = new byte[buf.readInt()];
+    buf.read(data, 0, data.length);
+  }
+
+  /**
+   * Raw Serialization **************************************
+   *
+   * @return The Type value
+   */
+  public short getType() {
+    return TYPE;
+  }
+
+  /**
+   * Called by the receiver to answer whether it took the chunk, dropping
+   * its data
+   *
+   * @param o a Boolean, false if a chunk before this one is missing
+   */
+  public void setResponse(Object o) {
+    super.setResponse();
+    this.result = o;
+    this.data = new byte[0];
+  }
+
+  public Object getResponse() {
+    return result;
+  }
+
+  public int getStream() {
+    return stream;
+  }
+
+  public int getKind() {
+    return kind;
+  }
+
+  public int getSequence() {
+    return sequence;
+  }
+
+  public byte[] getData() {
+    return data;
+  }
+
+  public boolean isLast() {
+    return last;
+  }
+
+  /**
+   * Serialize the given message
+   *
+   * @param buf DESCRIBE THE PARAMETER
+   * @exception IOException DESCRIBE THE EXCEPTION
+   */
+  public void serialize(OutputBuffer buf) throws IOException {
+    super.serialize(buf);
+    buf.writeInt(stream);
+    buf.writeByte((byte) kind);
+    buf.writeInt(sequence);
+    buf.writeBoolean(last);
+    buf.writeInt(data.length);
+    buf.write(data, 0, data.length);
+  }
+
+  /**
+   * Standard toString method
+   */
+  public String toString() {
+    return "[StreamChunkMessage from " + getSource() + " stream " + stream + " kind " + kind + " chunk " + sequence + (last ? " (last)" : "") + "]";
+  }
+
+}
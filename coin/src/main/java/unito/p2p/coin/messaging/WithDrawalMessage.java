@@ -7,8 +7,9 @@ import rice.p2p.commonapi.Message;
 import rice.Continuation;
 import rice.p2p.commonapi.NodeHandle;
 import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
 import rice.p2p.commonapi.rawserialization.OutputBuffer;
-import rice.p2p.util.rawserialization.JavaSerializer;
 import unito.p2p.coin.security.Signable;
 
 
@@ -22,9 +23,8 @@ public class WithDrawalMessage extends CoinMessage {
   //
 
   private int amount;
-  private Object result;
   
-  public static final short TYPE = 4;
+  public static final short TYPE = 6;
   
   public static final long serialVersionUID = CoinMessage.SERIAL_BASE + (long) TYPE;
   
@@ -37,6 +37,18 @@ public class WithDrawalMessage extends CoinMessage {
     this.amount = amount;
 
   }
+  
+  /**
+   * Read a WithDrawalMessage written by serialize()
+   *
+   * @param buf the buffer holding the message
+   * @param endpoint reads the ids and the node handles
+   */
+  public WithDrawalMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);
+    
+    this.amount = buf.readInt();
+  }
 
 
   /**
@@ -69,8 +81,8 @@ public class WithDrawalMessage extends CoinMessage {
    * @exception IOException DESCRIBE THE EXCEPTION
    */
   public void serialize(OutputBuffer buf) throws IOException {
-    // use the java serializer for semplicity
-    JavaSerializer.serialize(this, buf);
+    super.serialize(buf);
+    buf.writeInt(amount);
   }
   
   /**
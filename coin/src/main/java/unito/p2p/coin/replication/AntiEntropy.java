@@ -0,0 +1,789 @@
+package unito.p2p.coin.replication;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.IdRange;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.NodeHandleSet;
+import rice.p2p.commonapi.exception.RangeCannotBeDeterminedException;
+import rice.selector.TimerTask;
+
+import unito.p2p.coin.ledger.HashLedger;
+import unito.p2p.coin.ledger.MerkleLedger;
+import unito.p2p.coin.ledger.MerkleTree;
+import unito.p2p.coin.ledger.WriteAheadLog;
+import unito.p2p.coin.messaging.MerkleSyncMessage;
+
+/**
+ * @(#) AntiEntropy.java Periodically compares the accounts this node is
+ * root for with the other replicas, and repairs the ones they disagree on.
+ *
+ * Every round compares the Merkle tree of the local ledger with the one of
+ * a replica, taken in turn, over the range of account roots this node is
+ * root for. The comparison starts a few levels below the tree root and
+ * descends LEVEL_STEP levels per exchange, only below the nodes whose hash
+ * differs, so the hashes exchanged grow with the number of differing
+ * accounts and not with the size of the ledger. Only the accounts of the
+ * differing leaf buckets are sent.
+ *
+ * The tree covers the whole ledger, while the replicas only have to agree
+ * on the range: the nodes across a bound of the range also cover accounts
+ * the two replicas rightly disagree on. Such nodes are compared by the
+ * hash of their accounts in the range, computed from the ledger, so that
+ * they are equal when the range is.
+ *
+ * The differing leaves are repaired to the majority of the replicas, since
+ * no replica, the root included, is sure to have applied every change: the
+ * initiator asks the other replicas for their accounts in the differing
+ * buckets, and sets every account on each replica to the balance held by
+ * more than half of the replicas holding the account. A replica missing an
+ * account adopts it, and an account without such a majority is left as it
+ * is. A change still in flight during a round can be reverted on the
+ * replicas which already applied it, and is restored by a later round once
+ * the others applied it too.
+ *
+ * No round is started, nor comparison answered, until the tree of the
+ * ledger is built.
+ *
+ * A replica only accepts the repairs of an exchange the initiator started
+ * with it, for the accounts in the range of the exchange whose root is the
+ * initiator.
+ */
+public class AntiEntropy {
+
+  /**
+   * the number of tree levels descended by every exchange
+   */
+  public static final int LEVEL_STEP = 4;
+
+  /**
+   * the number of accounts read at once from the ledger
+   */
+  static final int SCAN_CHUNK = 1024;
+
+  /**
+   * the number of exchanges started by other replicas which are remembered
+   */
+  public static final int EXCHANGES_TRACKED = 64;
+
+  private Endpoint endpoint;
+
+  private Environment environment;
+
+  private Logger logger;
+
+  /**
+   * the ledger compared
+   */
+  private MerkleLedger ledger;
+
+  /**
+   * the tree of the ledger
+   */
+  private MerkleTree tree;
+
+  /**
+   * the log of the ledger, null if it is not persistent
+   */
+  private WriteAheadLog log;
+
+  /**
+   * the number of replicas besides the root
+   */
+  private int replicationFactor;
+
+  /**
+   * runs the rounds
+   */
+  private TimerTask task;
+
+  /**
+   * the uid of the round in progress, or -1
+   */
+  private int round = -1;
+
+  /**
+   * the peer of the round in progress
+   */
+  private NodeHandle peer;
+
+  /**
+   * when the round in progress started
+   */
+  private long started;
+
+  /**
+   * the replicas whose accounts in the differing leaves are collected, this
+   * node first and the peer second; null unless collecting
+   */
+  private ArrayList<NodeHandle> voters;
+
+  /**
+   * the accounts of every replica in the differing leaves, null until it
+   * answered
+   */
+  private ArrayList<byte[]> copies;
+
+  /**
+   * the number of replicas whose accounts are still awaited
+   */
+  private int awaited;
+
+  /**
+   * the differing leaves whose accounts are collected
+   */
+  private int[] leaves;
+
+  /**
+   * the range of the round in progress
+   */
+  private IdRange range;
+
+  /**
+   * the range of every exchange started by another replica, by initiator
+   * and uid; the entries of the oldest exchanges are dropped
+   */
+  private LinkedHashMap<String, IdRange> exchanges;
+
+  /**
+   * the index of the next replica to compare with
+   */
+  private int nextPeer;
+
+  /**
+   * the uid of the next round
+   */
+  private int nextRound;
+
+  /**
+   * the number of rounds started
+   */
+  private long rounds;
+
+  /**
+   * the number of tree nodes compared
+   */
+  private long compared;
+
+  /**
+   * the number of accounts sent or received to repair divergences
+   */
+  private long repaired;
+
+  /**
+   * the number of accounts left as they are for want of a majority
+   */
+  private long unresolved;
+
+  /**
+   * Create the anti-entropy process, which starts with start()
+   *
+   * @param endpoint the endpoint of the application
+   * @param ledger the ledger to compare
+   * @param log the log of the ledger, null if it is not persistent
+   * @param replicationFactor the number of replicas besides the root
+   * @param logger the logger of the application
+   */
+  public AntiEntropy(Endpoint endpoint, MerkleLedger ledger, WriteAheadLog log, int replicationFactor, Logger logger) {
+    this.endpoint = endpoint;
+    this.environment = endpoint.getEnvironment();
+    this.ledger = ledger;
+    this.tree = ledger.getTree();
+    this.log = log;
+    this.replicationFactor = replicationFactor;
+    this.logger = logger;
+    this.exchanges = new LinkedHashMap<String, IdRange>() {
+      protected boolean removeEldestEntry(Map.Entry<String, IdRange> eldest) {
+        return size() > EXCHANGES_TRACKED;
+      }
+    };
+  }
+
+  /**
+   * Start a round every interval milliseconds, on the selector thread
+   *
+   * @param interval milliseconds between two rounds
+   */
+  public void start(final long interval) {
+    task = new TimerTask() {
+      public void run() {
+        startRound(interval);
+      }
+    };
+    environment.getSelectorManager().getTimer().schedule(task, interval, interval);
+  }
+
+  /**
+   * Stop starting rounds
+   */
+  public void stop() {
+    if (task != null) {
+      task.cancel();
+      task = null;
+    }
+  }
+
+  /**
+   * @return the number of rounds started
+   */
+  public long getRounds() {
+    return rounds;
+  }
+
+  /**
+   * @return the number of tree nodes compared
+   */
+  public long getCompared() {
+    return compared;
+  }
+
+  /**
+   * @return the number of accounts exchanged to repair divergences
+   */
+  public long getRepaired() {
+    return repaired;
+  }
+
+  /**
+   * @return the number of accounts left as they are for want of a majority
+   */
+  public long getUnresolved() {
+    return unresolved;
+  }
+
+  /**
+   * Compare the accounts this node is root for with the next replica
+   *
+   * @param timeout milliseconds after which a round in progress is abandoned
+   */
+  void startRound(long timeout) {
+    long now = environment.getTimeSource().currentTimeMillis();
+    if (round != -1 && now - started < timeout) {
+      return;
+    }
+    if (voters != null) {
+      // the replicas which did not answer are left out of the majority
+      repair();
+    }
+    round = -1;
+    if (!ledger.isReady()) {
+      return;
+    }
+
+    try {
+      range = endpoint.range(endpoint.getLocalNodeHandle(), 0, endpoint.getId());
+    } catch (RangeCannotBeDeterminedException rcbde) {
+      return;
+    }
+    if (range == null || range.isEmpty()) {
+      return;
+    }
+
+    NodeHandleSet replicas = endpoint.replicaSet(endpoint.getId(), replicationFactor + 1);
+    for (int i = 0; i < replicas.size() && round == -1; i++) {
+      NodeHandle candidate = replicas.getHandle((nextPeer + i) % replicas.size());
+      if (!candidate.getId().equals(endpoint.getId())) {
+        nextPeer = (nextPeer + i + 1) % replicas.size();
+        peer = candidate;
+        round = nextRound++;
+      }
+    }
+    if (round == -1) {
+      return;
+    }
+
+    started = now;
+    rounds++;
+    byte[][] intervals = StateTransfer.toIntervals(range);
+    int level = Math.min(LEVEL_STEP, tree.getLeafBits());
+    ArrayList<Integer> buckets = new ArrayList<Integer>();
+    for (int b = 0; b < (1 << level); b++) {
+      if (intersects(intervals, level, b)) {
+        buckets.add(new Integer(b));
+      }
+    }
+
+    if (logger.level <= Logger.FINE) {
+      logger.log("anti-entropy round " + round + " with " + peer + " over " + range);
+    }
+    sendCompare(range, level, toArray(buckets));
+  }
+
+  /**
+   * Handle a message of an anti-entropy exchange
+   *
+   * @param msg the message
+   */
+  public void deliver(MerkleSyncMessage msg) {
+    switch (msg.getPhase()) {
+      case MerkleSyncMessage.COMPARE:
+        exchanges.put(exchange(msg), msg.getRange());
+        answerCompare(msg);
+        break;
+      case MerkleSyncMessage.DIFFERENCES:
+        if (msg.getUID() == round && voters == null && msg.getSource().getId().equals(peer.getId())) {
+          handleDifferences(msg);
+        }
+        break;
+      case MerkleSyncMessage.COLLECT:
+        exchanges.put(exchange(msg), msg.getRange());
+        answerCollect(msg);
+        break;
+      case MerkleSyncMessage.ACCOUNTS:
+        if (msg.getUID() == round && voters != null) {
+          handleAccounts(msg);
+        }
+        break;
+      case MerkleSyncMessage.REPAIR:
+        repaired += apply(accepted(msg));
+        break;
+    }
+  }
+
+  /**
+   * Send to the peer the hashes of some nodes of a level
+   */
+  private void sendCompare(IdRange range, int level, int[] buckets) {
+    byte[][] intervals = StateTransfer.toIntervals(range);
+    long[] hashes = new long[buckets.length];
+    for (int i = 0; i < buckets.length; i++) {
+      hashes[i] = hash(range, intervals, level, buckets[i]);
+    }
+    compared += buckets.length;
+    endpoint.route(null, new MerkleSyncMessage(round, endpoint.getLocalNodeHandle(), peer, range, MerkleSyncMessage.COMPARE, level, buckets, hashes, null), peer);
+  }
+
+  /**
+   * Peer side: tell which nodes differ, with the accounts below them at
+   * the leaf level
+   */
+  private void answerCompare(MerkleSyncMessage msg) {
+    int level = msg.getLevel();
+    int[] buckets = msg.getBuckets();
+    long[] hashes = msg.getHashes();
+    if (level > tree.getLeafBits() || !ledger.isReady()) {
+      return;
+    }
+
+    byte[][] intervals = StateTransfer.toIntervals(msg.getRange());
+    ArrayList<Integer> differing = new ArrayList<Integer>();
+    for (int i = 0; i < buckets.length; i++) {
+      if (hash(msg.getRange(), intervals, level, buckets[i]) != hashes[i]) {
+        differing.add(new Integer(buckets[i]));
+      }
+    }
+
+    int[] diff = toArray(differing);
+    byte[] accounts = null;
+    if (level == tree.getLeafBits() && diff.length > 0) {
+      accounts = collect(msg.getRange(), level, diff);
+    }
+    endpoint.route(null, new MerkleSyncMessage(msg.getUID(), endpoint.getLocalNodeHandle(), msg.getSource(), msg.getRange(), MerkleSyncMessage.DIFFERENCES, level, diff, null, accounts), msg.getSource());
+  }
+
+  /**
+   * Initiator side: descend below the differing nodes, or repair the
+   * differing leaves
+   */
+  private void handleDifferences(MerkleSyncMessage msg) {
+    int level = msg.getLevel();
+    int[] diff = msg.getBuckets();
+    IdRange range = msg.getRange();
+
+    if (diff.length == 0) {
+      if (logger.level <= Logger.FINE) {
+        logger.log("anti-entropy round " + round + ": " + peer + " agrees at level " + level);
+      }
+      round = -1;
+      return;
+    }
+
+    if (level < tree.getLeafBits()) {
+      int step = Math.min(LEVEL_STEP, tree.getLeafBits() - level);
+      byte[][] intervals = StateTransfer.toIntervals(range);
+      ArrayList<Integer> children = new ArrayList<Integer>();
+      for (int i = 0; i < diff.length; i++) {
+        for (int c = diff[i] << step; c < (diff[i] + 1) << step; c++) {
+          if (intersects(intervals, level + step, c)) {
+            children.add(new Integer(c));
+          }
+        }
+      }
+      sendCompare(range, level + step, toArray(children));
+      return;
+    }
+
+    // collect the accounts of every replica in the differing leaves
+    voters = new ArrayList<NodeHandle>();
+    copies = new ArrayList<byte[]>();
+    leaves = diff;
+    voters.add(endpoint.getLocalNodeHandle());
+    copies.add(collect(range, level, diff));
+    voters.add(peer);
+    copies.add(msg.getAccounts() == null ? new byte[0] : msg.getAccounts());
+
+    NodeHandleSet replicas = endpoint.replicaSet(endpoint.getId(), replicationFactor + 1);
+    for (int i = 0; i < replicas.size(); i++) {
+      NodeHandle replica = replicas.getHandle(i);
+      if (!replica.getId().equals(endpoint.getId()) && !replica.getId().equals(peer.getId())) {
+        voters.add(replica);
+        copies.add(null);
+        awaited++;
+        endpoint.route(null, new MerkleSyncMessage(round, endpoint.getLocalNodeHandle(), replica, range, MerkleSyncMessage.COLLECT, level, diff, null, null), replica);
+      }
+    }
+    if (logger.level <= Logger.INFO) {
+      logger.log("anti-entropy round " + round + ": " + diff.length + " buckets differ from " + peer + ", collecting the accounts of "
+          + awaited + " more replicas");
+    }
+    if (awaited == 0) {
+      repair();
+    }
+  }
+
+  /**
+   * Further replica side: send the accounts of the leaves asked
+   */
+  private void answerCollect(MerkleSyncMessage msg) {
+    if (msg.getLevel() != tree.getLeafBits() || !ledger.isReady()) {
+      return;
+    }
+    byte[] accounts = collect(msg.getRange(), msg.getLevel(), msg.getBuckets());
+    endpoint.route(null, new MerkleSyncMessage(msg.getUID(), endpoint.getLocalNodeHandle(), msg.getSource(), msg.getRange(), MerkleSyncMessage.ACCOUNTS, msg.getLevel(), msg.getBuckets(), null, accounts), msg.getSource());
+  }
+
+  /**
+   * Initiator side: record the accounts of a further replica, and repair
+   * once every replica answered
+   */
+  private void handleAccounts(MerkleSyncMessage msg) {
+    for (int i = 0; i < voters.size(); i++) {
+      if (copies.get(i) == null && voters.get(i).getId().equals(msg.getSource().getId())) {
+        copies.set(i, msg.getAccounts() == null ? new byte[0] : msg.getAccounts());
+        if (--awaited == 0) {
+          repair();
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Initiator side: send every replica which answered the majority balances
+   * it does not hold, then end the round
+   */
+  private void repair() {
+    int count = voters.size();
+    HashMap<Id, Integer[]> balances = new HashMap<Id, Integer[]>();
+    byte[] key = new byte[HashLedger.KEY_LENGTH];
+    for (int i = 0; i < count; i++) {
+      if (copies.get(i) == null) {
+        continue;
+      }
+      ByteBuffer accounts = ByteBuffer.wrap(copies.get(i));
+      while (accounts.remaining() >= HashLedger.ACCOUNT_SIZE) {
+        accounts.get(key);
+        Id id = HashLedger.toId(key);
+        Integer[] held = balances.get(id);
+        if (held == null) {
+          held = new Integer[count];
+          balances.put(id, held);
+        }
+        held[i] = new Integer(accounts.getInt());
+      }
+    }
+
+    ByteArrayOutputStream[] repairs = new ByteArrayOutputStream[count];
+    for (int i = 0; i < count; i++) {
+      repairs[i] = new ByteArrayOutputStream();
+    }
+    int missing = 0;
+    for (Iterator<Map.Entry<Id, Integer[]>> it = balances.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Id, Integer[]> entry = it.next();
+      Integer[] held = entry.getValue();
+      Integer balance = majority(held);
+      if (balance == null) {
+        missing++;
+        if (logger.level <= Logger.WARNING) {
+          logger.log("anti-entropy round " + round + ": no majority for the balance of " + entry.getKey());
+        }
+        continue;
+      }
+
+      byte[] account = ByteBuffer.allocate(HashLedger.ACCOUNT_SIZE).put(HashLedger.toKey(entry.getKey())).putInt(balance.intValue()).array();
+      for (int i = 0; i < count; i++) {
+        if (copies.get(i) != null && !balance.equals(held[i])) {
+          repairs[i].write(account, 0, account.length);
+        }
+      }
+    }
+
+    // this node applies its own repairs, the others are sent theirs
+    int sent = 0;
+    int changed = apply(repairs[0].toByteArray());
+    for (int i = 1; i < count; i++) {
+      if (repairs[i].size() > 0) {
+        NodeHandle replica = voters.get(i);
+        sent += repairs[i].size() / HashLedger.ACCOUNT_SIZE;
+        endpoint.route(null, new MerkleSyncMessage(round, endpoint.getLocalNodeHandle(), replica, range, MerkleSyncMessage.REPAIR, tree.getLeafBits(), leaves, null, repairs[i].toByteArray()), replica);
+      }
+    }
+    repaired += changed + sent;
+    unresolved += missing;
+    if (logger.level <= Logger.INFO) {
+      logger.log("anti-entropy round " + round + ": repaired " + changed + " local accounts, sent " + sent + " to " + (count - 1)
+          + " replicas, " + missing + " without a majority");
+    }
+
+    voters = null;
+    copies = null;
+    leaves = null;
+    awaited = 0;
+    round = -1;
+  }
+
+  /**
+   * Return the balance held by more than half of the replicas holding the
+   * account, null if there is none
+   *
+   * @param held the balance of the account on every replica, null if the
+   * replica does not hold it
+   */
+  static Integer majority(Integer[] held) {
+    int holders = 0;
+    for (int i = 0; i < held.length; i++) {
+      if (held[i] != null) {
+        holders++;
+      }
+    }
+    for (int i = 0; i < held.length; i++) {
+      if (held[i] == null) {
+        continue;
+      }
+      int votes = 0;
+      for (int j = 0; j < held.length; j++) {
+        if (held[i].equals(held[j])) {
+          votes++;
+        }
+      }
+      if (2 * votes > holders) {
+        return held[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Return the accounts of a repair this node accepts: those in the range
+   * of an exchange the sender started with this node, and whose root is the
+   * sender
+   */
+  private byte[] accepted(MerkleSyncMessage msg) {
+    IdRange exchanged = exchanges.get(exchange(msg));
+    if (exchanged == null || msg.getAccounts() == null) {
+      if (logger.level <= Logger.WARNING) {
+        logger.log("ignoring a repair from " + msg.getSource() + " outside of an exchange");
+      }
+      return null;
+    }
+
+    ByteBuffer accounts = ByteBuffer.wrap(msg.getAccounts());
+    ByteBuffer kept = ByteBuffer.allocate(accounts.remaining());
+    byte[] key = new byte[HashLedger.KEY_LENGTH];
+    int refused = 0;
+    while (accounts.remaining() >= HashLedger.ACCOUNT_SIZE) {
+      accounts.get(key);
+      int balance = accounts.getInt();
+      Id id = HashLedger.toId(key);
+      NodeHandleSet root = endpoint.replicaSet(id, 1);
+      if (exchanged.containsId(id) && root != null && root.size() > 0 && root.getHandle(0).getId().equals(msg.getSource().getId())) {
+        kept.put(key).putInt(balance);
+      } else {
+        refused++;
+      }
+    }
+    if (refused > 0 && logger.level <= Logger.WARNING) {
+      logger.log("ignoring " + refused + " repaired accounts from " + msg.getSource() + " which is not their root");
+    }
+
+    byte[] result = new byte[kept.position()];
+    System.arraycopy(kept.array(), 0, result, 0, result.length);
+    return result;
+  }
+
+  /**
+   * Return the key of the exchange a message belongs to, by initiator and uid
+   */
+  private static String exchange(MerkleSyncMessage msg) {
+    return msg.getSource().getId().toStringFull() + "/" + msg.getUID();
+  }
+
+  /**
+   * Return the hash of the accounts of a node which are in the range: the
+   * hash of the tree for a node inside the range, otherwise the accounts of
+   * the node in the range are read and hashed
+   */
+  private long hash(IdRange range, byte[][] intervals, int level, int bucket) {
+    if (inside(intervals, level, bucket)) {
+      return tree.getHash(level, bucket);
+    }
+
+    ByteBuffer accounts = ByteBuffer.wrap(collect(range, level, new int[] {bucket}));
+    byte[] key = new byte[HashLedger.KEY_LENGTH];
+    long hash = 0;
+    while (accounts.remaining() >= HashLedger.ACCOUNT_SIZE) {
+      accounts.get(key);
+      hash ^= MerkleTree.hash(key, accounts.getInt());
+    }
+    return hash;
+  }
+
+  /**
+   * Return the accounts in the given nodes of a level and in the range
+   */
+  private byte[] collect(IdRange range, int level, int[] buckets) {
+    byte[][] intervals = StateTransfer.toIntervals(range);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < buckets.length; i++) {
+      byte[] first = MerkleTree.firstKey(level, buckets[i]);
+      byte[] end = MerkleTree.firstKey(level, buckets[i] + 1);
+      for (int j = 0; j < intervals.length; j += 2) {
+        byte[] from = max(first, intervals[j]);
+        byte[] to = min(end, intervals[j + 1]);
+        if (to != null && HashLedger.compareKeys(from, to) >= 0) {
+          continue;
+        }
+
+        while (from != null) {
+          ByteBuffer chunk = ledger.scan(from, to, SCAN_CHUNK);
+          int count = chunk.remaining() / HashLedger.ACCOUNT_SIZE;
+          out.write(chunk.array(), 0, chunk.limit());
+          if (count < SCAN_CHUNK) {
+            break;
+          }
+          byte[] last = new byte[HashLedger.KEY_LENGTH];
+          System.arraycopy(chunk.array(), (count - 1) * HashLedger.ACCOUNT_SIZE, last, 0, last.length);
+          from = HashLedger.successor(last);
+        }
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Install repaired accounts, logging the changes
+   *
+   * @return the number of accounts changed
+   */
+  private int apply(byte[] accounts) {
+    if (accounts == null) {
+      return 0;
+    }
+
+    ByteBuffer buffer = ByteBuffer.wrap(accounts);
+    byte[] key = new byte[HashLedger.KEY_LENGTH];
+    int changed = 0;
+    while (buffer.remaining() >= HashLedger.ACCOUNT_SIZE) {
+      buffer.get(key);
+      int balance = buffer.getInt();
+      Id id = HashLedger.toId(key);
+
+      // a missing account is created even with a zero balance
+      boolean changes = ledger.putIfAbsent(id, balance);
+      if (!changes && ledger.getBalance(id) != balance) {
+        ledger.setBalance(id, balance);
+        changes = true;
+      }
+
+      if (changes) {
+        changed++;
+        if (log != null) {
+          log.append(id, balance, new Continuation() {
+            public void receiveResult(Object result) {
+            }
+
+            public void receiveException(Exception e) {
+              if (logger.level <= Logger.WARNING) {
+                logger.log("cannot log repaired account: " + e);
+              }
+            }
+          });
+        }
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Whether a node of a level covers keys of the given intervals
+   */
+  private static boolean intersects(byte[][] intervals, int level, int bucket) {
+    byte[] first = MerkleTree.firstKey(level, bucket);
+    byte[] end = MerkleTree.firstKey(level, bucket + 1);
+    for (int j = 0; j < intervals.length; j += 2) {
+      byte[] from = intervals[j];
+      byte[] to = intervals[j + 1];
+      if ((to == null || HashLedger.compareKeys(first, to) < 0) && (end == null || from == null || HashLedger.compareKeys(from, end) < 0)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Whether all the keys of a node of a level are in one of the intervals
+   */
+  private static boolean inside(byte[][] intervals, int level, int bucket) {
+    byte[] first = MerkleTree.firstKey(level, bucket);
+    byte[] end = MerkleTree.firstKey(level, bucket + 1);
+    for (int j = 0; j < intervals.length; j += 2) {
+      byte[] from = intervals[j];
+      byte[] to = intervals[j + 1];
+      if ((from == null || HashLedger.compareKeys(from, first) <= 0)
+          && (to == null || (end != null && HashLedger.compareKeys(end, to) <= 0))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Return the greatest of two lower bounds, null meaning the start of the Id space
+   */
+  private static byte[] max(byte[] a, byte[] b) {
+    if (b == null || (a != null && HashLedger.compareKeys(a, b) >= 0)) {
+      return a;
+    }
+    return b;
+  }
+
+  /**
+   * Return the least of two upper bounds, null meaning the end of the Id space
+   */
+  private static byte[] min(byte[] a, byte[] b) {
+    if (b == null || (a != null && HashLedger.compareKeys(a, b) <= 0)) {
+      return a;
+    }
+    return b;
+  }
+
+  private static int[] toArray(ArrayList<Integer> list) {
+    int[] array = new int[list.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = list.get(i).intValue();
+    }
+    return array;
+  }
+
+}
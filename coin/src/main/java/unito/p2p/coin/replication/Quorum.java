@@ -0,0 +1,238 @@
+package unito.p2p.coin.replication;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.p2p.commonapi.Cancellable;
+import rice.selector.TimerTask;
+
+/**
+ * @(#) Quorum.java The continuation of a request to the replicas of an
+ * account.
+ *
+ * Once the quorum is decided, the requests to the replicas which did not
+ * answer stop waiting: they no longer hold a pending entry, a window slot
+ * and a timer until their timeout, and their responses are ignored when
+ * they come. The replicas still apply the changes they were sent.
+ *
+ * A quorum can also ask the replicas a few at a time with ask(): a
+ * further replica is asked whenever one fails, and whenever none answered
+ * for the hedge delay, counted again from every answer, so that a slow
+ * replica does not hold up the request.
+ *
+ * A quorum is only used on the selector thread, where the timers run too,
+ * so nothing is synchronized.
+ */
+public class Quorum implements Continuation {
+
+  /**
+   * Sends a request to one of the replicas of an account
+   */
+  public interface Request {
+
+    /**
+     * @param i the index of the replica in the replica set
+     * @return stops waiting for the response
+     */
+    public Cancellable send(int i);
+  }
+
+  /**
+   * What the quorums of an application saved, for its report
+   */
+  public static class Counters {
+
+    /**
+     * the number of requests to replicas which stopped waiting for a
+     * response because the quorum was decided without them
+     */
+    private long released;
+
+    /**
+     * the number of requests sent to a further replica because the others
+     * were late or failed
+     */
+    private long hedged;
+
+    public long getReleased() {
+      return released;
+    }
+
+    public long getHedged() {
+      return hedged;
+    }
+  }
+
+  private Environment environment;
+
+  private Continuation parent;
+
+  private Counters counters;
+
+  /**
+   * the request to every replica, null once released
+   */
+  private Cancellable[] requests;
+
+  private boolean decided;
+
+  /**
+   * sends the request to a replica, null if the caller asks the replicas
+   */
+  private Request request;
+
+  /**
+   * the number of replicas asked at once
+   */
+  private int first;
+
+  /**
+   * the number of replicas asked so far
+   */
+  private int asked;
+
+  /**
+   * milliseconds without an answer before asking a further replica, -1 to
+   * ask one only when another fails
+   */
+  private long hedgeDelay;
+
+  /**
+   * asks a further replica once the hedge delay passes
+   */
+  private TimerTask hedge;
+
+  /**
+   * Create a quorum
+   *
+   * @param environment the environment of the application
+   * @param parent receives the decision
+   * @param replicas the number of replicas of the account
+   * @param counters counts the requests released and hedged
+   */
+  public Quorum(Environment environment, Continuation parent, int replicas, Counters counters) {
+    this.environment = environment;
+    this.parent = parent;
+    this.requests = new Cancellable[replicas];
+    this.counters = counters;
+  }
+
+  /**
+   * Record the request to the i-th replica, released at once if the
+   * quorum was decided while sending
+   */
+  public void sent(int i, Cancellable request) {
+    if (decided) {
+      release(request);
+    } else {
+      requests[i] = request;
+    }
+  }
+
+  /**
+   * Ask the first replicas, then the others one at a time until the
+   * quorum is decided
+   *
+   * @param request sends the request to a replica
+   * @param first the number of replicas asked at once
+   * @param hedgeDelay milliseconds without an answer before asking a
+   * further replica, -1 to ask one only when another fails
+   */
+  public void ask(Request request, int first, long hedgeDelay) {
+    this.request = request;
+    this.first = first;
+    this.hedgeDelay = hedgeDelay;
+    while (asked < first && !decided) {
+      askNext();
+    }
+    scheduleHedge();
+  }
+
+  /**
+   * Watch the answer of a replica asked by ask()
+   *
+   * @param sub receives the answer
+   * @return the continuation to give the request, which asks a further
+   * replica if it fails, and waits the hedge delay again from any answer
+   */
+  public Continuation watch(final Continuation sub) {
+    return new Continuation() {
+      public void receiveResult(Object result) {
+        sub.receiveResult(result);
+        rearmHedge();
+      }
+
+      public void receiveException(Exception e) {
+        sub.receiveException(e);
+        askNext();
+        rearmHedge();
+      }
+    };
+  }
+
+  public void receiveResult(Object result) {
+    decide();
+    parent.receiveResult(result);
+  }
+
+  public void receiveException(Exception e) {
+    decide();
+    parent.receiveException(e);
+  }
+
+  private void askNext() {
+    if (decided || request == null || asked >= requests.length) {
+      return;
+    }
+    int i = asked++;
+    if (i >= first) {
+      counters.hedged++;
+    }
+    sent(i, request.send(i));
+  }
+
+  /**
+   * Wait the hedge delay from now before asking a further replica
+   */
+  private void rearmHedge() {
+    if (hedge != null) {
+      hedge.cancel();
+      hedge = null;
+    }
+    scheduleHedge();
+  }
+
+  private void scheduleHedge() {
+    if (decided || hedgeDelay < 0 || asked >= requests.length) {
+      return;
+    }
+    hedge = new TimerTask() {
+      public void run() {
+        hedge = null;
+        askNext();
+        scheduleHedge();
+      }
+    };
+    environment.getSelectorManager().getTimer().schedule(hedge, hedgeDelay);
+  }
+
+  private void decide() {
+    decided = true;
+    if (hedge != null) {
+      hedge.cancel();
+      hedge = null;
+    }
+    for (int i = 0; i < requests.length; i++) {
+      if (requests[i] != null) {
+        release(requests[i]);
+        requests[i] = null;
+      }
+    }
+  }
+
+  private void release(Cancellable request) {
+    if (request.cancel()) {
+      counters.released++;
+    }
+  }
+
+}
@@ -0,0 +1,315 @@
+package unito.p2p.coin.replication;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.p2p.commonapi.Cancellable;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.NodeHandle;
+import rice.selector.TimerTask;
+
+/**
+ * @(#) ReplicaBatcher.java Groups the balance changes an account root
+ * propagates to the same replica, so that they are sent in one message
+ * with one acknowledgement.
+ *
+ * A change waits in the batch of its replica until the batch holds
+ * maxSize changes or the first change of the batch waited maxDelay
+ * milliseconds, whichever comes first; then the whole batch goes to the
+ * Sender. The continuation of every change receives whether the replica
+ * applied it, or the exception which failed the batch.
+ *
+ * A change whose quorum was decided without this replica can be cancelled:
+ * it is still sent, since the replica must apply it, but its continuation
+ * is no longer called, and once every change of a batch sent is cancelled
+ * the request of the batch stops waiting for the response.
+ *
+ * Changes are only added on the selector thread, where the timers run
+ * too, so nothing is synchronized.
+ */
+public class ReplicaBatcher {
+
+  /**
+   * the default maximum number of changes in a batch
+   */
+  public static final int DEFAULT_MAX_SIZE = 64;
+
+  /**
+   * the default number of milliseconds a change waits for others
+   */
+  public static final long DEFAULT_MAX_DELAY = 2;
+
+  /**
+   * Sends a batch to a replica
+   */
+  public interface Sender {
+
+    /**
+     * Send changes to a replica
+     *
+     * @param replica the replica
+     * @param updated the accounts to update
+     * @param deltas the money to add to every account, negative to remove it
+     * @param origins the digest of the message which started every change
+     * @param command receives a boolean[] telling which changes the replica
+     * applied
+     * @return stops waiting for the response
+     */
+    public Cancellable send(NodeHandle replica, Id[] updated, int[] deltas, long[] origins, Continuation command);
+  }
+
+  private Environment environment;
+
+  private Sender sender;
+
+  /**
+   * the maximum number of changes in a batch
+   */
+  private int maxSize;
+
+  /**
+   * milliseconds a change waits for others
+   */
+  private long maxDelay;
+
+  /**
+   * the batch filling for every replica
+   */
+  private HashMap<NodeHandle, Batch> batches;
+
+  /**
+   * the number of batches sent
+   */
+  private long sent;
+
+  /**
+   * the number of changes sent
+   */
+  private long changes;
+
+  /**
+   * Create a batcher
+   *
+   * @param environment the environment of the application
+   * @param sender sends the batches
+   * @param maxSize the maximum number of changes in a batch
+   * @param maxDelay milliseconds a change waits for others
+   */
+  public ReplicaBatcher(Environment environment, Sender sender, int maxSize, long maxDelay) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("A batch holds at least one change, not " + maxSize);
+    }
+    this.environment = environment;
+    this.sender = sender;
+    this.maxSize = maxSize;
+    this.maxDelay = maxDelay;
+    this.batches = new HashMap<NodeHandle, Batch>();
+  }
+
+  /**
+   * Add a change to the batch of a replica, sending the batch if it is full
+   *
+   * @param replica the replica to send the change to
+   * @param updated the account to update
+   * @param delta the money to add to the account, negative to remove it
+   * @param origin the digest of the message which started the change
+   * @param command receives a Boolean telling whether the replica applied
+   * the change
+   * @return stops calling command, without taking the change out
+   */
+  public Cancellable add(NodeHandle replica, Id updated, int delta, long origin, Continuation command) {
+    Batch batch = batches.get(replica);
+    if (batch == null) {
+      batch = new Batch(replica);
+      batches.put(replica, batch);
+      final Batch waiting = batch;
+      batch.timer = new TimerTask() {
+        public void run() {
+          flush(waiting);
+        }
+      };
+      environment.getSelectorManager().getTimer().schedule(batch.timer, maxDelay);
+    }
+
+    Change change = new Change(batch, updated, delta, origin, command);
+    batch.changes.add(change);
+    batch.live++;
+    if (batch.changes.size() >= maxSize) {
+      flush(batch);
+    }
+    return change;
+  }
+
+  /**
+   * Stop the timers and fail the changes still waiting
+   *
+   * @param reason the exception the continuations of the changes receive
+   */
+  public void stop(Exception reason) {
+    Iterator<Batch> i = batches.values().iterator();
+    while (i.hasNext()) {
+      Batch batch = i.next();
+      i.remove();
+      batch.timer.cancel();
+      for (int j = 0; j < batch.changes.size(); j++) {
+        Change change = batch.changes.get(j);
+        if (!change.cancelled) {
+          change.command.receiveException(reason);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of batches sent
+   */
+  public long getSent() {
+    return sent;
+  }
+
+  /**
+   * @return the average number of changes in a batch sent
+   */
+  public double getAverageSize() {
+    return sent == 0 ? 0 : (double) changes / sent;
+  }
+
+  /**
+   * Send a batch, once: the timer and a full batch can both flush it
+   */
+  private void flush(Batch batch) {
+    if (batches.get(batch.replica) != batch) {
+      return;
+    }
+    batches.remove(batch.replica);
+    batch.timer.cancel();
+
+    final ArrayList<Change> batched = batch.changes;
+    int size = batched.size();
+    Id[] updated = new Id[size];
+    int[] deltas = new int[size];
+    long[] origins = new long[size];
+    for (int i = 0; i < size; i++) {
+      Change change = batched.get(i);
+      updated[i] = change.updated;
+      deltas[i] = change.delta;
+      origins[i] = change.origin;
+    }
+    sent++;
+    changes += size;
+
+    batch.request = sender.send(batch.replica, updated, deltas, origins, new Continuation() {
+      public void receiveResult(Object result) {
+        boolean[] accepted = (boolean[]) result;
+        answer(batched);
+        for (int i = 0; i < batched.size(); i++) {
+          Change change = batched.get(i);
+          if (!change.cancelled) {
+            change.command.receiveResult(new Boolean(accepted[i]));
+          }
+        }
+      }
+
+      public void receiveException(Exception e) {
+        answer(batched);
+        for (int i = 0; i < batched.size(); i++) {
+          Change change = batched.get(i);
+          if (!change.cancelled) {
+            change.command.receiveException(e);
+          }
+        }
+      }
+    });
+    if (batch.live == 0) {
+      // every change was decided while the batch was filling
+      batch.request.cancel();
+    }
+  }
+
+  /**
+   * Mark the changes of a batch answered, before any continuation can
+   * cancel the others
+   */
+  private static void answer(ArrayList<Change> batched) {
+    for (int i = 0; i < batched.size(); i++) {
+      batched.get(i).answered = true;
+    }
+  }
+
+  /**
+   * The changes waiting to be sent to a replica
+   */
+  private static class Batch {
+
+    private NodeHandle replica;
+
+    private ArrayList<Change> changes = new ArrayList<Change>();
+
+    /**
+     * the number of changes not cancelled
+     */
+    private int live;
+
+    /**
+     * sends the batch once its first change waited long enough
+     */
+    private TimerTask timer;
+
+    /**
+     * waits for the response once the batch is sent
+     */
+    private Cancellable request;
+
+    Batch(NodeHandle replica) {
+      this.replica = replica;
+    }
+  }
+
+  /**
+   * A change in a batch
+   */
+  private static class Change implements Cancellable {
+
+    private Batch batch;
+
+    private Id updated;
+
+    private int delta;
+
+    private long origin;
+
+    private Continuation command;
+
+    private boolean cancelled;
+
+    /**
+     * whether the response of the batch came
+     */
+    private boolean answered;
+
+    Change(Batch batch, Id updated, int delta, long origin, Continuation command) {
+      this.batch = batch;
+      this.updated = updated;
+      this.delta = delta;
+      this.origin = origin;
+      this.command = command;
+    }
+
+    public boolean cancel() {
+      if (cancelled) {
+        return false;
+      }
+      cancelled = true;
+      batch.live--;
+      if (batch.live == 0 && batch.request != null && !answered) {
+        // nobody waits for the response of the batch any more
+        batch.request.cancel();
+      }
+      return !answered;
+    }
+  }
+
+}
@@ -0,0 +1,129 @@
+package unito.p2p.coin.replication;
+
+import java.nio.ByteBuffer;
+
+import rice.p2p.commonapi.IdRange;
+
+import unito.p2p.coin.ledger.HashLedger;
+import unito.p2p.coin.ledger.Ledger;
+import unito.p2p.coin.transport.StreamSource;
+
+/**
+ * @(#) StateTransfer.java Produces the accounts of a range of account roots,
+ * to be streamed to a node which became replica for them.
+ *
+ * The accounts are read from the ledger in Id order, a chunk at a time, as
+ * the stream asks for them, so that a transfer never holds more than a
+ * chunk of the range and never holds the ledger long enough to slow down
+ * the requests being served meanwhile.
+ */
+public class StateTransfer implements StreamSource {
+
+  /**
+   * the ledger holding the accounts
+   */
+  private Ledger ledger;
+
+  /**
+   * the maximum number of accounts per chunk
+   */
+  private int chunkSize;
+
+  /**
+   * the key intervals covering the range, from and to of each one
+   */
+  private byte[][] intervals;
+
+  /**
+   * the interval being transferred
+   */
+  private int current;
+
+  /**
+   * the first key of the next chunk, null for the start of the interval
+   */
+  private byte[] cursor;
+
+  /**
+   * the number of accounts produced
+   */
+  private int sent;
+
+  /**
+   * Create a transfer
+   *
+   * @param ledger the ledger holding the accounts
+   * @param range the range of account roots to transfer
+   * @param chunkSize the maximum number of accounts per chunk
+   */
+  public StateTransfer(Ledger ledger, IdRange range, int chunkSize) {
+    this.ledger = ledger;
+    this.chunkSize = chunkSize;
+    this.intervals = toIntervals(range);
+  }
+
+  /**
+   * Read the next accounts of the range
+   *
+   * @return the accounts in Ledger.scan() format, null once the range is exhausted
+   */
+  public byte[] nextChunk() {
+    while (current < intervals.length / 2) {
+      byte[] to = intervals[current * 2 + 1];
+      ByteBuffer chunk = ledger.scan(cursor == null ? intervals[current * 2] : cursor, to, chunkSize);
+
+      byte[] accounts = null;
+      int count = chunk.remaining() / HashLedger.ACCOUNT_SIZE;
+      if (count > 0) {
+        byte[] lastKey = new byte[HashLedger.KEY_LENGTH];
+        chunk.position((count - 1) * HashLedger.ACCOUNT_SIZE);
+        chunk.get(lastKey);
+        chunk.position(0);
+        cursor = HashLedger.successor(lastKey);
+
+        accounts = new byte[chunk.remaining()];
+        chunk.get(accounts);
+      }
+
+      // move on once the interval is exhausted
+      if (count < chunkSize || cursor == null || (to != null && HashLedger.compareKeys(cursor, to) >= 0)) {
+        current++;
+        cursor = null;
+      }
+
+      if (accounts != null) {
+        sent += count;
+        return accounts;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the number of accounts produced so far
+   */
+  public int getSent() {
+    return sent;
+  }
+
+  /**
+   * Return the key intervals covering a range of the Id ring, which is
+   * split in two when it wraps around
+   *
+   * @param range the range
+   * @return from and to of every interval, null meaning the ends of the Id space
+   */
+  public static byte[][] toIntervals(IdRange range) {
+    if (range.isEmpty()) {
+      return new byte[0][];
+    }
+
+    byte[] from = HashLedger.toKey(range.getCCWId());
+    byte[] to = HashLedger.toKey(range.getCWId());
+    if (HashLedger.compareKeys(from, to) < 0) {
+      return new byte[][] {from, to};
+    }
+    return new byte[][] {from, null, null, to};
+  }
+
+}
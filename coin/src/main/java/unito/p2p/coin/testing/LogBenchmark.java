@@ -0,0 +1,131 @@
+package unito.p2p.coin.testing;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import rice.Continuation;
+import rice.p2p.commonapi.Id;
+
+import unito.p2p.coin.ledger.WriteAheadLog;
+
+/**
+ * Measures throughput and latency of the ledger write ahead log at a given
+ * offered load of balance updates per second.
+ */
+public class LogBenchmark {
+
+  /**
+   * the offered loads used when none is given on the command line
+   */
+  private static final int[] DEFAULT_RATES = {1, 100, 10000};
+
+  /**
+   * Run the log at the given rate for the given time and print the results
+   *
+   * @param directory where to put the log segments
+   * @param rate the number of updates per second
+   * @param seconds how long to run
+   */
+  private static void run(File directory, int rate, int seconds) throws Exception {
+    File dir = new File(directory, "benchmark-" + rate);
+    delete(dir);
+    WriteAheadLog log = new WriteAheadLog(dir, WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+
+    // fixed seed so that every run writes the same records
+    Random rand = new Random(rate);
+    Id[] ids = new Id[1024];
+    for (int i = 0; i < ids.length; i++) {
+      byte[] key = new byte[20];
+      rand.nextBytes(key);
+      ids[i] = rice.pastry.Id.build(key);
+    }
+
+    int total = rate * seconds;
+    final long[] latencies = new long[total];
+    final int[] done = new int[1];
+
+    long interval = 1000000000L / rate;
+    long start = System.nanoTime();
+    for (int i = 0; i < total; i++) {
+      final long issued = start + i * interval;
+      long now = System.nanoTime();
+      if (issued > now) {
+        Thread.sleep((issued - now) / 1000000, (int) ((issued - now) % 1000000));
+      }
+
+      final int index = i;
+      log.append(ids[i % ids.length], rand.nextInt(1000), new Continuation() {
+        public void receiveResult(Object result) {
+          synchronized (done) {
+            latencies[index] = System.nanoTime() - issued;
+            done[0]++;
+            done.notifyAll();
+          }
+        }
+
+        public void receiveException(Exception e) {
+          System.out.println("append failed: " + e);
+        }
+      });
+    }
+
+    synchronized (done) {
+      while (done[0] < total) {
+        done.wait();
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    log.close();
+    delete(dir);
+
+    Arrays.sort(latencies);
+    System.out.println("rate " + rate + "/s: " + total + " updates in " + (elapsed / 1000000) + " ms, "
+        + (total * 1000000000L / elapsed) + " durable updates/s, "
+        + log.getAverageCommitSize() + " updates per fsync, "
+        + "p50 " + (latencies[total / 2] / 1000) + " us, "
+        + "p99 " + (latencies[(int) (total * 0.99)] / 1000) + " us, "
+        + "max " + (latencies[total - 1] / 1000) + " us");
+  }
+
+  /**
+   * Delete a log directory left by a previous run
+   */
+  private static void delete(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (int i = 0; i < files.length; i++) {
+        files[i].delete();
+      }
+    }
+    dir.delete();
+  }
+
+  /**
+   * Usage:
+   * java [-cp FreePastry-<version>.jar] unito.p2p.coin.testing.LogBenchmark directory seconds [rate...]
+   */
+  public static void main(String[] args) throws Exception {
+    try {
+      File directory = new File(args[0]);
+      int seconds = Integer.parseInt(args[1]);
+
+      int[] rates = DEFAULT_RATES;
+      if (args.length > 2) {
+        rates = new int[args.length - 2];
+        for (int i = 2; i < args.length; i++) {
+          rates[i - 2] = Integer.parseInt(args[i]);
+        }
+      }
+
+      for (int i = 0; i < rates.length; i++) {
+        run(directory, rates[i], seconds);
+      }
+    } catch (Exception e) {
+      System.out.println("Usage:");
+      System.out.println("java [-cp FreePastry-<version>.jar] unito.p2p.coin.testing.LogBenchmark directory seconds [rate...]");
+      System.out.println("  example: java unito.p2p.coin.testing.LogBenchmark /tmp 10 1 100 10000");
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package unito.p2p.coin.testing;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.MessageDeserializer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+
+import unito.p2p.coin.messaging.CoinMessageDeserializer;
+
+/**
+ * @(#) TestNodes.java The ids, node handles and endpoint the unit tests and
+ * the benchmarks work on, without a running node.
+ *
+ * The node handles are written like the ones of the socket transport: the
+ * id followed by an address, a port and an epoch. The endpoint reading them
+ * back only implements what the deserializers use, so that messages can be
+ * read without a running node.
+ */
+public class TestNodes {
+
+  /**
+   * Return the id numbered n, always the same for the same n
+   *
+   * @param n the number of the id
+   */
+  public static Id id(int n) {
+    byte[] bytes = new byte[rice.pastry.Id.IdBitLength / 8];
+    new Random(n).nextBytes(bytes);
+    return rice.pastry.Id.build(bytes);
+  }
+
+  /**
+   * Return count ids chosen at random from a fixed seed
+   *
+   * @param count the number of ids
+   * @param seed the seed
+   */
+  public static Id[] ids(int count, long seed) {
+    Random random = new Random(seed);
+    Id[] ids = new Id[count];
+    for (int i = 0; i < count; i++) {
+      byte[] bytes = new byte[rice.pastry.Id.IdBitLength / 8];
+      random.nextBytes(bytes);
+      ids[i] = rice.pastry.Id.build(bytes);
+    }
+    return ids;
+  }
+
+  /**
+   * Return the handle of the node numbered n
+   *
+   * @param n the number of the node, used for its id and its port
+   */
+  public static NodeHandle handle(int n) {
+    return new Handle(id(n), n);
+  }
+
+  /**
+   * Return the handle of a node
+   *
+   * @param id the id of the node
+   * @param port the port of the node, also used for its epoch
+   */
+  public static NodeHandle handle(Id id, int port) {
+    return new Handle(id, port);
+  }
+
+  /**
+   * Return an endpoint reading the ids, ranges and handles written by the
+   * fixtures, and the messages with a CoinMessageDeserializer
+   */
+  public static Endpoint endpoint() {
+    return (Endpoint) Proxy.newProxyInstance(TestNodes.class.getClassLoader(), new Class[] {Endpoint.class}, new InvocationHandler() {
+      private MessageDeserializer deserializer = null;
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("readId")) {
+          return rice.pastry.Id.build((InputBuffer) args[0]);
+        }
+        if (name.equals("readNodeHandle")) {
+          InputBuffer buf = (InputBuffer) args[0];
+          Id id = rice.pastry.Id.build(buf);
+          buf.readInt();
+          int port = buf.readShort() & 0xffff;
+          buf.readLong();
+          return new Handle(id, port);
+        }
+        if (name.equals("readIdRange")) {
+          return new rice.pastry.IdRange((InputBuffer) args[0]);
+        }
+        if (name.equals("getDeserializer")) {
+          if (deserializer == null) {
+            deserializer = new CoinMessageDeserializer((Endpoint) proxy);
+          }
+          return deserializer;
+        }
+        if (name.equals("toString")) {
+          return "test endpoint";
+        }
+        throw new UnsupportedOperationException(name);
+      }
+    });
+  }
+
+  /**
+   * A node handle written like the ones of the socket transport
+   */
+  private static class Handle extends NodeHandle {
+
+    private Id id;
+
+    private int port;
+
+    Handle(Id id, int port) {
+      this.id = id;
+      this.port = port;
+    }
+
+    public Id getId() {
+      return id;
+    }
+
+    public boolean isAlive() {
+      return true;
+    }
+
+    public int proximity() {
+      return 0;
+    }
+
+    public boolean checkLiveness() {
+      return true;
+    }
+
+    public void serialize(OutputBuffer buf) throws IOException {
+      id.serialize(buf);
+      // the address, the port and the epoch of a socket handle
+      buf.writeInt(0x7f000001);
+      buf.writeShort((short) port);
+      buf.writeLong(port);
+    }
+
+    public boolean equals(Object o) {
+      return o instanceof Handle && ((Handle) o).id.equals(id) && ((Handle) o).port == port;
+    }
+
+    public int hashCode() {
+      return id.hashCode() ^ port;
+    }
+
+    public String toString() {
+      return "[Handle " + id + ":" + port + "]";
+    }
+  }
+
+}
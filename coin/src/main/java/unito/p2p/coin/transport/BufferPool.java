@@ -0,0 +1,197 @@
+package unito.p2p.coin.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @(#) BufferPool.java Recycles the ByteBuffers used to read and write
+ * messages, so that the selector thread does not allocate a buffer per
+ * message.
+ *
+ * Buffers come in size classes, every class holding buffers of twice the
+ * capacity of the previous one, from MIN_BUFFER_SIZE to maxBufferSize. A
+ * request gets a buffer of the smallest class large enough, with the limit
+ * set to the size requested; larger requests get a buffer of their own
+ * which is not kept when released. Every class keeps at most buffersPerClass
+ * released buffers, the others are left to the garbage collector.
+ *
+ * Direct buffers are read and written by the channels without a copy, but
+ * are expensive to allocate, which is why they are worth pooling. A pool
+ * can be shared by many threads: every class has its own lock.
+ */
+public class BufferPool {
+
+  /**
+   * the capacity of the smallest class
+   */
+  public static final int MIN_BUFFER_SIZE = 256;
+
+  /**
+   * the default capacity of the largest class
+   */
+  public static final int DEFAULT_MAX_BUFFER_SIZE = 1 << 20;
+
+  /**
+   * the default number of released buffers kept per class
+   */
+  public static final int DEFAULT_BUFFERS_PER_CLASS = 64;
+
+  /**
+   * the released buffers of every class
+   */
+  private SizeClass[] classes;
+
+  /**
+   * the capacity of the largest class
+   */
+  private int maxBufferSize;
+
+  /**
+   * whether the buffers are direct
+   */
+  private boolean direct;
+
+  /**
+   * Create a pool of direct buffers with the default sizes
+   */
+  public BufferPool() {
+    this(DEFAULT_MAX_BUFFER_SIZE, DEFAULT_BUFFERS_PER_CLASS, true);
+  }
+
+  /**
+   * Create a pool
+   *
+   * @param maxBufferSize the capacity of the largest class, a power of two
+   * @param buffersPerClass the number of released buffers kept per class
+   * @param direct whether the buffers are direct
+   */
+  public BufferPool(int maxBufferSize, int buffersPerClass, boolean direct) {
+    if (maxBufferSize < MIN_BUFFER_SIZE || Integer.bitCount(maxBufferSize) != 1) {
+      throw new IllegalArgumentException("The largest buffer size must be a power of two of at least " + MIN_BUFFER_SIZE + ": " + maxBufferSize);
+    }
+
+    this.maxBufferSize = maxBufferSize;
+    this.direct = direct;
+    this.classes = new SizeClass[indexFor(maxBufferSize) + 1];
+    for (int i = 0; i < classes.length; i++) {
+      classes[i] = new SizeClass(MIN_BUFFER_SIZE << i, buffersPerClass);
+    }
+  }
+
+  /**
+   * Borrow a buffer, to be given back with release()
+   *
+   * @param size the number of bytes needed
+   * @return a buffer with position 0 and limit size
+   */
+  public ByteBuffer acquire(int size) {
+    if (size > maxBufferSize) {
+      // too large to be worth keeping, and to be allocated outside the heap
+      return ByteBuffer.allocate(size);
+    }
+
+    ByteBuffer buffer = classes[indexFor(size)].acquire(direct);
+    buffer.limit(size);
+    return buffer;
+  }
+
+  /**
+   * Give back a buffer, which must not be used afterwards
+   *
+   * @param buffer a buffer returned by acquire(), or null
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null || buffer.isDirect() != direct) {
+      return;
+    }
+
+    int capacity = buffer.capacity();
+    if (capacity < MIN_BUFFER_SIZE || capacity > maxBufferSize || Integer.bitCount(capacity) != 1) {
+      return;
+    }
+    classes[indexFor(capacity)].release(buffer);
+  }
+
+  /**
+   * @return the number of buffers handed out which were recycled
+   */
+  public long getHits() {
+    long hits = 0;
+    for (int i = 0; i < classes.length; i++) {
+      hits += classes[i].getHits();
+    }
+    return hits;
+  }
+
+  /**
+   * @return the number of buffers handed out which were allocated
+   */
+  public long getMisses() {
+    long misses = 0;
+    for (int i = 0; i < classes.length; i++) {
+      misses += classes[i].getMisses();
+    }
+    return misses;
+  }
+
+  /**
+   * Return the class of the smallest buffers holding size bytes
+   */
+  private static int indexFor(int size) {
+    if (size <= MIN_BUFFER_SIZE) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+  }
+
+  /**
+   * The released buffers of a capacity
+   */
+  private static class SizeClass {
+
+    private int capacity;
+
+    /**
+     * a stack of released buffers, the last one being on top
+     */
+    private ByteBuffer[] free;
+
+    private int count;
+
+    private long hits;
+
+    private long misses;
+
+    SizeClass(int capacity, int buffersPerClass) {
+      this.capacity = capacity;
+      this.free = new ByteBuffer[buffersPerClass];
+    }
+
+    synchronized ByteBuffer acquire(boolean direct) {
+      if (count > 0) {
+        hits++;
+        ByteBuffer buffer = free[--count];
+        free[count] = null;
+        buffer.clear();
+        return buffer;
+      }
+
+      misses++;
+      return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    synchronized void release(ByteBuffer buffer) {
+      if (count < free.length) {
+        free[count++] = buffer;
+      }
+    }
+
+    synchronized long getHits() {
+      return hits;
+    }
+
+    synchronized long getMisses() {
+      return misses;
+    }
+  }
+
+}
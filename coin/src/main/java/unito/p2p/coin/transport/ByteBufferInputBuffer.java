@@ -0,0 +1,141 @@
+package unito.p2p.coin.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+
+/**
+ * @(#) ByteBufferInputBuffer.java InputBuffer reading a ByteBuffer, direct
+ * or not, from its position to its limit.
+ *
+ * This lets the deserializers read a frame where it was received, instead
+ * of copying it in an array for a SimpleInputBuffer. Values are big endian,
+ * and strings use the modified UTF-8 of DataInput, as for SimpleInputBuffer.
+ */
+public class ByteBufferInputBuffer implements InputBuffer {
+
+  /**
+   * the bytes to read
+   */
+  private ByteBuffer buffer;
+
+  /**
+   * the node handles read before on the same socket, null if the handles
+   * are written in full
+   */
+  private NodeHandleTable handles;
+
+  /**
+   * Read a buffer, whose position is moved by the reads
+   *
+   * @param buffer the bytes to read
+   */
+  public ByteBufferInputBuffer(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  /**
+   * Read a buffer received on a socket, whose node handles can refer to the
+   * ones read before on the same socket
+   *
+   * @param buffer the bytes to read
+   * @param handles the node handles read before on the socket
+   */
+  public ByteBufferInputBuffer(ByteBuffer buffer, NodeHandleTable handles) {
+    this.buffer = buffer;
+    this.handles = handles;
+  }
+
+  /**
+   * @return the node handles read before on the same socket, null if the
+   * handles are written in full
+   */
+  public NodeHandleTable getHandles() {
+    return handles;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!buffer.hasRemaining()) {
+      return -1;
+    }
+    int count = Math.min(len, buffer.remaining());
+    buffer.get(b, off, count);
+    return count;
+  }
+
+  public int read(byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  public boolean readBoolean() throws IOException {
+    return readByte() != 0;
+  }
+
+  public byte readByte() throws IOException {
+    require(1);
+    return buffer.get();
+  }
+
+  public char readChar() throws IOException {
+    require(2);
+    return buffer.getChar();
+  }
+
+  public double readDouble() throws IOException {
+    require(8);
+    return buffer.getDouble();
+  }
+
+  public float readFloat() throws IOException {
+    require(4);
+    return buffer.getFloat();
+  }
+
+  public int readInt() throws IOException {
+    require(4);
+    return buffer.getInt();
+  }
+
+  public long readLong() throws IOException {
+    require(8);
+    return buffer.getLong();
+  }
+
+  public short readShort() throws IOException {
+    require(2);
+    return buffer.getShort();
+  }
+
+  public String readUTF() throws IOException {
+    require(2);
+    int length = buffer.getShort() & 0xFFFF;
+    require(length);
+
+    byte[] utf = new byte[length + 2];
+    utf[0] = (byte) (length >>> 8);
+    utf[1] = (byte) length;
+    buffer.get(utf, 2, length);
+    return DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(utf)));
+  }
+
+  public int bytesRemaining() {
+    return buffer.remaining();
+  }
+
+  /**
+   * Make sure that count bytes are left
+   */
+  private void require(int count) throws EOFException {
+    if (buffer.remaining() < count) {
+      throw new EOFException("Needed " + count + " bytes, " + buffer.remaining() + " left");
+    }
+  }
+
+}
@@ -0,0 +1,211 @@
+package unito.p2p.coin.transport;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+
+/**
+ * @(#) ByteBufferOutputBuffer.java OutputBuffer writing a frame straight
+ * into a ByteBuffer borrowed from a BufferPool.
+ *
+ * The buffer starts with room for the frame length, which is filled in by
+ * toFrame() once the body is written, so the buffer returned can be handed
+ * to the socket as is. When the body does not fit, the buffer is replaced
+ * by one twice as large from the pool and the old one is released. Values
+ * are big endian, and strings use the modified UTF-8 of DataOutput, as for
+ * SimpleOutputBuffer.
+ */
+public class ByteBufferOutputBuffer implements OutputBuffer {
+
+  /**
+   * the default size of the first buffer
+   */
+  public static final int DEFAULT_INITIAL_SIZE = BufferPool.MIN_BUFFER_SIZE;
+
+  /**
+   * lends the buffers
+   */
+  private BufferPool pool;
+
+  /**
+   * the frame being written, null once toFrame() gave it away
+   */
+  private ByteBuffer buffer;
+
+  /**
+   * the node handles sent before on the same socket, null if the handles
+   * are written in full
+   */
+  private NodeHandleTable handles;
+
+  /**
+   * Start a frame in a buffer of the default size
+   *
+   * @param pool lends the buffers
+   */
+  public ByteBufferOutputBuffer(BufferPool pool) {
+    this(pool, DEFAULT_INITIAL_SIZE);
+  }
+
+  /**
+   * Start a frame
+   *
+   * @param pool lends the buffers
+   * @param initialSize the size of the first buffer
+   */
+  public ByteBufferOutputBuffer(BufferPool pool, int initialSize) {
+    this.pool = pool;
+    this.buffer = pool.acquire(Math.max(initialSize, FrameReader.HEADER_SIZE));
+    buffer.limit(buffer.capacity());
+    buffer.position(FrameReader.HEADER_SIZE);
+  }
+
+  /**
+   * Let the node handles written refer to the ones sent before on the same
+   * socket
+   *
+   * @param handles the node handles sent on the socket
+   */
+  public void setHandles(NodeHandleTable handles) {
+    this.handles = handles;
+  }
+
+  /**
+   * @return the node handles sent before on the same socket, null if the
+   * handles are written in full
+   */
+  public NodeHandleTable getHandles() {
+    return handles;
+  }
+
+  /**
+   * Fill in the length of the frame and give the buffer away: it must be
+   * released to the pool once written, and this cannot be used afterwards
+   *
+   * @return the frame, from position to limit
+   */
+  public ByteBuffer toFrame() {
+    ByteBuffer frame = buffer;
+    buffer = null;
+    frame.putInt(0, frame.position() - FrameReader.HEADER_SIZE);
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * Give the buffer back to the pool without sending the frame
+   */
+  public void release() {
+    pool.release(buffer);
+    buffer = null;
+  }
+
+  /**
+   * @return the number of bytes of the body written so far
+   */
+  public int getWritten() {
+    return buffer.position() - FrameReader.HEADER_SIZE;
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensure(len);
+    buffer.put(b, off, len);
+  }
+
+  public void writeBoolean(boolean v) throws IOException {
+    writeByte(v ? (byte) 1 : (byte) 0);
+  }
+
+  public void writeByte(byte v) throws IOException {
+    ensure(1);
+    buffer.put(v);
+  }
+
+  public void writeChar(char v) throws IOException {
+    ensure(2);
+    buffer.putChar(v);
+  }
+
+  public void writeDouble(double v) throws IOException {
+    ensure(8);
+    buffer.putDouble(v);
+  }
+
+  public void writeFloat(float v) throws IOException {
+    ensure(4);
+    buffer.putFloat(v);
+  }
+
+  public void writeInt(int v) throws IOException {
+    ensure(4);
+    buffer.putInt(v);
+  }
+
+  public void writeLong(long v) throws IOException {
+    ensure(8);
+    buffer.putLong(v);
+  }
+
+  public void writeShort(short v) throws IOException {
+    ensure(2);
+    buffer.putShort(v);
+  }
+
+  public void writeUTF(String s) throws IOException {
+    int length = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF ? 2 : 3);
+    }
+    if (length > 0xFFFF) {
+      throw new UTFDataFormatException("String too long to be written: " + length + " bytes");
+    }
+
+    ensure(2 + length);
+    buffer.putShort((short) length);
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F) {
+        buffer.put((byte) c);
+      } else if (c <= 0x07FF) {
+        buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      } else {
+        buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+  }
+
+  public int bytesRemaining() {
+    return buffer.remaining();
+  }
+
+  /**
+   * Make room for count more bytes, moving to a larger buffer if needed
+   */
+  private void ensure(int count) {
+    if (buffer.remaining() >= count) {
+      return;
+    }
+
+    int size = buffer.capacity();
+    while (size - buffer.position() < count) {
+      if (size > Integer.MAX_VALUE / 2) {
+        throw new IllegalStateException("Frame too large: " + buffer.position() + " + " + count + " bytes");
+      }
+      size *= 2;
+    }
+
+    ByteBuffer larger = pool.acquire(size);
+    larger.limit(larger.capacity());
+    buffer.flip();
+    larger.put(buffer);
+    pool.release(buffer);
+    buffer = larger;
+  }
+
+}
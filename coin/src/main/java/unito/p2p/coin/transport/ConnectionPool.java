@@ -0,0 +1,705 @@
+package unito.p2p.coin.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.appsocket.AppSocket;
+import rice.p2p.commonapi.appsocket.AppSocketReceiver;
+import rice.selector.TimerTask;
+
+import unito.p2p.coin.CoinOverloadedException;
+
+/**
+ * @(#) ConnectionPool.java Keeps AppSockets to other nodes open and reuses
+ * them for the following frames, instead of opening a socket per message.
+ *
+ * Every peer gets up to maxConnections sockets. A frame goes to an open
+ * socket of its peer which is not writing if there is one, to a new socket
+ * if the peer has fewer than maxConnections, and otherwise is queued on the
+ * socket with the shortest queue. A peer cannot have more than maxQueued
+ * frames waiting: the following ones fail at once with a
+ * CoinOverloadedException, so that a slow peer does not make the node pile
+ * up frames until it runs out of memory. Sockets unused for idleTimeout
+ * milliseconds are closed, and so are the sockets to peers found dead by a
+ * periodic check.
+ *
+ * A socket is not written as soon as a frame is queued on it: it waits
+ * flushDelay milliseconds for more frames, and then writes all the frames
+ * queued with a single gathering write, so that the messages an operation
+ * sends to the same peer share the system calls and the TCP segments. An
+ * urgent frame flushes its socket at once, with the frames queued before it.
+ *
+ * A socket failing is closed and dropped from the pool. The frames queued
+ * on it which were not started yet are sent again, once, on another socket,
+ * so that a socket closed by the peer while idle in the pool costs nothing;
+ * the others fail.
+ *
+ * Frames are given back to a BufferPool once written or failed, so they
+ * can be borrowed from it by the encoder.
+ *
+ * A frame can also be sent as a FrameEncoder, which writes it when it is
+ * queued on a socket, with the NodeHandleTable of the socket: the node
+ * handles it carries are sent in full the first time only. Such a frame
+ * sent again on another socket is written again, and one which cannot be
+ * written takes its handles out of the table.
+ *
+ * All the state is handled on the selector thread, frames sent from other
+ * threads are handed over to it.
+ */
+public class ConnectionPool {
+
+  /**
+   * the default number of milliseconds after which an unused socket is closed
+   */
+  public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+  /**
+   * the default maximum number of sockets to a peer
+   */
+  public static final int DEFAULT_MAX_CONNECTIONS = 2;
+
+  /**
+   * the default maximum number of frames waiting to be written to a peer
+   */
+  public static final int DEFAULT_MAX_QUEUED = 4096;
+
+  /**
+   * the default number of milliseconds between two checks of the sockets
+   */
+  public static final long DEFAULT_CHECK_INTERVAL = 5000;
+
+  /**
+   * the default number of milliseconds a frame waits for others to be
+   * written with
+   */
+  public static final long DEFAULT_FLUSH_DELAY = 1;
+
+  /**
+   * milliseconds allowed to open a socket or to write on it
+   */
+  public static final int SOCKET_TIMEOUT = 10000;
+
+  /**
+   * the maximum number of frames written at once
+   */
+  static final int MAX_GATHER = 64;
+
+  private Endpoint endpoint;
+
+  private Environment environment;
+
+  private Logger logger;
+
+  /**
+   * takes back the frames written
+   */
+  private BufferPool pool;
+
+  /**
+   * the open and opening sockets of every peer
+   */
+  private HashMap<NodeHandle, ArrayList<Connection>> connections;
+
+  /**
+   * milliseconds after which an unused socket is closed
+   */
+  private long idleTimeout;
+
+  /**
+   * the maximum number of sockets to a peer
+   */
+  private int maxConnections;
+
+  /**
+   * the maximum number of frames waiting to be written to a peer
+   */
+  private int maxQueued;
+
+  /**
+   * milliseconds a frame waits for others to be written with
+   */
+  private long flushDelay;
+
+  /**
+   * checks the sockets periodically
+   */
+  private TimerTask checker;
+
+  /**
+   * set once the pool is closed
+   */
+  private boolean closed;
+
+  /**
+   * the number of sockets opened
+   */
+  private long opened;
+
+  /**
+   * the number of frames sent on a socket already open
+   */
+  private long reused;
+
+  /**
+   * the number of sockets closed after an error
+   */
+  private long failed;
+
+  /**
+   * the number of frames refused because too many were waiting
+   */
+  private long refused;
+
+  /**
+   * the number of frames written
+   */
+  private long framesWritten;
+
+  /**
+   * the number of writes
+   */
+  private long writes;
+
+  /**
+   * the number of node handles sent as an index in the table of a socket
+   */
+  private long handleReferences;
+
+  /**
+   * Create a pool and start checking its sockets
+   *
+   * @param endpoint the endpoint opening the sockets
+   * @param pool takes back the frames written
+   * @param idleTimeout milliseconds after which an unused socket is closed
+   * @param maxConnections the maximum number of sockets to a peer
+   * @param maxQueued the maximum number of frames waiting to be written to a peer
+   * @param checkInterval milliseconds between two checks of the sockets
+   * @param flushDelay milliseconds a frame waits for others to be written
+   * with, 0 to write every frame as soon as possible
+   * @param logger the logger of the application
+   */
+  public ConnectionPool(Endpoint endpoint, BufferPool pool, long idleTimeout, int maxConnections, int maxQueued, long checkInterval, long flushDelay, Logger logger) {
+    if (maxConnections < 1) {
+      throw new IllegalArgumentException("At least a connection per peer is needed, got " + maxConnections);
+    }
+
+    this.endpoint = endpoint;
+    this.environment = endpoint.getEnvironment();
+    this.pool = pool;
+    this.idleTimeout = idleTimeout;
+    this.maxConnections = maxConnections;
+    this.maxQueued = maxQueued;
+    this.flushDelay = flushDelay;
+    this.logger = logger;
+    this.connections = new HashMap<NodeHandle, ArrayList<Connection>>();
+
+    checker = new TimerTask() {
+      public void run() {
+        check();
+      }
+    };
+    environment.getSelectorManager().getTimer().schedule(checker, checkInterval, checkInterval);
+  }
+
+  /**
+   * Send a frame to a peer, after waiting for others to be written with it
+   *
+   * @param handle the peer
+   * @param frame the bytes to write, which are released to the buffer pool
+   * @param c receives the exception if the frame cannot be written, may be null
+   */
+  public void send(NodeHandle handle, ByteBuffer frame, Continuation c) {
+    send(handle, frame, c, false);
+  }
+
+  /**
+   * Send a frame to a peer
+   *
+   * @param handle the peer
+   * @param frame the bytes to write, which are released to the buffer pool
+   * @param c receives the exception if the frame cannot be written, may be null
+   * @param urgent whether to write the frame as soon as possible, with the
+   * ones already waiting
+   */
+  public void send(final NodeHandle handle, final ByteBuffer frame, final Continuation c, final boolean urgent) {
+    if (environment.getSelectorManager().isSelectorThread()) {
+      send(new Frame(handle, frame, c, urgent));
+    } else {
+      environment.getSelectorManager().invoke(new Runnable() {
+        public void run() {
+          send(new Frame(handle, frame, c, urgent));
+        }
+      });
+    }
+  }
+
+  /**
+   * Send a frame to a peer, written when it is queued on a socket
+   *
+   * @param handle the peer
+   * @param encoder writes the frame, which is released to the buffer pool
+   * @param c receives the exception if the frame cannot be written, may be null
+   * @param urgent whether to write the frame as soon as possible, with the
+   * ones already waiting
+   */
+  public void send(final NodeHandle handle, final FrameEncoder encoder, final Continuation c, final boolean urgent) {
+    if (environment.getSelectorManager().isSelectorThread()) {
+      send(new Frame(handle, encoder, c, urgent));
+    } else {
+      environment.getSelectorManager().invoke(new Runnable() {
+        public void run() {
+          send(new Frame(handle, encoder, c, urgent));
+        }
+      });
+    }
+  }
+
+  /**
+   * Close every socket and stop checking them, the frames still queued fail
+   */
+  public void close() {
+    if (environment.getSelectorManager().isSelectorThread()) {
+      doClose();
+    } else {
+      environment.getSelectorManager().invoke(new Runnable() {
+        public void run() {
+          doClose();
+        }
+      });
+    }
+  }
+
+  /**
+   * @return the number of sockets opened
+   */
+  public long getOpened() {
+    return opened;
+  }
+
+  /**
+   * @return the number of frames sent on a socket already open
+   */
+  public long getReused() {
+    return reused;
+  }
+
+  /**
+   * @return the number of sockets closed after an error
+   */
+  public long getFailed() {
+    return failed;
+  }
+
+  /**
+   * @return the number of frames refused because too many were waiting
+   */
+  public long getRefused() {
+    return refused;
+  }
+
+  /**
+   * @return the number of node handles sent as an index in the table of a
+   * socket instead of in full
+   */
+  public long getHandleReferences() {
+    return handleReferences;
+  }
+
+  /**
+   * @return the average number of frames written at once
+   */
+  public double getAverageFramesPerWrite() {
+    return writes == 0 ? 0 : ((double) framesWritten) / writes;
+  }
+
+  /**
+   * Queue a frame on the best socket to its peer, on the selector thread
+   */
+  private void send(Frame frame) {
+    if (closed) {
+      frame.fail(new IOException("Connection pool closed"));
+      return;
+    }
+
+    ArrayList<Connection> list = connections.get(frame.handle);
+    if (list == null) {
+      list = new ArrayList<Connection>(maxConnections);
+      connections.put(frame.handle, list);
+    }
+
+    int queued = 0;
+    for (int i = 0; i < list.size(); i++) {
+      queued += list.get(i).queue.size();
+    }
+    if (queued >= maxQueued) {
+      refused++;
+      frame.fail(new CoinOverloadedException("Overloaded: " + queued + " frames waiting to be written to " + frame.handle));
+      return;
+    }
+
+    Connection best = null;
+    for (int i = 0; i < list.size(); i++) {
+      Connection connection = list.get(i);
+      if (connection.isAvailable()) {
+        best = connection;
+        break;
+      }
+      if (best == null || connection.queue.size() < best.queue.size()) {
+        best = connection;
+      }
+    }
+
+    if ((best == null || !best.isAvailable()) && list.size() < maxConnections) {
+      best = new Connection(frame.handle);
+      list.add(best);
+      opened++;
+      best.enqueue(frame);
+      best.connect();
+      return;
+    }
+
+    reused++;
+    best.enqueue(frame);
+  }
+
+  /**
+   * Close the sockets unused for too long or to dead peers
+   */
+  private void check() {
+    long now = environment.getTimeSource().currentTimeMillis();
+    ArrayList<Connection> expired = new ArrayList<Connection>();
+    Iterator<ArrayList<Connection>> i = connections.values().iterator();
+    while (i.hasNext()) {
+      ArrayList<Connection> list = i.next();
+      for (int j = 0; j < list.size(); j++) {
+        Connection connection = list.get(j);
+        if (!connection.handle.isAlive() || (connection.isIdle() && now - connection.lastUsed > idleTimeout)) {
+          expired.add(connection);
+        }
+      }
+    }
+
+    for (int j = 0; j < expired.size(); j++) {
+      Connection connection = expired.get(j);
+      if (connection.handle.isAlive()) {
+        if (logger.level <= Logger.FINE) {
+          logger.log("Closing idle socket to " + connection.handle);
+        }
+        connection.close();
+      } else {
+        connection.fail(new IOException("Node " + connection.handle + " is dead"), false);
+      }
+    }
+  }
+
+  private void doClose() {
+    closed = true;
+    if (checker != null) {
+      checker.cancel();
+      checker = null;
+    }
+
+    ArrayList<Connection> all = new ArrayList<Connection>();
+    Iterator<ArrayList<Connection>> i = connections.values().iterator();
+    while (i.hasNext()) {
+      all.addAll(i.next());
+    }
+    for (int j = 0; j < all.size(); j++) {
+      all.get(j).fail(new IOException("Connection pool closed"), false);
+    }
+  }
+
+  /**
+   * Drop a socket from the pool
+   */
+  private void remove(Connection connection) {
+    ArrayList<Connection> list = connections.get(connection.handle);
+    if (list != null) {
+      list.remove(connection);
+      if (list.isEmpty()) {
+        connections.remove(connection.handle);
+      }
+    }
+  }
+
+  /**
+   * A frame waiting to be written
+   */
+  private class Frame {
+
+    NodeHandle handle;
+
+    /**
+     * the bytes to write, null until written by the encoder
+     */
+    ByteBuffer bytes;
+
+    /**
+     * writes the bytes for the socket the frame is queued on, may be null
+     */
+    FrameEncoder encoder;
+
+    Continuation c;
+
+    /**
+     * whether the frame flushes its socket at once
+     */
+    boolean urgent;
+
+    /**
+     * whether the frame was already sent again after a failure
+     */
+    boolean retried;
+
+    Frame(NodeHandle handle, ByteBuffer bytes, Continuation c, boolean urgent) {
+      this.handle = handle;
+      this.bytes = bytes;
+      this.c = c;
+      this.urgent = urgent;
+    }
+
+    Frame(NodeHandle handle, FrameEncoder encoder, Continuation c, boolean urgent) {
+      this(handle, (ByteBuffer) null, c, urgent);
+      this.encoder = encoder;
+    }
+
+    void fail(Exception e) {
+      pool.release(bytes);
+      bytes = null;
+      if (c != null) {
+        c.receiveException(e);
+      } else if (logger.level <= Logger.WARNING) {
+        logger.logException("Error sending to " + handle, e);
+      }
+    }
+  }
+
+  /**
+   * A socket to a peer and the frames queued on it
+   */
+  private class Connection implements AppSocketReceiver {
+
+    NodeHandle handle;
+
+    /**
+     * the socket, null until it is open
+     */
+    AppSocket socket;
+
+    /**
+     * the frames to write, the first one being written
+     */
+    LinkedList<Frame> queue = new LinkedList<Frame>();
+
+    /**
+     * when the last frame was written
+     */
+    long lastUsed;
+
+    /**
+     * set while the socket is registered for writing
+     */
+    boolean writing;
+
+    /**
+     * flushes the frames queued once they waited flushDelay, null if none
+     * is scheduled
+     */
+    TimerTask flushTask;
+
+    /**
+     * set once the socket is closed
+     */
+    boolean closed;
+
+    /**
+     * the node handles sent on the socket
+     */
+    NodeHandleTable handles = new NodeHandleTable();
+
+    Connection(NodeHandle handle) {
+      this.handle = handle;
+      this.lastUsed = environment.getTimeSource().currentTimeMillis();
+    }
+
+    void connect() {
+      if (logger.level <= Logger.FINE) {
+        logger.log("Opening socket to " + handle);
+      }
+      endpoint.connect(handle, this, SOCKET_TIMEOUT);
+    }
+
+    /**
+     * @return whether the socket is open and has nothing to write
+     */
+    boolean isIdle() {
+      return socket != null && !closed && queue.isEmpty();
+    }
+
+    /**
+     * @return whether the socket is open and not writing, so that a frame
+     * queued on it is written with the next flush
+     */
+    boolean isAvailable() {
+      return socket != null && !closed && !writing;
+    }
+
+    void enqueue(Frame frame) {
+      if (frame.encoder != null) {
+        // the frame refers to the handles sent before it on this socket
+        int size = handles.getSize();
+        long references = handles.getReferences();
+        try {
+          frame.bytes = frame.encoder.encode(handles);
+        } catch (IOException ioe) {
+          handles.truncate(size);
+          frame.fail(ioe);
+          return;
+        }
+        handleReferences += handles.getReferences() - references;
+      }
+
+      queue.addLast(frame);
+      if (socket == null || writing) {
+        // written once the socket is open, or after the frames being written
+        return;
+      }
+
+      if (frame.urgent || flushDelay <= 0) {
+        flush();
+      } else if (flushTask == null) {
+        flushTask = new TimerTask() {
+          public void run() {
+            flushTask = null;
+            flush();
+          }
+        };
+        environment.getSelectorManager().getTimer().schedule(flushTask, flushDelay);
+      }
+    }
+
+    /**
+     * Write the frames queued as soon as the socket is ready
+     */
+    void flush() {
+      if (flushTask != null) {
+        flushTask.cancel();
+        flushTask = null;
+      }
+      if (closed || socket == null || writing || queue.isEmpty()) {
+        return;
+      }
+      writing = true;
+      socket.register(false, true, SOCKET_TIMEOUT, this);
+    }
+
+    public void receiveSocket(AppSocket socket) {
+      if (logger.level <= Logger.FINER) {
+        logger.log("Opened socket to " + handle + ":" + socket);
+      }
+      if (closed) {
+        socket.close();
+        return;
+      }
+      this.socket = socket;
+      flush();
+    }
+
+    public void receiveSelectResult(AppSocket socket, boolean canRead, boolean canWrite) {
+      writing = false;
+      if (closed || queue.isEmpty()) {
+        return;
+      }
+
+      // write as many frames as possible at once
+      int count = Math.min(queue.size(), MAX_GATHER);
+      ByteBuffer[] buffers = new ByteBuffer[count];
+      Iterator<Frame> i = queue.iterator();
+      for (int j = 0; j < count; j++) {
+        buffers[j] = i.next().bytes;
+      }
+      if (logger.level <= Logger.FINEST) {
+        logger.log("Writing " + count + " frames to " + handle + ":" + socket);
+      }
+      try {
+        socket.write(buffers, 0, count);
+      } catch (IOException ioe) {
+        receiveException(socket, ioe);
+        return;
+      }
+      writes++;
+
+      while (!queue.isEmpty() && !queue.getFirst().bytes.hasRemaining()) {
+        pool.release(queue.removeFirst().bytes);
+        framesWritten++;
+      }
+      lastUsed = environment.getTimeSource().currentTimeMillis();
+
+      // the frames left waited long enough already
+      flush();
+    }
+
+    public void receiveException(AppSocket socket, Exception e) {
+      fail(e, true);
+    }
+
+    /**
+     * Close the socket, which has nothing queued
+     */
+    void close() {
+      closed = true;
+      if (flushTask != null) {
+        flushTask.cancel();
+        flushTask = null;
+      }
+      remove(this);
+      if (socket != null) {
+        socket.close();
+      }
+    }
+
+    /**
+     * Close the socket after an error, sending the frames not started on
+     * another socket if retry is set, and failing the others
+     */
+    void fail(Exception e, boolean retry) {
+      if (closed) {
+        return;
+      }
+      failed++;
+      if (logger.level <= Logger.FINE) {
+        logger.log("Closing socket to " + handle + " after " + e);
+      }
+      close();
+
+      ArrayList<Frame> resend = new ArrayList<Frame>();
+      while (!queue.isEmpty()) {
+        Frame frame = queue.removeFirst();
+        if (retry && !frame.retried && frame.bytes.position() == 0) {
+          frame.retried = true;
+          if (frame.encoder != null) {
+            // the handles it refers to are not known on the other socket
+            pool.release(frame.bytes);
+            frame.bytes = null;
+          }
+          resend.add(frame);
+        } else {
+          frame.fail(e);
+        }
+      }
+      for (int i = 0; i < resend.size(); i++) {
+        ConnectionPool.this.send(resend.get(i));
+      }
+    }
+  }
+
+}
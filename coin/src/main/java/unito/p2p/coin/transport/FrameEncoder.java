@@ -0,0 +1,23 @@
+package unito.p2p.coin.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * @(#) FrameEncoder.java Writes a frame once the socket it is sent on is
+ * known, so that it can refer to the node handles already sent on it.
+ */
+public interface FrameEncoder {
+
+  /**
+   * Write the frame, called on the selector thread when the frame is
+   * queued on a socket
+   *
+   * @param handles the node handles sent on the socket, which the frame can
+   * refer to and add to
+   * @return the frame, as returned by ByteBufferOutputBuffer.toFrame()
+   * @exception IOException if the frame cannot be written
+   */
+  public ByteBuffer encode(NodeHandleTable handles) throws IOException;
+
+}
@@ -0,0 +1,26 @@
+package unito.p2p.coin.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import rice.p2p.commonapi.appsocket.AppSocket;
+
+/**
+ * @(#) FrameHandler.java Consumes the frames received by a FrameReceiver.
+ */
+public interface FrameHandler {
+
+  /**
+   * Consume a frame, called on the selector thread. The frame is released
+   * to its pool when this returns, so it must not be kept.
+   *
+   * @param frame the body of the frame, from position to limit
+   * @param socket the socket the frame was read from
+   * @param handles the node handles read before on the socket, which the
+   * frame can refer to and add to
+   * @exception IOException if the frame cannot be read, which closes the
+   * socket since the handles of the frame are lost for the following ones
+   */
+  public void receiveFrame(ByteBuffer frame, AppSocket socket, NodeHandleTable handles) throws IOException;
+
+}
@@ -0,0 +1,197 @@
+package unito.p2p.coin.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import rice.p2p.commonapi.appsocket.AppSocket;
+
+/**
+ * @(#) FrameReader.java Splits the bytes read from a socket in frames, each
+ * one being a 4 bytes big endian length followed by that many bytes.
+ *
+ * Frames are sent back to back on long lived sockets, so a read can end
+ * anywhere: in the middle of a length, of a body, or after several frames.
+ * The reader keeps what it got of the frame in progress between reads and
+ * returns every frame completed by a read. Small frames are parsed out of a
+ * single read buffer; the body of a frame larger than the buffer is read
+ * straight into its own buffer once its length is known.
+ *
+ * The read buffer and the bodies are borrowed from a BufferPool: the
+ * bodies returned must be released to the pool once consumed, and the
+ * reader must be released when its socket is closed.
+ *
+ * Frames longer than maxFrameSize are refused before anything is allocated
+ * for them, so that a length read from the wire cannot make the node
+ * allocate more than that; payloads larger than a frame are sent as
+ * streams of chunks.
+ *
+ * A reader belongs to a socket, and is used by one thread at a time.
+ */
+public class FrameReader {
+
+  /**
+   * the number of bytes of the length preceding every frame
+   */
+  public static final int HEADER_SIZE = 4;
+
+  /**
+   * the default size of the read buffer
+   */
+  public static final int DEFAULT_BUFFER_SIZE = 16384;
+
+  /**
+   * the default maximum length of a frame
+   */
+  public static final int DEFAULT_MAX_FRAME_SIZE = 1 << 20;
+
+  /**
+   * lends the read buffer and the bodies
+   */
+  private BufferPool pool;
+
+  /**
+   * the maximum length of a frame
+   */
+  private int maxFrameSize;
+
+  /**
+   * holds the bytes read and not yet parsed, ready to be written
+   */
+  private ByteBuffer buffer;
+
+  /**
+   * the body of the frame in progress, null while reading a length
+   */
+  private ByteBuffer body;
+
+  /**
+   * the number of frames read
+   */
+  private long frames;
+
+  /**
+   * Create a reader with the default sizes
+   *
+   * @param pool lends the read buffer and the bodies
+   */
+  public FrameReader(BufferPool pool) {
+    this(pool, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_FRAME_SIZE);
+  }
+
+  /**
+   * Create a reader
+   *
+   * @param pool lends the read buffer and the bodies
+   * @param bufferSize the size of the read buffer
+   * @param maxFrameSize the maximum length of a frame
+   */
+  public FrameReader(BufferPool pool, int bufferSize, int maxFrameSize) {
+    if (bufferSize < HEADER_SIZE) {
+      throw new IllegalArgumentException("The read buffer cannot hold a frame length: " + bufferSize);
+    }
+    this.pool = pool;
+    this.maxFrameSize = maxFrameSize;
+    this.buffer = pool.acquire(bufferSize);
+  }
+
+  /**
+   * Read once from a socket which is ready, and add the frames completed by
+   * what was read
+   *
+   * @param socket the socket
+   * @param result receives the body of every completed frame, from position
+   * to limit, to be released to the pool once consumed
+   * @return the number of bytes read, -1 at the end of the stream
+   * @exception IOException if the socket fails or a frame length is invalid
+   * or too large
+   */
+  public long read(AppSocket socket, List<ByteBuffer> result) throws IOException {
+    if (body != null && body.remaining() >= buffer.capacity()) {
+      // a large body, skip the buffer
+      long read = socket.read(new ByteBuffer[] {body}, 0, 1);
+      if (read > 0 && !body.hasRemaining()) {
+        complete(result);
+      }
+      return read;
+    }
+
+    long read = socket.read(new ByteBuffer[] {buffer}, 0, 1);
+    if (read <= 0) {
+      return read;
+    }
+
+    buffer.flip();
+    parse(result);
+    buffer.compact();
+    return read;
+  }
+
+  /**
+   * @return the number of frames read
+   */
+  public long getFrames() {
+    return frames;
+  }
+
+  /**
+   * @return whether part of a frame was read and the rest is missing
+   */
+  public boolean isPartial() {
+    return body != null || buffer.position() > 0;
+  }
+
+  /**
+   * Give the buffers back to the pool, the reader cannot be used afterwards
+   */
+  public void release() {
+    pool.release(buffer);
+    pool.release(body);
+    buffer = null;
+    body = null;
+  }
+
+  /**
+   * Parse the frames in the buffer, leaving the bytes of an incomplete
+   * length in it
+   */
+  private void parse(List<ByteBuffer> result) throws IOException {
+    while (true) {
+      if (body == null) {
+        if (buffer.remaining() < HEADER_SIZE) {
+          return;
+        }
+        int size = buffer.getInt();
+        if (size < 0) {
+          throw new IOException("Invalid frame length " + size);
+        }
+        if (size > maxFrameSize) {
+          throw new IOException("Frame of " + size + " bytes exceeds the maximum of " + maxFrameSize);
+        }
+        body = pool.acquire(size);
+      }
+
+      if (buffer.remaining() <= body.remaining()) {
+        body.put(buffer);
+      } else {
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + body.remaining());
+        body.put(buffer);
+        buffer.limit(limit);
+      }
+
+      if (body.hasRemaining()) {
+        return;
+      }
+      complete(result);
+    }
+  }
+
+  private void complete(List<ByteBuffer> result) {
+    body.flip();
+    result.add(body);
+    body = null;
+    frames++;
+  }
+
+}
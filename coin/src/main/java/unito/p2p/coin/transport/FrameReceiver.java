@@ -0,0 +1,164 @@
+package unito.p2p.coin.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import rice.environment.logging.Logger;
+import rice.p2p.commonapi.appsocket.AppSocket;
+import rice.p2p.commonapi.appsocket.AppSocketReceiver;
+
+/**
+ * @(#) FrameReceiver.java Reads the frames sent on an accepted socket and
+ * hands them to a FrameHandler.
+ *
+ * A receiver is created for every accepted socket and holds the state of
+ * the frame in progress on it and the node handles read on it, so nothing
+ * has to be looked up by socket.
+ * It stays registered for reading until the socket is closed by the other
+ * side, fails, or has nothing to read for readTimeout milliseconds, and then
+ * gives its buffers back to the pool.
+ */
+public class FrameReceiver implements AppSocketReceiver {
+
+  /**
+   * the socket read
+   */
+  private AppSocket socket;
+
+  /**
+   * splits what is read in frames
+   */
+  private FrameReader reader;
+
+  /**
+   * lends the buffers of the frames
+   */
+  private BufferPool pool;
+
+  /**
+   * consumes the frames
+   */
+  private FrameHandler handler;
+
+  /**
+   * milliseconds without anything to read after which the socket is closed
+   */
+  private int readTimeout;
+
+  /**
+   * the node handles read on the socket
+   */
+  private NodeHandleTable handles;
+
+  /**
+   * the frames completed by the last read
+   */
+  private ArrayList<ByteBuffer> frames;
+
+  /**
+   * set once the socket is closed
+   */
+  private boolean closed;
+
+  private Logger logger;
+
+  /**
+   * Create a receiver, which starts reading with start()
+   *
+   * @param socket the accepted socket
+   * @param pool lends the buffers of the frames
+   * @param handler consumes the frames
+   * @param readTimeout milliseconds without anything to read after which the socket is closed
+   * @param maxFrameSize the maximum length of a frame, the socket is closed
+   * if a longer one is announced
+   * @param logger the logger of the application
+   */
+  public FrameReceiver(AppSocket socket, BufferPool pool, FrameHandler handler, int readTimeout, int maxFrameSize, Logger logger) {
+    this.socket = socket;
+    this.pool = pool;
+    this.handler = handler;
+    this.readTimeout = readTimeout;
+    this.logger = logger;
+    this.reader = new FrameReader(pool, FrameReader.DEFAULT_BUFFER_SIZE, maxFrameSize);
+    this.frames = new ArrayList<ByteBuffer>();
+    this.handles = new NodeHandleTable();
+  }
+
+  /**
+   * Start reading the socket
+   */
+  public void start() {
+    socket.register(true, false, readTimeout, this);
+  }
+
+  public void receiveSocket(AppSocket socket) {
+    // accepted sockets are already open
+  }
+
+  public void receiveSelectResult(AppSocket socket, boolean canRead, boolean canWrite) {
+    if (logger.level <= Logger.FINER) {
+      logger.log("Reading from " + socket);
+    }
+
+    long read;
+    try {
+      // read what is available, which can complete any number of frames
+      read = reader.read(socket, frames);
+    } catch (IOException ioe) {
+      receiveException(socket, ioe);
+      return;
+    }
+
+    IOException error = null;
+    for (int i = 0; i < frames.size(); i++) {
+      ByteBuffer frame = frames.get(i);
+      try {
+        if (error == null) {
+          handler.receiveFrame(frame, socket, handles);
+        }
+      } catch (IOException ioe) {
+        // the following frames may refer to handles of this one
+        error = ioe;
+      } finally {
+        pool.release(frame);
+      }
+    }
+    frames.clear();
+    if (error != null) {
+      receiveException(socket, error);
+      return;
+    }
+
+    if (read == -1) {
+      if (reader.isPartial() && logger.level <= Logger.WARNING) {
+        logger.log("Socket " + socket + " closed in the middle of a message");
+      }
+      close();
+      return;
+    }
+
+    // the sender keeps the socket open for the following messages
+    socket.register(true, false, readTimeout, this);
+  }
+
+  public void receiveException(AppSocket socket, Exception e) {
+    if (logger.level <= Logger.WARNING) {
+      logger.logException("Error receiving message", e);
+    }
+    close();
+  }
+
+  /**
+   * Close the socket and give the buffers back to the pool
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    socket.close();
+    reader.release();
+  }
+
+}
@@ -0,0 +1,147 @@
+package unito.p2p.coin.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+
+/**
+ * @(#) NodeHandleTable.java The node handles already sent on a socket, so
+ * that they are sent in full only the first time.
+ *
+ * The writer and the reader of a socket keep a table each. A handle not in
+ * the writer's table is written in full, preceded by NEW, and both sides
+ * add it at the end of their table; afterwards it is written as its index
+ * in the table. Once the table holds MAX_HANDLES handles the new ones are
+ * written in full, preceded by FULL, and are not added.
+ *
+ * The two tables stay the same as long as the reader reads every frame the
+ * writer wrote, in order: a frame which was encoded and not written must
+ * take its handles out of the writer's table with truncate(), and a frame
+ * which cannot be read makes the following ones unreadable.
+ */
+public class NodeHandleTable {
+
+  /**
+   * the maximum number of handles in a table
+   */
+  public static final int MAX_HANDLES = 1024;
+
+  /**
+   * precedes a handle written in full and added to the tables
+   */
+  static final short NEW = -1;
+
+  /**
+   * precedes a handle written in full and not added to the tables
+   */
+  static final short FULL = -2;
+
+  /**
+   * the handles, by index
+   */
+  private ArrayList<NodeHandle> handles;
+
+  /**
+   * the index of every handle, only kept by the writer
+   */
+  private HashMap<NodeHandle, Integer> indexes;
+
+  /**
+   * the number of handles written or read as an index
+   */
+  private long references;
+
+  /**
+   * Create an empty table
+   */
+  public NodeHandleTable() {
+    this.handles = new ArrayList<NodeHandle>();
+    this.indexes = new HashMap<NodeHandle, Integer>();
+  }
+
+  /**
+   * Write a handle, as an index if it is in the table
+   *
+   * @param buf the buffer written
+   * @param handle the handle
+   * @exception IOException if the buffer cannot be written
+   */
+  public void write(OutputBuffer buf, NodeHandle handle) throws IOException {
+    Integer index = indexes.get(handle);
+    if (index != null) {
+      buf.writeShort(index.shortValue());
+      references++;
+      return;
+    }
+
+    if (handles.size() < MAX_HANDLES) {
+      buf.writeShort(NEW);
+      handle.serialize(buf);
+      indexes.put(handle, new Integer(handles.size()));
+      handles.add(handle);
+    } else {
+      buf.writeShort(FULL);
+      handle.serialize(buf);
+    }
+  }
+
+  /**
+   * Read a handle written by write()
+   *
+   * @param buf the buffer read
+   * @param endpoint reads the handles written in full
+   * @return the handle
+   * @exception IOException if the buffer cannot be read or refers to a
+   * handle not in the table
+   */
+  public NodeHandle read(InputBuffer buf, Endpoint endpoint) throws IOException {
+    short index = buf.readShort();
+    if (index == NEW) {
+      if (handles.size() >= MAX_HANDLES) {
+        throw new IOException("Too many node handles on a socket, the maximum is " + MAX_HANDLES);
+      }
+      NodeHandle handle = endpoint.readNodeHandle(buf);
+      handles.add(handle);
+      return handle;
+    }
+    if (index == FULL) {
+      return endpoint.readNodeHandle(buf);
+    }
+    if (index < 0 || index >= handles.size()) {
+      throw new IOException("Unknown node handle " + index + ", " + handles.size() + " known");
+    }
+    references++;
+    return handles.get(index);
+  }
+
+  /**
+   * @return the number of handles in the table
+   */
+  public int getSize() {
+    return handles.size();
+  }
+
+  /**
+   * Take out the handles added after the table had size handles
+   *
+   * @param size the size to go back to
+   */
+  public void truncate(int size) {
+    while (handles.size() > size) {
+      indexes.remove(handles.remove(handles.size() - 1));
+    }
+  }
+
+  /**
+   * @return the number of handles written or read as an index
+   */
+  public long getReferences() {
+    return references;
+  }
+
+}
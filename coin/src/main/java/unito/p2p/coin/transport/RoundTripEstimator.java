@@ -0,0 +1,198 @@
+package unito.p2p.coin.transport;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import rice.p2p.commonapi.Id;
+
+/**
+ * @(#) RoundTripEstimator.java Estimates how long a request to every node
+ * takes, to wait for the response as long as needed and no longer.
+ *
+ * Every node keeps a smoothed round trip and its variation, updated like
+ * TCP does (RFC 6298): the timeout of a request is the smoothed round trip
+ * plus four times its variation, between minTimeout and initialTimeout. A
+ * node without samples gets initialTimeout.
+ *
+ * The last WINDOW round trips to any node are kept too, so that a
+ * percentile of them tells when a request is late compared to the others:
+ * this is the delay after which a request is hedged by another one.
+ */
+public class RoundTripEstimator {
+
+  /**
+   * the default lowest timeout, in milliseconds
+   */
+  public static final long DEFAULT_MIN_TIMEOUT = 1000;
+
+  /**
+   * the default percentile of the round trips after which a request is
+   * hedged
+   */
+  public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+
+  /**
+   * the number of recent round trips kept for the percentiles
+   */
+  public static final int WINDOW = 256;
+
+  /**
+   * the number of recent round trips needed before telling a percentile
+   */
+  static final int MIN_WINDOW_SAMPLES = 16;
+
+  /**
+   * the weight of a new sample in the smoothed round trip
+   */
+  static final double ALPHA = 0.125;
+
+  /**
+   * the weight of a new sample in the variation
+   */
+  static final double BETA = 0.25;
+
+  /**
+   * how many variations the timeout leaves above the smoothed round trip
+   */
+  static final int K = 4;
+
+  /**
+   * the estimates of every node
+   */
+  private HashMap<Id, Estimate> nodes;
+
+  /**
+   * the last round trips, circularly
+   */
+  private long[] window;
+
+  /**
+   * the number of round trips recorded
+   */
+  private long samples;
+
+  /**
+   * the timeout of a node without samples, and the highest timeout
+   */
+  private long initialTimeout;
+
+  /**
+   * the lowest timeout
+   */
+  private long minTimeout;
+
+  /**
+   * the percentile of the round trips after which a request is hedged,
+   * between 0 and 1
+   */
+  private double hedgePercentile;
+
+  /**
+   * Create an estimator
+   *
+   * @param initialTimeout the timeout of a node without samples, and the
+   * highest timeout, in milliseconds
+   * @param minTimeout the lowest timeout, in milliseconds
+   * @param hedgePercentile the percentile of the round trips after which a
+   * request is hedged, between 0 and 1
+   */
+  public RoundTripEstimator(long initialTimeout, long minTimeout, double hedgePercentile) {
+    if (minTimeout > initialTimeout) {
+      throw new IllegalArgumentException("The lowest timeout " + minTimeout + " exceeds the initial one " + initialTimeout);
+    }
+    if (hedgePercentile <= 0 || hedgePercentile > 1) {
+      throw new IllegalArgumentException("The hedge percentile must be in (0, 1], not " + hedgePercentile);
+    }
+    this.initialTimeout = initialTimeout;
+    this.minTimeout = minTimeout;
+    this.hedgePercentile = hedgePercentile;
+    this.nodes = new HashMap<Id, Estimate>();
+    this.window = new long[WINDOW];
+  }
+
+  /**
+   * Record the round trip of a request which got its response
+   *
+   * @param node the Id of the node which answered
+   * @param roundTrip milliseconds between the request and the response
+   */
+  public synchronized void record(Id node, long roundTrip) {
+    Estimate estimate = nodes.get(node);
+    if (estimate == null) {
+      estimate = new Estimate();
+      estimate.smoothed = roundTrip;
+      estimate.variation = roundTrip / 2.0;
+      nodes.put(node, estimate);
+    } else {
+      estimate.variation = (1 - BETA) * estimate.variation + BETA * Math.abs(estimate.smoothed - roundTrip);
+      estimate.smoothed = (1 - ALPHA) * estimate.smoothed + ALPHA * roundTrip;
+    }
+
+    window[(int) (samples % WINDOW)] = roundTrip;
+    samples++;
+  }
+
+  /**
+   * @param node the Id of a node
+   * @return milliseconds to wait for the response of a request to the node
+   */
+  public synchronized long getTimeout(Id node) {
+    Estimate estimate = nodes.get(node);
+    if (estimate == null) {
+      return initialTimeout;
+    }
+    // at least a millisecond above the round trip, the granularity of the clock
+    long timeout = (long) Math.ceil(estimate.smoothed + Math.max(1, K * estimate.variation));
+    return Math.max(minTimeout, Math.min(initialTimeout, timeout));
+  }
+
+  /**
+   * @param node the Id of a node
+   * @return the smoothed round trip of the node in milliseconds, -1 if none
+   */
+  public synchronized double getRoundTrip(Id node) {
+    Estimate estimate = nodes.get(node);
+    return estimate == null ? -1 : estimate.smoothed;
+  }
+
+  /**
+   * @return milliseconds after which a request without response is hedged,
+   * -1 until enough round trips are known
+   */
+  public synchronized long getHedgeDelay() {
+    int size = (int) Math.min(samples, WINDOW);
+    if (size < MIN_WINDOW_SAMPLES) {
+      return -1;
+    }
+    long[] sorted = new long[size];
+    System.arraycopy(window, 0, sorted, 0, size);
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(hedgePercentile * size) - 1;
+    return Math.max(1, sorted[Math.max(0, index)]);
+  }
+
+  /**
+   * @return the number of nodes with an estimate and the current hedge
+   * delay
+   */
+  public synchronized String getReport() {
+    return "round trips estimated for " + nodes.size() + " nodes from " + samples + " samples, hedge delay " + getHedgeDelay() + " ms";
+  }
+
+  /**
+   * The estimate of the round trip to a node
+   */
+  private static class Estimate {
+
+    /**
+     * the smoothed round trip, in milliseconds
+     */
+    double smoothed;
+
+    /**
+     * the smoothed variation of the round trip, in milliseconds
+     */
+    double variation;
+  }
+
+}
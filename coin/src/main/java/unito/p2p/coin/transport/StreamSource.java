@@ -0,0 +1,16 @@
+package unito.p2p.coin.transport;
+
+/**
+ * @(#) StreamSource.java Produces the chunks of a payload sent as a stream,
+ * one at a time, so that the payload is never held as a whole.
+ */
+public interface StreamSource {
+
+  /**
+   * Produce the next chunk of the payload
+   *
+   * @return the bytes of the chunk, null once the payload is exhausted
+   */
+  public byte[] nextChunk();
+
+}
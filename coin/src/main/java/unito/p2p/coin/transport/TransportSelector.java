@@ -0,0 +1,250 @@
+package unito.p2p.coin.transport;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import rice.environment.random.RandomSource;
+import rice.p2p.commonapi.Id;
+
+/**
+ * @(#) TransportSelector.java Chooses, for every destination, whether a
+ * request goes through the overlay (ROUTE) or on a direct socket (SOCKET),
+ * from the latency and success rate measured on both paths.
+ *
+ * Every path of every destination keeps an exponentially weighted average
+ * of the round trip of the requests sent on it and of their success. Until
+ * both paths of a destination have minSamples samples the one with fewer
+ * samples is chosen; then the path with the lowest latency divided by its
+ * success rate is chosen, except for a fraction exploreRate of the
+ * requests which take the other path, so that a path which got faster is
+ * noticed.
+ */
+public class TransportSelector {
+
+  /**
+   * route the request through the overlay
+   */
+  public static final int ROUTE = 0;
+
+  /**
+   * send the request on a socket to the destination
+   */
+  public static final int SOCKET = 1;
+
+  /**
+   * the default number of samples of both paths before choosing by score
+   */
+  public static final int DEFAULT_MIN_SAMPLES = 5;
+
+  /**
+   * the default fraction of requests sent on the path not chosen
+   */
+  public static final double DEFAULT_EXPLORE_RATE = 0.05;
+
+  /**
+   * the weight of a new sample in the averages
+   */
+  static final double ALPHA = 0.2;
+
+  /**
+   * the lowest success rate used in the scores, so that a path which only
+   * failed still has a finite score
+   */
+  static final double MIN_SUCCESS = 0.01;
+
+  /**
+   * the names of the paths, by path
+   */
+  private static final String[] NAMES = {"route", "socket"};
+
+  /**
+   * the measurements of the two paths of every destination
+   */
+  private HashMap<Id, Path[]> destinations;
+
+  /**
+   * the number of times every path was chosen
+   */
+  private long[] chosen;
+
+  /**
+   * the number of times the path not chosen was explored
+   */
+  private long explored;
+
+  private RandomSource random;
+
+  /**
+   * the number of samples of both paths before choosing by score
+   */
+  private int minSamples;
+
+  /**
+   * the fraction of requests sent on the path not chosen
+   */
+  private double exploreRate;
+
+  /**
+   * Create a selector
+   *
+   * @param random chooses the requests which explore
+   * @param minSamples the number of samples of both paths before choosing by score
+   * @param exploreRate the fraction of requests sent on the path not chosen
+   */
+  public TransportSelector(RandomSource random, int minSamples, double exploreRate) {
+    this.random = random;
+    this.minSamples = minSamples;
+    this.exploreRate = exploreRate;
+    this.destinations = new HashMap<Id, Path[]>();
+    this.chosen = new long[NAMES.length];
+  }
+
+  /**
+   * Choose the path of a request
+   *
+   * @param destination the Id of the node receiving the request
+   * @return ROUTE or SOCKET
+   */
+  public synchronized int choose(Id destination) {
+    Path[] paths = pathsOf(destination);
+
+    int path;
+    if (paths[ROUTE].samples < minSamples || paths[SOCKET].samples < minSamples) {
+      path = paths[SOCKET].samples < paths[ROUTE].samples ? SOCKET : ROUTE;
+    } else {
+      path = paths[SOCKET].score() < paths[ROUTE].score() ? SOCKET : ROUTE;
+      if (random.nextDouble() < exploreRate) {
+        path = 1 - path;
+        explored++;
+      }
+    }
+
+    chosen[path]++;
+    return path;
+  }
+
+  /**
+   * Record the outcome of a request
+   *
+   * @param destination the Id of the node which received the request
+   * @param path the path of the request
+   * @param latency milliseconds between the request and its outcome
+   * @param success whether the request got a response
+   */
+  public synchronized void record(Id destination, int path, long latency, boolean success) {
+    Path p = pathsOf(destination)[path];
+    if (success) {
+      p.latency = p.successes == 0 ? latency : (1 - ALPHA) * p.latency + ALPHA * latency;
+      p.successes++;
+    }
+    p.success = p.samples == 0 ? (success ? 1 : 0) : (1 - ALPHA) * p.success + ALPHA * (success ? 1 : 0);
+    p.samples++;
+  }
+
+  /**
+   * @param destination the Id of a node
+   * @param path ROUTE or SOCKET
+   * @return the average milliseconds of the successful requests, -1 if none
+   */
+  public synchronized double getLatency(Id destination, int path) {
+    Path[] paths = destinations.get(destination);
+    return paths == null || paths[path].successes == 0 ? -1 : paths[path].latency;
+  }
+
+  /**
+   * @param destination the Id of a node
+   * @param path ROUTE or SOCKET
+   * @return the average success of the requests, -1 if none
+   */
+  public synchronized double getSuccessRate(Id destination, int path) {
+    Path[] paths = destinations.get(destination);
+    return paths == null || paths[path].samples == 0 ? -1 : paths[path].success;
+  }
+
+  /**
+   * @param path ROUTE or SOCKET
+   * @return the number of requests sent on the path
+   */
+  public synchronized long getChosen(int path) {
+    return chosen[path];
+  }
+
+  /**
+   * @return the number of requests sent on the path not chosen
+   */
+  public synchronized long getExplored() {
+    return explored;
+  }
+
+  /**
+   * @return the measurements of every destination, one per line
+   */
+  public synchronized String getReport() {
+    StringBuffer report = new StringBuffer();
+    report.append("transport choices: ").append(chosen[ROUTE]).append(" route, ").append(chosen[SOCKET]).append(" socket, ")
+        .append(explored).append(" explored");
+
+    Iterator<Entry<Id, Path[]>> i = destinations.entrySet().iterator();
+    while (i.hasNext()) {
+      Entry<Id, Path[]> entry = i.next();
+      Path[] paths = entry.getValue();
+      report.append("\n").append(entry.getKey()).append(":");
+      for (int path = 0; path < paths.length; path++) {
+        report.append(" ").append(NAMES[path]).append(" ").append(paths[path]);
+      }
+      report.append(", preferring ").append(NAMES[paths[SOCKET].score() < paths[ROUTE].score() ? SOCKET : ROUTE]);
+    }
+    return report.toString();
+  }
+
+  private Path[] pathsOf(Id destination) {
+    Path[] paths = destinations.get(destination);
+    if (paths == null) {
+      paths = new Path[] {new Path(), new Path()};
+      destinations.put(destination, paths);
+    }
+    return paths;
+  }
+
+  /**
+   * The measurements of a path to a destination
+   */
+  private static class Path {
+
+    /**
+     * the number of requests recorded
+     */
+    long samples;
+
+    /**
+     * the number of successful requests recorded
+     */
+    long successes;
+
+    /**
+     * the average milliseconds of the successful requests
+     */
+    double latency;
+
+    /**
+     * the average success of the requests, between 0 and 1
+     */
+    double success = 1;
+
+    /**
+     * @return the expected cost of a request, the lower the better
+     */
+    double score() {
+      if (successes == 0) {
+        return samples == 0 ? 0 : Double.MAX_VALUE;
+      }
+      return latency / Math.max(success, MIN_SUCCESS);
+    }
+
+    public String toString() {
+      return samples + " samples, " + ((long) latency) + " ms, " + ((int) (success * 100)) + "% success";
+    }
+  }
+
+}
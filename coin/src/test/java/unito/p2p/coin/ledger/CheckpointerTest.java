@@ -0,0 +1,212 @@
+package unito.p2p.coin.ledger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import rice.Continuation;
+import rice.p2p.commonapi.Id;
+
+import unito.p2p.coin.testing.TestNodes;
+
+/**
+ * @(#) CheckpointerTest.java Checks that a ledger restarted from its
+ * checkpoints and log holds every balance: incremental snapshots chained on
+ * a full one, full snapshots replacing the chain, and the marker of a
+ * ledger in persistent storage.
+ */
+public class CheckpointerTest {
+
+  private File directory;
+
+  /**
+   * the balances the ledger must hold
+   */
+  private HashMap<Id, Integer> expected;
+
+  private Random random;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("checkpoints", "");
+    directory.delete();
+    expected = new HashMap<Id, Integer>();
+    random = new Random(1);
+  }
+
+  @After
+  public void tearDown() {
+    WriteAheadLogTest.delete(directory);
+  }
+
+  @Test
+  public void testSnapshotChain() throws Exception {
+    HashLedger ledger = new HashLedger(4, 16);
+    WriteAheadLog log = new WriteAheadLog(new File(directory, "log"), 4096);
+    Checkpointer checkpointer = new Checkpointer(ledger, log, directory, false);
+    assertEquals(0, checkpointer.recover());
+
+    // the first checkpoint is full, the next ones only hold a few accounts
+    change(ledger, log, 1000, 500);
+    checkpointer.checkpoint();
+    assertEquals(1, count(".full"));
+    for (int i = 0; i < 3; i++) {
+      change(ledger, log, 20, 500);
+      checkpointer.checkpoint();
+    }
+    assertEquals(1, count(".full"));
+    assertEquals(3, count(".incr"));
+
+    // changes after the last checkpoint are only in the log
+    change(ledger, log, 30, 500);
+    log.close();
+
+    ledger = new HashLedger(4, 16);
+    log = new WriteAheadLog(new File(directory, "log"), 4096);
+    checkpointer = new Checkpointer(ledger, log, directory, false);
+    assertEquals(30, checkpointer.recover());
+    check(ledger);
+
+    // the increments restored are still chained on by the next checkpoint
+    change(ledger, log, 20, 500);
+    checkpointer.checkpoint();
+    assertEquals(4, count(".incr"));
+    log.close();
+
+    ledger = new HashLedger(4, 16);
+    log = new WriteAheadLog(new File(directory, "log"), 4096);
+    assertEquals(0, new Checkpointer(ledger, log, directory, false).recover());
+    check(ledger);
+    log.close();
+  }
+
+  @Test
+  public void testFullSnapshotReplacesChain() throws Exception {
+    HashLedger ledger = new HashLedger(4, 16);
+    WriteAheadLog log = new WriteAheadLog(new File(directory, "log"), 4096);
+    Checkpointer checkpointer = new Checkpointer(ledger, log, directory, false);
+    checkpointer.recover();
+
+    change(ledger, log, 100, 100);
+    checkpointer.checkpoint();
+    String full = find(".full");
+
+    // once the increments outgrow the full snapshot, a new full one is taken
+    int increments = 0;
+    while (full.equals(find(".full"))) {
+      assertTrue(++increments < 10);
+      change(ledger, log, 100, 100);
+      checkpointer.checkpoint();
+    }
+    assertTrue(increments > 1);
+    assertEquals(1, count(".full"));
+    assertEquals(0, count(".incr"));
+    log.close();
+
+    ledger = new HashLedger(4, 16);
+    log = new WriteAheadLog(new File(directory, "log"), 4096);
+    assertEquals(0, new Checkpointer(ledger, log, directory, false).recover());
+    check(ledger);
+    log.close();
+  }
+
+  @Test
+  public void testPersistentLedger() throws Exception {
+    File storage = new File(directory, "ledger");
+    for (int round = 0; round < 3; round++) {
+      HashLedger ledger = new HashLedger(new MappedStorage(storage, 4, 100000), 4, 16);
+      WriteAheadLog log = new WriteAheadLog(new File(directory, "log"), 4096);
+      Checkpointer checkpointer = new Checkpointer(ledger, log, directory, true);
+      checkpointer.recover();
+      check(ledger);
+
+      change(ledger, log, 500, 200);
+      checkpointer.checkpoint();
+      assertEquals(log.getLastLsn(), checkpointer.getLastLsn());
+      change(ledger, log, 50, 200);
+      log.close();
+      ledger.close();
+    }
+    assertEquals(0, count(".full") + count(".incr"));
+  }
+
+  /**
+   * Set and log the balances of count accounts chosen among the first
+   * accounts, then wait until the log holds them
+   */
+  private void change(HashLedger ledger, WriteAheadLog log, int count, int accounts) throws Exception {
+    final int[] done = new int[1];
+    Continuation command = new Continuation() {
+      public void receiveResult(Object o) {
+        synchronized (done) {
+          done[0]++;
+          done.notifyAll();
+        }
+      }
+
+      public void receiveException(Exception e) {
+        throw new IllegalStateException(e);
+      }
+    };
+
+    for (int i = 0; i < count; i++) {
+      Id id = TestNodes.id(random.nextInt(accounts));
+      int balance = random.nextInt(1000);
+      ledger.setBalance(id, balance);
+      expected.put(id, new Integer(balance));
+      log.append(id, balance, command);
+    }
+
+    synchronized (done) {
+      while (done[0] < count) {
+        done.wait();
+      }
+    }
+  }
+
+  private void check(HashLedger ledger) {
+    assertEquals(expected.size(), ledger.size());
+    for (Iterator<Map.Entry<Id, Integer>> it = expected.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Id, Integer> entry = it.next();
+      assertEquals(entry.getValue().intValue(), ledger.getBalance(entry.getKey()));
+    }
+  }
+
+  /**
+   * Return the name of a snapshot with the given suffix, null if there is none
+   */
+  private String find(String suffix) {
+    String[] names = directory.list();
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].endsWith(suffix)) {
+        return names[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Return the number of snapshots with the given suffix
+   */
+  private int count(String suffix) {
+    String[] names = directory.list();
+    int count = 0;
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].endsWith(suffix)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+}
@@ -0,0 +1,161 @@
+package unito.p2p.coin.ledger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import rice.p2p.commonapi.Id;
+
+import unito.p2p.coin.testing.TestNodes;
+
+/**
+ * @(#) ConcurrentLedgerTest.java Checks that balance changes made by many
+ * threads at once are neither lost nor able to overdraw an account.
+ */
+public class ConcurrentLedgerTest {
+
+  static final int THREADS = 8;
+
+  static final int ACCOUNTS = 16;
+
+  static final int INITIAL = 1000;
+
+  @Test
+  public void testConcurrentAddRemove() throws Exception {
+    final HashLedger ledger = new HashLedger(4, 16);
+    final Id[] ids = new Id[ACCOUNTS];
+    for (int i = 0; i < ACCOUNTS; i++) {
+      ids[i] = TestNodes.id(i);
+      ledger.setBalance(ids[i], INITIAL);
+    }
+
+    // what every thread added and removed, by account
+    final long[][] added = new long[THREADS][ACCOUNTS];
+    final long[][] removed = new long[THREADS][ACCOUNTS];
+    run(new Worker() {
+      public void work(int thread) {
+        Random random = new Random(thread);
+        for (int i = 0; i < 20000; i++) {
+          int account = random.nextInt(ACCOUNTS);
+          int value = 1 + random.nextInt(20);
+          if (random.nextBoolean()) {
+            assertTrue(ledger.add(ids[account], value) >= value);
+            added[thread][account] += value;
+          } else {
+            int balance = ledger.remove(ids[account], value);
+            if (balance != Ledger.INSUFFICIENT_FUNDS) {
+              assertTrue(balance >= 0);
+              removed[thread][account] += value;
+            }
+          }
+        }
+      }
+    });
+
+    for (int account = 0; account < ACCOUNTS; account++) {
+      long expected = INITIAL;
+      for (int thread = 0; thread < THREADS; thread++) {
+        expected += added[thread][account] - removed[thread][account];
+      }
+      assertEquals(expected, ledger.getBalance(ids[account]));
+    }
+  }
+
+  @Test
+  public void testOverdraft() throws Exception {
+    final HashLedger ledger = new HashLedger();
+    final Id id = TestNodes.id(1);
+    ledger.setBalance(id, INITIAL);
+
+    // every thread withdraws until the account is empty
+    final int[] withdrawn = new int[THREADS];
+    run(new Worker() {
+      public void work(int thread) {
+        while (true) {
+          int balance = ledger.remove(id, 3);
+          if (balance == Ledger.INSUFFICIENT_FUNDS) {
+            break;
+          }
+          assertTrue(balance >= 0);
+          withdrawn[thread] += 3;
+        }
+      }
+    });
+
+    int total = 0;
+    for (int thread = 0; thread < THREADS; thread++) {
+      total += withdrawn[thread];
+    }
+    assertEquals(INITIAL - INITIAL % 3, total);
+    assertEquals(INITIAL % 3, ledger.getBalance(id));
+  }
+
+  @Test
+  public void testRemoveMissingAccount() {
+    HashLedger ledger = new HashLedger();
+    Id id = TestNodes.id(1);
+
+    assertEquals(Ledger.INSUFFICIENT_FUNDS, ledger.remove(id, 1));
+    assertEquals(0, ledger.remove(id, 0));
+    assertEquals(0, ledger.size());
+
+    assertTrue(ledger.putIfAbsent(id, 5));
+    assertFalse(ledger.putIfAbsent(id, 7));
+    assertEquals(Ledger.INSUFFICIENT_FUNDS, ledger.remove(id, 6));
+    assertEquals(5, ledger.getBalance(id));
+    assertEquals(0, ledger.remove(id, 5));
+    assertEquals(1, ledger.size());
+  }
+
+  /**
+   * Run a worker on THREADS threads started together, and rethrow the
+   * first failure
+   */
+  private static void run(final Worker worker) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final Throwable[] failure = new Throwable[1];
+    Thread[] threads = new Thread[THREADS];
+    for (int i = 0; i < THREADS; i++) {
+      final int thread = i;
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            worker.work(thread);
+          } catch (Throwable t) {
+            synchronized (failure) {
+              if (failure[0] == null) {
+                failure[0] = t;
+              }
+            }
+          }
+        }
+      });
+      threads[i].start();
+    }
+
+    start.countDown();
+    for (int i = 0; i < THREADS; i++) {
+      threads[i].join();
+    }
+    if (failure[0] instanceof Error) {
+      throw (Error) failure[0];
+    }
+    if (failure[0] != null) {
+      throw (Exception) failure[0];
+    }
+  }
+
+  /**
+   * The work of one of the threads
+   */
+  interface Worker {
+    void work(int thread);
+  }
+
+}
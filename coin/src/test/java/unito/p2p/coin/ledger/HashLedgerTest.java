@@ -0,0 +1,184 @@
+package unito.p2p.coin.ledger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import rice.p2p.commonapi.Id;
+
+import unito.p2p.coin.testing.TestNodes;
+
+/**
+ * @(#) HashLedgerTest.java Checks the open addressing ledger against a map:
+ * probing past colliding keys, growing the segments and scanning in key
+ * order.
+ */
+public class HashLedgerTest {
+
+  @Test
+  public void testAddRemoveAndGrow() {
+    // two slots per segment to begin with, so that the segments grow many times
+    HashLedger ledger = new HashLedger(4, 2);
+    HashMap<Id, Integer> expected = new HashMap<Id, Integer>();
+    Random random = new Random(1);
+
+    for (int i = 0; i < 20000; i++) {
+      Id id = TestNodes.id(random.nextInt(3000));
+      Integer stored = expected.get(id);
+      int balance = stored == null ? 0 : stored.intValue();
+      int value = random.nextInt(100);
+
+      switch (random.nextInt(3)) {
+        case 0:
+          assertEquals(balance + value, ledger.add(id, value));
+          expected.put(id, new Integer(balance + value));
+          break;
+        case 1:
+          if (balance < value) {
+            assertEquals(Ledger.INSUFFICIENT_FUNDS, ledger.remove(id, value));
+          } else {
+            assertEquals(balance - value, ledger.remove(id, value));
+            if (stored != null) {
+              expected.put(id, new Integer(balance - value));
+            }
+          }
+          break;
+        default:
+          ledger.setBalance(id, value);
+          expected.put(id, new Integer(value));
+      }
+    }
+
+    assertEquals(expected.size(), ledger.size());
+    for (Iterator<Map.Entry<Id, Integer>> it = expected.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Id, Integer> entry = it.next();
+      assertEquals(entry.getValue().intValue(), ledger.getBalance(entry.getKey()));
+    }
+  }
+
+  @Test
+  public void testCollidingKeys() {
+    // keys sharing their prefix hash to the same slot and must be probed past
+    HashLedger ledger = new HashLedger(1, 2);
+    List<byte[]> keys = new ArrayList<byte[]>();
+    for (int i = 0; i < 500; i++) {
+      byte[] key = new byte[HashLedger.KEY_LENGTH];
+      key[0] = 0x42;
+      key[HashLedger.KEY_LENGTH - 2] = (byte) (i >> 8);
+      key[HashLedger.KEY_LENGTH - 1] = (byte) i;
+      keys.add(key);
+      ledger.setBalance(HashLedger.toId(key), i + 1);
+    }
+
+    assertEquals(keys.size(), ledger.size());
+    for (int i = 0; i < keys.size(); i++) {
+      Id id = HashLedger.toId(keys.get(i));
+      assertEquals(i + 1, ledger.getBalance(id));
+      assertFalse(ledger.putIfAbsent(id, 0));
+    }
+
+    byte[] missing = (byte[]) keys.get(0).clone();
+    missing[1] = 1;
+    assertEquals(0, ledger.getBalance(HashLedger.toId(missing)));
+  }
+
+  @Test
+  public void testKeys() {
+    Id id = TestNodes.id(3);
+    assertEquals(id, HashLedger.toId(HashLedger.toKey(id)));
+
+    byte[] key = new byte[HashLedger.KEY_LENGTH];
+    key[HashLedger.KEY_LENGTH - 1] = (byte) 0xFF;
+    byte[] next = HashLedger.successor(key);
+    assertEquals(1, next[HashLedger.KEY_LENGTH - 2]);
+    assertEquals(0, next[HashLedger.KEY_LENGTH - 1]);
+    assertTrue(HashLedger.compareKeys(key, next) < 0);
+
+    byte[] last = new byte[HashLedger.KEY_LENGTH];
+    for (int i = 0; i < last.length; i++) {
+      last[i] = (byte) 0xFF;
+    }
+    assertNull(HashLedger.successor(last));
+  }
+
+  @Test
+  public void testScanOrder() {
+    Random random = new Random(7);
+    for (int trial = 0; trial < 10; trial++) {
+      HashLedger ledger = new HashLedger(1 << random.nextInt(4), 2 << random.nextInt(4));
+      TreeMap<byte[], Integer> expected = new TreeMap<byte[], Integer>(HashLedger.KEY_ORDER);
+      for (int i = random.nextInt(3000); i > 0; i--) {
+        byte[] key = new byte[HashLedger.KEY_LENGTH];
+        random.nextBytes(key);
+        if (random.nextInt(4) == 0) {
+          // neighbours of the same segment and the same slot
+          key[0] = 0;
+        }
+        ledger.setBalance(HashLedger.toId(key), i);
+        expected.put(key, new Integer(i));
+      }
+
+      for (int query = 0; query < 20; query++) {
+        byte[] from = random.nextBoolean() ? randomKey(random) : null;
+        byte[] to = random.nextBoolean() ? randomKey(random) : null;
+        List<byte[]> keys = new ArrayList<byte[]>();
+        for (Iterator<byte[]> it = expected.keySet().iterator(); it.hasNext(); ) {
+          byte[] key = it.next();
+          if ((from == null || HashLedger.compareKeys(key, from) >= 0) && (to == null || HashLedger.compareKeys(key, to) < 0)) {
+            keys.add(key);
+          }
+        }
+
+        // scan in chunks, each one starting after the last key of the previous
+        List<byte[]> scanned = new ArrayList<byte[]>();
+        int max = 1 + random.nextInt(50);
+        byte[] next = from;
+        while (true) {
+          ByteBuffer accounts = ledger.scan(next, to, max);
+          assertEquals(0, accounts.remaining() % HashLedger.ACCOUNT_SIZE);
+          assertTrue(accounts.remaining() <= max * HashLedger.ACCOUNT_SIZE);
+          if (!accounts.hasRemaining()) {
+            break;
+          }
+
+          byte[] key = null;
+          while (accounts.hasRemaining()) {
+            key = new byte[HashLedger.KEY_LENGTH];
+            accounts.get(key);
+            assertEquals(expected.get(key).intValue(), accounts.getInt());
+            scanned.add(key);
+          }
+          next = HashLedger.successor(key);
+          if (next == null) {
+            break;
+          }
+        }
+
+        assertEquals(keys.size(), scanned.size());
+        for (int i = 0; i < keys.size(); i++) {
+          assertArrayEquals(keys.get(i), scanned.get(i));
+        }
+      }
+    }
+  }
+
+  private static byte[] randomKey(Random random) {
+    byte[] key = new byte[HashLedger.KEY_LENGTH];
+    random.nextBytes(key);
+    return key;
+  }
+
+}
@@ -0,0 +1,155 @@
+package unito.p2p.coin.ledger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import rice.p2p.commonapi.Id;
+
+import unito.p2p.coin.testing.TestNodes;
+
+/**
+ * @(#) MerkleTreeTest.java Checks that the tree kept by a MerkleLedger is
+ * the one built from scratch from its accounts, whatever the changes made
+ * while it is built, and that two trees only differ on the path of the
+ * accounts they disagree on.
+ */
+public class MerkleTreeTest {
+
+  static final int LEAF_BITS = 8;
+
+  @Test
+  public void testIncrementalChanges() throws Exception {
+    MerkleLedger ledger = ready(new MerkleLedger(new HashLedger(4, 16), LEAF_BITS));
+    Random random = new Random(1);
+    for (int i = 0; i < 20000; i++) {
+      Id id = TestNodes.id(random.nextInt(2000));
+      int value = random.nextInt(100);
+      switch (random.nextInt(4)) {
+        case 0:
+          ledger.add(id, value);
+          break;
+        case 1:
+          ledger.remove(id, value);
+          break;
+        case 2:
+          ledger.putIfAbsent(id, value);
+          break;
+        default:
+          ledger.setBalance(id, value);
+      }
+    }
+
+    assertTrees(rebuild(ledger), ledger.getTree());
+  }
+
+  @Test
+  public void testChangesWhileBuilding() throws Exception {
+    HashLedger accounts = new HashLedger(4, 16);
+    Random random = new Random(2);
+    for (int i = 0; i < 50000; i++) {
+      accounts.setBalance(TestNodes.id(i), 1 + random.nextInt(1000));
+    }
+
+    // the changes race with the scan of the accounts
+    MerkleLedger ledger = new MerkleLedger(accounts, LEAF_BITS);
+    for (int i = 0; i < 20000; i++) {
+      Id id = TestNodes.id(random.nextInt(60000));
+      if (random.nextBoolean()) {
+        ledger.add(id, random.nextInt(100));
+      } else {
+        ledger.setBalance(id, random.nextInt(100));
+      }
+    }
+    ready(ledger);
+
+    assertTrees(rebuild(ledger), ledger.getTree());
+  }
+
+  @Test
+  public void testDifferingPath() {
+    MerkleTree tree = new MerkleTree(LEAF_BITS);
+    MerkleTree other = new MerkleTree(LEAF_BITS);
+    for (int i = 0; i < 1000; i++) {
+      byte[] key = HashLedger.toKey(TestNodes.id(i));
+      tree.toggle(key, i + 1);
+      other.toggle(key, i + 1);
+    }
+    assertTrees(tree, other);
+
+    // a single balance differs: only the nodes above its bucket differ
+    byte[] key = HashLedger.toKey(TestNodes.id(7));
+    other.toggle(key, 8);
+    other.toggle(key, 9);
+    for (int level = 0; level <= LEAF_BITS; level++) {
+      for (int bucket = 0; bucket < (1 << level); bucket++) {
+        boolean differs = tree.getHash(level, bucket) != other.getHash(level, bucket);
+        assertEquals(bucket == MerkleTree.bucket(key, level), differs);
+      }
+    }
+
+    // zero balances are left out, like the accounts not stored
+    other.toggle(key, 9);
+    other.toggle(key, 0);
+    tree.toggle(key, 8);
+    assertTrees(tree, other);
+    assertEquals(0, MerkleTree.hash(key, 0));
+    assertFalse(MerkleTree.hash(key, 1) == MerkleTree.hash(key, 2));
+  }
+
+  @Test
+  public void testFirstKey() {
+    for (int level = 0; level <= LEAF_BITS; level++) {
+      for (int bucket = 0; bucket < (1 << level); bucket++) {
+        assertEquals(bucket, MerkleTree.bucket(MerkleTree.firstKey(level, bucket), level));
+      }
+      assertNull(MerkleTree.firstKey(level, 1 << level));
+    }
+  }
+
+  /**
+   * Wait until the tree of a ledger is built
+   */
+  static MerkleLedger ready(MerkleLedger ledger) throws InterruptedException {
+    for (int i = 0; i < 10000 && !ledger.isReady(); i++) {
+      Thread.sleep(1);
+    }
+    assertTrue(ledger.isReady());
+    return ledger;
+  }
+
+  /**
+   * Return the tree of the accounts of a ledger, built from scratch
+   */
+  private static MerkleTree rebuild(Ledger ledger) {
+    MerkleTree tree = new MerkleTree(LEAF_BITS);
+    byte[] from = null;
+    byte[] key = new byte[HashLedger.KEY_LENGTH];
+    while (true) {
+      ByteBuffer accounts = ledger.scan(from, null, 1000);
+      int count = accounts.remaining() / HashLedger.ACCOUNT_SIZE;
+      for (int i = 0; i < count; i++) {
+        accounts.get(key);
+        tree.toggle(key, accounts.getInt());
+      }
+      if (count < 1000 || (from = HashLedger.successor(key)) == null) {
+        return tree;
+      }
+    }
+  }
+
+  private static void assertTrees(MerkleTree expected, MerkleTree tree) {
+    for (int level = 0; level <= LEAF_BITS; level++) {
+      for (int bucket = 0; bucket < (1 << level); bucket++) {
+        assertEquals(expected.getHash(level, bucket), tree.getHash(level, bucket));
+      }
+    }
+  }
+
+}
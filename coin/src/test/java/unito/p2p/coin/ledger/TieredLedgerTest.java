@@ -0,0 +1,120 @@
+package unito.p2p.coin.ledger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import rice.p2p.commonapi.Id;
+
+import unito.p2p.coin.testing.TestNodes;
+
+/**
+ * @(#) TieredLedgerTest.java Checks that the cache in front of the cold
+ * ledger evicts the accounts it has no room for, writes their changed
+ * balances back, and never shows an older balance than the one set.
+ */
+public class TieredLedgerTest {
+
+  @Test
+  public void testEvictionWritesBack() throws Exception {
+    HashLedger cold = new HashLedger(4, 16);
+    TieredLedger ledger = new TieredLedger(cold, 8, 1);
+    for (int i = 0; i < 100; i++) {
+      ledger.setBalance(TestNodes.id(i), i + 1);
+    }
+    assertEquals(100, ledger.size());
+    assertEquals(100 - 8, ledger.getEvictions());
+
+    // the evicted accounts were written back, the cached ones not yet
+    int written = 0;
+    for (int i = 0; i < 100; i++) {
+      if (cold.getBalance(TestNodes.id(i)) == i + 1) {
+        written++;
+      }
+    }
+    assertEquals(100 - 8, written);
+
+    // the evicted accounts are read back from the cold ledger
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i + 1, ledger.getBalance(TestNodes.id(i)));
+    }
+    assertTrue(ledger.getFaults() >= 100);
+
+    ledger.flush();
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i + 1, cold.getBalance(TestNodes.id(i)));
+    }
+  }
+
+  @Test
+  public void testScanWithoutWriteBack() {
+    HashLedger cold = new HashLedger(4, 16);
+    TieredLedger ledger = new TieredLedger(cold, 16, 1);
+    Id id = TestNodes.id(1);
+    ledger.setBalance(id, 5);
+    ledger.add(id, 10);
+
+    // the scan takes the balance from the cache and leaves the cold ledger as it is
+    ByteBuffer accounts = ledger.scan(null, null, 10);
+    assertEquals(HashLedger.ACCOUNT_SIZE, accounts.remaining());
+    assertEquals(15, accounts.getInt(HashLedger.KEY_LENGTH));
+    assertEquals(0, cold.getBalance(id));
+    assertTrue(ledger.getHitRate() > 0);
+  }
+
+  @Test
+  public void testMatchesHashLedger() throws Exception {
+    HashLedger cold = new HashLedger(4, 16);
+    TieredLedger ledger = new TieredLedger(cold, 64, 4);
+    HashLedger expected = new HashLedger(4, 16);
+    Random random = new Random(3);
+
+    for (int i = 0; i < 20000; i++) {
+      Id id = TestNodes.id(random.nextInt(500));
+      int value = random.nextInt(50);
+      switch (random.nextInt(4)) {
+        case 0:
+          assertEquals(expected.add(id, value), ledger.add(id, value));
+          break;
+        case 1:
+          assertEquals(expected.remove(id, value), ledger.remove(id, value));
+          break;
+        case 2:
+          assertEquals(expected.putIfAbsent(id, value), ledger.putIfAbsent(id, value));
+          break;
+        default:
+          expected.setBalance(id, value);
+          ledger.setBalance(id, value);
+      }
+    }
+
+    assertEquals(expected.size(), ledger.size());
+    assertTrue(ledger.getEvictions() > 0);
+    ledger.flush();
+    for (int i = 0; i < 500; i++) {
+      Id id = TestNodes.id(i);
+      assertEquals(expected.getBalance(id), ledger.getBalance(id));
+      assertEquals(expected.getBalance(id), cold.getBalance(id));
+    }
+  }
+
+  @Test
+  public void testStripes() {
+    try {
+      new TieredLedger(new HashLedger(), 16, 3);
+      fail("a number of stripes which is not a power of two was accepted");
+    } catch (IllegalArgumentException iae) {
+    }
+    try {
+      new TieredLedger(new HashLedger(), 2, 4);
+      fail("more stripes than cached accounts were accepted");
+    } catch (IllegalArgumentException iae) {
+    }
+  }
+
+}
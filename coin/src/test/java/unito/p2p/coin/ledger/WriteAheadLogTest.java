@@ -0,0 +1,190 @@
+package unito.p2p.coin.ledger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import rice.Continuation;
+
+import unito.p2p.coin.testing.TestNodes;
+
+/**
+ * @(#) WriteAheadLogTest.java Checks that the records of the write ahead log
+ * survive a restart, and that a tail torn by a crash is discarded without
+ * losing the records before it.
+ */
+public class WriteAheadLogTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("wal", "");
+    directory.delete();
+  }
+
+  @After
+  public void tearDown() {
+    delete(directory);
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+    append(log, 1, 20);
+    log.close();
+
+    log = new WriteAheadLog(directory, WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+    assertEquals(20, log.getLastLsn());
+    HashLedger ledger = new HashLedger();
+    assertEquals(20, log.replay(ledger, 0));
+    for (int i = 1; i <= 20; i++) {
+      assertEquals(i * 10, ledger.getBalance(TestNodes.id(i)));
+    }
+
+    ledger = new HashLedger();
+    assertEquals(5, log.replay(ledger, 15));
+    assertEquals(0, ledger.getBalance(TestNodes.id(15)));
+    assertEquals(160, ledger.getBalance(TestNodes.id(16)));
+    log.close();
+  }
+
+  @Test
+  public void testTornTail() throws Exception {
+    WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+    append(log, 1, 10);
+    log.close();
+
+    // a crash in the middle of a write leaves part of a record
+    RandomAccessFile file = new RandomAccessFile(lastSegment(), "rw");
+    file.seek(file.length());
+    file.write(new byte[WriteAheadLog.RECORD_SIZE / 2]);
+    file.close();
+
+    log = new WriteAheadLog(directory, WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+    assertEquals(10, log.getLastLsn());
+    assertEquals(10 * WriteAheadLog.RECORD_SIZE, lastSegment().length());
+
+    // new records follow the last complete one
+    append(log, 11, 5);
+    log.close();
+
+    log = new WriteAheadLog(directory, WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+    HashLedger ledger = new HashLedger();
+    assertEquals(15, log.replay(ledger, 0));
+    for (int i = 1; i <= 15; i++) {
+      assertEquals(i * 10, ledger.getBalance(TestNodes.id(i)));
+    }
+    log.close();
+  }
+
+  @Test
+  public void testCorruptedTail() throws Exception {
+    WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+    append(log, 1, 10);
+    log.close();
+
+    // a record written in full but with a wrong checksum is torn too
+    RandomAccessFile file = new RandomAccessFile(lastSegment(), "rw");
+    long balance = file.length() - 8;
+    file.seek(balance);
+    int value = file.readInt();
+    file.seek(balance);
+    file.writeInt(value + 1);
+    file.close();
+
+    log = new WriteAheadLog(directory, WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+    assertEquals(9, log.getLastLsn());
+    HashLedger ledger = new HashLedger();
+    assertEquals(9, log.replay(ledger, 0));
+    assertEquals(0, ledger.getBalance(TestNodes.id(10)));
+    log.close();
+  }
+
+  @Test
+  public void testSegments() throws Exception {
+    WriteAheadLog log = new WriteAheadLog(directory, 4 * WriteAheadLog.RECORD_SIZE);
+    for (int i = 1; i <= 20; i++) {
+      append(log, i, 1);
+    }
+    assertTrue(log.getSegmentCount() > 1);
+
+    // a checkpoint covering the first records lets their segments go
+    int segments = log.getSegmentCount();
+    assertTrue(log.truncate(12) > 0);
+    assertTrue(log.getSegmentCount() < segments);
+    log.close();
+
+    log = new WriteAheadLog(directory, 4 * WriteAheadLog.RECORD_SIZE);
+    assertEquals(20, log.getLastLsn());
+    HashLedger ledger = new HashLedger();
+    assertEquals(8, log.replay(ledger, 12));
+    for (int i = 13; i <= 20; i++) {
+      assertEquals(i * 10, ledger.getBalance(TestNodes.id(i)));
+    }
+    log.close();
+  }
+
+  /**
+   * Append the balances i * 10 of the ids first to first + count - 1 and wait
+   * until they are durable
+   */
+  private static void append(WriteAheadLog log, int first, int count) throws Exception {
+    final Object[] result = new Object[count];
+    final int[] done = new int[1];
+    for (int i = 0; i < count; i++) {
+      final int index = i;
+      log.append(TestNodes.id(first + i), (first + i) * 10, new Continuation() {
+        public void receiveResult(Object o) {
+          finish(o);
+        }
+
+        public void receiveException(Exception e) {
+          finish(e);
+        }
+
+        private void finish(Object o) {
+          synchronized (done) {
+            result[index] = o;
+            done[0]++;
+            done.notifyAll();
+          }
+        }
+      });
+    }
+
+    synchronized (done) {
+      while (done[0] < count) {
+        done.wait();
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      assertEquals(new Long(first + i), result[i]);
+    }
+  }
+
+  private File lastSegment() {
+    String[] names = directory.list();
+    Arrays.sort(names);
+    return new File(directory, names[names.length - 1]);
+  }
+
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (int i = 0; i < children.length; i++) {
+        delete(children[i]);
+      }
+    }
+    file.delete();
+  }
+
+}
@@ -0,0 +1,122 @@
+package unito.p2p.coin.messaging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.NodeHandle;
+
+import unito.p2p.coin.testing.TestNodes;
+import unito.p2p.coin.transport.BufferPool;
+import unito.p2p.coin.transport.ByteBufferInputBuffer;
+import unito.p2p.coin.transport.ByteBufferOutputBuffer;
+import unito.p2p.coin.transport.FrameReader;
+
+/**
+ * @(#) MessageViewTest.java Checks that a view reads the header of a frame
+ * as the message read in full would, without moving the frame, and that a
+ * frame marked as adding node handles is still read back.
+ */
+public class MessageViewTest {
+
+  private BufferPool pool = new BufferPool();
+
+  private Endpoint endpoint = TestNodes.endpoint();
+
+  private NodeHandle sender = TestNodes.handle(1);
+
+  private MessageView view = new MessageView();
+
+  @Test
+  public void testRequest() throws IOException {
+    WithDrawalMessage wdm = new WithDrawalMessage(5, sender, TestNodes.id(6), 17);
+    ByteBuffer frame = body(write(wdm));
+    view.wrap(frame);
+    assertEquals(WithDrawalMessage.TYPE, view.getType());
+    assertEquals(5, view.getUID());
+    assertFalse(view.isResponse());
+    assertFalse(view.addsHandles());
+    assertNull(view.getResult());
+    assertEquals(FrameReader.HEADER_SIZE, frame.position());
+    pool.release(frame);
+  }
+
+  @Test
+  public void testResults() throws IOException {
+    FundingMessage fm = new FundingMessage(3, sender, TestNodes.id(6), 42);
+    fm.setResponse(Boolean.FALSE);
+    ByteBuffer frame = body(write(fm));
+    assertTrue(view.wrap(frame).isResponse());
+    assertEquals(Boolean.FALSE, view.getResult());
+    assertEquals(3, view.getUID());
+    pool.release(frame);
+
+    // the same view over the next frame
+    BalanceRequestMessage brm = new BalanceRequestMessage(-9, sender, TestNodes.id(9), sender);
+    brm.setResponse(new Integer(-77));
+    frame = body(write(brm));
+    assertTrue(view.wrap(frame).isResponse());
+    assertEquals(BalanceRequestMessage.TYPE, view.getType());
+    assertEquals(new Integer(-77), view.getResult());
+    assertEquals(-9, view.getUID());
+    pool.release(frame);
+
+    // a response without a result
+    CoinMessageLostMessage lost = new CoinMessageLostMessage(4, sender, sender.getId(), fm, sender);
+    frame = body(write(lost));
+    assertTrue(view.wrap(frame).isResponse());
+    assertNull(view.getResult());
+    pool.release(frame);
+  }
+
+  @Test
+  public void testMarkHandles() throws IOException {
+    FundingMessage fm = new FundingMessage(3, sender, TestNodes.id(6), 42);
+    fm.setResponse(Boolean.TRUE);
+    ByteBuffer frame = write(fm);
+    MessageView.markHandles(frame);
+    body(frame);
+
+    view.wrap(frame);
+    assertTrue(view.addsHandles());
+    assertTrue(view.isResponse());
+    assertEquals(Boolean.TRUE, view.getResult());
+    assertEquals(3, view.getUID());
+
+    // the mark does not change how the message is read
+    ByteBufferInputBuffer in = new ByteBufferInputBuffer(frame);
+    short type = in.readShort();
+    FundingMessage read = (FundingMessage) endpoint.getDeserializer().deserialize(in, type, (byte) 0, null);
+    assertEquals(0, in.bytesRemaining());
+    assertEquals(42, read.getAmount());
+    assertEquals(Boolean.TRUE, read.getResponse());
+    assertEquals(sender, read.getSource());
+    pool.release(frame);
+  }
+
+  /**
+   * Write a message as a frame, as it is sent
+   */
+  private ByteBuffer write(CoinMessage message) throws IOException {
+    ByteBufferOutputBuffer out = new ByteBufferOutputBuffer(pool);
+    out.writeShort(message.getType());
+    message.serialize(out);
+    return out.toFrame();
+  }
+
+  /**
+   * Skip the header of a frame, as it is received
+   */
+  private static ByteBuffer body(ByteBuffer frame) {
+    frame.position(FrameReader.HEADER_SIZE);
+    return frame;
+  }
+
+}
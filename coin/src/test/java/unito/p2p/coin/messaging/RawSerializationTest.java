@@ -0,0 +1,267 @@
+package unito.p2p.coin.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.IdRange;
+import rice.p2p.commonapi.NodeHandle;
+
+import unito.p2p.coin.testing.TestNodes;
+import unito.p2p.coin.transport.BufferPool;
+import unito.p2p.coin.transport.ByteBufferInputBuffer;
+import unito.p2p.coin.transport.ByteBufferOutputBuffer;
+import unito.p2p.coin.transport.FrameReader;
+
+/**
+ * @(#) RawSerializationTest.java Checks that every message read back from
+ * its raw serialization holds the fields it was written with, and that the
+ * deserializer reads exactly the bytes written.
+ */
+public class RawSerializationTest {
+
+  private BufferPool pool = new BufferPool();
+
+  private Endpoint endpoint = TestNodes.endpoint();
+
+  private NodeHandle sender = TestNodes.handle(1);
+
+  private NodeHandle receiver = TestNodes.handle(2);
+
+  private NodeHandle root = TestNodes.handle(3);
+
+  @Test
+  public void testCashFlow() throws IOException {
+    CashFlowMessage cfm = new CashFlowMessage(7, sender, receiver, 500);
+    CashFlowMessage read = (CashFlowMessage) roundTrip(cfm);
+    assertEquals(7, read.getUID());
+    assertEquals(500, read.getAmount());
+    assertEquals(sender, read.getSource());
+    assertEquals(receiver, read.getDirectDest());
+    assertEquals(cfm.getDigest(), read.getDigest());
+    assertFalse(read.isResponse());
+
+    CashFlowConfirmMessage confirm = new CashFlowConfirmMessage(8, cfm);
+    confirm.setReplication();
+    CashFlowConfirmMessage confirmRead = (CashFlowConfirmMessage) roundTrip(confirm);
+    assertTrue(confirmRead.isReplication());
+    assertEquals(500, confirmRead.getCashFlowMessage().getAmount());
+  }
+
+  @Test
+  public void testCashFlowUpdateReplication() throws IOException {
+    CashFlowMessage cfm = new CashFlowMessage(7, sender, receiver, 500);
+    CashFlowUpdateMessage cfum = new CashFlowUpdateMessage(8, cfm, root, receiver.getId());
+    CashFlowUpdateMessage cfumRead = (CashFlowUpdateMessage) roundTrip(cfum);
+    assertEquals(root, cfumRead.getSender());
+    assertEquals(receiver.getId(), cfumRead.getUpdated());
+    assertEquals(500, cfumRead.getDelta());
+
+    CashFlowUpdateReplicationMessage cfurm = new CashFlowUpdateReplicationMessage(9, cfum, root);
+    cfurm.setRejected();
+    cfurm.setResponse();
+    CashFlowUpdateReplicationMessage read = (CashFlowUpdateReplicationMessage) roundTrip(cfurm);
+    assertEquals(9, read.getUID());
+    assertTrue(read.isResponse());
+    assertFalse(read.isAccepted());
+    assertEquals(root, read.getAccountRoot());
+    assertEquals(receiver.getId(), read.getUpdated());
+    assertEquals(500, read.getDelta());
+    assertEquals(cfm.getDigest(), read.getOrigin());
+
+    // the sender of a cash flow loses the amount
+    CashFlowUpdateMessage debit = new CashFlowUpdateMessage(10, cfm, root, sender.getId());
+    read = (CashFlowUpdateReplicationMessage) roundTrip(new CashFlowUpdateReplicationMessage(11, debit, root));
+    assertEquals(-500, read.getDelta());
+    assertEquals(sender.getId(), read.getUpdated());
+    assertTrue(read.isAccepted());
+  }
+
+  @Test
+  public void testBalance() throws IOException {
+    BalanceRequestMessage brm = new BalanceRequestMessage(1, sender, TestNodes.id(9), receiver);
+    brm.setResponse(new Integer(77));
+    BalanceRequestMessage brmRead = (BalanceRequestMessage) roundTrip(brm);
+    assertEquals(new Integer(77), brmRead.getResponse());
+    assertEquals(receiver, brmRead.getRequester());
+
+    BalanceRequestPropagatedMessage brpm = new BalanceRequestPropagatedMessage(2, brm, root);
+    brpm.setResponse(13);
+    BalanceRequestPropagatedMessage read = (BalanceRequestPropagatedMessage) roundTrip(brpm);
+    assertEquals(13, read.getValue());
+    assertEquals(root, read.getAccountRoot());
+    assertEquals(new Integer(77), read.getBalanceRequestMessage().getResponse());
+  }
+
+  @Test
+  public void testMoney() throws IOException {
+    FundingMessage fm = new FundingMessage(3, sender, TestNodes.id(6), 42);
+    fm.setResponse(Boolean.TRUE);
+    FundingMessage fmRead = (FundingMessage) roundTrip(fm);
+    assertEquals(42, fmRead.getAmount());
+    assertEquals(Boolean.TRUE, fmRead.getResponse());
+
+    AddMoneyMessage amm = new AddMoneyMessage(4, root, TestNodes.id(6), fm, 42, TestNodes.id(5));
+    amm.setResponse(Boolean.TRUE);
+    AddMoneyMessage ammRead = (AddMoneyMessage) roundTrip(amm);
+    assertEquals(Boolean.TRUE, ammRead.getResponse());
+    assertEquals(42, ammRead.getAmount());
+    assertEquals(TestNodes.id(5), ammRead.getUpdated());
+    assertEquals(fm.getDigest(), ammRead.getOrigin());
+
+    WithDrawalMessage wdm = new WithDrawalMessage(5, sender, TestNodes.id(6), 17);
+    wdm.setResponse(Boolean.FALSE);
+    WithDrawalMessage wdmRead = (WithDrawalMessage) roundTrip(wdm);
+    assertEquals(17, wdmRead.getAmount());
+    assertEquals(Boolean.FALSE, wdmRead.getResponse());
+
+    RemoveMoneyMessage rmm = new RemoveMoneyMessage(6, root, TestNodes.id(6), wdm, 17, TestNodes.id(5));
+    RemoveMoneyMessage rmmRead = (RemoveMoneyMessage) roundTrip(rmm);
+    assertNull(rmmRead.getResponse());
+    assertEquals(17, rmmRead.getAmount());
+    assertEquals(TestNodes.id(5), rmmRead.getUpdated());
+    assertEquals(wdm.getDigest(), rmmRead.getOrigin());
+  }
+
+  @Test
+  public void testStreamChunk() throws IOException {
+    byte[] data = {1, 2, 3, 4};
+    StreamChunkMessage chunk = new StreamChunkMessage(6, 9, sender, receiver, StreamChunkMessage.ACCOUNTS, 3, data, true);
+    StreamChunkMessage read = (StreamChunkMessage) roundTrip(chunk);
+    assertEquals(9, read.getStream());
+    assertEquals(3, read.getSequence());
+    assertEquals(StreamChunkMessage.ACCOUNTS, read.getKind());
+    assertTrue(read.isLast());
+    assertArrayEquals(data, read.getData());
+
+    // the acknowledgement carries no data
+    read.setResponse(Boolean.FALSE);
+    StreamChunkMessage response = (StreamChunkMessage) roundTrip(read);
+    assertTrue(response.isResponse());
+    assertEquals(Boolean.FALSE, response.getResponse());
+    assertEquals(0, response.getData().length);
+    assertEquals(6, response.getUID());
+    assertEquals(9, response.getStream());
+  }
+
+  @Test
+  public void testReplicaBatch() throws IOException {
+    Id[] updated = {TestNodes.id(1), TestNodes.id(2), TestNodes.id(3)};
+    ReplicaBatchMessage batch = new ReplicaBatchMessage(20, root, receiver, updated, new int[] {5, -7, 9}, new long[] {11, 12, 13});
+    ReplicaBatchMessage read = (ReplicaBatchMessage) roundTrip(batch);
+    assertFalse(read.isResponse());
+    assertEquals(root, read.getAccountRoot());
+    assertEquals(3, read.size());
+    for (int i = 0; i < updated.length; i++) {
+      assertEquals(updated[i], read.getUpdated(i));
+      assertEquals(batch.getDelta(i), read.getDelta(i));
+      assertEquals(batch.getOrigin(i), read.getOrigin(i));
+    }
+
+    read.setResponse(new boolean[] {true, false, true});
+    ReplicaBatchMessage response = (ReplicaBatchMessage) roundTrip(read);
+    assertTrue(response.isResponse());
+    assertEquals(20, response.getUID());
+    assertEquals(3, response.size());
+    assertTrue(response.getAccepted()[0]);
+    assertFalse(response.getAccepted()[1]);
+    assertTrue(response.getAccepted()[2]);
+  }
+
+  @Test
+  public void testMerkleSync() throws IOException {
+    IdRange range = new rice.pastry.IdRange((rice.pastry.Id) TestNodes.id(1), (rice.pastry.Id) TestNodes.id(2));
+    MerkleSyncMessage compare = new MerkleSyncMessage(21, root, receiver, range, MerkleSyncMessage.COMPARE, 4, new int[] {0, 3, 15},
+        new long[] {-1, 0, Long.MAX_VALUE}, null);
+    MerkleSyncMessage read = (MerkleSyncMessage) roundTrip(compare);
+    assertEquals(range, read.getRange());
+    assertEquals(MerkleSyncMessage.COMPARE, read.getPhase());
+    assertEquals(4, read.getLevel());
+    assertEquals(3, read.getBuckets().length);
+    assertEquals(3, read.getHashes().length);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(compare.getBuckets()[i], read.getBuckets()[i]);
+      assertEquals(compare.getHashes()[i], read.getHashes()[i]);
+    }
+    assertNull(read.getAccounts());
+
+    // the differences leave the hashes out, and may carry no bucket
+    byte[] accounts = {1, 2, 3, 4, 5};
+    MerkleSyncMessage differences = new MerkleSyncMessage(21, receiver, root, range, MerkleSyncMessage.DIFFERENCES, 8, new int[0], null, accounts);
+    read = (MerkleSyncMessage) roundTrip(differences);
+    assertEquals(MerkleSyncMessage.DIFFERENCES, read.getPhase());
+    assertEquals(8, read.getLevel());
+    assertEquals(0, read.getBuckets().length);
+    assertNull(read.getHashes());
+    assertArrayEquals(accounts, read.getAccounts());
+    assertEquals(receiver, read.getSource());
+  }
+
+  @Test
+  public void testStateTransferRequest() throws IOException {
+    IdRange range = new rice.pastry.IdRange((rice.pastry.Id) TestNodes.id(4), (rice.pastry.Id) TestNodes.id(5));
+    StateTransferRequestMessage request = new StateTransferRequestMessage(22, sender, receiver, range);
+    StateTransferRequestMessage read = (StateTransferRequestMessage) roundTrip(request);
+    assertEquals(range, read.getRange());
+    assertEquals(sender, read.getSource());
+    assertFalse(read.isResponse());
+  }
+
+  @Test
+  public void testCoinMessageLost() throws IOException {
+    CashFlowMessage cfm = new CashFlowMessage(23, sender, receiver, 500);
+    CoinMessageLostMessage lost = new CoinMessageLostMessage(23, sender, receiver.getId(), cfm, receiver);
+    CoinMessageLostMessage read = (CoinMessageLostMessage) roundTrip(lost);
+    assertTrue(read.isResponse());
+    assertEquals(sender, read.getSource());
+
+    // the lost message, its id and its hint are read back as written
+    assertArrayEquals(bytes(lost), bytes(read));
+  }
+
+  /**
+   * Write a message as a frame and read it back
+   */
+  private CoinMessage roundTrip(CoinMessage message) throws IOException {
+    ByteBufferOutputBuffer out = new ByteBufferOutputBuffer(pool);
+    out.writeShort(message.getType());
+    message.serialize(out);
+    ByteBuffer frame = out.toFrame();
+    frame.position(FrameReader.HEADER_SIZE);
+
+    ByteBufferInputBuffer in = new ByteBufferInputBuffer(frame);
+    short type = in.readShort();
+    assertEquals(message.getType(), type);
+    CoinMessage read = (CoinMessage) endpoint.getDeserializer().deserialize(in, type, (byte) 0, null);
+    assertEquals(0, in.bytesRemaining());
+    pool.release(frame);
+
+    assertEquals(message.getClass(), read.getClass());
+    assertEquals(message.getUID(), read.getUID());
+    return read;
+  }
+
+  /**
+   * Return the bytes a message is serialized to
+   */
+  private byte[] bytes(CoinMessage message) throws IOException {
+    ByteBufferOutputBuffer out = new ByteBufferOutputBuffer(pool);
+    message.serialize(out);
+    ByteBuffer frame = out.toFrame();
+    frame.position(FrameReader.HEADER_SIZE);
+    byte[] bytes = new byte[frame.remaining()];
+    frame.get(bytes);
+    pool.release(frame);
+    return bytes;
+  }
+
+}
@@ -0,0 +1,316 @@
+package unito.p2p.coin.replication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedList;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.IdRange;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.NodeHandleSet;
+
+import unito.p2p.coin.ledger.HashLedger;
+import unito.p2p.coin.ledger.MerkleLedger;
+import unito.p2p.coin.messaging.MerkleSyncMessage;
+import unito.p2p.coin.testing.TestNodes;
+
+/**
+ * @(#) AntiEntropyTest.java Checks that the anti-entropy rounds of the root
+ * of a range find the accounts its replicas disagree on and set them to the
+ * balance of the majority, and that a replica only takes repairs from the
+ * root of the accounts, in the range of an exchange.
+ *
+ * Three replicas exchange their messages through a queue; the first one is
+ * the root of every account, and compares the first half of the key space.
+ */
+public class AntiEntropyTest {
+
+  static final int REPLICAS = 3;
+
+  static final int LEAF_BITS = 8;
+
+  private Environment environment;
+
+  private NodeHandle[] handles;
+
+  private MerkleLedger[] ledgers;
+
+  private AntiEntropy[] processes;
+
+  /**
+   * the messages sent and not delivered yet, with their destination
+   */
+  private LinkedList<Object[]> messages;
+
+  private IdRange range;
+
+  private Random random;
+
+  @Before
+  public void setUp() throws Exception {
+    environment = new Environment();
+    messages = new LinkedList<Object[]>();
+    random = new Random(1);
+
+    byte[] half = new byte[HashLedger.KEY_LENGTH];
+    half[0] = (byte) 0x80;
+    range = new rice.pastry.IdRange((rice.pastry.Id) HashLedger.toId(new byte[HashLedger.KEY_LENGTH]), (rice.pastry.Id) HashLedger.toId(half));
+
+    handles = new NodeHandle[REPLICAS];
+    for (int i = 0; i < REPLICAS; i++) {
+      handles[i] = TestNodes.handle(i);
+    }
+    ledgers = new MerkleLedger[REPLICAS];
+    processes = new AntiEntropy[REPLICAS];
+    for (int i = 0; i < REPLICAS; i++) {
+      ledgers[i] = new MerkleLedger(new HashLedger(4, 16), LEAF_BITS);
+      processes[i] = new AntiEntropy(endpoint(i), ledgers[i], null, REPLICAS - 1, logger());
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (int i = 0; i < REPLICAS; i++) {
+      ledgers[i].close();
+    }
+    environment.destroy();
+  }
+
+  @Test
+  public void testMajorityRepair() throws Exception {
+    // accounts the replicas agree on, inside and outside of the range
+    for (int i = 0; i < 300; i++) {
+      Id id = account(i % 3 != 0);
+      int balance = 1 + random.nextInt(1000);
+      for (int r = 0; r < REPLICAS; r++) {
+        ledgers[r].setBalance(id, balance);
+      }
+    }
+
+    // the root, then a replica, is the only one to disagree
+    Id rootWrong = agreed(500);
+    ledgers[0].setBalance(rootWrong, 400);
+    Id replicaWrong = agreed(600);
+    ledgers[1].setBalance(replicaWrong, 1);
+    // a replica misses an account
+    Id missing = account(true);
+    ledgers[0].setBalance(missing, 700);
+    ledgers[1].setBalance(missing, 700);
+    // no majority
+    Id split = account(true);
+    for (int r = 0; r < REPLICAS; r++) {
+      ledgers[r].setBalance(split, 10 + r);
+    }
+    // outside of the range
+    Id outside = account(false);
+    ledgers[1].setBalance(outside, 5);
+    ledgers[2].setBalance(outside, 6);
+    for (int r = 0; r < REPLICAS; r++) {
+      ready(ledgers[r]);
+    }
+
+    // a round with each of the other replicas
+    processes[0].startRound(1000);
+    deliverAll();
+    processes[0].startRound(1000);
+    deliverAll();
+    assertEquals(2, processes[0].getRounds());
+
+    for (int r = 0; r < REPLICAS; r++) {
+      assertEquals(500, ledgers[r].getBalance(rootWrong));
+      assertEquals(600, ledgers[r].getBalance(replicaWrong));
+      assertEquals(700, ledgers[r].getBalance(missing));
+      assertEquals(10 + r, ledgers[r].getBalance(split));
+    }
+    assertEquals(0, ledgers[0].getBalance(outside));
+    assertEquals(5, ledgers[1].getBalance(outside));
+    assertEquals(6, ledgers[2].getBalance(outside));
+    assertTrue(processes[0].getUnresolved() >= 1);
+    assertTrue(processes[0].getRepaired() >= 3);
+
+    // the replicas now only disagree on the account without a majority
+    for (int r = 0; r < REPLICAS; r++) {
+      ledgers[r].setBalance(split, 10);
+    }
+    long repaired = processes[0].getRepaired();
+    processes[0].startRound(1000);
+    deliverAll();
+    assertEquals(repaired, processes[0].getRepaired());
+  }
+
+  @Test
+  public void testRepairChecks() throws Exception {
+    Id inside = account(true);
+    Id outside = account(false);
+    for (int r = 0; r < REPLICAS; r++) {
+      ready(ledgers[r]);
+    }
+    byte[] accounts = accounts(new Id[] {inside, outside}, 50);
+
+    // no exchange was started
+    processes[2].deliver(repair(0, 2, 77, accounts));
+    assertEquals(0, ledgers[2].getBalance(inside));
+
+    // an exchange with a replica which is not the root of the accounts
+    processes[2].deliver(compare(1, 2, 78));
+    processes[2].deliver(repair(1, 2, 78, accounts));
+    assertEquals(0, ledgers[2].getBalance(inside));
+
+    // an exchange with the root, the accounts outside of its range are left out
+    processes[2].deliver(compare(0, 2, 79));
+    processes[2].deliver(repair(0, 2, 79, accounts));
+    assertEquals(50, ledgers[2].getBalance(inside));
+    assertEquals(0, ledgers[2].getBalance(outside));
+    assertEquals(1, processes[2].getRepaired());
+  }
+
+  @Test
+  public void testMajority() {
+    Integer one = new Integer(1);
+    Integer two = new Integer(2);
+    assertEquals(one, AntiEntropy.majority(new Integer[] {one, one, two}));
+    assertEquals(one, AntiEntropy.majority(new Integer[] {one, null, null}));
+    assertEquals(two, AntiEntropy.majority(new Integer[] {null, two, two}));
+    assertEquals(null, AntiEntropy.majority(new Integer[] {one, two, null}));
+    assertEquals(null, AntiEntropy.majority(new Integer[] {one, two, new Integer(3)}));
+  }
+
+  /**
+   * Return a new account, in the range or not
+   */
+  private Id account(boolean inRange) {
+    byte[] key = new byte[HashLedger.KEY_LENGTH];
+    random.nextBytes(key);
+    key[0] = (byte) (inRange ? key[0] & 0x7F : key[0] | 0x80);
+    return HashLedger.toId(key);
+  }
+
+  /**
+   * Return a new account in the range with the same balance on every replica
+   */
+  private Id agreed(int balance) {
+    Id id = account(true);
+    for (int r = 0; r < REPLICAS; r++) {
+      ledgers[r].setBalance(id, balance);
+    }
+    return id;
+  }
+
+  private static byte[] accounts(Id[] ids, int balance) {
+    java.nio.ByteBuffer accounts = java.nio.ByteBuffer.allocate(ids.length * HashLedger.ACCOUNT_SIZE);
+    for (int i = 0; i < ids.length; i++) {
+      accounts.put(HashLedger.toKey(ids[i])).putInt(balance);
+    }
+    return accounts.array();
+  }
+
+  private MerkleSyncMessage compare(int from, int to, int uid) {
+    messages.clear();
+    return new MerkleSyncMessage(uid, handles[from], handles[to], range, MerkleSyncMessage.COMPARE, 4, new int[0], new long[0], null);
+  }
+
+  private MerkleSyncMessage repair(int from, int to, int uid, byte[] accounts) {
+    messages.clear();
+    return new MerkleSyncMessage(uid, handles[from], handles[to], range, MerkleSyncMessage.REPAIR, LEAF_BITS, new int[0], null, accounts);
+  }
+
+  /**
+   * Deliver the messages sent, and the ones they cause, in order
+   */
+  private void deliverAll() {
+    for (int i = 0; !messages.isEmpty(); i++) {
+      assertTrue(i < 10000);
+      Object[] message = messages.removeFirst();
+      processes[((Integer) message[0]).intValue()].deliver((MerkleSyncMessage) message[1]);
+    }
+  }
+
+  private static void ready(MerkleLedger ledger) throws InterruptedException {
+    for (int i = 0; i < 10000 && !ledger.isReady(); i++) {
+      Thread.sleep(1);
+    }
+    assertTrue(ledger.isReady());
+  }
+
+  /**
+   * Return the endpoint of a replica: the first replica is the root of
+   * every account, and is root for the range
+   */
+  private Endpoint endpoint(final int replica) {
+    return (Endpoint) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {Endpoint.class}, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("getEnvironment")) {
+          return environment;
+        }
+        if (name.equals("getId")) {
+          return handles[replica].getId();
+        }
+        if (name.equals("getLocalNodeHandle")) {
+          return handles[replica];
+        }
+        if (name.equals("range")) {
+          return range;
+        }
+        if (name.equals("replicaSet")) {
+          return replicas(((Integer) args[1]).intValue());
+        }
+        if (name.equals("route")) {
+          for (int i = 0; i < REPLICAS; i++) {
+            if (handles[i].equals(args[2])) {
+              messages.add(new Object[] {new Integer(i), args[1]});
+            }
+          }
+          return null;
+        }
+        if (name.equals("toString")) {
+          return "endpoint " + replica;
+        }
+        throw new UnsupportedOperationException(name);
+      }
+    });
+  }
+
+  /**
+   * Return the first replicas, the root first
+   */
+  private NodeHandleSet replicas(final int max) {
+    return (NodeHandleSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {NodeHandleSet.class}, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("size")) {
+          return new Integer(Math.min(max, REPLICAS));
+        }
+        if (name.equals("getHandle") && args[0] instanceof Integer) {
+          return handles[((Integer) args[0]).intValue()];
+        }
+        throw new UnsupportedOperationException(name);
+      }
+    });
+  }
+
+  private static Logger logger() {
+    Logger logger = new Logger() {
+      public void log(String message) {
+      }
+
+      public void logException(String message, Throwable exception) {
+      }
+    };
+    logger.level = Logger.OFF;
+    return logger;
+  }
+
+}
@@ -0,0 +1,234 @@
+package unito.p2p.coin.replication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.p2p.commonapi.Cancellable;
+
+/**
+ * @(#) QuorumTest.java Checks that a quorum releases the requests to the
+ * replicas which did not answer once it is decided, counting those still
+ * waiting only, and that it asks a further replica when one fails or
+ * none answered for the hedge delay.
+ */
+public class QuorumTest {
+
+  private Environment environment;
+
+  private Quorum.Counters counters;
+
+  /**
+   * what the quorum decided
+   */
+  private Result decision;
+
+  /**
+   * the requests sent to the replicas, by replica
+   */
+  private ArrayList<Request> requests;
+
+  @Before
+  public void setUp() {
+    environment = new Environment();
+    counters = new Quorum.Counters();
+    decision = new Result();
+    requests = new ArrayList<Request>();
+  }
+
+  @After
+  public void tearDown() {
+    environment.destroy();
+  }
+
+  @Test
+  public void testRelease() {
+    Quorum quorum = new Quorum(environment, decision, 4, counters);
+    for (int i = 0; i < 4; i++) {
+      quorum.sent(i, new Request(i));
+    }
+    // a replica answered: its request no longer waits
+    requests.get(1).answered = true;
+
+    quorum.receiveResult("decided");
+    assertEquals("decided", decision.result);
+    assertEquals(3, counters.getReleased());
+    for (int i = 0; i < 4; i++) {
+      assertTrue(requests.get(i).cancelled);
+    }
+
+    // a request sent once the quorum is decided is released at once
+    Request late = new Request(4);
+    quorum.sent(3, late);
+    assertTrue(late.cancelled);
+    assertEquals(4, counters.getReleased());
+  }
+
+  @Test
+  public void testReleaseOnFailure() {
+    Quorum quorum = new Quorum(environment, decision, 3, counters);
+    for (int i = 0; i < 3; i++) {
+      quorum.sent(i, new Request(i));
+    }
+    quorum.receiveException(new Exception("failed"));
+    assertEquals("failed", decision.exception.getMessage());
+    assertNull(decision.result);
+    assertEquals(3, counters.getReleased());
+  }
+
+  @Test
+  public void testAskOnFailure() {
+    final Quorum quorum = new Quorum(environment, decision, 4, counters);
+    quorum.ask(asker(), 2, -1);
+    assertEquals(2, requests.size());
+    assertEquals(0, counters.getHedged());
+
+    // the replicas are asked one at a time as others fail
+    quorum.watch(new Result()).receiveResult(Boolean.TRUE);
+    assertEquals(2, requests.size());
+    quorum.watch(new Result()).receiveException(new Exception("lost"));
+    assertEquals(3, requests.size());
+    assertEquals(2, requests.get(2).replica);
+    assertEquals(1, counters.getHedged());
+
+    quorum.receiveResult(Boolean.TRUE);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(requests.get(i).cancelled);
+    }
+
+    // nobody else is asked once the quorum is decided
+    quorum.watch(new Result()).receiveException(new Exception("lost"));
+    assertEquals(3, requests.size());
+    assertNull(decision.exception);
+  }
+
+  @Test
+  public void testHedge() throws Exception {
+    final Quorum quorum = new Quorum(environment, decision, 3, counters);
+    onSelector(new Runnable() {
+      public void run() {
+        quorum.ask(asker(), 1, 200);
+      }
+    });
+    assertEquals(1, asked());
+
+    // an answer starts the hedge delay again
+    Thread.sleep(100);
+    onSelector(new Runnable() {
+      public void run() {
+        quorum.watch(new Result()).receiveResult(Boolean.TRUE);
+      }
+    });
+    Thread.sleep(150);
+    assertEquals(1, asked());
+
+    // without answers, a further replica is asked after the delay
+    for (int i = 0; i < 1000 && asked() < 2; i++) {
+      Thread.sleep(1);
+    }
+    assertEquals(2, asked());
+    assertEquals(1, counters.getHedged());
+
+    // and none once the quorum is decided
+    onSelector(new Runnable() {
+      public void run() {
+        quorum.receiveResult(Boolean.TRUE);
+      }
+    });
+    Thread.sleep(300);
+    assertEquals(2, asked());
+    assertEquals(2, counters.getReleased());
+  }
+
+  /**
+   * Return the number of replicas asked
+   */
+  private int asked() {
+    synchronized (requests) {
+      return requests.size();
+    }
+  }
+
+  /**
+   * Run a task on the selector thread, where the hedge timers run, and wait
+   * for it
+   */
+  private void onSelector(Runnable task) throws Exception {
+    final CountDownLatch done = new CountDownLatch(1);
+    environment.getSelectorManager().invoke(task);
+    environment.getSelectorManager().invoke(new Runnable() {
+      public void run() {
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Return a request recording what it sends
+   */
+  private Quorum.Request asker() {
+    return new Quorum.Request() {
+      public Cancellable send(int i) {
+        return new Request(i);
+      }
+    };
+  }
+
+  /**
+   * A request sent to a replica
+   */
+  private class Request implements Cancellable {
+
+    private int replica;
+
+    private boolean cancelled;
+
+    /**
+     * whether the response came, and the request stopped waiting
+     */
+    private boolean answered;
+
+    Request(int replica) {
+      this.replica = replica;
+      synchronized (requests) {
+        requests.add(this);
+      }
+    }
+
+    public boolean cancel() {
+      boolean waiting = !cancelled && !answered;
+      cancelled = true;
+      return waiting;
+    }
+  }
+
+  /**
+   * What a continuation received
+   */
+  static class Result implements Continuation {
+
+    private Object result;
+
+    private Exception exception;
+
+    public void receiveResult(Object result) {
+      this.result = result;
+    }
+
+    public void receiveException(Exception exception) {
+      this.exception = exception;
+    }
+  }
+
+}
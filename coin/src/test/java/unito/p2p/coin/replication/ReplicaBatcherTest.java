@@ -0,0 +1,263 @@
+package unito.p2p.coin.replication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.p2p.commonapi.Cancellable;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.NodeHandle;
+
+import unito.p2p.coin.testing.TestNodes;
+
+/**
+ * @(#) ReplicaBatcherTest.java Checks that the changes to a replica are sent
+ * together once their batch is full or its first change waited long
+ * enough, that every change gets the answer of the replica for it, and that
+ * a batch nobody waits for any more stops its request.
+ */
+public class ReplicaBatcherTest {
+
+  private Environment environment;
+
+  /**
+   * the batches sent, in order
+   */
+  private ArrayList<Batch> sent;
+
+  /**
+   * counted down for every batch sent
+   */
+  private CountDownLatch sending;
+
+  private NodeHandle replica = TestNodes.handle(1);
+
+  private NodeHandle other = TestNodes.handle(2);
+
+  @Before
+  public void setUp() {
+    environment = new Environment();
+    sent = new ArrayList<Batch>();
+    sending = new CountDownLatch(0);
+  }
+
+  @After
+  public void tearDown() {
+    environment.destroy();
+  }
+
+  @Test
+  public void testSizeFlush() throws Exception {
+    final ReplicaBatcher batcher = new ReplicaBatcher(environment, sender(), 4, 60000);
+    final Result[] results = new Result[10];
+    onSelector(new Runnable() {
+      public void run() {
+        for (int i = 0; i < results.length; i++) {
+          results[i] = new Result();
+          batcher.add(replica, TestNodes.id(i), i - 5, 100 + i, results[i]);
+        }
+      }
+    });
+
+    // two full batches went at once, the last changes wait
+    assertEquals(2, sent.size());
+    assertEquals(2, batcher.getSent());
+    for (int b = 0; b < 2; b++) {
+      Batch batch = sent.get(b);
+      assertEquals(replica, batch.replica);
+      assertEquals(4, batch.updated.length);
+      for (int i = 0; i < 4; i++) {
+        assertEquals(TestNodes.id(4 * b + i), batch.updated[i]);
+        assertEquals(4 * b + i - 5, batch.deltas[i]);
+        assertEquals(100 + 4 * b + i, batch.origins[i]);
+      }
+    }
+
+    // every change gets the answer of the replica for it
+    onSelector(new Runnable() {
+      public void run() {
+        sent.get(0).command.receiveResult(new boolean[] {true, false, true, true});
+        sent.get(1).command.receiveException(new Exception("lost"));
+        batcher.stop(new Exception("stopped"));
+      }
+    });
+    assertEquals(Boolean.TRUE, results[0].result);
+    assertEquals(Boolean.FALSE, results[1].result);
+    assertEquals(Boolean.TRUE, results[3].result);
+    for (int i = 4; i < 8; i++) {
+      assertEquals("lost", results[i].exception.getMessage());
+    }
+    for (int i = 8; i < 10; i++) {
+      assertEquals("stopped", results[i].exception.getMessage());
+    }
+    assertEquals(2, sent.size());
+    assertEquals(4, Math.round(batcher.getAverageSize()));
+  }
+
+  @Test
+  public void testDelayFlush() throws Exception {
+    final ReplicaBatcher batcher = new ReplicaBatcher(environment, sender(), 64, 20);
+    final Result[] results = new Result[4];
+    sending = new CountDownLatch(2);
+    final long start = System.currentTimeMillis();
+    onSelector(new Runnable() {
+      public void run() {
+        for (int i = 0; i < results.length; i++) {
+          results[i] = new Result();
+          batcher.add(i < 3 ? replica : other, TestNodes.id(i), 1, i, results[i]);
+        }
+      }
+    });
+    assertTrue(sending.await(10, TimeUnit.SECONDS));
+
+    // one batch by replica, sent once the first change waited
+    assertTrue(System.currentTimeMillis() - start >= 20);
+    assertEquals(2, sent.size());
+    int total = 0;
+    for (int b = 0; b < 2; b++) {
+      Batch batch = sent.get(b);
+      assertEquals(batch.replica == replica ? 3 : 1, batch.updated.length);
+      total += batch.updated.length;
+    }
+    assertEquals(4, total);
+    assertEquals(2, batcher.getSent());
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    final ReplicaBatcher batcher = new ReplicaBatcher(environment, sender(), 2, 60000);
+    final Result[] results = {new Result(), new Result(), new Result(), new Result()};
+    final boolean[] cancelled = new boolean[4];
+    onSelector(new Runnable() {
+      public void run() {
+        // once every change of a batch sent is decided, its request stops
+        Cancellable first = batcher.add(replica, TestNodes.id(0), 1, 0, results[0]);
+        cancelled[0] = first.cancel();
+        Cancellable second = batcher.add(replica, TestNodes.id(1), 1, 1, results[1]);
+        cancelled[1] = second.cancel();
+
+        // a change still waiting keeps the request of its batch
+        Cancellable third = batcher.add(replica, TestNodes.id(2), 1, 2, results[2]);
+        batcher.add(replica, TestNodes.id(3), 1, 3, results[3]);
+        cancelled[2] = third.cancel();
+      }
+    });
+    assertEquals(2, sent.size());
+    assertTrue(cancelled[0]);
+    assertTrue(cancelled[1]);
+    assertTrue(cancelled[2]);
+    assertTrue(sent.get(0).cancelled);
+    assertFalse(sent.get(1).cancelled);
+
+    onSelector(new Runnable() {
+      public void run() {
+        sent.get(1).command.receiveResult(new boolean[] {true, true});
+      }
+    });
+    assertNull(results[2].result);
+    assertEquals(Boolean.TRUE, results[3].result);
+  }
+
+  /**
+   * Return a sender recording the batches
+   */
+  private ReplicaBatcher.Sender sender() {
+    return new ReplicaBatcher.Sender() {
+      public Cancellable send(NodeHandle replica, Id[] updated, int[] deltas, long[] origins, Continuation command) {
+        Batch batch = new Batch(replica, updated, deltas, origins, command);
+        synchronized (sent) {
+          sent.add(batch);
+        }
+        sending.countDown();
+        return batch;
+      }
+    };
+  }
+
+  /**
+   * Run a task on the selector thread, where the batcher is used, and wait
+   * for it
+   */
+  private void onSelector(final Runnable task) throws Exception {
+    final CountDownLatch done = new CountDownLatch(1);
+    final Throwable[] failure = new Throwable[1];
+    environment.getSelectorManager().invoke(new Runnable() {
+      public void run() {
+        try {
+          task.run();
+        } catch (Throwable t) {
+          failure[0] = t;
+        }
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    if (failure[0] instanceof Error) {
+      throw (Error) failure[0];
+    }
+    if (failure[0] != null) {
+      throw (Exception) failure[0];
+    }
+  }
+
+  /**
+   * A batch sent
+   */
+  private static class Batch implements Cancellable {
+
+    private NodeHandle replica;
+
+    private Id[] updated;
+
+    private int[] deltas;
+
+    private long[] origins;
+
+    private Continuation command;
+
+    private boolean cancelled;
+
+    Batch(NodeHandle replica, Id[] updated, int[] deltas, long[] origins, Continuation command) {
+      this.replica = replica;
+      this.updated = updated;
+      this.deltas = deltas;
+      this.origins = origins;
+      this.command = command;
+    }
+
+    public boolean cancel() {
+      cancelled = true;
+      return true;
+    }
+  }
+
+  /**
+   * What the continuation of a change received
+   */
+  private static class Result implements Continuation {
+
+    private Object result;
+
+    private Exception exception;
+
+    public void receiveResult(Object result) {
+      this.result = result;
+    }
+
+    public void receiveException(Exception exception) {
+      this.exception = exception;
+    }
+  }
+
+}
@@ -0,0 +1,171 @@
+package unito.p2p.coin.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import rice.p2p.commonapi.appsocket.AppSocket;
+
+/**
+ * @(#) FrameReaderTest.java Checks that the FrameReader rebuilds the frames
+ * sent whatever way the socket splits the bytes: inside a length, inside a
+ * body, or many frames in a single read.
+ */
+public class FrameReaderTest {
+
+  @Test
+  public void testEverySplit() throws IOException {
+    List<byte[]> frames = new ArrayList<byte[]>();
+    frames.add(new byte[0]);
+    frames.add(new byte[] {1, 2, 3});
+    frames.add(new byte[] {4});
+    ByteBuffer stream = encode(frames);
+
+    // reads of every size, from one byte to the whole stream
+    for (int size = 1; size <= stream.limit(); size++) {
+      stream.rewind();
+      assertFrames(frames, read(socket(stream, new Random(size), size, size), 64, 1024));
+    }
+  }
+
+  @Test
+  public void testRandomSplits() throws IOException {
+    Random random = new Random(1);
+    List<byte[]> frames = new ArrayList<byte[]>();
+    for (int i = 0; i < 2000; i++) {
+      // mostly small frames, some larger than the read buffer
+      byte[] frame = new byte[random.nextInt(10) == 0 ? random.nextInt(60000) : random.nextInt(50)];
+      random.nextBytes(frame);
+      frames.add(frame);
+    }
+
+    assertFrames(frames, read(socket(encode(frames), random, 1, 3), 4096, 1 << 16));
+    assertFrames(frames, read(socket(encode(frames), random, 1, 40000), 4096, 1 << 16));
+  }
+
+  @Test
+  public void testPartialFrame() throws IOException {
+    List<byte[]> frames = new ArrayList<byte[]>();
+    frames.add(new byte[] {1, 2, 3});
+    ByteBuffer stream = encode(frames);
+
+    BufferPool pool = new BufferPool();
+    FrameReader reader = new FrameReader(pool, 64, 1024);
+    AppSocket socket = socket(stream, new Random(1), 2, 2);
+    List<ByteBuffer> result = new ArrayList<ByteBuffer>();
+    reader.read(socket, result);
+    assertTrue(reader.isPartial());
+    assertTrue(result.isEmpty());
+
+    while (reader.read(socket, result) != -1) {
+    }
+    assertFalse(reader.isPartial());
+    assertEquals(1, result.size());
+    assertEquals(1, reader.getFrames());
+    reader.release();
+  }
+
+  @Test
+  public void testFrameTooLarge() {
+    List<byte[]> frames = new ArrayList<byte[]>();
+    frames.add(new byte[2048]);
+
+    try {
+      read(socket(encode(frames), new Random(1), 1, 100), 64, 1024);
+      fail("a frame larger than the maximum was accepted");
+    } catch (IOException ioe) {
+      // the socket is to be closed
+    }
+  }
+
+  /**
+   * Read every frame of a socket, as the bodies
+   */
+  private static List<byte[]> read(AppSocket socket, int bufferSize, int maxFrameSize) throws IOException {
+    BufferPool pool = new BufferPool();
+    FrameReader reader = new FrameReader(pool, bufferSize, maxFrameSize);
+    List<ByteBuffer> result = new ArrayList<ByteBuffer>();
+    List<byte[]> frames = new ArrayList<byte[]>();
+    try {
+      while (reader.read(socket, result) != -1) {
+        for (int i = 0; i < result.size(); i++) {
+          ByteBuffer frame = result.get(i);
+          byte[] body = new byte[frame.remaining()];
+          frame.get(body);
+          frames.add(body);
+          pool.release(frame);
+        }
+        result.clear();
+      }
+      assertFalse(reader.isPartial());
+      assertEquals(frames.size(), reader.getFrames());
+    } finally {
+      reader.release();
+    }
+    return frames;
+  }
+
+  private static void assertFrames(List<byte[]> expected, List<byte[]> frames) {
+    assertEquals(expected.size(), frames.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertArrayEquals(expected.get(i), frames.get(i));
+    }
+  }
+
+  /**
+   * Return the frames as sent on a socket, each preceded by its length
+   */
+  private static ByteBuffer encode(List<byte[]> frames) {
+    int size = 0;
+    for (int i = 0; i < frames.size(); i++) {
+      size += FrameReader.HEADER_SIZE + frames.get(i).length;
+    }
+
+    ByteBuffer stream = ByteBuffer.allocate(size);
+    for (int i = 0; i < frames.size(); i++) {
+      stream.putInt(frames.get(i).length);
+      stream.put(frames.get(i));
+    }
+    stream.flip();
+    return stream;
+  }
+
+  /**
+   * Return a socket returning the bytes of a stream by reads of random sizes
+   */
+  private static AppSocket socket(final ByteBuffer stream, final Random random, final int min, final int max) {
+    return (AppSocket) Proxy.newProxyInstance(FrameReaderTest.class.getClassLoader(), new Class[] {AppSocket.class}, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (!method.getName().equals("read")) {
+          throw new UnsupportedOperationException(method.getName());
+        }
+        if (!stream.hasRemaining()) {
+          return new Long(-1);
+        }
+
+        ByteBuffer dst = args[0] instanceof ByteBuffer[] ? ((ByteBuffer[]) args[0])[((Integer) args[1]).intValue()] : (ByteBuffer) args[0];
+        int size = Math.min(min + random.nextInt(max - min + 1), stream.remaining());
+        size = Math.min(size, dst.remaining());
+        ByteBuffer bytes = stream.duplicate();
+        bytes.limit(bytes.position() + size);
+        dst.put(bytes);
+        stream.position(stream.position() + size);
+        return new Long(size);
+      }
+    });
+  }
+
+}
@@ -0,0 +1,159 @@
+package unito.p2p.coin.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.NodeHandle;
+
+import unito.p2p.coin.messaging.BalanceRequestMessage;
+import unito.p2p.coin.messaging.BalanceRequestPropagatedMessage;
+import unito.p2p.coin.messaging.CoinMessage;
+import unito.p2p.coin.testing.TestNodes;
+
+/**
+ * @(#) NodeHandleTableTest.java Checks that the tables of the two ends of a
+ * socket stay in sync: the reader learns every handle the writer added, a
+ * frame which is never sent takes its handles out of the writer table, and
+ * handles past the maximum are written in full.
+ */
+public class NodeHandleTableTest {
+
+  private BufferPool pool = new BufferPool();
+
+  private Endpoint endpoint = TestNodes.endpoint();
+
+  @Test
+  public void testReferences() throws IOException {
+    NodeHandleTable writer = new NodeHandleTable();
+    NodeHandleTable reader = new NodeHandleTable();
+    int[] nodes = {1, 2, 1, 3, 2, 1};
+
+    ByteBuffer frame = write(writer, nodes);
+    assertEquals(3, writer.getSize());
+    assertEquals(3, writer.getReferences());
+    read(reader, frame, nodes);
+    assertEquals(3, reader.getSize());
+    assertEquals(3, reader.getReferences());
+
+    // the next frame only refers to the handles
+    int[] again = {3, 2, 1};
+    int size = write(writer, new int[] {1, 2, 3}).remaining();
+    assertEquals(3 * 2, size - FrameReader.HEADER_SIZE);
+    read(reader, write(writer, again), again);
+    assertEquals(3, reader.getSize());
+  }
+
+  @Test
+  public void testTruncate() throws IOException {
+    NodeHandleTable writer = new NodeHandleTable();
+    NodeHandleTable reader = new NodeHandleTable();
+    read(reader, write(writer, new int[] {1, 2}), new int[] {1, 2});
+
+    // a frame which could not be sent: the reader never learns its handles
+    int size = writer.getSize();
+    write(writer, new int[] {3, 4, 1});
+    assertEquals(4, writer.getSize());
+    writer.truncate(size);
+    assertEquals(size, writer.getSize());
+
+    int[] nodes = {4, 1, 3, 4};
+    read(reader, write(writer, nodes), nodes);
+    assertEquals(writer.getSize(), reader.getSize());
+  }
+
+  @Test
+  public void testFull() throws IOException {
+    NodeHandleTable writer = new NodeHandleTable();
+    NodeHandleTable reader = new NodeHandleTable();
+    int[] nodes = new int[NodeHandleTable.MAX_HANDLES + 10];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = i;
+    }
+
+    read(reader, write(writer, nodes), nodes);
+    assertEquals(NodeHandleTable.MAX_HANDLES, writer.getSize());
+    assertEquals(NodeHandleTable.MAX_HANDLES, reader.getSize());
+
+    // the handles left out are written in full every time
+    int[] last = {nodes.length - 1, 0};
+    read(reader, write(writer, last), last);
+    assertEquals(1, writer.getReferences());
+  }
+
+  @Test
+  public void testUnknownHandle() throws IOException {
+    NodeHandleTable writer = new NodeHandleTable();
+    write(writer, new int[] {1});
+
+    try {
+      read(new NodeHandleTable(), write(writer, new int[] {1}), new int[] {1});
+      fail("a reference to a handle never sent was accepted");
+    } catch (IOException ioe) {
+      // the socket is to be closed
+    }
+  }
+
+  @Test
+  public void testMessages() throws IOException {
+    NodeHandleTable writer = new NodeHandleTable();
+    NodeHandleTable reader = new NodeHandleTable();
+
+    for (int i = 0; i < 3; i++) {
+      BalanceRequestMessage brm = new BalanceRequestMessage(i, TestNodes.handle(1), TestNodes.id(9), TestNodes.handle(2));
+      brm.setResponse(new Integer(i));
+      BalanceRequestPropagatedMessage brpm = new BalanceRequestPropagatedMessage(i, brm, TestNodes.handle(1));
+
+      ByteBufferOutputBuffer out = new ByteBufferOutputBuffer(pool);
+      out.setHandles(writer);
+      out.writeShort(brpm.getType());
+      brpm.serialize(out);
+      ByteBuffer frame = out.toFrame();
+      frame.position(FrameReader.HEADER_SIZE);
+
+      ByteBufferInputBuffer in = new ByteBufferInputBuffer(frame, reader);
+      CoinMessage message = (CoinMessage) endpoint.getDeserializer().deserialize(in, in.readShort(), (byte) 0, null);
+      assertEquals(0, in.bytesRemaining());
+      pool.release(frame);
+
+      BalanceRequestPropagatedMessage read = (BalanceRequestPropagatedMessage) message;
+      assertEquals(TestNodes.handle(1), read.getAccountRoot());
+      assertEquals(TestNodes.handle(2), read.getBalanceRequestMessage().getRequester());
+      assertEquals(new Integer(i), read.getBalanceRequestMessage().getResponse());
+      assertEquals(writer.getSize(), reader.getSize());
+    }
+    assertEquals(writer.getReferences(), reader.getReferences());
+  }
+
+  /**
+   * Return a frame holding the handles of the given nodes
+   */
+  private ByteBuffer write(NodeHandleTable table, int[] nodes) throws IOException {
+    ByteBufferOutputBuffer out = new ByteBufferOutputBuffer(pool);
+    for (int i = 0; i < nodes.length; i++) {
+      table.write(out, TestNodes.handle(nodes[i]));
+    }
+    return out.toFrame();
+  }
+
+  /**
+   * Read the handles of a frame and check that they are the ones of the
+   * given nodes
+   */
+  private void read(NodeHandleTable table, ByteBuffer frame, int[] nodes) throws IOException {
+    frame.position(FrameReader.HEADER_SIZE);
+    ByteBufferInputBuffer in = new ByteBufferInputBuffer(frame);
+    for (int i = 0; i < nodes.length; i++) {
+      NodeHandle handle = table.read(in, endpoint);
+      assertEquals(TestNodes.handle(nodes[i]), handle);
+    }
+    assertEquals(0, in.bytesRemaining());
+    pool.release(frame);
+  }
+
+}
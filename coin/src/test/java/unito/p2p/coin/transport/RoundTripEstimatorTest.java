@@ -0,0 +1,108 @@
+package unito.p2p.coin.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import rice.p2p.commonapi.Id;
+
+import unito.p2p.coin.testing.TestNodes;
+
+/**
+ * @(#) RoundTripEstimatorTest.java Checks the timeouts the estimator derives
+ * from the round trips of every node, within their bounds, and the hedge
+ * delay it takes from the percentile of the recent round trips.
+ */
+public class RoundTripEstimatorTest {
+
+  private Id node = TestNodes.id(1);
+
+  private Id other = TestNodes.id(2);
+
+  @Test
+  public void testUnknownNode() {
+    RoundTripEstimator estimator = new RoundTripEstimator(30000, 10, 0.95);
+    assertEquals(30000, estimator.getTimeout(node));
+    assertEquals(-1, Math.round(estimator.getRoundTrip(node)));
+    assertEquals(-1, estimator.getHedgeDelay());
+  }
+
+  @Test
+  public void testTimeout() {
+    RoundTripEstimator estimator = new RoundTripEstimator(30000, 10, 0.95);
+
+    // the first sample sets the round trip, and half of it as the variation
+    estimator.record(node, 100);
+    assertEquals(100, Math.round(estimator.getRoundTrip(node)));
+    assertEquals(100 + 4 * 50, estimator.getTimeout(node));
+
+    // the variation shrinks while the round trip holds
+    estimator.record(node, 100);
+    assertEquals(250, estimator.getTimeout(node));
+    for (int i = 0; i < 100; i++) {
+      estimator.record(node, 100);
+    }
+    assertEquals(101, estimator.getTimeout(node));
+
+    // every node has its own estimate
+    assertEquals(30000, estimator.getTimeout(other));
+    estimator.record(other, 8);
+    estimator.record(other, 40);
+    assertEquals(12, Math.round(estimator.getRoundTrip(other)));
+    assertEquals(101, estimator.getTimeout(node));
+  }
+
+  @Test
+  public void testBounds() {
+    RoundTripEstimator estimator = new RoundTripEstimator(5000, 1000, 0.95);
+    estimator.record(node, 5);
+    assertEquals(1000, estimator.getTimeout(node));
+    estimator.record(other, 60000);
+    assertEquals(5000, estimator.getTimeout(other));
+
+    try {
+      new RoundTripEstimator(1000, 5000, 0.95);
+      fail("a lowest timeout above the initial one was accepted");
+    } catch (IllegalArgumentException iae) {
+    }
+    try {
+      new RoundTripEstimator(5000, 1000, 0);
+      fail("a hedge percentile of 0 was accepted");
+    } catch (IllegalArgumentException iae) {
+    }
+    try {
+      new RoundTripEstimator(5000, 1000, 1.5);
+      fail("a hedge percentile above 1 was accepted");
+    } catch (IllegalArgumentException iae) {
+    }
+  }
+
+  @Test
+  public void testHedgeDelay() {
+    RoundTripEstimator estimator = new RoundTripEstimator(30000, 10, 0.95);
+    for (int i = 1; i < RoundTripEstimator.MIN_WINDOW_SAMPLES; i++) {
+      estimator.record(TestNodes.id(i), i);
+    }
+    assertEquals(-1, estimator.getHedgeDelay());
+
+    // the round trips to any node count
+    for (int i = RoundTripEstimator.MIN_WINDOW_SAMPLES; i <= 100; i++) {
+      estimator.record(TestNodes.id(i), i);
+    }
+    assertEquals(95, estimator.getHedgeDelay());
+
+    // only the last round trips are kept
+    for (int i = 0; i < RoundTripEstimator.WINDOW; i++) {
+      estimator.record(node, 7);
+    }
+    assertEquals(7, estimator.getHedgeDelay());
+
+    // never less than a millisecond
+    for (int i = 0; i < RoundTripEstimator.WINDOW; i++) {
+      estimator.record(node, 0);
+    }
+    assertEquals(1, estimator.getHedgeDelay());
+  }
+
+}